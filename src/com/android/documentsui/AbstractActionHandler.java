@@ -63,7 +63,6 @@ import com.android.documentsui.selection.SelectionManager;
 import com.android.documentsui.sidebar.EjectRootTask;
 import com.android.documentsui.ui.Snackbars;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -274,24 +273,18 @@ public abstract class AbstractActionHandler<T extends Activity & CommonAddons>
         Metrics.logUserAction(mActivity, Metrics.USER_ACTION_SELECT_ALL);
         Model model = mInjector.getModel();
 
-        // Exclude disabled files
-        List<String> enabled = new ArrayList<>();
-        for (String id : model.getModelIds()) {
+        // Only select things currently visible in the adapter, and exclude disabled files.
+        boolean changed = mSelectionMgr.selectAll((String id) -> {
             Cursor cursor = model.getItem(id);
             if (cursor == null) {
                 Log.w(TAG, "Skipping selection. Can't obtain cursor for modeId: " + id);
-                continue;
+                return false;
             }
             String docMimeType = getCursorString(
                     cursor, DocumentsContract.Document.COLUMN_MIME_TYPE);
             int docFlags = getCursorInt(cursor, DocumentsContract.Document.COLUMN_FLAGS);
-            if (mInjector.config.isDocumentEnabled(docMimeType, docFlags, mState)) {
-                enabled.add(id);
-            }
-        }
-
-        // Only select things currently visible in the adapter.
-        boolean changed = mSelectionMgr.setItemsSelected(enabled, true);
+            return mInjector.config.isDocumentEnabled(docMimeType, docFlags, mState);
+        });
         if (changed) {
             mDisplayStateChangedListener.run();
         }
@@ -481,6 +474,16 @@ public abstract class AbstractActionHandler<T extends Activity & CommonAddons>
         mActivity.getLoaderManager().restartLoader(LOADER_ID, null, mBindings);
     }
 
+    @Override
+    public void sortDocumentsForCurrentStack() {
+        final Loader<DirectoryResult> loader =
+                mActivity.getLoaderManager().getLoader(LOADER_ID);
+        if (loader instanceof DirectoryLoader && ((DirectoryLoader) loader).resort()) {
+            return;
+        }
+        loadDocumentsForCurrentStack();
+    }
+
     protected final boolean launchToDocument(Uri uri) {
         // We don't support launching to a document in an archive.
         if (!Providers.isArchiveUri(uri)) {
@@ -550,7 +553,8 @@ public abstract class AbstractActionHandler<T extends Activity & CommonAddons>
                         mState,
                         mInjector.features,
                         mExecutors,
-                        mInjector.fileTypeLookup);
+                        mInjector.fileTypeLookup,
+                        mInjector.listingSnapshots);
             } else {
 
                 Uri contentsUri = mSearchMgr.isSearching()
@@ -579,7 +583,8 @@ public abstract class AbstractActionHandler<T extends Activity & CommonAddons>
                         mState.sortModel,
                         mInjector.fileTypeLookup,
                         mDirectoryReloadLock,
-                        mSearchMgr.isSearching());
+                        mSearchMgr.isSearching(),
+                        mInjector.listingSnapshots);
             }
         }
 
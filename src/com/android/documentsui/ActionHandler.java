@@ -149,6 +149,12 @@ public interface ActionHandler {
 
     void loadDocumentsForCurrentStack();
 
+    /**
+     * Applies a changed sort order to the current directory, re-sorting the loaded documents
+     * if possible instead of loading them again.
+     */
+    void sortDocumentsForCurrentStack();
+
     void viewInOwner();
 
     void setDebugMode(boolean enabled);
@@ -22,9 +22,10 @@ import android.content.AsyncTaskLoader;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
@@ -32,7 +33,10 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.OperationCanceledException;
 import android.os.RemoteException;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.android.documentsui.archives.ArchivesProvider;
@@ -44,25 +48,54 @@ import com.android.documentsui.base.Lookup;
 import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.roots.RootCursorWrapper;
 import com.android.documentsui.sorting.SortModel;
+import com.android.documentsui.sorting.SortingCursorWrapper;
+
+import com.android.internal.annotations.GuardedBy;
 
 import libcore.io.IoUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
     private static final String TAG = "DirectoryLoader";
 
     private static final String[] SEARCH_REJECT_MIMES = new String[] { Document.MIME_TYPE_DIR };
 
+    // Number of documents requested at once from providers which support paging.
+    @VisibleForTesting
+    static final int PAGE_SIZE = 500;
+
     private final LockingContentObserver mObserver;
     private final RootInfo mRoot;
     private final Uri mUri;
     private final SortModel mModel;
     private final Lookup<String, String> mFileTypeLookup;
     private final boolean mSearchMode;
+    private final @Nullable ListingSnapshots mSnapshots;
+
+    // Written on the main thread, read on the loader thread.
+    private volatile boolean mAppend;
+    // Whether a load of the whole directory is pending or running. An append requested in the
+    // meantime is queued until it's delivered, so it pages from the fresh result.
+    private boolean mReloading;
+    private boolean mAppendQueued;
+    // The last result returned by loadInBackground(), to tell it apart from results which are
+    // delivered without loading.
+    private volatile DirectoryResult mLastLoaded;
+    @GuardedBy("this")
+    private @Nullable Windows mWindows;
 
     private DocumentInfo mDoc;
     private CancellationSignal mSignal;
     private DirectoryResult mResult;
+    // Snapshot of the last delivered result. Written on the main thread when results are
+    // delivered, read on the loader thread to compute changes for the next result.
+    private volatile ModelDiff.Snapshot mLastSnapshot;
+    // Whether the current result was read from a listing snapshot, and still needs loading.
+    private boolean mStale;
 
     private Features mFeatures;
 
@@ -75,7 +108,8 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             SortModel model,
             Lookup<String, String> fileTypeLookup,
             DirectoryReloadLock lock,
-            boolean inSearchMode) {
+            boolean inSearchMode,
+            @Nullable ListingSnapshots snapshots) {
 
         super(context, ProviderExecutor.forAuthority(root.authority));
         mFeatures = features;
@@ -85,6 +119,7 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         mDoc = doc;
         mFileTypeLookup = fileTypeLookup;
         mSearchMode = inSearchMode;
+        mSnapshots = snapshots;
         mObserver = new LockingContentObserver(lock, this::onContentChanged);
     }
 
@@ -112,27 +147,22 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             }
             result.client = client;
 
-            Resources resources = getContext().getResources();
             if (mFeatures.isContentPagingEnabled()) {
-                Bundle queryArgs = new Bundle();
-                mModel.addQuerySortArgs(queryArgs);
-
-                // TODO: At some point we don't want forced flags to override real paging...
-                // and that point is when we have real paging.
-                DebugFlags.addForcedPagingArgs(queryArgs);
-
-                cursor = client.query(mUri, null, queryArgs, mSignal);
+                final Windows windows = loadWindows(client);
+                cursor = windows.newCursor();
+                result.cursor = cursor;
+                if (!windows.isComplete()) {
+                    result.loadMore = this::loadMore;
+                }
             } else {
                 cursor = client.query(
                         mUri, null, null, null, mModel.getDocumentSortQuery(), mSignal);
+                if (cursor == null) {
+                    throw new RemoteException("Provider returned null");
+                }
+                cursor.registerContentObserver(mObserver);
             }
 
-            if (cursor == null) {
-                throw new RemoteException("Provider returned null");
-            }
-
-            cursor.registerContentObserver(mObserver);
-
             cursor = new RootCursorWrapper(mUri.getAuthority(), mRoot.rootId, cursor, -1);
 
             if (mSearchMode && !mFeatures.isFoldersInSearchResultsEnabled()) {
@@ -140,15 +170,25 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
                 cursor = new FilteringCursorWrapper(cursor, null, SEARCH_REJECT_MIMES);
             }
 
-            // TODO: When API tweaks have landed, use ContentResolver.EXTRA_HONORED_ARGS
-            // instead of checking directly for ContentResolver.QUERY_ARG_SORT_COLUMNS (won't work)
             if (mFeatures.isContentPagingEnabled()
-                        && cursor.getExtras().containsKey(ContentResolver.QUERY_ARG_SORT_COLUMNS)) {
+                    && isHonored(cursor.getExtras(), ContentResolver.QUERY_ARG_SORT_COLUMNS)) {
                 if (VERBOSE) Log.d(TAG, "Skipping sort of pre-sorted cursor. Booya!");
             } else {
                 cursor = mModel.sortCursor(cursor, mFileTypeLookup);
             }
             result.cursor = cursor;
+
+            final ModelDiff.Snapshot lastSnapshot = mLastSnapshot;
+            result.snapshot = ModelDiff.Snapshot.create(cursor);
+            if (lastSnapshot != null) {
+                result.changes = ModelDiff.compute(lastSnapshot, result.snapshot);
+            }
+
+            final Bundle extras = cursor.getExtras();
+            if (usesSnapshots()
+                    && (extras == null || !extras.getBoolean(DocumentsContract.EXTRA_LOADING))) {
+                mSnapshots.write(mRoot.getUri().toString(), mUri.toString(), mModel, cursor);
+            }
         } catch (Exception e) {
             Log.w(TAG, "Failed to query", e);
             result.exception = e;
@@ -160,9 +200,198 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             ContentProviderClient.releaseQuietly(client);
         }
 
+        mLastLoaded = result;
         return result;
     }
 
+    /**
+     * Queries the next window of the directory if more were requested, or the first window
+     * otherwise. Reloads keep as many rows as were loaded before, so scroll positions survive.
+     */
+    private Windows loadWindows(ContentProviderClient client) throws RemoteException {
+        final Windows previous;
+        synchronized (this) {
+            previous = mWindows;
+        }
+
+        if (mAppend && previous != null && !previous.isComplete()) {
+            try {
+                previous.add(queryWindow(client, previous.getLoadedCount(), PAGE_SIZE));
+            } catch (RemoteException | RuntimeException e) {
+                if (e instanceof OperationCanceledException) {
+                    throw e;
+                }
+                // Keep showing what was loaded so far, rather than failing the whole directory.
+                Log.w(TAG, "Failed to load more documents. Giving up.", e);
+                previous.setExhausted();
+            }
+            return previous;
+        }
+
+        final Bundle queryArgs = new Bundle();
+        mModel.addQuerySortArgs(queryArgs);
+        final boolean forced = DebugFlags.addForcedPagingArgs(queryArgs);
+        if (!forced) {
+            queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 0);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, Math.max(
+                    PAGE_SIZE, previous != null ? previous.getLoadedCount() : 0));
+        }
+        Cursor cursor = query(client, queryArgs);
+
+        // Windows only line up if the provider both limits and sorts them. A window short of
+        // the total count means the limit was honored, whether or not it was reported. Rows of
+        // a window which isn't sorted by the provider get sorted locally, so windows appended
+        // later would land in the middle of the list. Such directories are loaded whole.
+        final Bundle extras = cursor.getExtras();
+        final int totalCount = extras.getInt(ContentResolver.EXTRA_TOTAL_COUNT, -1);
+        final boolean sorted = queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_COLUMNS)
+                && isHonored(extras, ContentResolver.QUERY_ARG_SORT_COLUMNS);
+        final boolean paged = !forced && totalCount > cursor.getCount() && sorted;
+        if (!forced && !paged && totalCount > cursor.getCount()) {
+            if (VERBOSE) Log.d(TAG, "Provider doesn't sort windows. Loading everything.");
+            cursor.close();
+            queryArgs.remove(ContentResolver.QUERY_ARG_OFFSET);
+            queryArgs.remove(ContentResolver.QUERY_ARG_LIMIT);
+            cursor = query(client, queryArgs);
+        }
+
+        final Windows windows = new Windows(paged ? totalCount : cursor.getCount());
+        windows.add(cursor);
+        synchronized (this) {
+            mWindows = windows;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+        return windows;
+    }
+
+    /**
+     * Returns whether the provider honored the query argument, as reported through
+     * {@link ContentResolver#EXTRA_HONORED_ARGS}. Providers which predate it echo the argument
+     * in the extras instead.
+     */
+    private static boolean isHonored(@Nullable Bundle extras, String arg) {
+        if (extras == null) {
+            return false;
+        }
+        final String[] honored = extras.getStringArray(ContentResolver.EXTRA_HONORED_ARGS);
+        return (honored != null && Arrays.asList(honored).contains(arg))
+                || extras.containsKey(arg);
+    }
+
+    private Cursor queryWindow(ContentProviderClient client, int offset, int limit)
+            throws RemoteException {
+        final Bundle queryArgs = new Bundle();
+        mModel.addQuerySortArgs(queryArgs);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+        return query(client, queryArgs);
+    }
+
+    private Cursor query(ContentProviderClient client, Bundle queryArgs) throws RemoteException {
+        final Cursor cursor = client.query(mUri, null, queryArgs, mSignal);
+        if (cursor == null) {
+            throw new RemoteException("Provider returned null");
+        }
+        cursor.registerContentObserver(mObserver);
+        return cursor;
+    }
+
+    /**
+     * Loads the next window of a partially loaded directory. Does nothing if a window is already
+     * being loaded. If the directory is being reloaded, the next window is loaded once the
+     * reload is delivered. Must be called on the main thread.
+     */
+    public void loadMore() {
+        if (mAppend || !isStarted()) {
+            return;
+        }
+        if (mReloading) {
+            // Appending now would cancel the reload, and page from a stale result.
+            mAppendQueued = true;
+            return;
+        }
+        mAppend = true;
+        forceLoad();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        super.onForceLoad();
+        mReloading = !mAppend;
+    }
+
+    /**
+     * Sorts the current result again by the sort model, without querying the provider. The
+     * re-sorted result is delivered right away. Must be called on the main thread.
+     *
+     * @return false if the current result can't be re-sorted, and must be reloaded instead
+     */
+    public boolean resort() {
+        final DirectoryResult previous = mResult;
+        if (previous == null || previous.cursor == null || previous.snapshot == null) {
+            return false;
+        }
+
+        final SortingCursorWrapper cursor = mModel.resortCursor(previous.cursor);
+        if (cursor == null) {
+            return false;
+        }
+
+        // The new result takes over the cursor and the archive reference from the previous one.
+        final DirectoryResult result = new DirectoryResult();
+        result.doc = previous.doc;
+        result.cursor = cursor;
+        result.client = previous.client;
+        result.loadMore = previous.loadMore;
+        result.snapshot = previous.snapshot.reorder(
+                cursor.mapPositionsTo((SortingCursorWrapper) previous.cursor));
+        previous.client = null;
+
+        // A load in flight may have read the old sort order. Start it over.
+        final boolean reload = cancelLoad();
+        deliverResult(result);
+        if (reload) {
+            forceLoad();
+        }
+        return true;
+    }
+
+    private boolean usesSnapshots() {
+        // Search results and archives are transient, so they aren't worth restoring.
+        return mSnapshots != null && !mSearchMode && !mDoc.isInArchive();
+    }
+
+    /**
+     * Delivers the snapshot of this directory taken the last time it was loaded, if any, so
+     * documents show up before the provider responds. Once loaded, the live result is delivered
+     * with changes relative to the snapshot, so rows are updated in place.
+     */
+    private void deliverListingSnapshot() {
+        if (!usesSnapshots()) {
+            return;
+        }
+        final Cursor cursor = mSnapshots.read(mRoot.getUri().toString(), mUri.toString(), mModel);
+        if (cursor == null) {
+            return;
+        }
+
+        final DirectoryResult result = new DirectoryResult();
+        result.doc = mDoc;
+        result.cursor = cursor;
+        result.snapshot = ModelDiff.Snapshot.create(cursor);
+        deliverResult(result);
+        mStale = true;
+    }
+
+    @Override
+    public void onContentChanged() {
+        // Everything is reloaded on changes, so a pending request for more is moot.
+        mAppend = false;
+        super.onContentChanged();
+    }
+
     @Override
     public void cancelLoadInBackground() {
         super.cancelLoadInBackground();
@@ -181,7 +410,16 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             return;
         }
         DirectoryResult oldResult = mResult;
+        final boolean loaded = result != oldResult && result == mLastLoaded;
         mResult = result;
+        mLastSnapshot = result.snapshot;
+        mAppend = false;
+        if (result != oldResult) {
+            mStale = false;
+        }
+        if (loaded) {
+            mReloading = false;
+        }
 
         if (isStarted()) {
             super.deliverResult(result);
@@ -190,14 +428,23 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         if (oldResult != null && oldResult != result) {
             IoUtils.closeQuietly(oldResult);
         }
+
+        if (loaded && mAppendQueued) {
+            mAppendQueued = false;
+            if (result.loadMore != null) {
+                loadMore();
+            }
+        }
     }
 
     @Override
     protected void onStartLoading() {
         if (mResult != null) {
             deliverResult(mResult);
+        } else {
+            deliverListingSnapshot();
         }
-        if (takeContentChanged() || mResult == null) {
+        if (takeContentChanged() || mResult == null || mStale) {
             forceLoad();
         }
     }
@@ -209,6 +456,7 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
     @Override
     public void onCanceled(DirectoryResult result) {
+        mAppend = false;
         IoUtils.closeQuietly(result);
     }
 
@@ -221,10 +469,107 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
         IoUtils.closeQuietly(mResult);
         mResult = null;
+        mLastSnapshot = null;
+        mLastLoaded = null;
+        mAppend = false;
+        mReloading = false;
+        mAppendQueued = false;
+        mStale = false;
+
+        final Windows windows;
+        synchronized (this) {
+            windows = mWindows;
+            mWindows = null;
+        }
+        if (windows != null) {
+            windows.release();
+        }
 
         getContext().getContentResolver().unregisterContentObserver(mObserver);
     }
 
+    /**
+     * Windows of a directory loaded so far. Shared by consecutive results, so loading the next
+     * window doesn't require querying the previous ones again. The windows are closed once
+     * neither the loader nor any result refers to them anymore.
+     */
+    private static final class Windows {
+        private final List<Cursor> mCursors = new ArrayList<>();
+        private final int mTotalCount;
+        private int mLoadedCount;
+        private boolean mExhausted;
+        // The loader holds the initial reference.
+        private int mRefCount = 1;
+
+        Windows(int totalCount) {
+            mTotalCount = totalCount;
+        }
+
+        synchronized void add(Cursor cursor) {
+            mCursors.add(cursor);
+            mLoadedCount += cursor.getCount();
+            if (cursor.getCount() == 0) {
+                // The directory shrank since the first window was loaded.
+                mExhausted = true;
+            }
+        }
+
+        synchronized int getLoadedCount() {
+            return mLoadedCount;
+        }
+
+        synchronized void setExhausted() {
+            mExhausted = true;
+        }
+
+        synchronized boolean isComplete() {
+            return mExhausted || mLoadedCount >= mTotalCount;
+        }
+
+        /**
+         * Returns a cursor over all windows loaded so far. Windows loaded later aren't included.
+         */
+        synchronized Cursor newCursor() {
+            assert(mRefCount > 0);
+            mRefCount++;
+            final Cursor first = mCursors.get(0);
+            final Cursor cursor = mCursors.size() == 1
+                    ? first
+                    : new MergeCursor(mCursors.toArray(new Cursor[mCursors.size()]));
+            return new CursorWrapper(cursor) {
+                private boolean mClosed;
+
+                @Override
+                public Bundle getExtras() {
+                    // Extras describe the whole directory, so take them from the first window.
+                    return first.getExtras();
+                }
+
+                @Override
+                public boolean isClosed() {
+                    return mClosed;
+                }
+
+                @Override
+                public void close() {
+                    if (!mClosed) {
+                        mClosed = true;
+                        release();
+                    }
+                }
+            };
+        }
+
+        synchronized void release() {
+            if (--mRefCount == 0) {
+                for (Cursor cursor : mCursors) {
+                    IoUtils.closeQuietly(cursor);
+                }
+                mCursors.clear();
+            }
+        }
+    }
+
     private static final class LockingContentObserver extends ContentObserver {
         private final DirectoryReloadLock mLock;
         private final Runnable mContentChangedCallback;
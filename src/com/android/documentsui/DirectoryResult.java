@@ -32,6 +32,15 @@ public class DirectoryResult implements AutoCloseable {
     public DocumentInfo doc;
     ContentProviderClient client;
 
+    // Optional. Captured on the loader thread so the model and adapters don't have to walk
+    // the cursor again, and to compute changes relative to the previous result.
+    ModelDiff.Snapshot snapshot;
+    ModelDiff changes;
+
+    // Set if the cursor holds only the first documents of the directory. Loads more of them,
+    // which are delivered as a new result.
+    Runnable loadMore;
+
     @Override
     public void close() {
         IoUtils.closeQuietly(cursor);
@@ -41,5 +50,8 @@ public class DirectoryResult implements AutoCloseable {
         cursor = null;
         client = null;
         doc = null;
+        snapshot = null;
+        changes = null;
+        loadMore = null;
     }
 }
@@ -36,9 +36,11 @@ import com.android.documentsui.roots.ProvidersCache;
 
 public class DocumentsApplication extends Application {
     private static final long PROVIDER_ANR_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
+    private static final long THUMBNAIL_DISK_CACHE_SIZE_BYTES = 64 * 1024 * 1024;
 
     private ProvidersCache mProviders;
     private ThumbnailCache mThumbnailCache;
+    private ListingSnapshots mListingSnapshots;
     private ClipStorage mClipStore;
     private DocumentClipper mClipper;
     private DragAndDropManager mDragAndDropManager;
@@ -53,6 +55,10 @@ public class DocumentsApplication extends Application {
         return app.mThumbnailCache;
     }
 
+    public static ListingSnapshots getListingSnapshots(Context context) {
+        return ((DocumentsApplication) context.getApplicationContext()).mListingSnapshots;
+    }
+
     public static ContentProviderClient acquireUnstableProviderOrThrow(
             ContentResolver resolver, String authority) throws RemoteException {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
@@ -90,7 +96,11 @@ public class DocumentsApplication extends Application {
         mProviders = new ProvidersCache(this);
         mProviders.updateAsync(false);
 
-        mThumbnailCache = new ThumbnailCache(memoryClassBytes / 4);
+        mThumbnailCache = new ThumbnailCache(
+                memoryClassBytes / 4,
+                new ThumbnailDiskCache(getCacheDir(), THUMBNAIL_DISK_CACHE_SIZE_BYTES));
+
+        mListingSnapshots = new ListingSnapshots(getCacheDir());
 
         mClipStore = new ClipStorage(
                 ClipStorage.prepareStorage(getCacheDir()),
@@ -58,6 +58,9 @@ public class Injector<T extends ActionHandler> {
     public DialogController dialogs;
     public SearchViewManager searchManager;
 
+    // Optional. Lets listings render from a snapshot, until they're loaded.
+    public @Nullable ListingSnapshots listingSnapshots;
+
     public final DebugHelper debugHelper;
 
     @ContentScoped
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.Shared.VERBOSE;
+
+import android.annotation.Nullable;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.documentsui.roots.RootCursorWrapper;
+import com.android.documentsui.sorting.SortModel;
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent snapshots of the last listing loaded for each root, so a cold launch can render
+ * rows right away instead of waiting for the provider. Snapshots are presented as stale, i.e.
+ * still loading, and the loaders replace them once the live listing arrives.
+ *
+ * <p>A snapshot holds the leading rows of a listing in a compact binary format, which is mapped
+ * rather than parsed. That keeps reading it cheap enough for the main thread, as rows are only
+ * decoded when they're read. Below is the directory layout:
+ * [cache dir]
+ *      - [dir] listings
+ *          - [file] [hash of root].snapshot
+ *          - ...
+ */
+public class ListingSnapshots {
+
+    private static final String TAG = "ListingSnapshots";
+
+    /** Root of the Recents listing, which isn't backed by a single root. */
+    public static final String RECENTS_ROOT = "recents";
+
+    private static final String DIR_NAME = "listings";
+
+    private static final int MAGIC = 0x4c535453;  // LSTS
+    private static final int VERSION = 1;
+
+    // Rows beyond the first screens aren't worth the space and the time to write them.
+    @VisibleForTesting
+    static final int MAX_ROWS = 500;
+
+    // Number of snapshots kept on disk. The least recently written are deleted first.
+    private static final int MAX_SNAPSHOT_FILES = 32;
+
+    // Writes are coalesced, since busy directories tend to be reloaded in bursts.
+    private static final long WRITE_DELAY_MILLIS = 2000;
+
+    private static final String[] COLUMNS = new String[] {
+            RootCursorWrapper.COLUMN_AUTHORITY,
+            RootCursorWrapper.COLUMN_ROOT_ID,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_FLAGS
+    };
+    // Columns before this one are strings, the rest are numbers.
+    private static final int FIRST_NUMBER_COLUMN = 5;
+
+    // Per row: offset and length of each string, size, last modified, flags, null columns.
+    private static final int RECORD_SIZE = FIRST_NUMBER_COLUMN * 8 + 8 + 8 + 4 + 4;
+    private static final int SIZE_OFFSET = FIRST_NUMBER_COLUMN * 8;
+    private static final int LAST_MODIFIED_OFFSET = SIZE_OFFSET + 8;
+    private static final int FLAGS_OFFSET = LAST_MODIFIED_OFFSET + 8;
+    private static final int NULLS_OFFSET = FLAGS_OFFSET + 4;
+
+    private final File mDir;
+    private final ScheduledExecutorService mExecutor;
+
+    // Encoded snapshots waiting to be written, keyed by file.
+    @GuardedBy("mPendingWrites")
+    private final Map<File, byte[]> mPendingWrites = new HashMap<>();
+    @GuardedBy("mPendingWrites")
+    private boolean mFlushScheduled;
+
+    /**
+     * @param cacheDir the app's cache dir
+     */
+    public ListingSnapshots(File cacheDir) {
+        this(cacheDir, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @VisibleForTesting
+    ListingSnapshots(File cacheDir, ScheduledExecutorService executor) {
+        mDir = new File(cacheDir, DIR_NAME);
+        mExecutor = executor;
+    }
+
+    /**
+     * Maps the snapshot of a listing. The snapshot is only used if it was taken of the same
+     * listing, sorted the same way.
+     *
+     * @param root the root the listing belongs to. Each root keeps a single snapshot.
+     * @param listing identifies the listing within the root, e.g. its uri
+     * @return a cursor over the snapshot, marked as still loading, or null if there is no
+     *         matching snapshot
+     */
+    public @Nullable Cursor read(String root, String listing, SortModel sortModel) {
+        final File file = getFile(root);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (final FileInputStream stream = new AtomicFile(file).openRead()) {
+            final FileChannel channel = stream.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final byte[] listingBytes = new byte[buffer.getInt()];
+            buffer.get(listingBytes);
+            if (!listing.equals(new String(listingBytes, StandardCharsets.UTF_8))
+                    || buffer.getInt() != sortModel.getSortedDimensionId()
+                    || buffer.getInt() != sortModel.getCurrentSortDirection()) {
+                return null;
+            }
+
+            final int count = buffer.getInt();
+            final int stringsLength = buffer.getInt();
+            final int recordsOffset = buffer.position();
+            final int stringsOffset = recordsOffset + count * RECORD_SIZE;
+            if (stringsOffset + stringsLength != buffer.capacity()) {
+                Log.w(TAG, "Corrupt listing snapshot: " + file);
+                return null;
+            }
+
+            if (VERBOSE) Log.v(TAG, "Read snapshot of " + count + " rows for " + listing);
+            return new SnapshotCursor(buffer, count, recordsOffset, stringsOffset);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read listing snapshot: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Captures the leading rows of a listing, and writes them to disk asynchronously. This walks
+     * the cursor, so it must be called by the thread which owns the cursor.
+     *
+     * @see #read(String, String, SortModel)
+     */
+    public void write(String root, String listing, SortModel sortModel, Cursor cursor) {
+        final byte[] snapshot;
+        try {
+            snapshot = encode(listing, sortModel, cursor);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to capture listing snapshot of " + listing, e);
+            return;
+        }
+
+        synchronized (mPendingWrites) {
+            mPendingWrites.put(getFile(root), snapshot);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.schedule(this::flush, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void flush() {
+        final Map<File, byte[]> writes;
+        synchronized (mPendingWrites) {
+            mFlushScheduled = false;
+            writes = new HashMap<>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create listing snapshot dir.");
+            return;
+        }
+
+        for (Map.Entry<File, byte[]> write : writes.entrySet()) {
+            final AtomicFile file = new AtomicFile(write.getKey());
+            FileOutputStream out = null;
+            try {
+                out = file.startWrite();
+                out.write(write.getValue());
+                file.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write listing snapshot: " + write.getKey(), e);
+                file.failWrite(out);
+            }
+        }
+
+        trim();
+    }
+
+    private File getFile(String root) {
+        return new File(mDir, String.format("%08x.snapshot", root.hashCode()));
+    }
+
+    private void trim() {
+        final File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_SNAPSHOT_FILES) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (int i = MAX_SNAPSHOT_FILES; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static byte[] encode(String listing, SortModel sortModel, Cursor cursor)
+            throws IOException {
+        final int count = Math.min(cursor.getCount(), MAX_ROWS);
+        final int[] columns = new int[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            columns[i] = cursor.getColumnIndex(COLUMNS[i]);
+        }
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream(count * RECORD_SIZE);
+        final DataOutputStream recordsOut = new DataOutputStream(records);
+        final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        // Authorities and root ids repeat on every row, so strings are written only once.
+        final Map<String, Integer> stringOffsets = new HashMap<>();
+
+        cursor.moveToPosition(-1);
+        for (int pos = 0; pos < count && cursor.moveToNext(); ++pos) {
+            int nulls = 0;
+            for (int i = 0; i < FIRST_NUMBER_COLUMN; i++) {
+                final String value = columns[i] != -1 ? cursor.getString(columns[i]) : null;
+                if (value == null) {
+                    nulls |= 1 << i;
+                    recordsOut.writeInt(0);
+                    recordsOut.writeInt(0);
+                    continue;
+                }
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                Integer offset = stringOffsets.get(value);
+                if (offset == null) {
+                    offset = strings.size();
+                    strings.write(bytes);
+                    stringOffsets.put(value, offset);
+                }
+                recordsOut.writeInt(offset);
+                recordsOut.writeInt(bytes.length);
+            }
+            for (int i = FIRST_NUMBER_COLUMN; i < COLUMNS.length; i++) {
+                final boolean isNull = columns[i] == -1 || cursor.isNull(columns[i]);
+                if (isNull) {
+                    nulls |= 1 << i;
+                }
+                final long value = isNull ? 0 : cursor.getLong(columns[i]);
+                if (i == COLUMNS.length - 1) {
+                    recordsOut.writeInt((int) value);
+                } else {
+                    recordsOut.writeLong(value);
+                }
+            }
+            recordsOut.writeInt(nulls);
+        }
+        recordsOut.flush();
+
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream(
+                records.size() + strings.size() + 64);
+        final DataOutputStream out = new DataOutputStream(snapshot);
+        final byte[] listingBytes = listing.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(listingBytes.length);
+        out.write(listingBytes);
+        out.writeInt(sortModel.getSortedDimensionId());
+        out.writeInt(sortModel.getCurrentSortDirection());
+        out.writeInt(records.size() / RECORD_SIZE);
+        out.writeInt(strings.size());
+        records.writeTo(out);
+        strings.writeTo(out);
+        out.flush();
+        return snapshot.toByteArray();
+    }
+
+    /**
+     * Cursor over a mapped snapshot. Rows are decoded as they're read.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mRecordsOffset;
+        private final int mStringsOffset;
+
+        SnapshotCursor(ByteBuffer buffer, int count, int recordsOffset, int stringsOffset) {
+            mBuffer = buffer;
+            mCount = count;
+            mRecordsOffset = recordsOffset;
+            mStringsOffset = stringsOffset;
+
+            final Bundle extras = new Bundle();
+            extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+            setExtras(extras);
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (isNull(column)) {
+                return null;
+            }
+            if (column >= FIRST_NUMBER_COLUMN) {
+                return Long.toString(getLong(column));
+            }
+            final int field = getRecordOffset() + column * 8;
+            final byte[] bytes = new byte[mBuffer.getInt(field + 4)];
+            final int offset = mStringsOffset + mBuffer.getInt(field);
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = mBuffer.get(offset + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getLong(int column) {
+            if (isNull(column)) {
+                return 0;
+            }
+            switch (column) {
+                case FIRST_NUMBER_COLUMN:
+                    return mBuffer.getLong(getRecordOffset() + SIZE_OFFSET);
+                case FIRST_NUMBER_COLUMN + 1:
+                    return mBuffer.getLong(getRecordOffset() + LAST_MODIFIED_OFFSET);
+                case FIRST_NUMBER_COLUMN + 2:
+                    return mBuffer.getInt(getRecordOffset() + FLAGS_OFFSET);
+                default:
+                    return Long.parseLong(getString(column));
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            if (isNull(column)) {
+                return FIELD_TYPE_NULL;
+            }
+            return column < FIRST_NUMBER_COLUMN ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            checkPosition();
+            return (mBuffer.getInt(getRecordOffset() + NULLS_OFFSET) & (1 << column)) != 0;
+        }
+
+        private int getRecordOffset() {
+            return mRecordsOffset + getPosition() * RECORD_SIZE;
+        }
+    }
+}
@@ -39,15 +39,12 @@ import com.android.documentsui.base.EventListener;
 import com.android.documentsui.base.Features;
 import com.android.documentsui.roots.RootCursorWrapper;
 import com.android.documentsui.selection.Selection;
+import com.android.documentsui.selection.SelectionKeys;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.function.Predicate;
 
 /**
@@ -65,14 +62,23 @@ public class Model {
     private final Features mFeatures;
 
     /** Maps Model ID to cursor positions, for looking up items by Model ID. */
-    private final Map<String, Integer> mPositions = new HashMap<>();
-    private final Set<String> mFileNames = new HashSet<>();
+    private PositionIndex mPositions = PositionIndex.EMPTY;
+    // Display names of the documents, if known without walking the cursor.
+    private @Nullable String[] mNames;
+    // Built on first use, as only a few operations need to look up names.
+    private @Nullable PositionIndex mFileNames;
+    // Built on first use, and dropped along with mPositions.
+    private @Nullable SelectionKeys mSelectionKeys;
 
     private boolean mIsLoading;
+    private @Nullable Runnable mLoadMore;
     private List<EventListener<Update>> mUpdateListeners = new ArrayList<>();
     private @Nullable Cursor mCursor;
     private int mCursorCount;
     private String mIds[] = new String[0];
+    // The snapshot backing mIds, if the loader provided one. Used to validate incremental
+    // changes delivered with the next result.
+    private @Nullable ModelDiff.Snapshot mSnapshot;
 
     public Model(Features features) {
         mFeatures = features;
@@ -87,8 +93,12 @@ public class Model {
     }
 
     private void notifyUpdateListeners() {
+        notifyUpdateListeners(Update.UPDATE);
+    }
+
+    private void notifyUpdateListeners(Update update) {
         for (EventListener<Update> handler: mUpdateListeners) {
-            handler.accept(Update.UPDATE);
+            handler.accept(update);
         }
     }
 
@@ -103,12 +113,16 @@ public class Model {
         mCursor = null;
         mCursorCount = 0;
         mIds = new String[0];
-        mPositions.clear();
+        mSnapshot = null;
+        mPositions = PositionIndex.EMPTY;
+        mSelectionKeys = null;
+        mNames = null;
+        mFileNames = null;
         info = null;
         error = null;
         doc = null;
         mIsLoading = false;
-        mFileNames.clear();
+        mLoadMore = null;
         notifyUpdateListeners();
     }
 
@@ -125,11 +139,24 @@ public class Model {
             return;
         }
 
+        // Changes can only be applied incrementally if they were computed against exactly
+        // what we're presenting right now.
+        final @Nullable ModelDiff changes =
+                (result.changes != null && mSnapshot != null
+                        && result.changes.getBase() == mSnapshot)
+                ? result.changes
+                : null;
+
         mCursor = result.cursor;
         mCursorCount = mCursor.getCount();
         doc = result.doc;
+        mLoadMore = result.loadMore;
 
-        updateModelData();
+        if (result.snapshot != null && result.snapshot.getCount() == mCursorCount) {
+            updateModelData(result.snapshot);
+        } else {
+            updateModelData();
+        }
 
         final Bundle extras = mCursor.getExtras();
         if (extras != null) {
@@ -138,7 +165,7 @@ public class Model {
             mIsLoading = extras.getBoolean(DocumentsContract.EXTRA_LOADING, false);
         }
 
-        notifyUpdateListeners();
+        notifyUpdateListeners(changes != null ? new Update(changes) : Update.UPDATE);
     }
 
     @VisibleForTesting
@@ -151,41 +178,85 @@ public class Model {
      * according to the current sort order.
      */
     private void updateModelData() {
+        final String[] previousIds = mIds;
+        final PositionIndex previousPositions = mPositions;
+        final boolean merged = mCursor instanceof MergeCursor;
+
         mIds = new String[mCursorCount];
-        mFileNames.clear();
+        mSnapshot = null;
+        mNames = null;
+        mFileNames = null;
         mCursor.moveToPosition(-1);
         for (int pos = 0; pos < mCursorCount; ++pos) {
             if (!mCursor.moveToNext()) {
                 Log.e(TAG, "Fail to move cursor to next pos: " + pos);
-                return;
+                break;
             }
-            // Generates a Model ID for a cursor entry that refers to a document. The Model ID is a
-            // unique string that can be used to identify the document referred to by the cursor.
-            // If the cursor is a merged cursor over multiple authorities, then prefix the ids
-            // with the authority to avoid collisions.
-            if (mCursor instanceof MergeCursor) {
-                mIds[pos] = getCursorString(mCursor, RootCursorWrapper.COLUMN_AUTHORITY)
-                        + "|" + getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
+            if (merged) {
+                // Reuse IDs from the previous load instead of concatenating them all again.
+                final String authority =
+                        getCursorString(mCursor, RootCursorWrapper.COLUMN_AUTHORITY);
+                final String documentId = getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
+                final int previous = previousPositions.indexOf(authority, '|', documentId);
+                mIds[pos] = previous != -1
+                        ? previousIds[previous]
+                        : authority + "|" + documentId;
             } else {
                 mIds[pos] = getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
             }
-            mFileNames.add(getCursorString(mCursor, Document.COLUMN_DISPLAY_NAME));
         }
 
-        // Populate the positions.
-        mPositions.clear();
-        for (int i = 0; i < mCursorCount; ++i) {
-            mPositions.put(mIds[i], i);
+        mPositions = new PositionIndex(mIds, mCursorCount);
+        mSelectionKeys = null;
+    }
+
+    /**
+     * Adopts Model IDs from a snapshot that the loader already took of the cursor on a
+     * background thread, sparing us a walk over the cursor on the UI thread.
+     */
+    private void updateModelData(ModelDiff.Snapshot snapshot) {
+        mIds = snapshot.ids;
+        mSnapshot = snapshot;
+        mNames = snapshot.names;
+        mFileNames = null;
+        mPositions = new PositionIndex(mIds, mCursorCount);
+        mSelectionKeys = null;
+    }
+
+    /**
+     * Generates a Model ID for a cursor entry that refers to a document. The Model ID is a
+     * unique string that can be used to identify the document referred to by the cursor.
+     * If the cursor is a merged cursor over multiple authorities, then the id is prefixed
+     * with the authority to avoid collisions.
+     */
+    static String createModelId(Cursor cursor) {
+        if (cursor instanceof MergeCursor) {
+            return getCursorString(cursor, RootCursorWrapper.COLUMN_AUTHORITY)
+                    + "|" + getCursorString(cursor, Document.COLUMN_DOCUMENT_ID);
+        } else {
+            return getCursorString(cursor, Document.COLUMN_DOCUMENT_ID);
         }
     }
 
     public boolean hasFileWithName(String name) {
-        return mFileNames.contains(name);
+        if (mFileNames == null) {
+            if (mNames == null) {
+                mNames = new String[mCursorCount];
+                if (mCursor != null) {
+                    mCursor.moveToPosition(-1);
+                    for (int pos = 0; pos < mCursorCount && mCursor.moveToNext(); ++pos) {
+                        mNames[pos] = getCursorString(mCursor, Document.COLUMN_DISPLAY_NAME);
+                    }
+                }
+            }
+            mFileNames = new PositionIndex(mNames, mCursorCount);
+        }
+        return mFileNames.indexOf(name) != -1;
     }
 
     public @Nullable Cursor getItem(String modelId) {
-        Integer pos = mPositions.get(modelId);
-        if (pos == null) {
+        final int pos = mPositions.indexOf(modelId);
+        if (pos == -1) {
             if (DEBUG) Log.d(TAG, "Unabled to find cursor position for modelId: " + modelId);
             return null;
         }
@@ -203,6 +274,23 @@ public class Model {
         return mIsLoading;
     }
 
+    /**
+     * @return true if the directory has more documents than the model holds so far
+     */
+    public boolean isPartiallyLoaded() {
+        return mLoadMore != null;
+    }
+
+    /**
+     * Requests more documents of a partially loaded directory. They are delivered with a
+     * regular update.
+     */
+    public void loadMore() {
+        if (mLoadMore != null) {
+            mLoadMore.run();
+        }
+    }
+
     public List<DocumentInfo> getDocuments(Selection selection) {
         return loadDocuments(selection, DocumentFilters.ANY);
     }
@@ -269,6 +357,45 @@ public class Model {
         return mIds;
     }
 
+    /**
+     * @return The model IDs keyed by their positions, for selections to track items by position.
+     *         A new instance is returned after each model update.
+     */
+    public SelectionKeys getSelectionKeys() {
+        if (mSelectionKeys == null) {
+            mSelectionKeys = new Keys(mIds, mCursorCount, mPositions);
+        }
+        return mSelectionKeys;
+    }
+
+    // Model IDs are never modified in place, only replaced, so keys can share them.
+    private static final class Keys implements SelectionKeys {
+        private final String[] mIds;
+        private final int mCount;
+        private final PositionIndex mPositions;
+
+        private Keys(String[] ids, int count, PositionIndex positions) {
+            mIds = ids;
+            mCount = count;
+            mPositions = positions;
+        }
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+
+        @Override
+        public @Nullable String get(int position) {
+            return mIds[position];
+        }
+
+        @Override
+        public int indexOf(String modelId) {
+            return mPositions.indexOf(modelId);
+        }
+    }
+
     public static class Update {
 
         public static final Update UPDATE = new Update();
@@ -284,11 +411,24 @@ public class Model {
 
         private final @UpdateType int mUpdateType;
         private final @Nullable Exception mException;
+        private final @Nullable ModelDiff mChanges;
         private final boolean mRemoteActionEnabled;
 
         private Update() {
             mUpdateType = TYPE_UPDATE;
             mException = null;
+            mChanges = null;
+            mRemoteActionEnabled = false;
+        }
+
+        /**
+         * Creates an update that can be applied incrementally using the given changes.
+         */
+        public Update(ModelDiff changes) {
+            assert(changes != null);
+            mUpdateType = TYPE_UPDATE;
+            mException = null;
+            mChanges = changes;
             mRemoteActionEnabled = false;
         }
 
@@ -296,6 +436,7 @@ public class Model {
             assert(exception != null);
             mUpdateType = TYPE_UPDATE_EXCEPTION;
             mException = exception;
+            mChanges = null;
             mRemoteActionEnabled = remoteActionsEnabled;
         }
 
@@ -303,6 +444,18 @@ public class Model {
             return mUpdateType == TYPE_UPDATE;
         }
 
+        /**
+         * @return true if the update carries incremental changes. If false, listeners must
+         *         assume everything changed.
+         */
+        public boolean hasChanges() {
+            return mChanges != null;
+        }
+
+        public @Nullable ModelDiff getChanges() {
+            return mChanges;
+        }
+
         public boolean hasException() {
             return mUpdateType == TYPE_UPDATE_EXCEPTION;
         }
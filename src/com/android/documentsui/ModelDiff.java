@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.DocumentInfo.getCursorInt;
+import static com.android.documentsui.base.DocumentInfo.getCursorLong;
+import static com.android.documentsui.base.DocumentInfo.getCursorString;
+import static com.android.documentsui.base.Shared.VERBOSE;
+
+import android.database.Cursor;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import java.util.Objects;
+
+/**
+ * A minimal set of insert/remove/move/change operations that transforms one directory listing
+ * into the next one. Instances are computed off the UI thread by {@link DirectoryLoader} and
+ * delivered to adapters through {@link Model.Update}, so live refreshes of busy directories
+ * don't have to rebind every visible item.
+ */
+public final class ModelDiff {
+
+    private static final String TAG = "ModelDiff";
+
+    // Rows shared at the head and tail of both listings are trimmed before running the diff.
+    // If what's left is still larger than this, the listing changed too much for a diff to be
+    // worth its cost and we fall back to a full refresh.
+    @VisibleForTesting
+    static final int MAX_DIFF_WINDOW = 2000;
+
+    private final Snapshot mBase;
+    private final int mOffset;
+    private final @Nullable DiffUtil.DiffResult mResult;
+
+    private ModelDiff(Snapshot base, int offset, @Nullable DiffUtil.DiffResult result) {
+        mBase = base;
+        mOffset = offset;
+        mResult = result;
+    }
+
+    /**
+     * @return The snapshot this diff was computed against. The diff may only be applied to a
+     *         model that currently presents exactly this snapshot.
+     */
+    Snapshot getBase() {
+        return mBase;
+    }
+
+    /**
+     * Dispatches the change operations to the callback, in the order required by
+     * {@link ListUpdateCallback}.
+     */
+    public void dispatchUpdatesTo(ListUpdateCallback callback) {
+        if (mResult == null) {
+            return;
+        }
+        mResult.dispatchUpdatesTo(mOffset == 0 ? callback : new OffsetCallback(callback, mOffset));
+    }
+
+    public void dispatchUpdatesTo(RecyclerView.Adapter<?> adapter) {
+        dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                adapter.notifyItemRangeInserted(position, count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                adapter.notifyItemRangeRemoved(position, count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                adapter.notifyItemMoved(fromPosition, toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                adapter.notifyItemRangeChanged(position, count, payload);
+            }
+        });
+    }
+
+    /**
+     * Computes the changes between two snapshots. This walks both snapshots and should not be
+     * called on the UI thread.
+     *
+     * @return The changes, or null if the listings differ so much that a full refresh is cheaper.
+     */
+    static @Nullable ModelDiff compute(Snapshot oldSnapshot, Snapshot newSnapshot) {
+        final int oldCount = oldSnapshot.getCount();
+        final int newCount = newSnapshot.getCount();
+        final int minCount = Math.min(oldCount, newCount);
+
+        int head = 0;
+        while (head < minCount && oldSnapshot.isSameItem(head, newSnapshot, head)
+                && oldSnapshot.isSameContent(head, newSnapshot, head)) {
+            head++;
+        }
+
+        int tail = 0;
+        while (tail < minCount - head
+                && oldSnapshot.isSameItem(oldCount - 1 - tail, newSnapshot, newCount - 1 - tail)
+                && oldSnapshot.isSameContent(
+                        oldCount - 1 - tail, newSnapshot, newCount - 1 - tail)) {
+            tail++;
+        }
+
+        final int oldWindow = oldCount - head - tail;
+        final int newWindow = newCount - head - tail;
+        if (Math.max(oldWindow, newWindow) > MAX_DIFF_WINDOW) {
+            if (VERBOSE) Log.v(TAG, "Changed window too large to diff: " + oldWindow + " -> "
+                    + newWindow + ". Falling back to full refresh.");
+            return null;
+        }
+
+        if (oldWindow == 0 && newWindow == 0) {
+            return new ModelDiff(oldSnapshot, 0, null);
+        }
+
+        final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                new WindowCallback(oldSnapshot, newSnapshot, head, oldWindow, newWindow), true);
+        return new ModelDiff(oldSnapshot, head, result);
+    }
+
+    /**
+     * An immutable capture of the Model IDs of a listing, plus enough of each row to detect that
+     * an item's content changed without its identity changing.
+     */
+    static final class Snapshot {
+
+        final String[] ids;
+        final String[] names;
+        private final long[] mLastModified;
+        private final long[] mSizes;
+        private final int[] mAttributes;
+
+        private Snapshot(int count) {
+            ids = new String[count];
+            names = new String[count];
+            mLastModified = new long[count];
+            mSizes = new long[count];
+            mAttributes = new int[count];
+        }
+
+        /**
+         * Creates a snapshot by walking the cursor from the start. Rows are captured in cursor
+         * order, so the snapshot must be taken from the same (sorted) cursor that is delivered
+         * to the {@link Model}.
+         */
+        static Snapshot create(Cursor cursor) {
+            final int count = cursor.getCount();
+            final Snapshot snapshot = new Snapshot(count);
+            cursor.moveToPosition(-1);
+            for (int pos = 0; pos < count; ++pos) {
+                if (!cursor.moveToNext()) {
+                    Log.e(TAG, "Fail to move cursor to next pos: " + pos);
+                    break;
+                }
+                snapshot.ids[pos] = Model.createModelId(cursor);
+                snapshot.names[pos] = getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
+                snapshot.mLastModified[pos] = getCursorLong(cursor, Document.COLUMN_LAST_MODIFIED);
+                snapshot.mSizes[pos] = getCursorLong(cursor, Document.COLUMN_SIZE);
+                snapshot.mAttributes[pos] = Objects.hash(
+                        snapshot.names[pos],
+                        getCursorString(cursor, Document.COLUMN_MIME_TYPE),
+                        getCursorInt(cursor, Document.COLUMN_FLAGS));
+            }
+            return snapshot;
+        }
+
+        /**
+         * Returns a snapshot of the same rows in another order.
+         *
+         * @param positions position in this snapshot of each row of the new one
+         */
+        Snapshot reorder(int[] positions) {
+            final Snapshot snapshot = new Snapshot(positions.length);
+            for (int pos = 0; pos < positions.length; ++pos) {
+                final int source = positions[pos];
+                snapshot.ids[pos] = ids[source];
+                snapshot.names[pos] = names[source];
+                snapshot.mLastModified[pos] = mLastModified[source];
+                snapshot.mSizes[pos] = mSizes[source];
+                snapshot.mAttributes[pos] = mAttributes[source];
+            }
+            return snapshot;
+        }
+
+        int getCount() {
+            return ids.length;
+        }
+
+        boolean isSameItem(int position, Snapshot other, int otherPosition) {
+            return Objects.equals(ids[position], other.ids[otherPosition]);
+        }
+
+        boolean isSameContent(int position, Snapshot other, int otherPosition) {
+            return mLastModified[position] == other.mLastModified[otherPosition]
+                    && mSizes[position] == other.mSizes[otherPosition]
+                    && mAttributes[position] == other.mAttributes[otherPosition];
+        }
+    }
+
+    private static final class WindowCallback extends DiffUtil.Callback {
+
+        private final Snapshot mOld;
+        private final Snapshot mNew;
+        private final int mOffset;
+        private final int mOldCount;
+        private final int mNewCount;
+
+        private WindowCallback(
+                Snapshot oldSnapshot, Snapshot newSnapshot, int offset, int oldCount,
+                int newCount) {
+            mOld = oldSnapshot;
+            mNew = newSnapshot;
+            mOffset = offset;
+            mOldCount = oldCount;
+            mNewCount = newCount;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldCount;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewCount;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.isSameItem(oldItemPosition + mOffset, mNew, newItemPosition + mOffset);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.isSameContent(oldItemPosition + mOffset, mNew, newItemPosition + mOffset);
+        }
+    }
+
+    private static final class OffsetCallback implements ListUpdateCallback {
+
+        private final ListUpdateCallback mDelegate;
+        private final int mOffset;
+
+        private OffsetCallback(ListUpdateCallback delegate, int offset) {
+            mDelegate = delegate;
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            mDelegate.onInserted(position + mOffset, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mDelegate.onRemoved(position + mOffset, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mDelegate.onMoved(fromPosition + mOffset, toPosition + mOffset);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            mDelegate.onChanged(position + mOffset, count, payload);
+        }
+    }
+}
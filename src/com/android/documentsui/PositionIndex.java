@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+/**
+ * Maps strings to their positions in an array. Uses open addressing over a primitive array, so
+ * building the index allocates nothing per element, which matters for large directories that
+ * are reloaded often.
+ *
+ * <p>The array must not be modified while the index is in use. If a string occurs more than
+ * once, its first position is returned.
+ */
+final class PositionIndex {
+
+    static final PositionIndex EMPTY = new PositionIndex(new String[0], 0);
+
+    private final String[] mKeys;
+    // Position of the key plus one, or zero for empty slots.
+    private final int[] mSlots;
+    private final int mMask;
+
+    /**
+     * @param keys keys to index. Null keys are skipped.
+     * @param count number of leading keys to index
+     */
+    PositionIndex(String[] keys, int count) {
+        assert(count <= keys.length);
+        mKeys = keys;
+
+        // Keep the load factor at or below 0.5, so probe sequences stay short.
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+
+        for (int i = 0; i < count; i++) {
+            final String key = keys[i];
+            if (key == null) {
+                continue;
+            }
+            int slot = spread(key.hashCode()) & mMask;
+            while (mSlots[slot] != 0 && !key.equals(mKeys[mSlots[slot] - 1])) {
+                slot = (slot + 1) & mMask;
+            }
+            if (mSlots[slot] == 0) {
+                mSlots[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * @return position of the key, or -1 if it's not indexed
+     */
+    int indexOf(String key) {
+        int slot = spread(key.hashCode()) & mMask;
+        int entry;
+        while ((entry = mSlots[slot]) != 0) {
+            if (key.equals(mKeys[entry - 1])) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up {@code prefix + separator + suffix} without concatenating the strings.
+     *
+     * @return position of the key, or -1 if it's not indexed
+     */
+    int indexOf(String prefix, char separator, String suffix) {
+        // Same as String.hashCode() of the concatenated string.
+        int hash = prefix.hashCode() * 31 + separator;
+        for (int i = 0; i < suffix.length(); i++) {
+            hash = hash * 31 + suffix.charAt(i);
+        }
+
+        final int length = prefix.length() + 1 + suffix.length();
+        int slot = spread(hash) & mMask;
+        int entry;
+        while ((entry = mSlots[slot]) != 0) {
+            final String key = mKeys[entry - 1];
+            if (key.length() == length
+                    && key.startsWith(prefix)
+                    && key.charAt(prefix.length()) == separator
+                    && key.endsWith(suffix)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -25,10 +25,9 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
-import android.database.MatrixCursor;
-import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.text.format.DateUtils;
@@ -41,6 +40,7 @@ import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.base.State;
 import com.android.documentsui.roots.ProvidersAccess;
 import com.android.documentsui.roots.RootCursorWrapper;
+import com.android.documentsui.sorting.SortedMergeCursor;
 import com.android.internal.annotations.GuardedBy;
 
 import com.google.common.util.concurrent.AbstractFuture;
@@ -61,10 +61,6 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
-    // TODO: clean up cursor ownership so background thread doesn't traverse
-    // previously returned cursors for filtering/sorting; this currently races
-    // with the UI thread.
-
     private static final int MAX_OUTSTANDING_RECENTS = 4;
     private static final int MAX_OUTSTANDING_RECENTS_SVELTE = 2;
 
@@ -76,6 +72,9 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
     /** Maximum documents from a single root. */
     private static final int MAX_DOCS_FROM_ROOT = 64;
 
+    /** Maximum documents from all roots. */
+    private static final int MAX_DOCS = 256;
+
     /** Ignore documents older than this age. */
     private static final long REJECT_OLDER_THAN = 45 * DateUtils.DAY_IN_MILLIS;
 
@@ -89,18 +88,30 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
     private final Features mFeatures;
     private final Lookup<String, Executor> mExecutors;
     private final Lookup<String, String> mFileTypeMap;
+    private final @Nullable ListingSnapshots mSnapshots;
 
     @GuardedBy("mTasks")
     /** A authority -> RecentsTask map */
     private final Map<String, RecentsTask> mTasks = new HashMap<>();
 
+    @GuardedBy("mTasks")
+    /**
+     * Documents of finished tasks merged so far. Each pass merges in only the tasks finished since
+     * the previous one. Cursors handed out to the UI aren't traversed again, as that would race
+     * with the UI reading them, not even when the sort order changed in the meantime.
+     */
+    private SortedMergeCursor mMerged;
+
     private CountDownLatch mFirstPassLatch;
     private volatile boolean mFirstPassDone;
 
     private DirectoryResult mResult;
+    // Whether the current result was read from a listing snapshot, and still needs loading.
+    private boolean mStale;
 
     public RecentsLoader(Context context, ProvidersAccess providers, State state, Features features,
-            Lookup<String, Executor> executors, Lookup<String, String> fileTypeMap) {
+            Lookup<String, Executor> executors, Lookup<String, String> fileTypeMap,
+            @Nullable ListingSnapshots snapshots) {
 
         super(context);
         mProviders = providers;
@@ -108,6 +119,7 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
         mFeatures = features;
         mExecutors = executors;
         mFileTypeMap = fileTypeMap;
+        mSnapshots = snapshots;
 
         // Keep clients around on high-RAM devices, since we'd be spinning them
         // up moments later to fetch thumbnails anyway.
@@ -149,12 +161,24 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
 
         final long rejectBefore = System.currentTimeMillis() - REJECT_OLDER_THAN;
 
-        // Collect all finished tasks
+        if (mMerged == null) {
+            mMerged = mState.sortModel.createMergeCursor(mFileTypeMap, MAX_DOCS);
+        } else if (!mState.sortModel.isMergedInOrder(mMerged)) {
+            // Sort order changed. Rows merged so far are sorted again by the keys read when they
+            // were merged in.
+            mMerged = mState.sortModel.sortMergeCursor(mMerged);
+        }
+
+        // Collect all tasks finished since the previous pass
         boolean allDone = true;
         int totalQuerySize = 0;
         List<Cursor> cursors = new ArrayList<>(mTasks.size());
         for (RecentsTask task : mTasks.values()) {
             if (task.isDone()) {
+                if (task.merged) {
+                    continue;
+                }
+                task.merged = true;
                 try {
                     final Cursor[] taskCursors = task.get();
                     if (taskCursors == null || taskCursors.length == 0) continue;
@@ -166,14 +190,8 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
                             // after a query.
                             continue;
                         }
-                        final FilteringCursorWrapper filtered = new FilteringCursorWrapper(
-                                cursor, mState.acceptMimes, RECENT_REJECT_MIMES, rejectBefore) {
-                            @Override
-                            public void close() {
-                                // Ignored, since we manage cursor lifecycle internally
-                            }
-                        };
-                        cursors.add(filtered);
+                        cursors.add(new FilteringCursorWrapper(
+                                cursor, mState.acceptMimes, RECENT_REJECT_MIMES, rejectBefore));
                     }
 
                 } catch (InterruptedException e) {
@@ -191,30 +209,25 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
         }
 
         if (DEBUG) {
-            Log.d(TAG,
-                    "Found " + cursors.size() + " of " + totalQuerySize + " recent queries done");
+            Log.d(TAG, "Found " + cursors.size() + " of " + totalQuerySize
+                    + " new recent queries done");
         }
 
         final DirectoryResult result = new DirectoryResult();
 
-        final Cursor merged;
-        if (cursors.size() > 0) {
-            merged = new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
-        } else {
-            // Return something when nobody is ready
-            merged = new MatrixCursor(new String[0]);
-        }
-
-        final Cursor notMovableMasked = new NotMovableMaskCursor(merged);
-        final Cursor sorted = mState.sortModel.sortCursor(notMovableMasked, mFileTypeMap);
+        // Cursors are already sorted by the providers in most cases, so merging them in is
+        // cheaper than sorting all documents again. The merged cursor doesn't close them, as
+        // their lifecycle is managed by the tasks.
+        mMerged = mMerged.merge(cursors);
+        final Cursor notMovableMasked = new NotMovableMaskCursor(mMerged);
 
         // Tell the UI if this is an in-progress result. When loading is complete, another update is
         // sent with EXTRA_LOADING set to false.
         Bundle extras = new Bundle();
         extras.putBoolean(DocumentsContract.EXTRA_LOADING, !allDone);
-        sorted.setExtras(extras);
+        notMovableMasked.setExtras(extras);
 
-        result.cursor = sorted;
+        result.cursor = notMovableMasked;
 
         return result;
     }
@@ -252,6 +265,10 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
         }
         DirectoryResult oldResult = mResult;
         mResult = result;
+        if (result != oldResult) {
+            mStale = false;
+            writeListingSnapshot(result);
+        }
 
         if (isStarted()) {
             super.deliverResult(result);
@@ -266,12 +283,53 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
     protected void onStartLoading() {
         if (mResult != null) {
             deliverResult(mResult);
+        } else {
+            deliverListingSnapshot();
         }
-        if (takeContentChanged() || mResult == null) {
+        if (takeContentChanged() || mResult == null || mStale) {
             forceLoad();
         }
     }
 
+    /**
+     * Delivers the snapshot of recents taken the last time they were loaded, if any, so
+     * documents show up before all providers respond.
+     */
+    private void deliverListingSnapshot() {
+        if (mSnapshots == null) {
+            return;
+        }
+        final Cursor cursor = mSnapshots.read(
+                ListingSnapshots.RECENTS_ROOT, getListingId(), mState.sortModel);
+        if (cursor == null) {
+            return;
+        }
+
+        final DirectoryResult result = new DirectoryResult();
+        result.cursor = cursor;
+        deliverResult(result);
+        mStale = true;
+    }
+
+    private void writeListingSnapshot(DirectoryResult result) {
+        if (mSnapshots == null || result.cursor == null) {
+            return;
+        }
+        final Bundle extras = result.cursor.getExtras();
+        if (extras != null && extras.getBoolean(DocumentsContract.EXTRA_LOADING)) {
+            return;
+        }
+        // Captured on the main thread, as cursors of the merged results are shared with the
+        // result the UI presents. There are at most MAX_DOCS of them.
+        mSnapshots.write(
+                ListingSnapshots.RECENTS_ROOT, getListingId(), mState.sortModel, result.cursor);
+    }
+
+    private String getListingId() {
+        // Recents are filtered by the accepted MIME types.
+        return ListingSnapshots.RECENTS_ROOT + ":" + String.join(",", mState.acceptMimes);
+    }
+
     @Override
     protected void onStopLoading() {
         cancelLoad();
@@ -293,10 +351,12 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
             for (RecentsTask task : mTasks.values()) {
                 IoUtils.closeQuietly(task);
             }
+            mMerged = null;
         }
 
         IoUtils.closeQuietly(mResult);
         mResult = null;
+        mStale = false;
     }
 
     // TODO: create better transfer of ownership around cursor to ensure its
@@ -306,6 +366,9 @@ public class RecentsLoader extends AsyncTaskLoader<DirectoryResult> {
         public final String authority;
         public final List<String> rootIds;
 
+        // Whether the cursors were merged into mMerged. Guarded by mTasks.
+        boolean merged;
+
         private Cursor[] mCursors;
         private boolean mIsClosed = false;
 
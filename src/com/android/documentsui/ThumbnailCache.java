@@ -48,6 +48,7 @@ public class ThumbnailCache {
      */
     private final HashMap<Uri, TreeMap<Point, Pair<Uri, Point>>> mSizeIndex;
     private final Cache mCache;
+    private final @Nullable ThumbnailDiskCache mDiskCache;
 
     /**
      * Creates a thumbnail LRU cache.
@@ -55,8 +56,20 @@ public class ThumbnailCache {
      * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold.
      */
     public ThumbnailCache(int maxCacheSizeInBytes) {
+        this(maxCacheSizeInBytes, null);
+    }
+
+    /**
+     * Creates a thumbnail LRU cache backed by a persistent disk cache.
+     *
+     * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold in
+     *            memory.
+     * @param diskCache the second tier, consulted when a thumbnail isn't in memory.
+     */
+    public ThumbnailCache(int maxCacheSizeInBytes, @Nullable ThumbnailDiskCache diskCache) {
         mSizeIndex = new HashMap<>();
         mCache = new Cache(maxCacheSizeInBytes);
+        mDiskCache = diskCache;
     }
 
     /**
@@ -121,6 +134,40 @@ public class ThumbnailCache {
      * @param lastModified last modified value of the thumbnail to track its validity
      */
     public void putThumbnail(Uri uri, Point size, Bitmap thumbnail, long lastModified) {
+        putMemoryThumbnail(uri, size, thumbnail, lastModified);
+        if (mDiskCache != null) {
+            mDiskCache.put(uri, size, thumbnail, lastModified);
+        }
+    }
+
+    /**
+     * @return true if the disk tier holds a thumbnail of exactly the given size which is not
+     *         older than lastModified. Safe to call on the main thread.
+     */
+    public boolean hasDiskThumbnail(Uri uri, Point size, long lastModified) {
+        return mDiskCache != null && mDiskCache.contains(uri, size, lastModified);
+    }
+
+    /**
+     * Loads a thumbnail from the disk tier, promoting it to memory. Must not be called on the
+     * main thread.
+     *
+     * @return the thumbnail, or null if the disk tier has no thumbnail of exactly the given size
+     *         which is not older than lastModified.
+     */
+    public @Nullable Bitmap loadDiskThumbnail(Uri uri, Point size, long lastModified) {
+        if (mDiskCache == null) {
+            return null;
+        }
+
+        final Bitmap thumbnail = mDiskCache.get(uri, size, lastModified);
+        if (thumbnail != null) {
+            putMemoryThumbnail(uri, size, thumbnail, lastModified);
+        }
+        return thumbnail;
+    }
+
+    private void putMemoryThumbnail(Uri uri, Point size, Bitmap thumbnail, long lastModified) {
         Pair<Uri, Point> cacheKey = Pair.create(uri, size);
 
         TreeMap<Point, Pair<Uri, Point>> sizeMap;
@@ -157,6 +204,10 @@ public class ThumbnailCache {
                 mCache.remove(index);
             }
         }
+
+        if (mDiskCache != null) {
+            mDiskCache.remove(uri);
+        }
     }
 
     private void removeKey(Uri uri, Point size) {
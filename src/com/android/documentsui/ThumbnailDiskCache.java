@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.Shared.DEBUG;
+import static com.android.documentsui.base.Shared.VERBOSE;
+
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.documentsui.base.Files;
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size-bounded, persistent LRU cache of compressed thumbnails. This is the second tier of
+ * {@link ThumbnailCache}, and lets thumbnails survive process death and memory trimming.
+ *
+ * <p>Entries are keyed by uri and thumbnail size, and remember the last modified value of the
+ * document so stale thumbnails are never returned. The index of entries is kept in memory and
+ * persisted in LRU order, so lookups never touch the disk. Below is the directory layout:
+ * [cache dir]
+ *      - [dir] thumbnails
+ *          - [file] index
+ *          - [file] [hash of entry key] # compressed thumbnail
+ *          - ...
+ */
+public class ThumbnailDiskCache {
+
+    private static final String TAG = "ThumbnailDiskCache";
+
+    private static final String DIR_NAME = "thumbnails";
+    private static final String INDEX_FILE_NAME = "index";
+
+    private static final int INDEX_MAGIC = 0x54484d42;
+    private static final int INDEX_VERSION = 1;
+
+    private static final int COMPRESS_QUALITY = 80;
+
+    // Index writes are coalesced, since thumbnails tend to be written in bursts.
+    private static final long INDEX_WRITE_DELAY_MILLIS = 5000;
+
+    private final File mDir;
+    private final AtomicFile mIndexFile;
+    private final long mMaxSizeBytes;
+    private final ScheduledExecutorService mExecutor;
+
+    // Keyed by entry key, in access order, so iteration starts from the least recently used.
+    @GuardedBy("mEntries")
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // Keys of entries by the uri they're for, so removing thumbnails of a uri is a lookup.
+    @GuardedBy("mEntries")
+    private final Map<String, Set<String>> mKeysByUri = new HashMap<>();
+    @GuardedBy("mEntries")
+    private long mSizeBytes;
+    @GuardedBy("mEntries")
+    private boolean mIndexWriteScheduled;
+
+    /**
+     * Creates a disk cache under the given cache dir. The index is loaded asynchronously; until
+     * it is loaded, all lookups miss.
+     *
+     * @param cacheDir the app's cache dir
+     * @param maxSizeBytes the maximum total size of compressed thumbnails kept on disk
+     */
+    public ThumbnailDiskCache(File cacheDir, long maxSizeBytes) {
+        this(cacheDir, maxSizeBytes, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @VisibleForTesting
+    ThumbnailDiskCache(File cacheDir, long maxSizeBytes, ScheduledExecutorService executor) {
+        mDir = new File(cacheDir, DIR_NAME);
+        mIndexFile = new AtomicFile(new File(mDir, INDEX_FILE_NAME));
+        mMaxSizeBytes = maxSizeBytes;
+        mExecutor = executor;
+
+        mExecutor.execute(this::loadIndex);
+    }
+
+    /**
+     * @return true if a thumbnail at least as recent as lastModified is on disk. This only
+     *         consults the in-memory index and is safe to call on the main thread.
+     */
+    public boolean contains(Uri uri, Point size, long lastModified) {
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(createKey(uri, size));
+            return entry != null && entry.lastModified >= lastModified;
+        }
+    }
+
+    /**
+     * Reads and decodes a thumbnail from disk. Must not be called on the main thread.
+     *
+     * @return the thumbnail, or null if it isn't cached or it's older than lastModified.
+     */
+    public @Nullable Bitmap get(Uri uri, Point size, long lastModified) {
+        final String key = createKey(uri, size);
+        final Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (entry == null || entry.lastModified < lastModified) {
+                return null;
+            }
+            // The access reordered the index.
+            scheduleIndexWriteLocked();
+        }
+
+        final Bitmap bitmap = BitmapFactory.decodeFile(new File(mDir, entry.fileName).getPath());
+        if (bitmap == null) {
+            Log.w(TAG, "Failed to decode cached thumbnail for " + uri + ". Dropping it.");
+            remove(key, entry);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Compresses and writes a thumbnail to disk asynchronously.
+     */
+    public void put(Uri uri, Point size, Bitmap thumbnail, long lastModified) {
+        final String key = createKey(uri, size);
+        mExecutor.execute(() -> write(key, thumbnail, lastModified));
+    }
+
+    /**
+     * Removes thumbnails of all sizes for the given uri.
+     */
+    public void remove(Uri uri) {
+        final List<Entry> removed = new ArrayList<>();
+        synchronized (mEntries) {
+            final Set<String> keys = mKeysByUri.remove(uri.toString());
+            if (keys == null) {
+                return;
+            }
+            for (String key : keys) {
+                final Entry entry = mEntries.remove(key);
+                removed.add(entry);
+                mSizeBytes -= entry.length;
+            }
+            scheduleIndexWriteLocked();
+        }
+        mExecutor.execute(() -> deleteFiles(removed));
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (mEntries) {
+            if (mEntries.get(key) != entry) {
+                return;
+            }
+            mEntries.remove(key);
+            removeKeyLocked(key);
+            mSizeBytes -= entry.length;
+            scheduleIndexWriteLocked();
+        }
+        mExecutor.execute(() -> new File(mDir, entry.fileName).delete());
+    }
+
+    private void write(String key, Bitmap thumbnail, long lastModified) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create thumbnail cache dir.");
+            return;
+        }
+
+        final String fileName = createFileName(key);
+        final File file = new File(mDir, fileName);
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(file);
+            written = thumbnail.compress(Bitmap.CompressFormat.WEBP, COMPRESS_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail for " + key, e);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+
+        if (!written) {
+            file.delete();
+            return;
+        }
+
+        final List<Entry> evicted = new ArrayList<>();
+        synchronized (mEntries) {
+            final Entry entry = new Entry(fileName, lastModified, file.length());
+            final Entry old = mEntries.put(key, entry);
+            if (old != null) {
+                mSizeBytes -= old.length;
+            } else {
+                addKeyLocked(key);
+            }
+            mSizeBytes += entry.length;
+            trimToSizeLocked(evicted);
+            scheduleIndexWriteLocked();
+        }
+        deleteFiles(evicted);
+    }
+
+    @GuardedBy("mEntries")
+    private void trimToSizeLocked(List<Entry> evicted) {
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && it.hasNext()) {
+            final Map.Entry<String, Entry> eldest = it.next();
+            mSizeBytes -= eldest.getValue().length;
+            evicted.add(eldest.getValue());
+            removeKeyLocked(eldest.getKey());
+            it.remove();
+        }
+    }
+
+    @GuardedBy("mEntries")
+    private void addKeyLocked(String key) {
+        final String uri = getUri(key);
+        Set<String> keys = mKeysByUri.get(uri);
+        if (keys == null) {
+            keys = new HashSet<>();
+            mKeysByUri.put(uri, keys);
+        }
+        keys.add(key);
+    }
+
+    @GuardedBy("mEntries")
+    private void removeKeyLocked(String key) {
+        final String uri = getUri(key);
+        final Set<String> keys = mKeysByUri.get(uri);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            mKeysByUri.remove(uri);
+        }
+    }
+
+    private void deleteFiles(List<Entry> entries) {
+        for (Entry entry : entries) {
+            new File(mDir, entry.fileName).delete();
+        }
+    }
+
+    @GuardedBy("mEntries")
+    private void scheduleIndexWriteLocked() {
+        if (!mIndexWriteScheduled) {
+            mIndexWriteScheduled = true;
+            mExecutor.schedule(this::writeIndex, INDEX_WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @VisibleForTesting
+    void loadIndex() {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mIndexFile.openRead()));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unrecognized thumbnail index format.");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+                entries.put(key, entry);
+            }
+        } catch (FileNotFoundException e) {
+            if (DEBUG) Log.d(TAG, "No thumbnail index found. Starting with empty cache.");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read thumbnail index. Wiping thumbnail cache.", e);
+            entries.clear();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        final List<Entry> evicted = new ArrayList<>();
+        final Set<String> reachable = new HashSet<>();
+        synchronized (mEntries) {
+            // Entries written before the index was loaded are more recent.
+            final Map<String, Entry> recent = new LinkedHashMap<>(mEntries);
+            mEntries.clear();
+            mEntries.putAll(entries);
+            mEntries.putAll(recent);
+            mKeysByUri.clear();
+            mSizeBytes = 0;
+            for (Map.Entry<String, Entry> next : mEntries.entrySet()) {
+                addKeyLocked(next.getKey());
+                mSizeBytes += next.getValue().length;
+            }
+            trimToSizeLocked(evicted);
+            for (Entry entry : mEntries.values()) {
+                reachable.add(entry.fileName);
+            }
+        }
+        deleteFiles(evicted);
+
+        // Files that didn't make it in to the index are unreachable.
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!reachable.contains(file.getName())
+                        && !file.equals(mIndexFile.getBaseFile())) {
+                    Files.deleteRecursively(file);
+                }
+            }
+        }
+
+        if (VERBOSE) Log.v(TAG, "Loaded thumbnail index with " + entries.size() + " entries.");
+    }
+
+    @VisibleForTesting
+    void writeIndex() {
+        final Map<String, Entry> entries;
+        synchronized (mEntries) {
+            mIndexWriteScheduled = false;
+            entries = new LinkedHashMap<>(mEntries);
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create thumbnail cache dir.");
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mIndexFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> next : entries.entrySet()) {
+                final Entry entry = next.getValue();
+                out.writeUTF(next.getKey());
+                out.writeUTF(entry.fileName);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+            }
+            out.flush();
+            mIndexFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail index.", e);
+            mIndexFile.failWrite(stream);
+        }
+    }
+
+    private static String createKey(Uri uri, Point size) {
+        // Thumbnails are roughly square, so one dimension is enough to identify the size.
+        return uri.toString() + '@' + size.x;
+    }
+
+    private static String getUri(String key) {
+        // Uris may contain '@' too, but sizes don't.
+        return key.substring(0, key.lastIndexOf('@'));
+    }
+
+    private static String createFileName(String key) {
+        // 64-bit FNV-1a hash of the key.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
+    private static final class Entry {
+        private final String fileName;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(String fileName, long lastModified, long length) {
+            this.fileName = fileName;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -55,14 +55,17 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     };
     public static final BiConsumer<View, View> ANIM_NO_OP = (mime, thumb) -> {};
 
-    private final ImageView mIconThumb;
+    private final Context mContext;
     private final Point mThumbSize;
     private final Uri mUri;
     private final long mLastModified;
-    private final Consumer<Bitmap> mCallback;
     private final boolean mAddToCache;
     private final CancellationSignal mSignal;
 
+    // Not set for prefetches, until a view is attached.
+    private @Nullable ImageView mIconThumb;
+    private @Nullable Consumer<Bitmap> mCallback;
+
     /**
      * @param uri - to a thumbnail.
      * @param iconThumb - ImageView to display the thumbnail.
@@ -73,6 +76,7 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     public ThumbnailLoader(Uri uri, ImageView iconThumb, Point thumbSize, long lastModified,
         Consumer<Bitmap> callback, boolean addToCache) {
 
+        mContext = iconThumb.getContext();
         mUri = uri;
         mIconThumb = iconThumb;
         mThumbSize = thumbSize;
@@ -85,6 +89,43 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
         if (VERBOSE) Log.v(TAG, "Starting icon loader task for " + mUri);
     }
 
+    /**
+     * Creates a loader which puts a thumbnail in the cache ahead of it being displayed. A view
+     * can be attached with {@link #attach} while it's loading.
+     *
+     * @param uri - to a thumbnail.
+     * @param thumbSize - size of the thumbnail.
+     * @param lastModified - used for updating thumbnail caches.
+     */
+    public ThumbnailLoader(Context context, Uri uri, Point thumbSize, long lastModified) {
+        mContext = context;
+        mUri = uri;
+        mThumbSize = thumbSize;
+        mLastModified = lastModified;
+        mAddToCache = true;
+        mSignal = new CancellationSignal();
+
+        if (VERBOSE) Log.v(TAG, "Starting prefetch task for " + mUri);
+    }
+
+    /**
+     * Hands the thumbnail over to a view once loaded, as if the loader was created for it.
+     * Must be called on the main thread.
+     */
+    public void attach(ImageView iconThumb, Consumer<Bitmap> callback) {
+        mIconThumb = iconThumb;
+        mCallback = callback;
+        mIconThumb.setTag(this);
+    }
+
+    public boolean isAttached() {
+        return mIconThumb != null;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
     @Override
     public void preempt() {
         if (VERBOSE) Log.v(TAG, "Icon loader task for " + mUri + " was cancelled.");
@@ -98,8 +139,16 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
             return null;
         }
 
-        final Context context = mIconThumb.getContext();
-        final ContentResolver resolver = context.getContentResolver();
+        final ContentResolver resolver = mContext.getContentResolver();
+
+        if (mAddToCache) {
+            // The thumbnail may have been persisted by an earlier session.
+            final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(mContext);
+            final Bitmap cached = cache.loadDiskThumbnail(mUri, mThumbSize, mLastModified);
+            if (cached != null) {
+                return cached;
+            }
+        }
 
         ContentProviderClient client = null;
         Bitmap result = null;
@@ -108,7 +157,7 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
                 resolver, mUri.getAuthority());
             result = DocumentsContract.getDocumentThumbnail(client, mUri, mThumbSize, mSignal);
             if (result != null && mAddToCache) {
-                final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(context);
+                final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(mContext);
                 cache.putThumbnail(mUri, mThumbSize, result, mLastModified);
             }
         } catch (Exception e) {
@@ -125,7 +174,7 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     protected void onPostExecute(Bitmap result) {
         if (VERBOSE) Log.v(TAG, "Loader task for " + mUri + " completed");
 
-        if (mIconThumb.getTag() == this) {
+        if (mIconThumb != null && mIconThumb.getTag() == this) {
             mIconThumb.setTag(null);
             mCallback.accept(result);
         }
@@ -40,6 +40,7 @@ import com.android.internal.util.Preconditions;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -56,6 +57,10 @@ import java.util.zip.ZipEntry;
 public abstract class Archive implements Closeable {
     private static final String TAG = "Archive";
 
+    // Rough sizes of an opened archive, and of each entry with its path and tree node.
+    private static final long BASE_MEMORY_USAGE = 16 * 1024;
+    private static final long ENTRY_MEMORY_USAGE = 256;
+
     public static final String[] DEFAULT_PROJECTION = new String[] {
             Document.COLUMN_DOCUMENT_ID,
             Document.COLUMN_DISPLAY_NAME,
@@ -137,7 +142,7 @@ public abstract class Archive implements Closeable {
         }
 
         synchronized (mEntries) {
-            final List<ZipEntry> parentList = mTree.get(parsedParentId.mPath);
+            final List<ZipEntry> parentList = getChildren(parsedParentId.mPath);
             if (parentList == null) {
                 throw new FileNotFoundException();
             }
@@ -159,7 +164,7 @@ public abstract class Archive implements Closeable {
                 "Mismatching archive Uri. Expected: %s, actual: %s.");
 
         synchronized (mEntries) {
-            final ZipEntry entry = mEntries.get(parsedId.mPath);
+            final ZipEntry entry = getEntry(parsedId.mPath);
             if (entry == null) {
                 throw new FileNotFoundException();
             }
@@ -180,12 +185,12 @@ public abstract class Archive implements Closeable {
                 "Mismatching archive Uri. Expected: %s, actual: %s.");
 
         synchronized (mEntries) {
-            final ZipEntry entry = mEntries.get(parsedId.mPath);
+            final ZipEntry entry = getEntry(parsedId.mPath);
             if (entry == null) {
                 return false;
             }
 
-            final ZipEntry parentEntry = mEntries.get(parsedParentId.mPath);
+            final ZipEntry parentEntry = getEntry(parsedParentId.mPath);
             if (parentEntry == null || !parentEntry.isDirectory()) {
                 return false;
             }
@@ -212,7 +217,7 @@ public abstract class Archive implements Closeable {
                 "Mismatching archive Uri. Expected: %s, actual: %s.");
 
         synchronized (mEntries) {
-            final ZipEntry entry = mEntries.get(parsedId.mPath);
+            final ZipEntry entry = getEntry(parsedId.mPath);
             if (entry == null) {
                 throw new FileNotFoundException();
             }
@@ -248,6 +253,15 @@ public abstract class Archive implements Closeable {
         throw new UnsupportedOperationException("Opening not supported.");
     }
 
+    /**
+     * Opens a stream inflating a file within an archive, without a file descriptor in between.
+     *
+     * @return the stream, or null if the archive can't be read from directly
+     */
+    @Nullable InputStream openEntryStream(String documentId) throws FileNotFoundException {
+        return null;
+    }
+
     /**
      * Opens a thumbnail of a file within an archive.
      *
@@ -266,6 +280,31 @@ public abstract class Archive implements Closeable {
         return new ArchiveId(mArchiveUri, mAccessMode, path);
     }
 
+    /**
+     * Returns a rough estimate of the memory held by the archive, in bytes.
+     */
+    long estimateMemoryUsage() {
+        synchronized (mEntries) {
+            return BASE_MEMORY_USAGE + (long) mEntries.size() * ENTRY_MEMORY_USAGE;
+        }
+    }
+
+    /**
+     * Returns the entry at the path, or null if there is none.
+     */
+    @GuardedBy("mEntries")
+    @Nullable ZipEntry getEntry(String path) {
+        return mEntries.get(path);
+    }
+
+    /**
+     * Returns children of the directory at the path, or null if there is no such directory.
+     */
+    @GuardedBy("mEntries")
+    @Nullable List<ZipEntry> getChildren(String path) {
+        return mTree.get(path);
+    }
+
     /**
      * Not thread safe.
      */
@@ -281,10 +320,18 @@ public abstract class Archive implements Closeable {
         final String mimeType = getMimeTypeForEntry(entry);
         row.add(Document.COLUMN_MIME_TYPE, mimeType);
 
-        final int flags = mimeType.startsWith("image/") ? Document.FLAG_SUPPORTS_THUMBNAIL : 0;
+        final int flags = supportsThumbnails() && mimeType.startsWith("image/")
+                ? Document.FLAG_SUPPORTS_THUMBNAIL : 0;
         row.add(Document.COLUMN_FLAGS, flags);
     }
 
+    /**
+     * Returns true if thumbnails of image entries can be obtained cheaply.
+     */
+    boolean supportsThumbnails() {
+        return true;
+    }
+
     static String getMimeTypeForEntry(ZipEntry entry) {
         if (entry.isDirectory()) {
             return Document.MIME_TYPE_DIR;
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps opened archives which are not acquired by anyone for a while, so browsing back into
+ * an archive doesn't open it and walk its entries again.
+ *
+ * <p>Only readable archives are kept. They are closed once idle for longer than the timeout,
+ * or when the memory they hold exceeds the budget, the least recently released first.
+ *
+ * <p>This class is thread safe.
+ */
+final class ArchiveCache {
+    private static final String TAG = "ArchiveCache";
+
+    private final ScheduledExecutorService mExecutor;
+    private final long mMaxBytes;
+    private final long mIdleTimeoutMs;
+
+    // Ordered from the least recently released.
+    @GuardedBy("mArchives")
+    private final Map<ArchivesProvider.Key, Entry> mArchives = new LinkedHashMap<>();
+
+    @GuardedBy("mArchives")
+    private long mBytes;
+
+    ArchiveCache(ScheduledExecutorService executor, long maxBytes, long idleTimeoutMs) {
+        mExecutor = executor;
+        mMaxBytes = maxBytes;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Keeps an archive which isn't acquired anymore. Another archive kept for the same key is
+     * closed.
+     *
+     * @return false if the archive can't be kept, and should be closed by the caller
+     */
+    boolean offer(ArchivesProvider.Key key, Archive archive) {
+        if (!(archive instanceof ReadableArchive)) {
+            return false;
+        }
+        final long bytes = archive.estimateMemoryUsage();
+        if (bytes > mMaxBytes) {
+            return false;
+        }
+
+        synchronized (mArchives) {
+            final Entry previous = mArchives.remove(key);
+            if (previous != null) {
+                removeLocked(previous);
+            }
+
+            final Entry entry = new Entry(archive, bytes);
+            mArchives.put(key, entry);
+            mBytes += bytes;
+            entry.expiry = mExecutor.schedule(
+                    () -> expire(key, entry), mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+
+            final Iterator<Entry> it = mArchives.values().iterator();
+            while (mBytes > mMaxBytes) {
+                final Entry eldest = it.next();
+                it.remove();
+                removeLocked(eldest);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes out a kept archive, which is not going to be closed by the cache anymore.
+     */
+    @Nullable Archive take(ArchivesProvider.Key key) {
+        synchronized (mArchives) {
+            final Entry entry = mArchives.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.expiry.cancel(false);
+            mBytes -= entry.bytes;
+            return entry.archive;
+        }
+    }
+
+    /**
+     * Closes all kept archives.
+     */
+    void clear() {
+        synchronized (mArchives) {
+            for (Entry entry : mArchives.values()) {
+                removeLocked(entry);
+            }
+            mArchives.clear();
+        }
+    }
+
+    private void expire(ArchivesProvider.Key key, Entry entry) {
+        synchronized (mArchives) {
+            if (mArchives.get(key) == entry) {
+                mArchives.remove(key);
+                removeLocked(entry);
+            }
+        }
+    }
+
+    /**
+     * Closes an archive which has just been removed from the map.
+     */
+    @GuardedBy("mArchives")
+    private void removeLocked(Entry entry) {
+        entry.expiry.cancel(false);
+        mBytes -= entry.bytes;
+        try {
+            entry.archive.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close an idle archive.", e);
+        }
+    }
+
+    private static final class Entry {
+        private final Archive archive;
+        private final long bytes;
+        private ScheduledFuture<?> expiry;
+
+        private Entry(Archive archive, long bytes) {
+            this.archive = archive;
+            this.bytes = bytes;
+        }
+    }
+}
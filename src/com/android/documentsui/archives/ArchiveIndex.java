@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.support.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * A compact, memory-mapped directory index of an archive, so reopening an archive doesn't
+ * require walking its central directory and building the whole tree on the heap again.
+ *
+ * <p>The index consists of a table of entries sorted by path, a table of children indexes
+ * referenced by directory entries, and a blob with the paths. Lookups by path are binary
+ * searches over the mapped file.
+ *
+ * <p>Instances are immutable and thread safe.
+ */
+final class ArchiveIndex {
+    private static final String TAG = "ArchiveIndex";
+
+    private static final int MAGIC = 0x41524958;  // ARIX
+    private static final int VERSION = 1;
+
+    // Number of indexes kept on disk. The least recently used are deleted first.
+    private static final int MAX_INDEX_FILES = 16;
+
+    // Per entry: path offset, path length, size, time, flags, first child, child count.
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int FLAG_DIRECTORY = 1;
+    // Set if the name of the entry in the archive starts with a slash, so it equals the path.
+    private static final int FLAG_ABSOLUTE_NAME = 1 << 1;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mRecordsOffset;
+    private final int mChildrenOffset;
+    private final int mPathsOffset;
+
+    private ArchiveIndex(ByteBuffer buffer, int count, int recordsOffset, int childrenOffset,
+            int pathsOffset) {
+        mBuffer = buffer;
+        mCount = count;
+        mRecordsOffset = recordsOffset;
+        mChildrenOffset = childrenOffset;
+        mPathsOffset = pathsOffset;
+    }
+
+    /**
+     * Returns the index file for the key, within the directory of indexes.
+     */
+    static File getIndexFile(File dir, String key) {
+        return new File(dir, String.format("%08x.idx", key.hashCode()));
+    }
+
+    /**
+     * Maps an index written for the same key.
+     *
+     * @return the index, or null if missing, stale or corrupt
+     */
+    static @Nullable ArchiveIndex open(File dir, String key) {
+        final File file = getIndexFile(dir, key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (final FileInputStream stream = new AtomicFile(file).openRead()) {
+            final FileChannel channel = stream.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final byte[] keyBytes = new byte[buffer.getInt()];
+            buffer.get(keyBytes);
+            if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                return null;
+            }
+
+            final int count = buffer.getInt();
+            final int childrenCount = buffer.getInt();
+            final int pathsLength = buffer.getInt();
+            final int recordsOffset = buffer.position();
+            final int childrenOffset = recordsOffset + count * RECORD_SIZE;
+            final int pathsOffset = childrenOffset + childrenCount * 4;
+            if (pathsOffset + pathsLength != buffer.capacity()) {
+                Log.w(TAG, "Corrupt archive index: " + file);
+                return null;
+            }
+
+            // Used by the LRU trimming.
+            file.setLastModified(System.currentTimeMillis());
+            return new ArchiveIndex(buffer, count, recordsOffset, childrenOffset, pathsOffset);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read archive index: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes an index of the entries and the tree, as built by {@link ReadableArchive}. Least
+     * recently used indexes in the directory are deleted to make room.
+     */
+    static void write(File dir, String key, Map<String, ZipEntry> entries,
+            Map<String, List<ZipEntry>> tree) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        final List<String> paths = new ArrayList<>(entries.keySet());
+        final byte[][] pathBytes = new byte[paths.size()][];
+        for (int i = 0; i < paths.size(); i++) {
+            pathBytes[i] = paths.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        // Sort by the encoded bytes, which is the order binary searches expect.
+        final Integer[] order = new Integer[paths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(pathBytes[a], pathBytes[b]));
+
+        final Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < order.length; i++) {
+            indexes.put(paths.get(order[i]), i);
+        }
+
+        final AtomicFile file = new AtomicFile(getIndexFile(dir, key));
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(stream));
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int childrenCount = 0;
+            int pathsLength = 0;
+            for (int i = 0; i < order.length; i++) {
+                final List<ZipEntry> children = tree.get(paths.get(order[i]));
+                childrenCount += children != null ? children.size() : 0;
+                pathsLength += pathBytes[i].length;
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(order.length);
+            out.writeInt(childrenCount);
+            out.writeInt(pathsLength);
+
+            int pathOffset = 0;
+            int firstChild = 0;
+            for (int i = 0; i < order.length; i++) {
+                final String path = paths.get(order[i]);
+                final ZipEntry entry = entries.get(path);
+                final List<ZipEntry> children = tree.get(path);
+                final int childCount = children != null ? children.size() : 0;
+                out.writeInt(pathOffset);
+                out.writeInt(pathBytes[order[i]].length);
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getTime());
+                out.writeInt((entry.isDirectory() ? FLAG_DIRECTORY : 0)
+                        | (entry.getName().startsWith("/") ? FLAG_ABSOLUTE_NAME : 0));
+                out.writeInt(firstChild);
+                out.writeInt(childCount);
+                pathOffset += pathBytes[order[i]].length;
+                firstChild += childCount;
+            }
+
+            for (int i = 0; i < order.length; i++) {
+                final List<ZipEntry> children = tree.get(paths.get(order[i]));
+                if (children == null) {
+                    continue;
+                }
+                for (ZipEntry child : children) {
+                    out.writeInt(indexes.get(Archive.getEntryPath(child)));
+                }
+            }
+
+            for (int i = 0; i < order.length; i++) {
+                out.write(pathBytes[order[i]]);
+            }
+
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException | RuntimeException e) {
+            file.failWrite(stream);
+            throw e;
+        }
+
+        trim(dir);
+    }
+
+    /**
+     * @return the entry at the path, or null if there is none. Only the name, size and time of
+     *         the entry are set.
+     */
+    @Nullable ZipEntry getEntry(String path) {
+        final int index = find(path.getBytes(StandardCharsets.UTF_8));
+        return index >= 0 ? createEntry(index) : null;
+    }
+
+    /**
+     * @return the children of the directory at the path in archive order, or null if there is
+     *         no such directory
+     */
+    @Nullable List<ZipEntry> getChildren(String path) {
+        final int index = find(path.getBytes(StandardCharsets.UTF_8));
+        if (index < 0 || (getFlags(index) & FLAG_DIRECTORY) == 0) {
+            return null;
+        }
+
+        final int record = mRecordsOffset + index * RECORD_SIZE;
+        final int firstChild = mBuffer.getInt(record + 28);
+        final int childCount = mBuffer.getInt(record + 32);
+        if (childCount == 0) {
+            return Collections.emptyList();
+        }
+        final List<ZipEntry> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            children.add(createEntry(mBuffer.getInt(mChildrenOffset + (firstChild + i) * 4)));
+        }
+        return children;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    private ZipEntry createEntry(int index) {
+        final int record = mRecordsOffset + index * RECORD_SIZE;
+        final String path = getPath(index);
+        final boolean absolute = (getFlags(index) & FLAG_ABSOLUTE_NAME) != 0;
+        final ZipEntry entry = new ZipEntry(absolute ? path : path.substring(1));
+        entry.setSize(mBuffer.getLong(record + 8));
+        final long time = mBuffer.getLong(record + 16);
+        if (time != -1) {
+            entry.setTime(time);
+        }
+        return entry;
+    }
+
+    private int getFlags(int index) {
+        return mBuffer.getInt(mRecordsOffset + index * RECORD_SIZE + 24);
+    }
+
+    private String getPath(int index) {
+        final int record = mRecordsOffset + index * RECORD_SIZE;
+        final byte[] bytes = new byte[mBuffer.getInt(record + 4)];
+        final int offset = mPathsOffset + mBuffer.getInt(record);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int find(byte[] path) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int result = compareAt(mid, path);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the path of the entry at the index with the passed one, without decoding it.
+     */
+    private int compareAt(int index, byte[] path) {
+        final int record = mRecordsOffset + index * RECORD_SIZE;
+        final int offset = mPathsOffset + mBuffer.getInt(record);
+        final int length = mBuffer.getInt(record + 4);
+        final int common = Math.min(length, path.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (mBuffer.get(offset + i) & 0xff) - (path[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - path.length;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        final int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static void trim(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null || files.length <= MAX_INDEX_FILES) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (int i = MAX_INDEX_FILES; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+}
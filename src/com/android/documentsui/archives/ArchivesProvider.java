@@ -16,6 +16,7 @@
 
 package com.android.documentsui.archives;
 
+import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -35,6 +36,7 @@ import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsProvider;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.android.documentsui.R;
@@ -45,9 +47,12 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -70,9 +75,22 @@ public class ArchivesProvider extends DocumentsProvider {
             "application/zip", "application/x-zip", "application/x-zip-compressed"
     };
 
+    // Archives are opened on a few shared threads, which go away when idle.
+    private static final int MAX_CONCURRENT_LOADS = 2;
+    private static final long LOADER_KEEP_ALIVE_MS = 10 * 1000;
+
+    // Archives nobody acquires anymore are kept open for a while, within a memory budget.
+    private static final long IDLE_ARCHIVES_MAX_BYTES = 4 * 1024 * 1024;
+    private static final long IDLE_ARCHIVE_TIMEOUT_MS = 30 * 1000;
+
     @GuardedBy("mArchives")
     private final Map<Key, Loader> mArchives = new HashMap<Key, Loader>();
 
+    private final ScheduledThreadPoolExecutor mExecutor =
+            new ScheduledThreadPoolExecutor(MAX_CONCURRENT_LOADS);
+    private final ArchiveCache mIdleArchives =
+            new ArchiveCache(mExecutor, IDLE_ARCHIVES_MAX_BYTES, IDLE_ARCHIVE_TIMEOUT_MS);
+
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
         if (METHOD_ACQUIRE_ARCHIVE.equals(method)) {
@@ -90,6 +108,9 @@ public class ArchivesProvider extends DocumentsProvider {
 
     @Override
     public boolean onCreate() {
+        mExecutor.setKeepAliveTime(LOADER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.setRemoveOnCancelPolicy(true);
         return true;
     }
 
@@ -260,6 +281,28 @@ public class ArchivesProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Opens a stream inflating a file within an acquired archive straight from the archive,
+     * skipping the proxy file descriptor of {@link #openDocument}. Streams of many files can
+     * be read at the same time.
+     *
+     * @return the stream, or null if the provider runs in another process, or the archive
+     *     can't be read from directly
+     */
+    public static @Nullable InputStream openEntryStream(ContentProviderClient client, Uri uri)
+            throws FileNotFoundException {
+        Archive.MorePreconditions.checkArgumentEquals(AUTHORITY, uri.getAuthority(),
+                "Mismatching authority. Expected: %s, actual: %s.");
+        final ContentProvider provider = client.getLocalContentProvider();
+        if (!(provider instanceof ArchivesProvider)) {
+            return null;
+        }
+
+        final String documentId = DocumentsContract.getDocumentId(uri);
+        final Loader loader = ((ArchivesProvider) provider).getLoaderOrThrow(documentId);
+        return loader.get().openEntryStream(documentId);
+    }
+
     /**
      * The archive won't close until all clients release it.
      */
@@ -270,8 +313,8 @@ public class ArchivesProvider extends DocumentsProvider {
             Loader loader = mArchives.get(key);
             if (loader == null) {
                 // TODO: Pass parent Uri so the loader can acquire the parent's notification Uri.
-                loader = new Loader(getContext(), archiveId.mArchiveUri, archiveId.mAccessMode,
-                        null);
+                loader = new Loader(getContext(), mExecutor, mIdleArchives,
+                        archiveId.mArchiveUri, archiveId.mAccessMode, null);
                 mArchives.put(key, loader);
             }
             loader.acquire();
@@ -280,7 +323,8 @@ public class ArchivesProvider extends DocumentsProvider {
     }
 
     /**
-     * If all clients release the archive, then it will be closed.
+     * If all clients release the archive, then it will be closed. Readable archives are kept
+     * open for a while first, in case they're acquired again.
      */
     private void releaseArchive(String documentId) {
         final ArchiveId archiveId = ArchiveId.fromDocumentId(documentId);
@@ -295,6 +339,14 @@ public class ArchivesProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Closes archives which are kept open, but not acquired by anyone.
+     */
+    @VisibleForTesting
+    void closeIdleArchives() {
+        mIdleArchives.clear();
+    }
+
     private Loader getLoaderOrThrow(String documentId) {
         final ArchiveId id = ArchiveId.fromDocumentId(documentId);
         final Key key = Key.fromArchiveId(id);
@@ -307,7 +359,7 @@ public class ArchivesProvider extends DocumentsProvider {
         }
     }
 
-    private static class Key {
+    static class Key {
         Uri archiveUri;
         int accessMode;
 
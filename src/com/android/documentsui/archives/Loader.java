@@ -20,17 +20,18 @@ import com.android.internal.annotations.GuardedBy;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 
 /**
- * Loads an instance of Archive lazily.
+ * Loads an instance of Archive lazily. Archives kept in the cache are reused, and archives
+ * which are not acquired anymore are handed back to it.
  */
 public class Loader {
     private static final String TAG = "Loader";
@@ -45,7 +46,8 @@ public class Loader {
     private final Uri mArchiveUri;
     private final int mAccessMode;
     private final Uri mNotificationUri;
-    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ArchiveCache mCache;
+    private final ArchivesProvider.Key mKey;
     private final Object mLock = new Object();
     @GuardedBy("mLock")
     private int mStatus = STATUS_OPENING;
@@ -53,14 +55,23 @@ public class Loader {
     private int mRefCount = 0;
     private Archive mArchive = null;
 
-    Loader(Context context, Uri archiveUri, int accessMode, Uri notificationUri) {
+    Loader(Context context, ExecutorService executor, ArchiveCache cache, Uri archiveUri,
+            int accessMode, Uri notificationUri) {
         this.mContext = context;
         this.mArchiveUri = archiveUri;
         this.mAccessMode = accessMode;
         this.mNotificationUri = notificationUri;
+        this.mCache = cache;
+        this.mKey = new ArchivesProvider.Key(archiveUri, accessMode);
+
+        mArchive = cache.take(mKey);
+        if (mArchive != null) {
+            mStatus = STATUS_OPENED;
+            return;
+        }
 
         // Start loading the archive immediately in the background.
-        mExecutor.submit(this::get);
+        executor.submit(this::get);
     }
 
     synchronized Archive get() {
@@ -79,11 +90,16 @@ public class Loader {
 
         try {
             if (ReadableArchive.supportsAccessMode(mAccessMode)) {
-                mArchive = ReadableArchive.createForParcelFileDescriptor(
-                        mContext,
+                final ParcelFileDescriptor descriptor =
                         mContext.getContentResolver().openFileDescriptor(
-                                mArchiveUri, "r", null /* signal */),
-                        mArchiveUri, mAccessMode, mNotificationUri);
+                                mArchiveUri, "r", null /* signal */);
+                // Archives which can't be seeked are listed while streamed, rather than
+                // copied to a local snapshot first.
+                mArchive = Archive.canSeek(descriptor)
+                        ? ReadableArchive.createForParcelFileDescriptor(
+                                mContext, descriptor, mArchiveUri, mAccessMode, mNotificationUri)
+                        : StreamingArchive.createForParcelFileDescriptor(
+                                mContext, descriptor, mArchiveUri, mAccessMode, mNotificationUri);
             } else if (WriteableArchive.supportsAccessMode(mAccessMode)) {
                 mArchive = WriteableArchive.createForParcelFileDescriptor(
                         mContext,
@@ -95,6 +111,7 @@ public class Loader {
             }
             synchronized (mLock) {
                 if (mRefCount == 0) {
+                    // Released while opening, so nobody is going to need it soon.
                     mArchive.close();
                     mStatus = STATUS_CLOSED;
                 } else {
@@ -146,8 +163,7 @@ public class Loader {
                 switch (mStatus) {
                     case STATUS_OPENED:
                         try {
-                            mArchive.close();
-                            mStatus = STATUS_CLOSED;
+                            closeArchiveLocked();
                         } catch (IOException e) {
                             Log.e(TAG, "Failed to close the archive on release.", e);
                         }
@@ -163,4 +179,15 @@ public class Loader {
             }
         }
     }
+
+    /**
+     * Closes the archive, unless the cache keeps it in case it's acquired again soon.
+     */
+    @GuardedBy("mLock")
+    private void closeArchiveLocked() throws IOException {
+        if (!mCache.offer(mKey, mArchive)) {
+            mArchive.close();
+        }
+        mStatus = STATUS_CLOSED;
+    }
 }
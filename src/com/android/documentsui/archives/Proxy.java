@@ -17,29 +17,64 @@
 package com.android.documentsui.archives;
 
 import android.os.ProxyFileDescriptorCallback;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.system.ErrnoException;
 import android.system.OsConstants;
 import android.util.Log;
 import android.util.jar.StrictJarFile;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.zip.ZipEntry;
 
 import libcore.io.IoUtils;
 
 /**
  * Provides a backend for a seekable file descriptors for files in archives.
+ *
+ * <p>Compressed entries can only be inflated from the start, so seeking backwards is expensive.
+ * Recently inflated bytes are kept in a ring buffer, which also serves as a read-ahead cache for
+ * sequential reads. Once a read goes back past the ring buffer, inflated bytes are also spilled
+ * to a temporary file, so any further seek is served from there instead of inflating the entry
+ * from the start again.
  */
 public class Proxy extends ProxyFileDescriptorCallback {
+    private static final String TAG = "Proxy";
+
+    @VisibleForTesting
+    static final int RING_BUFFER_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD_SIZE = 64 * 1024;
+
     private final StrictJarFile mFile;
     private final ZipEntry mEntry;
+    private final @Nullable File mSpillDir;
+
+    // Bytes in [mRingStart, mInflated) are in the ring buffer, at their offset modulo its size.
+    private final byte[] mRing;
+    private long mRingStart = 0;
+    private long mInflated = 0;
+
     private InputStream mInputStream = null;
-    private long mOffset = 0;
 
-    Proxy(StrictJarFile file, ZipEntry entry) throws IOException {
+    // Holds bytes in [0, mInflated), once enabled.
+    private @Nullable File mSpillFile;
+    private @Nullable RandomAccessFile mSpill;
+
+    /**
+     * @param spillDir directory for temporary files with inflated bytes, or null to always seek
+     *         backwards by inflating the entry from the start
+     */
+    Proxy(StrictJarFile file, ZipEntry entry, @Nullable File spillDir) throws IOException {
         mFile = file;
         mEntry = entry;
+        mSpillDir = spillDir;
+        // No need for a buffer larger than the entry, unless its size is unknown.
+        final long entrySize = entry.getSize();
+        mRing = new byte[entrySize >= 0
+                ? (int) Math.max(Math.min(RING_BUFFER_SIZE, entrySize), 1) : RING_BUFFER_SIZE];
         recreateInputStream();
     }
 
@@ -50,47 +85,140 @@ public class Proxy extends ProxyFileDescriptorCallback {
 
     @Override
     public int onRead(long offset, int size, byte[] data) throws ErrnoException {
-        // TODO: Add a ring buffer to prevent expensive seeks.
-        if (offset < mOffset) {
-            try {
-                recreateInputStream();
-            } catch (IOException e) {
-                throw new ErrnoException("onRead", OsConstants.EIO);
+        try {
+            int done = 0;
+            while (done < size) {
+                final long position = offset + done;
+                final int remaining = size - done;
+                final int bytes;
+                if (position >= mRingStart && position < mInflated) {
+                    bytes = readFromRing(position, data, done, remaining);
+                } else if (position < mInflated && mSpill != null) {
+                    bytes = readFromSpill(position, data, done, remaining);
+                } else if (position < mInflated) {
+                    // Went back past the ring buffer. Start over, and keep the inflated bytes
+                    // around this time, so it doesn't happen again.
+                    enableSpill();
+                    recreateInputStream();
+                    continue;
+                } else if (mSpill == null && position - mInflated > mRing.length) {
+                    // Nothing in between would stay in the ring buffer anyway.
+                    if (!skipTo(position)) {
+                        break;
+                    }
+                    continue;
+                } else {
+                    if (!inflateNext()) {
+                        break;
+                    }
+                    continue;
+                }
+                done += bytes;
             }
+            return done;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + size + " bytes at " + offset + ".", e);
+            throw new ErrnoException("onRead", OsConstants.EIO);
         }
+    }
+
+    @Override public void onRelease() {
+        IoUtils.closeQuietly(mInputStream);
+        IoUtils.closeQuietly(mSpill);
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+        }
+    }
+
+    private int readFromRing(long position, byte[] data, int offset, int size) {
+        final int ringOffset = (int) (position % mRing.length);
+        final int bytes = (int) Math.min(
+                Math.min(size, mInflated - position), mRing.length - ringOffset);
+        System.arraycopy(mRing, ringOffset, data, offset, bytes);
+        return bytes;
+    }
 
-        while (mOffset < offset) {
+    private int readFromSpill(long position, byte[] data, int offset, int size)
+            throws IOException {
+        final int bytes = (int) Math.min(size, mInflated - position);
+        mSpill.seek(position);
+        mSpill.readFully(data, offset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Inflates the next chunk of the entry into the ring buffer, and the spill file if enabled.
+     *
+     * @return false at the end of the entry
+     */
+    private boolean inflateNext() throws IOException {
+        final int ringOffset = (int) (mInflated % mRing.length);
+        final int bytes = mInputStream.read(
+                mRing, ringOffset, Math.min(READ_AHEAD_SIZE, mRing.length - ringOffset));
+        if (bytes <= 0) {
+            return false;
+        }
+
+        if (mSpill != null) {
             try {
-                mOffset +=  mInputStream.skip(offset - mOffset);
+                mSpill.seek(mInflated);
+                mSpill.write(mRing, ringOffset, bytes);
             } catch (IOException e) {
-                throw new ErrnoException("onRead", OsConstants.EIO);
+                // Most likely out of space. Keep going without it.
+                Log.w(TAG, "Failed to spill inflated bytes. Disabling.", e);
+                disableSpill();
             }
         }
 
-        int remainingSize = size;
-        while (remainingSize > 0) {
-            try {
-                int bytes = mInputStream.read(data, size - remainingSize, remainingSize);
-                if (bytes <= 0) {
-                    return size - remainingSize;
-                }
-                remainingSize -= bytes;
-                mOffset += bytes;
-            } catch (IOException e) {
-                throw new ErrnoException("onRead", OsConstants.EIO);
+        mInflated += bytes;
+        mRingStart = Math.max(mRingStart, mInflated - mRing.length);
+        return true;
+    }
+
+    /**
+     * @return false if the end of the entry was reached before the position
+     */
+    private boolean skipTo(long position) throws IOException {
+        boolean reached = true;
+        while (mInflated < position) {
+            final long skipped = mInputStream.skip(position - mInflated);
+            if (skipped <= 0) {
+                reached = false;
+                break;
             }
+            mInflated += skipped;
         }
+        mRingStart = mInflated;
+        return reached;
+    }
 
-        return size - remainingSize;
-   }
+    private void enableSpill() {
+        // Stored entries are cheap to skip through, so there's nothing to gain.
+        if (mSpill != null || mSpillDir == null || mEntry.getMethod() == ZipEntry.STORED) {
+            return;
+        }
+        try {
+            mSpillFile = File.createTempFile("entry", null, mSpillDir);
+            mSpill = new RandomAccessFile(mSpillFile, "rw");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create a spill file. Seeking will be slow.", e);
+            disableSpill();
+        }
+    }
 
-    @Override public void onRelease() {
-        IoUtils.closeQuietly(mInputStream);
+    private void disableSpill() {
+        IoUtils.closeQuietly(mSpill);
+        mSpill = null;
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
     }
 
     private void recreateInputStream() throws IOException {
         IoUtils.closeQuietly(mInputStream);
         mInputStream = mFile.getInputStream(mEntry);
-        mOffset = 0;
+        mInflated = 0;
+        mRingStart = 0;
     }
 }
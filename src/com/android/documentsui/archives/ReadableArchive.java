@@ -28,6 +28,9 @@ import android.os.ParcelFileDescriptor;
 import android.os.storage.StorageManager;
 import android.provider.DocumentsContract;
 import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 import android.util.jar.StrictJarFile;
 
@@ -60,9 +63,18 @@ import java.util.zip.ZipEntry;
 public class ReadableArchive extends Archive {
     private static final String TAG = "ReadableArchive";
 
+    // Directory within the cache directory holding indexes of recently opened archives.
+    private static final String INDEX_DIR = "archive_index";
+
+    // Smaller archives are cheap to walk, and aren't worth a slot among the indexes.
+    private static final int MIN_INDEXED_ENTRIES = 64;
+
     private final StorageManager mStorageManager;
     private final StrictJarFile mZipFile;
 
+    // If set, entries are looked up in the index, and mEntries and mTree are left empty.
+    private final @Nullable ArchiveIndex mIndex;
+
     private ReadableArchive(
             Context context,
             @Nullable File file,
@@ -83,6 +95,26 @@ public class ReadableArchive extends Archive {
                         false /* signatures */) :
                 new StrictJarFile(fd, false /* verify */, false /* signatures */);
 
+        // Snapshots are new files every time, so there is no point in indexing them.
+        final String indexKey = fd != null ? getIndexKey(archiveUri, fd) : null;
+        final File indexDir = new File(mContext.getCacheDir(), INDEX_DIR);
+        mIndex = indexKey != null ? ArchiveIndex.open(indexDir, indexKey) : null;
+        if (mIndex != null) {
+            return;
+        }
+
+        buildTree();
+
+        if (indexKey != null && mEntries.size() >= MIN_INDEXED_ENTRIES) {
+            try {
+                ArchiveIndex.write(indexDir, indexKey, mEntries, mTree);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write an index for " + archiveUri + ".", e);
+            }
+        }
+    }
+
+    private void buildTree() throws IOException {
         ZipEntry entry;
         String entryPath;
         final Iterator<ZipEntry> it = mZipFile.iterator();
@@ -143,6 +175,20 @@ public class ReadableArchive extends Archive {
         }
     }
 
+    /**
+     * Returns the key an index of the archive is stored under, or null if the archive can't be
+     * identified. Archives which changed get a different key.
+     */
+    private static @Nullable String getIndexKey(Uri archiveUri, FileDescriptor fd) {
+        try {
+            final StructStat stat = Os.fstat(fd);
+            return archiveUri + "|" + stat.st_size + "|" + stat.st_mtime;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to stat " + archiveUri + ".", e);
+            return null;
+        }
+    }
+
     /**
      * @see ParcelFileDescriptor
      */
@@ -230,19 +276,36 @@ public class ReadableArchive extends Archive {
         MorePreconditions.checkArgumentEquals(mArchiveUri, parsedId.mArchiveUri,
                 "Mismatching archive Uri. Expected: %s, actual: %s.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
+        final ZipEntry entry = getZipEntry(parsedId.mPath);
         if (entry == null) {
             throw new FileNotFoundException();
         }
 
         try {
             return mStorageManager.openProxyFileDescriptor(
-                    ParcelFileDescriptor.MODE_READ_ONLY, new Proxy(mZipFile, entry));
+                    ParcelFileDescriptor.MODE_READ_ONLY,
+                    new Proxy(mZipFile, entry, mContext.getCacheDir()));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    @Override
+    @Nullable InputStream openEntryStream(String documentId) throws FileNotFoundException {
+        final ArchiveId parsedId = ArchiveId.fromDocumentId(documentId);
+        MorePreconditions.checkArgumentEquals(mArchiveUri, parsedId.mArchiveUri,
+                "Mismatching archive Uri. Expected: %s, actual: %s.");
+
+        final ZipEntry entry = getZipEntry(parsedId.mPath);
+        if (entry == null || entry.isDirectory()) {
+            throw new FileNotFoundException();
+        }
+
+        // Each stream reads the archive at its own offsets, so many entries can be inflated
+        // at the same time.
+        return mZipFile.getInputStream(entry);
+    }
+
     @Override
     public AssetFileDescriptor openDocumentThumbnail(
             String documentId, Point sizeHint, final CancellationSignal signal)
@@ -253,7 +316,7 @@ public class ReadableArchive extends Archive {
         Preconditions.checkArgument(getDocumentType(documentId).startsWith("image/"),
                 "Thumbnails only supported for image/* MIME type.");
 
-        final ZipEntry entry = mEntries.get(parsedId.mPath);
+        final ZipEntry entry = getZipEntry(parsedId.mPath);
         if (entry == null) {
             throw new FileNotFoundException();
         }
@@ -293,6 +356,31 @@ public class ReadableArchive extends Archive {
                 openDocument(documentId, "r", signal), 0, entry.getSize(), null);
     }
 
+    @Override
+    @Nullable ZipEntry getEntry(String path) {
+        return mIndex != null ? mIndex.getEntry(path) : super.getEntry(path);
+    }
+
+    @Override
+    @Nullable List<ZipEntry> getChildren(String path) {
+        return mIndex != null ? mIndex.getChildren(path) : super.getChildren(path);
+    }
+
+    /**
+     * Returns the entry at the path, which can be read from the archive.
+     */
+    private @Nullable ZipEntry getZipEntry(String path) {
+        final ZipEntry entry;
+        synchronized (mEntries) {
+            entry = getEntry(path);
+        }
+        if (entry == null || mIndex == null) {
+            return entry;
+        }
+        // Entries from the index lack the offsets needed for reading. Look up the real one.
+        return mZipFile.findEntry(entry.getName());
+    }
+
     /**
      * Closes an archive.
      *
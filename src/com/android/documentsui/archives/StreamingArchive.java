@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.documentsui.R;
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Provides access to archives which can only be read as a stream, such as archives served by
+ * cloud providers through pipes.
+ *
+ * <p>Instead of copying the whole archive to a local file first, entries are parsed from their
+ * local headers as the bytes arrive, and published to {@link #queryChildDocuments} right away.
+ * Entries are only extracted to disk once opened. As the stream can't go back, this is done by
+ * streaming the archive again, up to the opened entries.
+ *
+ * <p>This class is thread safe.
+ */
+public class StreamingArchive extends Archive {
+    private static final String TAG = "StreamingArchive";
+
+    // Minimum interval between change notifications while entries are being parsed.
+    private static final long NOTIFY_INTERVAL_MS = 500;
+
+    private final Uri mRootUri;
+    private final StreamOpener mOpener;
+    private final InputStream mInputStream;
+    private final ExecutorService mParseExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mSpoolExecutor = Executors.newSingleThreadExecutor();
+
+    @GuardedBy("mEntries")
+    private boolean mLoading = true;
+    @GuardedBy("mEntries")
+    private boolean mLoadingFailed = false;
+
+    // Extracted entries, and entries waiting to be extracted, keyed by entry path.
+    @GuardedBy("mSpooled")
+    private final Map<String, File> mSpooled = new HashMap<>();
+    @GuardedBy("mSpooled")
+    private final Set<String> mWanted = new HashSet<>();
+    @GuardedBy("mSpooled")
+    private boolean mSpoolScheduled = false;
+
+    private volatile boolean mClosed = false;
+
+    @VisibleForTesting
+    StreamingArchive(
+            Context context,
+            InputStream inputStream,
+            StreamOpener opener,
+            Uri archiveUri,
+            int accessMode,
+            @Nullable Uri notificationUri) {
+        super(context, archiveUri, accessMode, notificationUri);
+        if (!ReadableArchive.supportsAccessMode(accessMode)) {
+            throw new IllegalStateException("Unsupported access mode.");
+        }
+
+        mRootUri = ArchivesProvider.buildUriForArchive(archiveUri, accessMode);
+        mInputStream = inputStream;
+        mOpener = opener;
+
+        final ZipEntry root = new ZipEntry("/");
+        root.setSize(0);
+        synchronized (mEntries) {
+            mEntries.put("/", root);
+            mTree.put("/", new ArrayList<>());
+        }
+
+        mParseExecutor.execute(this::parse);
+    }
+
+    /**
+     * Creates a StreamingArchive instance for browsing and accessing documents within the
+     * archive passed as a non-seekable file descriptor. Entries are listed in the background.
+     *
+     * This method takes ownership for the passed descriptor. The caller must
+     * not use it after passing.
+     *
+     * @param context Context of the provider.
+     * @param descriptor File descriptor for the archive's contents.
+     * @param archiveUri Uri of the archive document. Reopened to extract entries.
+     * @param accessMode Access mode for the archive {@see ParcelFileDescriptor}.
+     * @param Uri notificationUri Uri for notifying that the archive file has changed.
+     */
+    public static StreamingArchive createForParcelFileDescriptor(
+            Context context, ParcelFileDescriptor descriptor, Uri archiveUri, int accessMode,
+            @Nullable Uri notificationUri) {
+        return new StreamingArchive(
+                context,
+                new ParcelFileDescriptor.AutoCloseInputStream(descriptor),
+                () -> new ParcelFileDescriptor.AutoCloseInputStream(
+                        context.getContentResolver().openFileDescriptor(
+                                archiveUri, "r", null /* signal */)),
+                archiveUri, accessMode, notificationUri);
+    }
+
+    /**
+     * @return true while entries are still being parsed
+     */
+    public boolean isLoading() {
+        synchronized (mEntries) {
+            return mLoading;
+        }
+    }
+
+    @Override
+    public Cursor queryChildDocuments(String documentId, @Nullable String[] projection,
+            @Nullable String sortOrder) throws FileNotFoundException {
+        final ArchiveId parsedParentId = ArchiveId.fromDocumentId(documentId);
+        MorePreconditions.checkArgumentEquals(mArchiveUri, parsedParentId.mArchiveUri,
+                "Mismatching archive Uri. Expected: %s, actual: %s.");
+
+        final MatrixCursor result = new MatrixCursor(
+                projection != null ? projection : DEFAULT_PROJECTION);
+
+        synchronized (mEntries) {
+            final List<ZipEntry> parentList = mTree.get(parsedParentId.mPath);
+            // The directory may just not have been reached yet.
+            if (parentList == null && !mLoading) {
+                throw new FileNotFoundException();
+            }
+            if (parentList != null) {
+                for (final ZipEntry entry : parentList) {
+                    addCursorRow(result, entry);
+                }
+            }
+
+            if (mLoading) {
+                // Clients are notified on the root Uri as more entries arrive.
+                final Bundle bundle = new Bundle();
+                bundle.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+                result.setExtras(bundle);
+                result.setNotificationUri(mContext.getContentResolver(), mRootUri);
+                return result;
+            }
+
+            if (mLoadingFailed) {
+                final Bundle bundle = new Bundle();
+                bundle.putString(DocumentsContract.EXTRA_ERROR,
+                        mContext.getString(R.string.archive_loading_failed));
+                result.setExtras(bundle);
+            }
+        }
+
+        if (mNotificationUri != null) {
+            result.setNotificationUri(mContext.getContentResolver(), mNotificationUri);
+        }
+        return result;
+    }
+
+    @Override
+    public ParcelFileDescriptor openDocument(
+            String documentId, String mode, @Nullable final CancellationSignal signal)
+            throws FileNotFoundException {
+        MorePreconditions.checkArgumentEquals("r", mode,
+                "Invalid mode. Only reading \"r\" supported, but got: \"%s\".");
+        final ArchiveId parsedId = ArchiveId.fromDocumentId(documentId);
+        MorePreconditions.checkArgumentEquals(mArchiveUri, parsedId.mArchiveUri,
+                "Mismatching archive Uri. Expected: %s, actual: %s.");
+
+        synchronized (mEntries) {
+            final ZipEntry entry = mEntries.get(parsedId.mPath);
+            if (entry == null || entry.isDirectory()) {
+                throw new FileNotFoundException();
+            }
+        }
+
+        return ParcelFileDescriptor.open(
+                awaitSpooled(parsedId.mPath, signal), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public AssetFileDescriptor openDocumentThumbnail(
+            String documentId, Point sizeHint, final CancellationSignal signal)
+            throws FileNotFoundException {
+        // Would require streaming the archive for each thumbnail.
+        throw new UnsupportedOperationException("Thumbnails not supported.");
+    }
+
+    @Override
+    boolean supportsThumbnails() {
+        return false;
+    }
+
+    /**
+     * Closes the archive. Parsing and extraction in progress are aborted.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        IoUtils.closeQuietly(mInputStream);
+        mParseExecutor.shutdownNow();
+        mSpoolExecutor.shutdownNow();
+
+        synchronized (mSpooled) {
+            // On UNIX the files will be still available for processes which opened them, even
+            // after deleting them.
+            for (File file : mSpooled.values()) {
+                file.delete();
+            }
+            mSpooled.clear();
+            mWanted.clear();
+            mSpooled.notifyAll();
+        }
+    }
+
+    /**
+     * Parses local headers of entries from the stream, and publishes them as they come.
+     */
+    private void parse() {
+        long lastNotifyTime = 0;
+        boolean pendingNotify = false;
+        try (final ZipInputStream zipStream =
+                new ZipInputStream(new BufferedInputStream(mInputStream))) {
+            ZipEntry entry;
+            while ((entry = zipStream.getNextEntry()) != null && !mClosed) {
+                // Data descriptors, if any, follow the data, so sizes may only be known once
+                // the entry is passed.
+                zipStream.closeEntry();
+                pendingNotify |= publish(entry);
+
+                final long now = SystemClock.elapsedRealtime();
+                if (pendingNotify && now - lastNotifyTime >= NOTIFY_INTERVAL_MS) {
+                    notifyChange();
+                    lastNotifyTime = now;
+                    pendingNotify = false;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Failed to parse the archive.", e);
+                synchronized (mEntries) {
+                    mLoadingFailed = true;
+                }
+            }
+        } finally {
+            synchronized (mEntries) {
+                mLoading = false;
+            }
+            if (!mClosed) {
+                notifyChange();
+            }
+        }
+    }
+
+    /**
+     * @return true if the entry was added
+     */
+    private boolean publish(ZipEntry entry) {
+        final String entryPath = getEntryPath(entry);
+        synchronized (mEntries) {
+            final ZipEntry existing = mEntries.get(entryPath);
+            if (existing != null) {
+                // Directories are created as soon as any of their descendants is found.
+                if (!existing.isDirectory() || !entry.isDirectory()) {
+                    Log.w(TAG, "Skipping a duplicate entry: " + entryPath);
+                }
+                return false;
+            }
+
+            mEntries.put(entryPath, entry);
+            if (entry.isDirectory()) {
+                mTree.put(entryPath, new ArrayList<>());
+            }
+
+            // Link the entry to its parent, creating missing directories on the way up.
+            ZipEntry child = entry;
+            String childPath = entryPath;
+            while (true) {
+                final int delimiterIndex = childPath.lastIndexOf('/', child.isDirectory()
+                        ? childPath.length() - 2 : childPath.length() - 1);
+                final String parentPath = childPath.substring(0, delimiterIndex) + "/";
+
+                List<ZipEntry> parentList = mTree.get(parentPath);
+                if (parentList != null) {
+                    parentList.add(child);
+                    break;
+                }
+
+                final ZipEntry parentEntry = new ZipEntry(parentPath);
+                parentEntry.setSize(0);
+                parentEntry.setTime(entry.getTime());
+                mEntries.put(parentPath, parentEntry);
+                parentList = new ArrayList<>();
+                parentList.add(child);
+                mTree.put(parentPath, parentList);
+
+                child = parentEntry;
+                childPath = parentPath;
+            }
+        }
+        return true;
+    }
+
+    private void notifyChange() {
+        mContext.getContentResolver().notifyChange(
+                mRootUri, null /* observer */, false /* syncToNetwork */);
+    }
+
+    /**
+     * Waits until the entry is extracted, scheduling its extraction if needed.
+     */
+    private File awaitSpooled(String entryPath, @Nullable CancellationSignal signal)
+            throws FileNotFoundException {
+        synchronized (mSpooled) {
+            File file = mSpooled.get(entryPath);
+            if (file != null) {
+                return file;
+            }
+
+            mWanted.add(entryPath);
+            if (!mSpoolScheduled && !mClosed) {
+                try {
+                    mSpoolExecutor.execute(this::spoolWanted);
+                    mSpoolScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // Closed in the meantime.
+                    throw new FileNotFoundException("Archive closed.");
+                }
+            }
+
+            while (mWanted.contains(entryPath) && !mClosed) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                try {
+                    // Wakes up periodically to check the cancellation signal.
+                    mSpooled.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileNotFoundException("Interrupted while extracting.");
+                }
+            }
+
+            file = mSpooled.get(entryPath);
+            if (file == null) {
+                throw new FileNotFoundException("Failed to extract " + entryPath + ".");
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Streams the archive again, extracting entries requested in the meantime. Repeats until
+     * there is nothing left to extract.
+     */
+    private void spoolWanted() {
+        while (true) {
+            final Set<String> pass;
+            synchronized (mSpooled) {
+                if (mWanted.isEmpty() || mClosed) {
+                    mSpoolScheduled = false;
+                    return;
+                }
+                pass = new HashSet<>(mWanted);
+            }
+
+            try (final ZipInputStream zipStream =
+                    new ZipInputStream(new BufferedInputStream(mOpener.open()))) {
+                ZipEntry entry;
+                while (!pass.isEmpty() && !mClosed
+                        && (entry = zipStream.getNextEntry()) != null) {
+                    final String entryPath = getEntryPath(entry);
+                    // Entries requested during this pass may have been passed already, so they
+                    // wait for the next one.
+                    if (!pass.remove(entryPath)) {
+                        continue;
+                    }
+                    final File file = spoolEntry(zipStream);
+                    synchronized (mSpooled) {
+                        if (mClosed) {
+                            file.delete();
+                            return;
+                        }
+                        mSpooled.put(entryPath, file);
+                        mWanted.remove(entryPath);
+                        mSpooled.notifyAll();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to extract entries from the archive.", e);
+            }
+
+            // Entries of this pass which weren't found fail.
+            synchronized (mSpooled) {
+                mWanted.removeAll(pass);
+                mSpooled.notifyAll();
+            }
+        }
+    }
+
+    private File spoolEntry(ZipInputStream zipStream) throws IOException {
+        final File file = File.createTempFile("com.android.documentsui.spool{", "}",
+                mContext.getCacheDir());
+        boolean success = false;
+        try (final FileOutputStream outputStream = new FileOutputStream(file)) {
+            final byte[] buffer = new byte[32 * 1024];
+            int bytes;
+            while ((bytes = zipStream.read(buffer)) != -1) {
+                if (mClosed) {
+                    throw new IOException("Archive closed while extracting.");
+                }
+                outputStream.write(buffer, 0, bytes);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Opens the archive from the start.
+     */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+}
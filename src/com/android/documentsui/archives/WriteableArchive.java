@@ -26,40 +26,61 @@ import android.provider.DocumentsContract.Document;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.android.documentsui.base.MimeTypes;
 import com.android.internal.annotations.GuardedBy;
 import android.support.annotation.VisibleForTesting;
 
 import libcore.io.IoUtils;
 
-import java.io.FileDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Provides basic implementation for creating archives.
  *
+ * <p>Files are compressed concurrently, each into its own buffer, which spills to a temporary
+ * file once it grows large. A single writer then appends the compressed entries to the archive
+ * in the order they were opened. Files of types which are compressed already are stored as is.
+ *
  * <p>This class is thread safe.
  */
 public class WriteableArchive extends Archive {
     private static final String TAG = "WriteableArchive";
 
+    private static final int MAX_COMPRESSION_THREADS = 4;
+
+    // Compressed bytes of a single entry kept in memory before spilling to a temporary file.
+    private static final int MAX_BUFFERED_BYTES = 512 * 1024;
+
     @GuardedBy("mEntries")
     private final Set<String> mPendingEntries = new HashSet<>();
-    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Paths of entries which are stored rather than deflated.
     @GuardedBy("mEntries")
-    private final ZipOutputStream mZipOutputStream;
+    private final Set<String> mStoredEntries = new HashSet<>();
+    private final ExecutorService mCompressionExecutor = Executors.newFixedThreadPool(
+            Math.min(MAX_COMPRESSION_THREADS, Runtime.getRuntime().availableProcessors()));
+    // Writes entries in order. Only this executor touches mZipWriter until it's terminated.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ZipWriter mZipWriter;
     private final AutoCloseOutputStream mOutputStream;
 
     /**
@@ -79,7 +100,7 @@ public class WriteableArchive extends Archive {
 
         addEntry(null /* no parent */, new ZipEntry("/"));  // Root entry.
         mOutputStream = new AutoCloseOutputStream(fd);
-        mZipOutputStream = new ZipOutputStream(mOutputStream);
+        mZipWriter = new ZipWriter(mOutputStream);
     }
 
     private void addEntry(@Nullable ZipEntry parentEntry, ZipEntry entry) {
@@ -181,13 +202,14 @@ public class WriteableArchive extends Archive {
             // to the ZIP file in close().
             synchronized (mEntries) {
                 mPendingEntries.add(entryPath);
+                if (MimeTypes.isCompressed(mimeType)) {
+                    mStoredEntries.add(entryPath);
+                }
             }
         } else {
             try {
-                synchronized (mEntries) {
-                    mZipOutputStream.putNextEntry(entry);
-                }
-            } catch (IOException e) {
+                mExecutor.execute(() -> writeEntry(entry, null));
+            } catch (RejectedExecutionException e) {
                 throw new IllegalStateException(
                         "Failed to create a file in the archive: " + entryPath, e);
             }
@@ -207,6 +229,7 @@ public class WriteableArchive extends Archive {
                 "Mismatching archive Uri. Expected: %s, actual: %s.");
 
         final ZipEntry entry;
+        final boolean stored;
         synchronized (mEntries) {
             entry = mEntries.get(parsedId.mPath);
             if (entry == null) {
@@ -217,6 +240,7 @@ public class WriteableArchive extends Archive {
                 throw new IllegalStateException("Files can be written only once.");
             }
             mPendingEntries.remove(parsedId.mPath);
+            stored = mStoredEntries.remove(parsedId.mPath);
         }
 
         ParcelFileDescriptor[] pipe;
@@ -230,45 +254,10 @@ public class WriteableArchive extends Archive {
         final ParcelFileDescriptor inputPipe = pipe[0];
 
         try {
-            mExecutor.execute(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            try (final ParcelFileDescriptor.AutoCloseInputStream inputStream =
-                                    new ParcelFileDescriptor.AutoCloseInputStream(inputPipe)) {
-                                try {
-                                    synchronized (mEntries) {
-                                        mZipOutputStream.putNextEntry(entry);
-                                        final byte buffer[] = new byte[32 * 1024];
-                                        int bytes;
-                                        long size = 0;
-                                        while ((bytes = inputStream.read(buffer)) != -1) {
-                                            if (signal != null) {
-                                                signal.throwIfCanceled();
-                                            }
-                                            mZipOutputStream.write(buffer, 0, bytes);
-                                            size += bytes;
-                                        }
-                                        entry.setSize(size);
-                                        mZipOutputStream.closeEntry();
-                                    }
-                                } catch (IOException e) {
-                                    // Catch the exception before the outer try-with-resource closes
-                                    // the pipe with close() instead of closeWithError().
-                                    try {
-                                        Log.e(TAG, "Failed while writing to a file.", e);
-                                        inputPipe.closeWithError("Writing failure.");
-                                    } catch (IOException e2) {
-                                        Log.e(TAG, "Failed to close the pipe after an error.", e2);
-                                    }
-                                }
-                            } catch (OperationCanceledException e) {
-                                // Cancelled gracefully.
-                            } catch (IOException e) {
-                                // Input stream auto-close error. Close quietly.
-                            }
-                        }
-                    });
+            final Future<EntryBuffer> compressed = mCompressionExecutor.submit(
+                    () -> compressEntry(entry, inputPipe, stored, signal));
+            // Entries are written in the order they were opened, whichever finished first.
+            mExecutor.execute(() -> writeEntry(entry, compressed));
         } catch (RejectedExecutionException e) {
             IoUtils.closeQuietly(pipe[0]);
             IoUtils.closeQuietly(pipe[1]);
@@ -278,12 +267,119 @@ public class WriteableArchive extends Archive {
         return pipe[1];
     }
 
+    /**
+     * Reads the contents of an entry from the pipe and compresses them. Runs concurrently with
+     * other entries.
+     *
+     * @return the compressed data, or null if reading failed or was canceled
+     */
+    private @Nullable EntryBuffer compressEntry(ZipEntry entry, ParcelFileDescriptor inputPipe,
+            boolean stored, @Nullable CancellationSignal signal) {
+        final EntryBuffer data = new EntryBuffer(mContext.getCacheDir());
+        final Deflater deflater = stored ? null : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (final ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                new ParcelFileDescriptor.AutoCloseInputStream(inputPipe)) {
+            try {
+                final CRC32 crc = new CRC32();
+                final byte buffer[] = new byte[32 * 1024];
+                final byte output[] = new byte[32 * 1024];
+                int bytes;
+                long size = 0;
+                while ((bytes = inputStream.read(buffer)) != -1) {
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+                    crc.update(buffer, 0, bytes);
+                    size += bytes;
+                    if (stored) {
+                        data.write(buffer, 0, bytes);
+                    } else {
+                        deflater.setInput(buffer, 0, bytes);
+                        while (!deflater.needsInput()) {
+                            data.write(output, 0, deflater.deflate(output));
+                        }
+                    }
+                }
+                if (!stored) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        data.write(output, 0, deflater.deflate(output));
+                    }
+                }
+
+                synchronized (mEntries) {
+                    entry.setMethod(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                    entry.setCrc(crc.getValue());
+                    entry.setSize(size);
+                    entry.setCompressedSize(data.getSize());
+                }
+                return data;
+            } catch (IOException e) {
+                // Catch the exception before the outer try-with-resource closes
+                // the pipe with close() instead of closeWithError().
+                try {
+                    Log.e(TAG, "Failed while writing to a file.", e);
+                    inputPipe.closeWithError("Writing failure.");
+                } catch (IOException e2) {
+                    Log.e(TAG, "Failed to close the pipe after an error.", e2);
+                }
+            }
+        } catch (OperationCanceledException e) {
+            // Cancelled gracefully.
+        } catch (IOException e) {
+            // Input stream auto-close error. Close quietly.
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        data.close();
+        return null;
+    }
+
+    /**
+     * Appends an entry to the archive once it's compressed. Runs on the writer thread only.
+     * Entries which failed to be compressed are written empty, as they're listed already.
+     */
+    private void writeEntry(ZipEntry entry, @Nullable Future<EntryBuffer> compressed) {
+        EntryBuffer buffer = null;
+        try {
+            if (compressed != null) {
+                buffer = compressed.get();
+            }
+            if (buffer == null) {
+                synchronized (mEntries) {
+                    setEmpty(entry);
+                }
+            }
+            mZipWriter.writeEntry(entry, buffer != null ? buffer.getInputStream() : null);
+        } catch (ExecutionException | IOException e) {
+            Log.e(TAG, "Failed to write an entry to the archive: " + entry.getName(), e);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while writing an entry to the archive.", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+    }
+
+    private static void setEmpty(ZipEntry entry) {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setCrc(0);
+        entry.setSize(0);
+        entry.setCompressedSize(0);
+    }
+
     /**
      * Closes the archive. Blocks until all enqueued pipes are completed.
      */
     @Override
     public void close() {
         // Waits until all enqueued pipe requests are completed.
+        mCompressionExecutor.shutdown();
         mExecutor.shutdown();
         try {
             final boolean result = mExecutor.awaitTermination(
@@ -297,15 +393,17 @@ public class WriteableArchive extends Archive {
         synchronized (mEntries) {
             for (final String path : mPendingEntries) {
                 try {
-                    mZipOutputStream.putNextEntry(mEntries.get(path));
-                    mZipOutputStream.closeEntry();
+                    final ZipEntry entry = mEntries.get(path);
+                    setEmpty(entry);
+                    mZipWriter.writeEntry(entry, null);
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to flush empty entries.", e);
                 }
             }
+            mPendingEntries.clear();
 
             try {
-                mZipOutputStream.close();
+                mZipWriter.close();
             } catch (IOException e) {
                 Log.e(TAG, "Failed while closing the ZIP file.", e);
             }
@@ -313,4 +411,67 @@ public class WriteableArchive extends Archive {
 
         IoUtils.closeQuietly(mOutputStream);
     }
+
+    /**
+     * Compressed data of an entry. Kept in memory while it's small, and moved to a temporary
+     * file once it grows past {@link #MAX_BUFFERED_BYTES}.
+     */
+    private static final class EntryBuffer extends OutputStream {
+        private final File mDir;
+        private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+        private @Nullable File mFile;
+        private @Nullable OutputStream mFileStream;
+        private long mSize;
+
+        private EntryBuffer(File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            if (mFileStream == null && mMemory.size() + length > MAX_BUFFERED_BYTES) {
+                mFile = File.createTempFile("entry", ".tmp", mDir);
+                mFileStream = new FileOutputStream(mFile);
+                mMemory.writeTo(mFileStream);
+                mMemory = null;
+            }
+            if (mFileStream != null) {
+                mFileStream.write(bytes, offset, length);
+            } else {
+                mMemory.write(bytes, offset, length);
+            }
+            mSize += length;
+        }
+
+        private long getSize() {
+            return mSize;
+        }
+
+        private InputStream getInputStream() throws IOException {
+            if (mFileStream == null) {
+                return new ByteArrayInputStream(mMemory.toByteArray());
+            }
+            mFileStream.close();
+            return new FileInputStream(mFile);
+        }
+
+        /**
+         * Releases the buffer, deleting the temporary file if any.
+         */
+        @Override
+        public void close() {
+            IoUtils.closeQuietly(mFileStream);
+            if (mFile != null && !mFile.delete()) {
+                Log.w(TAG, "Failed to delete a temporary file: " + mFile);
+            }
+        }
+    }
 };
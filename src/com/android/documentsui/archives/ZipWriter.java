@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a ZIP file out of entries which were compressed beforehand. Unlike
+ * {@link java.util.zip.ZipOutputStream}, the checksum and sizes of each entry are known before
+ * its data, so they go straight into the local header, and entries can be compressed
+ * concurrently by the caller. ZIP64 records are only written when needed.
+ *
+ * <p>This class isn't thread safe.
+ */
+final class ZipWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // Names are encoded in UTF-8.
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final long MAX_INT = 0xffffffffL;
+    private static final int MAX_SHORT = 0xffff;
+
+    private final OutputStream mOut;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] mBuffer = new byte[32 * 1024];
+    private final List<Record> mRecords = new ArrayList<>();
+    private long mOffset;
+    private boolean mClosed;
+
+    ZipWriter(OutputStream out) {
+        mOut = new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    /**
+     * Writes an entry. The method, CRC, size and compressed size of the entry must be set.
+     *
+     * @param data the compressed data of exactly {@link ZipEntry#getCompressedSize()} bytes, or
+     *     null for empty entries
+     */
+    void writeEntry(ZipEntry entry, @Nullable InputStream data) throws IOException {
+        final Record record = new Record(entry, mOffset);
+        final boolean zip64 = record.size >= MAX_INT || record.compressedSize >= MAX_INT;
+
+        mHeader.clear();
+        mHeader.putInt(LOCAL_HEADER_SIGNATURE);
+        mHeader.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        mHeader.putShort((short) FLAG_UTF8);
+        mHeader.putShort((short) record.method);
+        mHeader.putInt(record.dosTime);
+        mHeader.putInt((int) record.crc);
+        mHeader.putInt((int) (zip64 ? MAX_INT : record.compressedSize));
+        mHeader.putInt((int) (zip64 ? MAX_INT : record.size));
+        mHeader.putShort((short) record.name.length);
+        mHeader.putShort((short) (zip64 ? 20 : 0));
+        writeHeader();
+        write(record.name, record.name.length);
+        if (zip64) {
+            mHeader.clear();
+            mHeader.putShort(ZIP64_EXTRA_ID);
+            mHeader.putShort((short) 16);
+            mHeader.putLong(record.size);
+            mHeader.putLong(record.compressedSize);
+            writeHeader();
+        }
+
+        long remaining = record.compressedSize;
+        if (data != null) {
+            int bytes;
+            while (remaining > 0 && (bytes = data.read(
+                    mBuffer, 0, (int) Math.min(mBuffer.length, remaining))) != -1) {
+                write(mBuffer, bytes);
+                remaining -= bytes;
+            }
+        }
+        if (remaining != 0) {
+            throw new IOException("Unexpected end of data of " + entry.getName());
+        }
+
+        mRecords.add(record);
+    }
+
+    /**
+     * Writes the central directory and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            final long directoryOffset = mOffset;
+            for (Record record : mRecords) {
+                writeCentralHeader(record);
+            }
+            final long directorySize = mOffset - directoryOffset;
+            final int count = mRecords.size();
+
+            if (count >= MAX_SHORT || directoryOffset >= MAX_INT || directorySize >= MAX_INT) {
+                final long zip64EndOffset = mOffset;
+                mHeader.clear();
+                mHeader.putInt(ZIP64_END_SIGNATURE);
+                mHeader.putLong(44);  // Size of the rest of the record.
+                mHeader.putShort((short) VERSION_ZIP64);
+                mHeader.putShort((short) VERSION_ZIP64);
+                mHeader.putInt(0);  // Number of this disk.
+                mHeader.putInt(0);  // Disk of the central directory.
+                mHeader.putLong(count);
+                mHeader.putLong(count);
+                mHeader.putLong(directorySize);
+                mHeader.putLong(directoryOffset);
+                mHeader.putInt(ZIP64_LOCATOR_SIGNATURE);
+                mHeader.putInt(0);  // Disk of the ZIP64 end record.
+                mHeader.putLong(zip64EndOffset);
+                mHeader.putInt(1);  // Number of disks.
+                writeHeader();
+            }
+
+            mHeader.clear();
+            mHeader.putInt(END_SIGNATURE);
+            mHeader.putShort((short) 0);  // Number of this disk.
+            mHeader.putShort((short) 0);  // Disk of the central directory.
+            mHeader.putShort((short) Math.min(count, MAX_SHORT));
+            mHeader.putShort((short) Math.min(count, MAX_SHORT));
+            mHeader.putInt((int) Math.min(directorySize, MAX_INT));
+            mHeader.putInt((int) Math.min(directoryOffset, MAX_INT));
+            mHeader.putShort((short) 0);  // Comment length.
+            writeHeader();
+            mOut.flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writeCentralHeader(Record record) throws IOException {
+        final boolean zip64Size = record.size >= MAX_INT;
+        final boolean zip64CompressedSize = record.compressedSize >= MAX_INT;
+        final boolean zip64Offset = record.offset >= MAX_INT;
+        final int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0)
+                + (zip64Offset ? 8 : 0);
+        final boolean zip64 = extraLength > 0;
+
+        mHeader.clear();
+        mHeader.putInt(CENTRAL_HEADER_SIGNATURE);
+        mHeader.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));  // Made by.
+        mHeader.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));  // Needed to extract.
+        mHeader.putShort((short) FLAG_UTF8);
+        mHeader.putShort((short) record.method);
+        mHeader.putInt(record.dosTime);
+        mHeader.putInt((int) record.crc);
+        mHeader.putInt((int) Math.min(record.compressedSize, MAX_INT));
+        mHeader.putInt((int) Math.min(record.size, MAX_INT));
+        mHeader.putShort((short) record.name.length);
+        mHeader.putShort((short) (zip64 ? extraLength + 4 : 0));
+        mHeader.putShort((short) 0);  // Comment length.
+        mHeader.putShort((short) 0);  // Disk number.
+        mHeader.putShort((short) 0);  // Internal attributes.
+        mHeader.putInt(0);  // External attributes.
+        mHeader.putInt((int) Math.min(record.offset, MAX_INT));
+        writeHeader();
+        write(record.name, record.name.length);
+
+        if (zip64) {
+            mHeader.clear();
+            mHeader.putShort(ZIP64_EXTRA_ID);
+            mHeader.putShort((short) extraLength);
+            if (zip64Size) {
+                mHeader.putLong(record.size);
+            }
+            if (zip64CompressedSize) {
+                mHeader.putLong(record.compressedSize);
+            }
+            if (zip64Offset) {
+                mHeader.putLong(record.offset);
+            }
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        write(mHeader.array(), mHeader.position());
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        mOut.write(bytes, 0, length);
+        mOffset += length;
+    }
+
+    /**
+     * Converts the time to the MS-DOS format used by ZIP headers, time in the lower half and
+     * date in the upper one.
+     */
+    private static int toDosTime(long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);  // January 1st, 1980.
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * What the central directory needs to know about a written entry.
+     */
+    private static final class Record {
+        private final byte[] name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long offset;
+
+        private Record(ZipEntry entry, long offset) {
+            this.name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            this.method = entry.getMethod();
+            this.dosTime = toDosTime(
+                    entry.getTime() != -1 ? entry.getTime() : System.currentTimeMillis());
+            this.crc = entry.getCrc();
+            this.size = entry.getSize();
+            this.compressedSize = entry.getCompressedSize();
+            this.offset = offset;
+        }
+    }
+}
@@ -36,6 +36,35 @@ public final class MimeTypes {
      */
     public static final String[] VISUAL_MIMES = new String[] { "image/*", "video/*" };
 
+    /**
+     * MIME types of files which are compressed already.
+     */
+    private static final String[] COMPRESSED_MIMES = new String[] {
+            "image/*", "video/*", "audio/*", APK_TYPE, "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/x-bzip2", "application/x-xz",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"
+    };
+
+    /**
+     * Media types which are usually stored without compression.
+     */
+    private static final String[] UNCOMPRESSED_MEDIA_MIMES = new String[] {
+            "image/bmp", "image/x-ms-bmp", "image/svg+xml", "image/tiff", "image/x-icon",
+            "audio/wav", "audio/x-wav", "audio/aiff", "audio/x-aiff"
+    };
+
+    /**
+     * Returns whether files of the type are compressed already, so compressing them again would
+     * mostly waste time.
+     */
+    public static boolean isCompressed(@Nullable String mimeType) {
+        return mimeMatches(COMPRESSED_MIMES, mimeType)
+                && !mimeMatches(UNCOMPRESSED_MEDIA_MIMES, mimeType);
+    }
+
     public static @Nullable String[] splitMimeType(String mimeType) {
         final String[] groups = mimeType.split("/");
 
@@ -30,7 +30,14 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -48,6 +55,15 @@ import java.util.concurrent.TimeUnit;
  *          - [file] primary
  *          - [symlink] 1 > primary # copying to location X
  *          - [symlink] 2 > primary # copying to location Y
+ *
+ * Clip files are binary. Uris are split at their last slash, so uris of documents in the same
+ * directory or tree share a prefix, which is stored once:
+ * <pre>
+ * header:  magic (int), version (int), uri count (int), prefix table offset (long)
+ * records: [prefix index (varint), suffix length (varint), suffix (UTF-8)] * uri count
+ * prefixes: prefix count (varint), [length (varint), prefix (UTF-8)] * prefix count
+ * </pre>
+ * The header is filled in last, so a clip file whose writing got interrupted has no valid magic.
  */
 public final class ClipStorage implements ClipStore {
 
@@ -65,7 +81,13 @@ public final class ClipStorage implements ClipStore {
     private static final String NEXT_AVAIL_SLOT = "NextAvailableSlot";
     private static final String PRIMARY_DATA_FILE_NAME = "primary";
 
-    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    static final int MAGIC = 0x434c4950; // "CLIP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    // A varint takes at most 5 bytes.
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private final File mOutDir;
     private final SharedPreferences mPref;
@@ -204,33 +226,127 @@ public final class ClipStorage implements ClipStore {
     public static final class Writer implements Closeable {
 
         private final FileOutputStream mOut;
+        private final FileChannel mChannel;
         private final FileLock mLock;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private final Map<String, Integer> mPrefixIndexes = new HashMap<>();
+        private final List<String> mPrefixes = new ArrayList<>();
+        private int mCount;
 
         private Writer(File file) throws IOException {
             assert(!file.exists());
 
             mOut = new FileOutputStream(file);
+            mChannel = mOut.getChannel();
 
             // Lock the file here so copy tasks would wait until everything is flushed to disk
             // before start to run.
-            mLock = mOut.getChannel().lock();
+            mLock = mChannel.lock();
+
+            // Leave room for the header, written once the count and the prefixes are known.
+            mBuffer.put(new byte[HEADER_SIZE]);
         }
 
         public void write(Uri uri) throws IOException {
-            mOut.write(uri.toString().getBytes());
-            mOut.write(LINE_SEPARATOR);
+            final String value = uri.toString();
+            final int split = value.lastIndexOf('/') + 1;
+            final String prefix = value.substring(0, split);
+
+            Integer index = mPrefixIndexes.get(prefix);
+            if (index == null) {
+                index = mPrefixes.size();
+                mPrefixIndexes.put(prefix, index);
+                mPrefixes.add(prefix);
+            }
+
+            final byte[] suffix = value.substring(split).getBytes(StandardCharsets.UTF_8);
+            ensureRemaining(2 * MAX_VARINT_SIZE);
+            putVarint(mBuffer, index);
+            putVarint(mBuffer, suffix.length);
+            put(suffix);
+            ++mCount;
         }
 
         @Override
         public void close() throws IOException {
-            if (mLock != null) {
-                mLock.release();
+            try {
+                writePrefixesAndHeader();
+            } finally {
+                if (mLock != null) {
+                    mLock.release();
+                }
+
+                if (mOut != null) {
+                    mOut.close();
+                }
+            }
+        }
+
+        private void writePrefixesAndHeader() throws IOException {
+            flush();
+            final long prefixesOffset = mChannel.position();
+
+            ensureRemaining(MAX_VARINT_SIZE);
+            putVarint(mBuffer, mPrefixes.size());
+            for (String prefix : mPrefixes) {
+                final byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+                ensureRemaining(MAX_VARINT_SIZE);
+                putVarint(mBuffer, bytes.length);
+                put(bytes);
+            }
+            flush();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mCount).putLong(prefixesOffset);
+            header.flip();
+            for (long position = 0; header.hasRemaining(); ) {
+                position += mChannel.write(header, position);
             }
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                ensureRemaining(1);
+                final int length = Math.min(bytes.length - offset, mBuffer.remaining());
+                mBuffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void ensureRemaining(int size) throws IOException {
+            if (mBuffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
 
-            if (mOut != null) {
-                mOut.close();
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
             }
         }
+        throw new IllegalStateException("Malformed varint in clip file.");
     }
 
     @Override
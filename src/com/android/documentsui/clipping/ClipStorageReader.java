@@ -22,15 +22,22 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.NoSuchElementException;
 
 /**
  * Reader class used to read uris from clip files stored in {@link ClipStorage}. It provides
  * synchronization within a single process as an addition to {@link FileLock} which is for
  * cross-process synchronization.
+ *
+ * <p>The clip file is memory mapped once the writer is done with it, and uris are decoded from
+ * the mapping as they're iterated.
  */
 class ClipStorageReader implements Iterable<Uri>, Closeable {
 
@@ -42,11 +49,16 @@ class ClipStorageReader implements Iterable<Uri>, Closeable {
     private static final Map<String, FileLockEntry> sLocks = new HashMap<>();
 
     private final String mCanonicalPath;
-    private final Scanner mScanner;
+    private final FileChannel mChannel;
+
+    // Positioned at the first record.
+    private ByteBuffer mRecords;
+    private int mCount;
+    private byte[][] mPrefixes;
 
     ClipStorageReader(File file) throws IOException {
         FileInputStream inStream = new FileInputStream(file);
-        mScanner = new Scanner(inStream);
+        mChannel = inStream.getChannel();
 
         mCanonicalPath = file.getCanonicalPath(); // Resolve symlink
         synchronized (sLocks) {
@@ -57,15 +69,50 @@ class ClipStorageReader implements Iterable<Uri>, Closeable {
             } else {
                 // No map entry, need to lock the file so it won't pass this line until the
                 // corresponding writer is done writing.
-                FileLock lock = inStream.getChannel().lock(0L, Long.MAX_VALUE, true);
-                sLocks.put(mCanonicalPath, new FileLockEntry(1, lock, mScanner));
+                FileLock lock = mChannel.lock(0L, Long.MAX_VALUE, true);
+                sLocks.put(mCanonicalPath, new FileLockEntry(1, lock, mChannel));
             }
         }
+
+        try {
+            map();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void map() throws IOException {
+        final ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+        try {
+            if (buffer.getInt() != ClipStorage.MAGIC) {
+                throw new IOException("Clip file " + mCanonicalPath + " is incomplete.");
+            }
+            final int version = buffer.getInt();
+            if (version != ClipStorage.VERSION) {
+                throw new IOException("Unsupported clip file version: " + version);
+            }
+            mCount = buffer.getInt();
+            final long prefixesOffset = buffer.getLong();
+            if (prefixesOffset < ClipStorage.HEADER_SIZE || prefixesOffset > buffer.limit()) {
+                throw new IOException("Malformed clip file " + mCanonicalPath);
+            }
+            mRecords = buffer.slice();
+
+            buffer.position((int) prefixesOffset);
+            mPrefixes = new byte[ClipStorage.getVarint(buffer)][];
+            for (int i = 0; i < mPrefixes.length; ++i) {
+                mPrefixes[i] = new byte[ClipStorage.getVarint(buffer)];
+                buffer.get(mPrefixes[i]);
+            }
+        } catch (BufferUnderflowException | IllegalStateException e) {
+            throw new IOException("Malformed clip file " + mCanonicalPath, e);
+        }
     }
 
     @Override
     public Iterator iterator() {
-        return new Iterator(mScanner);
+        return new Iterator(mRecords.duplicate(), mCount, mPrefixes);
     }
 
     @Override
@@ -79,47 +126,66 @@ class ClipStorageReader implements Iterable<Uri>, Closeable {
                 // If ref count is 0 now, then there is no one who needs to hold the read lock.
                 // Release the lock, and remove the entry.
                 ref.mLock.release();
-                ref.mScanner.close();
+                ref.mChannel.close();
                 sLocks.remove(mCanonicalPath);
             }
         }
 
-        if (mScanner != ref.mScanner) {
-            mScanner.close();
+        if (mChannel != ref.mChannel) {
+            mChannel.close();
         }
     }
 
-    private static final class Iterator implements java.util.Iterator {
-        private final Scanner mScanner;
+    private static final class Iterator implements java.util.Iterator<Uri> {
+        private final ByteBuffer mRecords;
+        private final byte[][] mPrefixes;
+        private int mRemaining;
+
+        // Reused to assemble each uri, so decoding one allocates little more than the uri.
+        private byte[] mScratch = new byte[256];
 
-        private Iterator(Scanner scanner) {
-            mScanner = scanner;
+        private Iterator(ByteBuffer records, int count, byte[][] prefixes) {
+            mRecords = records;
+            mRemaining = count;
+            mPrefixes = prefixes;
         }
 
         @Override
         public boolean hasNext() {
-            return mScanner.hasNextLine();
+            return mRemaining > 0;
         }
 
         @Override
         public Uri next() {
-            String line = mScanner.nextLine();
-            return Uri.parse(line);
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final byte[] prefix = mPrefixes[ClipStorage.getVarint(mRecords)];
+            final int length = prefix.length + ClipStorage.getVarint(mRecords);
+            if (mScratch.length < length) {
+                mScratch = new byte[Math.max(length, mScratch.length * 2)];
+            }
+            System.arraycopy(prefix, 0, mScratch, 0, prefix.length);
+            mRecords.get(mScratch, prefix.length, length - prefix.length);
+            --mRemaining;
+
+            return Uri.parse(new String(mScratch, 0, length, StandardCharsets.UTF_8));
         }
     }
 
     private static final class FileLockEntry {
         private final FileLock mLock;
-        // We need to keep this scanner here because if the scanner is closed, the file lock is
+        // We need to keep this channel here because if the channel is closed, the file lock is
         // closed too.
-        private final Scanner mScanner;
+        private final FileChannel mChannel;
 
         private int mCount;
 
-        private FileLockEntry(int count, FileLock lock, Scanner scanner) {
+        private FileLockEntry(int count, FileLock lock, FileChannel channel) {
             mCount = count;
             mLock = lock;
-            mScanner = scanner;
+            mChannel = channel;
         }
     }
 }
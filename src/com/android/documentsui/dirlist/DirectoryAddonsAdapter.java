@@ -25,9 +25,12 @@ import com.android.documentsui.base.EventListener;
 import com.android.documentsui.dirlist.Message.HeaderMessage;
 import com.android.documentsui.dirlist.Message.InflateMessage;
 import com.android.documentsui.Model.Update;
+import com.android.documentsui.selection.SelectionKeys;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Adapter wrapper that embellishes the directory list by inserting Holder views inbetween
  * items.
@@ -160,13 +163,19 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
     }
 
     private void onModelUpdate(Update event) {
+        final boolean hadHeaderMessage = mHeaderMessage.shouldShow();
+        final boolean hadInflateMessage = mInflateMessage.shouldShow();
+
         // make sure the delegate handles the update before we do.
         // This isn't ideal since the delegate might be listening
         // the updates itself. But this is the safe thing to do
         // since we read model ids from the delegate
         // in our update handler.
+        // Any change notifications published by the delegate are relayed by EventRelay, which
+        // keeps mBreakPosition in step with what RecyclerView has been told.
         mDelegate.getModelUpdateListener().accept(event);
 
+        final int relayedBreakPosition = mBreakPosition;
         mBreakPosition = -1;
         mInflateMessage.update(event);
         mHeaderMessage.update(event);
@@ -191,6 +200,36 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
                 break;
             }
         }
+
+        // Without incremental changes the delegate has already published a full data set
+        // change, so there's nothing left to reconcile.
+        if (!event.hasChanges()) {
+            return;
+        }
+
+        if (hadHeaderMessage != mHeaderMessage.shouldShow()
+                || hadInflateMessage != mInflateMessage.shouldShow()) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        if (mHeaderMessage.shouldShow()) {
+            // The message text may have changed.
+            notifyItemChanged(0);
+        }
+
+        // The relayed changes moved the break along with the items around it, but items may
+        // have crossed between the directory and document sections. Put the break where it
+        // belongs now.
+        if (relayedBreakPosition != mBreakPosition) {
+            if (relayedBreakPosition == -1) {
+                notifyItemInserted(mBreakPosition);
+            } else if (mBreakPosition == -1) {
+                notifyItemRemoved(relayedBreakPosition);
+            } else {
+                notifyItemMoved(relayedBreakPosition, mBreakPosition);
+            }
+        }
     }
 
     @Override
@@ -264,6 +303,11 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
         return mDelegate.getModelId(toDelegatePosition(p));
     }
 
+    @Override
+    public @Nullable SelectionKeys getSelectionKeys() {
+        return mDelegate.getSelectionKeys();
+    }
+
     @Override
     public void onItemSelectionChanged(String id) {
         mDelegate.onItemSelectionChanged(id);
@@ -274,41 +318,75 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
     private final class EventRelay extends AdapterDataObserver {
         @Override
         public void onChanged() {
-            throw new UnsupportedOperationException();
+            notifyDataSetChanged();
         }
 
         @Override
         public void onItemRangeChanged(int positionStart, int itemCount) {
-            throw new UnsupportedOperationException();
+            onItemRangeChanged(positionStart, itemCount, null);
         }
 
         @Override
         public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
-            assert(itemCount == 1);
-            notifyItemRangeChanged(toViewPosition(positionStart), itemCount, payload);
+            final int end = positionStart + itemCount;
+            final int split = getBreakSplit(positionStart, end);
+            if (split > positionStart) {
+                notifyItemRangeChanged(
+                        toViewPosition(positionStart), split - positionStart, payload);
+            }
+            if (end > split) {
+                notifyItemRangeChanged(toViewPosition(split), end - split, payload);
+            }
         }
 
         @Override
         public void onItemRangeInserted(int positionStart, int itemCount) {
-            assert(itemCount == 1);
-            if (positionStart < mBreakPosition) {
-                mBreakPosition++;
+            final int viewPosition = toViewPosition(positionStart);
+            if (mBreakPosition != -1 && viewPosition < mBreakPosition) {
+                mBreakPosition += itemCount;
             }
-            notifyItemRangeInserted(toViewPosition(positionStart), itemCount);
+            notifyItemRangeInserted(viewPosition, itemCount);
         }
 
         @Override
         public void onItemRangeRemoved(int positionStart, int itemCount) {
-            assert(itemCount == 1);
-            if (positionStart < mBreakPosition) {
-                mBreakPosition--;
+            // Remove the part following the break first, so positions of the part preceding
+            // it remain valid.
+            final int end = positionStart + itemCount;
+            final int split = getBreakSplit(positionStart, end);
+            if (end > split) {
+                notifyItemRangeRemoved(toViewPosition(split), end - split);
+            }
+            if (split > positionStart) {
+                notifyItemRangeRemoved(toViewPosition(positionStart), split - positionStart);
+                mBreakPosition -= split - positionStart;
             }
-            notifyItemRangeRemoved(toViewPosition(positionStart), itemCount);
         }
 
         @Override
         public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
-            throw new UnsupportedOperationException();
+            assert(itemCount == 1);
+            final int viewFrom = toViewPosition(fromPosition);
+            if (mBreakPosition != -1 && viewFrom < mBreakPosition) {
+                mBreakPosition--;
+            }
+            final int viewTo = toViewPosition(toPosition);
+            if (mBreakPosition != -1 && viewTo < mBreakPosition) {
+                mBreakPosition++;
+            }
+            notifyItemMoved(viewFrom, viewTo);
+        }
+
+        /**
+         * @return The delegate position within [start, end) of the first item that follows
+         *         the break, or end if the range doesn't cross the break.
+         */
+        private int getBreakSplit(int start, int end) {
+            if (mBreakPosition == -1) {
+                return end;
+            }
+            final int firstAfterBreak = mBreakPosition - (mHeaderMessage.shouldShow() ? 1 : 0);
+            return Math.max(start, Math.min(end, firstAfterBreak));
         }
     }
 }
@@ -162,6 +162,7 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
     private @Nullable BandController mBandController;
     private @Nullable DragHoverListener mDragHoverListener;
     private IconHelper mIconHelper;
+    private ThumbnailPrefetcher mPrefetcher;
     private SwipeRefreshLayout mRefreshLayout;
     private RecyclerView mRecView;
 
@@ -187,7 +188,7 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
     private SortModel.UpdateListener mSortListener = (model, updateType) -> {
         // Only when sort order has changed do we need to trigger another loading.
         if ((updateType & SortModel.UPDATE_TYPE_SORTING) != 0) {
-            mActions.loadDocumentsForCurrentStack();
+            mActions.sortDocumentsForCurrentStack();
         }
     };
 
@@ -252,6 +253,9 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         mInjector.actions.unregisterDisplayStateChangedListener(mOnDisplayStateChanged);
 
         // Cancel any outstanding thumbnail requests
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
         final int count = mRecView.getChildCount();
         for (int i = 0; i < count; i++) {
             final View view = mRecView.getChildAt(i);
@@ -291,6 +295,8 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         }
 
         mIconHelper = new IconHelper(mActivity, MODE_GRID);
+        mPrefetcher = new ThumbnailPrefetcher(mIconHelper, this::getDocument);
+        mRecView.addOnScrollListener(mPrefetcher);
 
         mAdapter = new DirectoryAddonsAdapter(
                 mAdapterEnv,
@@ -943,6 +949,14 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         return null;
     }
 
+    /**
+     * Returns the document at an adapter position, or null if the item isn't a document.
+     */
+    private @Nullable DocumentInfo getDocument(int position) {
+        final String modelId = mAdapter.getModelId(position);
+        return modelId != null ? mModel.getDocument(modelId) : null;
+    }
+
     /**
      * Gets the model ID for a given RecyclerView item.
      * @param view A View that is a document item view, or a child of a document item view.
@@ -1077,7 +1091,10 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
 
             updateLayout(mState.derivedMode);
 
-            mAdapter.notifyDataSetChanged();
+            // Adapters publish their own (possibly incremental) change notifications.
+
+            // Items may have moved, so prefetched positions no longer line up with documents.
+            mPrefetcher.cancel();
 
             if (mRestoredSelection != null) {
                 mSelectionMgr.restoreSelection(mRestoredSelection);
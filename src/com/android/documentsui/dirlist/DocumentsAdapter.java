@@ -29,9 +29,12 @@ import com.android.documentsui.Model;
 import com.android.documentsui.base.EventListener;
 import com.android.documentsui.base.Features;
 import com.android.documentsui.base.State;
+import com.android.documentsui.selection.SelectionKeys;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * DocumentsAdapter provides glue between a directory Model, and RecylcerView. We've
  * abstracted this a bit in order to decompose some specialized support
@@ -63,12 +66,28 @@ public abstract class DocumentsAdapter
 
     public abstract int getAdapterPosition(String modelId);
 
+    /**
+     * @return Model IDs of items currently in the adapter, keyed by their positions, or null if
+     *     the adapter isn't backed by a Model.
+     */
+    public @Nullable SelectionKeys getSelectionKeys() {
+        return null;
+    }
+
     /**
      * Triggers item-change notifications by stable ID (as opposed to position).
      * Passing an unrecognized ID will result in a warning in logcat, but no other error.
      */
     public abstract void onItemSelectionChanged(String id);
 
+    /**
+     * Triggers item-change notifications for all items, for when the selection was replaced
+     * as a whole.
+     */
+    public void onSelectionReset() {
+        notifyItemRangeChanged(0, getItemCount(), SELECTION_CHANGED_MARKER);
+    }
+
     /**
      * @return The model ID of the item at the given adapter position.
      */
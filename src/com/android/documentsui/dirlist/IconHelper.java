@@ -25,9 +25,11 @@ import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -44,6 +46,8 @@ import com.android.documentsui.base.MimeTypes;
 import com.android.documentsui.base.State;
 import com.android.documentsui.base.State.ViewMode;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -54,9 +58,16 @@ import java.util.function.Consumer;
 public class IconHelper {
     private static final String TAG = "IconHelper";
 
+    // Limits how many thumbnails can wait in line ahead of the ones being displayed.
+    @VisibleForTesting
+    static final int MAX_PREFETCHES = 48;
+
     private final Context mContext;
     private final ThumbnailCache mThumbnailCache;
 
+    // Prefetches no view was bound for yet, by uri. Only accessed on the main thread.
+    private final Map<Uri, ThumbnailLoader> mPrefetches = new HashMap<>();
+
     // The display mode (MODE_GRID, MODE_LIST, etc).
     private int mMode;
     private Point mCurrentSize;
@@ -88,6 +99,7 @@ public class IconHelper {
      * @param mode See {@link State.MODE_LIST} and {@link State.MODE_GRID}.
      */
     public void setViewMode(@ViewMode int mode) {
+        cancelPrefetches();
         mMode = mode;
         int thumbSize = getThumbSize(mode);
         mCurrentSize = new Point(thumbSize, thumbSize);
@@ -159,11 +171,7 @@ public class IconHelper {
 
         final String docAuthority = uri.getAuthority();
 
-        final boolean supportsThumbnail = (docFlags & Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
-        final boolean allowThumbnail = (mMode == MODE_GRID)
-                || MimeTypes.mimeMatches(MimeTypes.VISUAL_MIMES, mimeType);
-        final boolean showThumbnail = supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
-        if (showThumbnail) {
+        if (shouldShowThumbnail(mimeType, docFlags)) {
             loadedThumbnail =
                 loadThumbnail(uri, docAuthority, docLastModified, iconThumb, iconMime);
         }
@@ -210,10 +218,14 @@ public class IconHelper {
                     }
                 };
 
-                final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
-                    mCurrentSize, docLastModified, callback, true);
-
-                ProviderExecutor.forAuthority(docAuthority).execute(task);
+                final ThumbnailLoader prefetch = takePrefetch(uri, docLastModified);
+                if (prefetch != null) {
+                    prefetch.attach(iconThumb, callback);
+                } else {
+                    final ThumbnailLoader task = new ThumbnailLoader(uri, iconThumb,
+                        mCurrentSize, docLastModified, callback, true);
+                    execute(task, uri, docAuthority, docLastModified);
+                }
             }
 
             return result.isHit();
@@ -222,6 +234,86 @@ public class IconHelper {
         }
     }
 
+    /**
+     * Starts loading the thumbnail of a document which is about to be displayed, so it's cached
+     * by the time the document is bound. If it's bound while still loading, the load is handed
+     * over to its view.
+     *
+     * @return true if a load was started
+     */
+    boolean prefetch(DocumentInfo doc) {
+        if (!shouldShowThumbnail(doc.mimeType, doc.flags)
+                || mPrefetches.containsKey(doc.derivedUri)
+                || !canPrefetch()) {
+            return false;
+        }
+
+        final Result result = mThumbnailCache.getThumbnail(doc.derivedUri, mCurrentSize);
+        try {
+            if (result.isExactHit() && doc.lastModified <= result.getLastModified()) {
+                return false;
+            }
+        } finally {
+            result.recycle();
+        }
+
+        final ThumbnailLoader task = new ThumbnailLoader(
+                mContext, doc.derivedUri, mCurrentSize, doc.lastModified);
+        mPrefetches.put(doc.derivedUri, task);
+        execute(task, doc.derivedUri, doc.authority, doc.lastModified);
+        return true;
+    }
+
+    /**
+     * @return false if too many prefetches are in flight for {@link #prefetch} to start another
+     */
+    boolean canPrefetch() {
+        if (mPrefetches.size() >= MAX_PREFETCHES) {
+            mPrefetches.values().removeIf(
+                    task -> task.getStatus() == AsyncTask.Status.FINISHED);
+        }
+        return mPrefetches.size() < MAX_PREFETCHES;
+    }
+
+    /**
+     * Preempts prefetches which no view was bound for yet.
+     */
+    void cancelPrefetches() {
+        for (ThumbnailLoader task : mPrefetches.values()) {
+            task.preempt();
+        }
+        mPrefetches.clear();
+    }
+
+    private @Nullable ThumbnailLoader takePrefetch(Uri uri, long lastModified) {
+        final ThumbnailLoader task = mPrefetches.remove(uri);
+        if (task == null || task.isCancelled()
+                || task.getStatus() == AsyncTask.Status.FINISHED) {
+            return null;
+        }
+        if (task.getLastModified() != lastModified) {
+            task.preempt();
+            return null;
+        }
+        return task;
+    }
+
+    private void execute(ThumbnailLoader task, Uri uri, String authority, long lastModified) {
+        if (mThumbnailCache.hasDiskThumbnail(uri, mCurrentSize, lastModified)) {
+            // Decoding from disk needn't wait in line behind (or for) the provider.
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            ProviderExecutor.forAuthority(authority).execute(task);
+        }
+    }
+
+    private boolean shouldShowThumbnail(String mimeType, int docFlags) {
+        final boolean supportsThumbnail = (docFlags & Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
+        final boolean allowThumbnail = (mMode == MODE_GRID)
+                || MimeTypes.mimeMatches(MimeTypes.VISUAL_MIMES, mimeType);
+        return supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
+    }
+
     private void setMimeIcon(ImageView view, Drawable icon) {
         view.setImageDrawable(icon);
         view.setAlpha(1f);
@@ -31,10 +31,13 @@ import com.android.documentsui.base.EventListener;
 import com.android.documentsui.base.Lookup;
 import com.android.documentsui.base.State;
 import com.android.documentsui.Model.Update;
+import com.android.documentsui.selection.SelectionKeys;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Adapts from dirlist.Model to something RecyclerView understands.
  */
@@ -42,6 +45,10 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
 
     private static final String TAG = "ModelBackedDocuments";
 
+    // Distance from the last loaded item at which more items of a partially loaded directory
+    // are requested, so they usually arrive before the user scrolls to the end.
+    private static final int LOAD_MORE_DISTANCE = 100;
+
     // Provides access to information needed when creating and view holders. This
     // isn't an ideal pattern (more transitive dependency stuff) but good enough for now.
     private final Environment mEnv;
@@ -53,6 +60,8 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
      * the UI, and where.
      */
     private List<String> mModelIds = new ArrayList<>();
+    // The same IDs, indexed by position. Null while there's no valid model.
+    private @Nullable SelectionKeys mSelectionKeys;
     private EventListener<Model.Update> mModelUpdateListener;
 
     public ModelBackedDocumentsAdapter(
@@ -67,7 +76,7 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
                 if (event.hasException()) {
                     onModelUpdateFailed(event.getException());
                 } else {
-                    onModelUpdate(mEnv.getModel());
+                    onModelUpdate(mEnv.getModel(), event);
                 }
             }
         };
@@ -135,6 +144,10 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
         holder.setSelected(mEnv.isSelected(modelId), false);
 
         mEnv.onBindDocumentHolder(holder, cursor);
+
+        if (position >= mModelIds.size() - LOAD_MORE_DISTANCE) {
+            mEnv.getModel().loadMore();
+        }
     }
 
     @Override
@@ -142,17 +155,27 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
         return mModelIds.size();
     }
 
-    private void onModelUpdate(Model model) {
+    private void onModelUpdate(Model model, Update event) {
         String[] modelIds = model.getModelIds();
         mModelIds = new ArrayList<>(modelIds.length);
         for (String id : modelIds) {
             mModelIds.add(id);
         }
+        mSelectionKeys = model.getSelectionKeys();
+
+        // Only rebind what actually changed, so live refreshes keep cached views and animations.
+        if (event.hasChanges()) {
+            event.getChanges().dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
     }
 
     private void onModelUpdateFailed(Exception e) {
         Log.w(TAG, "Model update failed.", e);
         mModelIds.clear();
+        mSelectionKeys = null;
+        notifyDataSetChanged();
     }
 
     @Override
@@ -162,7 +185,14 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
 
     @Override
     public int getAdapterPosition(String modelId) {
-        return mModelIds.indexOf(modelId);
+        return mSelectionKeys != null
+                ? mSelectionKeys.indexOf(modelId)
+                : mModelIds.indexOf(modelId);
+    }
+
+    @Override
+    public @Nullable SelectionKeys getSelectionKeys() {
+        return mSelectionKeys;
     }
 
     @Override
@@ -192,7 +222,7 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
 
     @Override
     public void onItemSelectionChanged(String id) {
-        int position = mModelIds.indexOf(id);
+        int position = getAdapterPosition(id);
 
         if (position >= 0) {
             notifyItemChanged(position, SELECTION_CHANGED_MARKER);
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.dirlist;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.android.documentsui.base.DocumentInfo;
+
+import java.util.function.IntFunction;
+
+/**
+ * Prefetches thumbnails of documents ahead of the scroll position, so they're in the cache by
+ * the time they're bound, rather than popping in late during flings.
+ *
+ * <p>The faster the list scrolls, the more screens ahead are prefetched. Prefetches are
+ * preempted when the scroll direction changes, and when {@link #cancel()} is called.
+ */
+final class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+
+    private static final int MAX_SCREENS_AHEAD = 3;
+
+    // Prefetches as far as the list is going to scroll within this time at the current speed.
+    private static final long LOOKAHEAD_MS = 500;
+
+    private final IconHelper mIconHelper;
+    private final IntFunction<DocumentInfo> mDocuments;
+
+    private long mLastScrollTime;
+    // 1 when scrolling down, -1 when scrolling up, 0 when not known yet.
+    private int mDirection;
+    // The next adapter position to prefetch in the current direction, unless it's visible.
+    private int mNextPosition;
+
+    /**
+     * @param documents returns the document at an adapter position, or null if the item
+     *     isn't a document
+     */
+    ThumbnailPrefetcher(IconHelper iconHelper, IntFunction<DocumentInfo> documents) {
+        mIconHelper = iconHelper;
+        mDocuments = documents;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView view, int dx, int dy) {
+        if (dy == 0 || !(view.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = Math.max(now - mLastScrollTime, 1);
+        mLastScrollTime = now;
+
+        final LinearLayoutManager layout = (LinearLayoutManager) view.getLayoutManager();
+        final int first = layout.findFirstVisibleItemPosition();
+        final int last = layout.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION
+                || view.getHeight() == 0) {
+            return;
+        }
+
+        // While flinging, the distance scrolled between frames follows the fling velocity.
+        final float pixelsPerMs = Math.abs(dy) / (float) elapsed;
+        final int screens = Math.min(
+                1 + (int) (pixelsPerMs * LOOKAHEAD_MS / view.getHeight()), MAX_SCREENS_AHEAD);
+        prefetchAhead(dy > 0 ? 1 : -1, first, last, screens, view.getAdapter().getItemCount());
+    }
+
+    /**
+     * Prefetches up to {@code screens} screens of items past the visible ones, from where the
+     * previous call left off, unless {@link #cancel()} was called since. Stops at the first item the icon helper has no room for, so it's
+     * tried again on the next scroll.
+     */
+    @VisibleForTesting
+    void prefetchAhead(int direction, int first, int last, int screens, int itemCount) {
+        if (direction != mDirection) {
+            cancel();
+            mDirection = direction;
+            mNextPosition = direction > 0 ? 0 : Integer.MAX_VALUE;
+        }
+
+        final int ahead = (last - first + 1) * screens;
+
+        if (direction > 0) {
+            final int end = Math.min(last + ahead, itemCount - 1);
+            int position = Math.max(mNextPosition, last + 1);
+            for (; position <= end && mIconHelper.canPrefetch(); position++) {
+                prefetch(position);
+            }
+            mNextPosition = position;
+        } else {
+            final int end = Math.max(first - ahead, 0);
+            int position = Math.min(mNextPosition, first - 1);
+            for (; position >= end && mIconHelper.canPrefetch(); position--) {
+                prefetch(position);
+            }
+            mNextPosition = position;
+        }
+    }
+
+    /**
+     * Preempts all prefetches and starts over from the visible items, e.g. when the listing
+     * goes away, or its items move because they're loaded, refreshed or sorted again.
+     */
+    void cancel() {
+        mIconHelper.cancelPrefetches();
+        mDirection = 0;
+        mNextPosition = 0;
+    }
+
+    private void prefetch(int position) {
+        final DocumentInfo doc = mDocuments.apply(position);
+        if (doc != null) {
+            mIconHelper.prefetch(doc);
+        }
+    }
+}
@@ -101,6 +101,7 @@ public class FilesActivity extends BaseActivity implements ActionHandler.Addons
                 DialogController.create(features, this, messages),
                 DocumentsApplication.getFileTypeLookup(this),
                 new ShortcutsUpdater(this, prefs)::update);
+        mInjector.listingSnapshots = DocumentsApplication.getListingSnapshots(this);
 
         super.onCreate(icicle);
 
@@ -56,12 +56,15 @@ import libcore.io.IoUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -80,8 +83,15 @@ public class ProvidersCache implements ProvidersAccess {
         add(ArchivesProvider.AUTHORITY);
     }};
 
+    // Authorities are loaded concurrently, so a slow provider doesn't hold back the others.
+    private static final int MAX_CONCURRENT_AUTHORITIES = 4;
+    // How long an update waits for roots of an authority. Roots arriving later are still
+    // published, followed by a broadcast.
+    private static final long AUTHORITY_TIMEOUT_MS = 5000;
+
     private final Context mContext;
     private final ContentObserver mObserver;
+    private final ThreadPoolExecutor mExecutor;
 
     private final RootInfo mRecentsRoot;
 
@@ -97,6 +107,12 @@ public class ProvidersCache implements ProvidersAccess {
     private Multimap<String, RootInfo> mRoots = ArrayListMultimap.create();
     @GuardedBy("mLock")
     private HashSet<String> mStoppedAuthorities = new HashSet<>();
+    // Only the most recent update publishes roots.
+    @GuardedBy("mLock")
+    private int mUpdateGeneration;
+    // Authorities being loaded by the most recent update, mapped to their completion.
+    @GuardedBy("mLock")
+    private final Map<String, CountDownLatch> mPendingAuthorities = new HashMap<>();
 
     @GuardedBy("mObservedAuthoritiesDetails")
     private final Map<String, PackageDetails> mObservedAuthoritiesDetails = new HashMap<>();
@@ -104,6 +120,10 @@ public class ProvidersCache implements ProvidersAccess {
     public ProvidersCache(Context context) {
         mContext = context;
         mObserver = new RootsChangedObserver();
+        mExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_AUTHORITIES, MAX_CONCURRENT_AUTHORITIES,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mExecutor.allowCoreThreadTimeOut(true);
 
         // Create a new anonymous "Recents" RootInfo. It's a faker.
         mRecentsRoot = new RootInfo() {{
@@ -202,6 +222,28 @@ public class ProvidersCache implements ProvidersAccess {
         return success;
     }
 
+    /**
+     * Block until roots of the authority have been loaded by the running update, if any.
+     * Updates only wait for system providers before they complete the first load.
+     */
+    private void waitForAuthority(String authority) {
+        final CountDownLatch latch;
+        synchronized (mLock) {
+            latch = mPendingAuthorities.get(authority);
+        }
+        if (latch == null) {
+            return;
+        }
+        boolean success = false;
+        try {
+            success = latch.await(AUTHORITY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        if (!success) {
+            Log.w(TAG, "Timeout waiting for roots of " + authority);
+        }
+    }
+
     /**
      * Load roots from authorities that are in stopped state. Normal
      * {@link UpdateTask} passes ignore stopped applications.
@@ -328,6 +370,7 @@ public class ProvidersCache implements ProvidersAccess {
 
     public RootInfo getRootBlocking(String authority, String rootId) {
         waitForFirstLoad();
+        waitForAuthority(authority);
         loadStoppedAuthorities();
         synchronized (mLock) {
             return getRootLocked(authority, rootId);
@@ -357,7 +400,8 @@ public class ProvidersCache implements ProvidersAccess {
         waitForFirstLoad();
         loadStoppedAuthorities();
         synchronized (mLock) {
-            return mRoots.values();
+            // Roots are published incrementally, so hand out a copy rather than a live view.
+            return new ArrayList<>(mRoots.values());
         }
     }
 
@@ -373,10 +417,12 @@ public class ProvidersCache implements ProvidersAccess {
     @Override
     public Collection<RootInfo> getRootsForAuthorityBlocking(String authority) {
         waitForFirstLoad();
+        waitForAuthority(authority);
         loadStoppedAuthority(authority);
         synchronized (mLock) {
             final Collection<RootInfo> roots = mRoots.get(authority);
-            return roots != null ? roots : Collections.<RootInfo>emptyList();
+            return roots != null
+                    ? new ArrayList<>(roots) : Collections.<RootInfo>emptyList();
         }
     }
 
@@ -411,12 +457,17 @@ public class ProvidersCache implements ProvidersAccess {
         Log.i(TAG, output.toString());
     }
 
+    private void sendRootsChangedBroadcast() {
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(BROADCAST_ACTION));
+    }
+
     private class UpdateTask extends AsyncTask<Void, Void, Void> {
         private final boolean mForceRefreshAll;
         private final String mForceRefreshPackage;
 
-        private final Multimap<String, RootInfo> mTaskRoots = ArrayListMultimap.create();
+        private final HashSet<String> mTaskAuthorities = new HashSet<>();
         private final HashSet<String> mTaskStoppedAuthorities = new HashSet<>();
+        private final List<AuthorityLoad> mLoads = new ArrayList<>();
 
         /**
          * Create task to update roots cache.
@@ -435,7 +486,7 @@ public class ProvidersCache implements ProvidersAccess {
         protected Void doInBackground(Void... params) {
             final long start = SystemClock.elapsedRealtime();
 
-            mTaskRoots.put(mRecentsRoot.authority, mRecentsRoot);
+            mTaskAuthorities.add(mRecentsRoot.authority);
 
             final PackageManager pm = mContext.getPackageManager();
 
@@ -445,21 +496,58 @@ public class ProvidersCache implements ProvidersAccess {
             for (ResolveInfo info : providers) {
                 handleDocumentsProvider(info.providerInfo);
             }
+            // The first load waits for system providers only, so they go first in the queue.
+            mLoads.sort(Comparator.comparing(load -> !Providers.isSystemProvider(load.mAuthority)));
+
+            final int generation;
+            synchronized (mLock) {
+                generation = ++mUpdateGeneration;
+                // Forget providers which are gone, or were stopped since the last update.
+                mRoots.keySet().retainAll(mTaskAuthorities);
+                mRoots.replaceValues(mRecentsRoot.authority, Collections.singleton(mRecentsRoot));
+                mStoppedAuthorities = mTaskStoppedAuthorities;
+                mPendingAuthorities.clear();
+                for (AuthorityLoad load : mLoads) {
+                    mPendingAuthorities.put(load.mAuthority, load.mDone);
+                }
+            }
+            for (AuthorityLoad load : mLoads) {
+                load.mGeneration = generation;
+                mExecutor.execute(load);
+            }
+
+            // System providers back the default root and most of the sidebar, so only they
+            // hold back the first load. Others are published as they arrive.
+            for (AuthorityLoad load : mLoads) {
+                if (Providers.isSystemProvider(load.mAuthority)) {
+                    load.await();
+                }
+            }
 
-            final long delta = SystemClock.elapsedRealtime() - start;
-            if (VERBOSE) Log.v(TAG,
-                    "Update found " + mTaskRoots.size() + " roots in " + delta + "ms");
             synchronized (mLock) {
                 mFirstLoadDone = true;
                 if (mBootCompletedResult != null) {
                     mBootCompletedResult.finish();
                     mBootCompletedResult = null;
                 }
-                mRoots = mTaskRoots;
-                mStoppedAuthorities = mTaskStoppedAuthorities;
             }
             mFirstLoad.countDown();
-            LocalBroadcastManager.getInstance(mContext).sendBroadcast(new Intent(BROADCAST_ACTION));
+            sendRootsChangedBroadcast();
+
+            boolean pending = false;
+            for (AuthorityLoad load : mLoads) {
+                if (!Providers.isSystemProvider(load.mAuthority)) {
+                    load.await();
+                    pending = true;
+                }
+            }
+            if (pending) {
+                sendRootsChangedBroadcast();
+            }
+
+            final long delta = SystemClock.elapsedRealtime() - start;
+            if (VERBOSE) Log.v(TAG,
+                    "Update loaded " + mLoads.size() + " authorities in " + delta + "ms");
             return null;
         }
 
@@ -474,10 +562,87 @@ public class ProvidersCache implements ProvidersAccess {
 
             final boolean forceRefresh = mForceRefreshAll
                     || Objects.equals(info.packageName, mForceRefreshPackage);
-            mTaskRoots.putAll(info.authority, loadRootsForAuthority(mContext.getContentResolver(),
-                    info.authority, forceRefresh));
+            mTaskAuthorities.add(info.authority);
+            mLoads.add(new AuthorityLoad(info.authority, forceRefresh));
         }
+    }
 
+    /**
+     * Loads roots of a single authority, and publishes them unless a newer update started.
+     */
+    private class AuthorityLoad implements Runnable {
+        private final String mAuthority;
+        private final boolean mForceRefresh;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private volatile int mGeneration;
+        private volatile long mStartTime = -1;
+        // Set once the update stopped waiting, so the roots have to be announced separately.
+        @GuardedBy("this")
+        private boolean mAbandoned;
+
+        AuthorityLoad(String authority, boolean forceRefresh) {
+            mAuthority = authority;
+            mForceRefresh = forceRefresh;
+        }
+
+        @Override
+        public void run() {
+            mStartTime = SystemClock.elapsedRealtime();
+            final Collection<RootInfo> roots = loadRootsForAuthority(
+                    mContext.getContentResolver(), mAuthority, mForceRefresh);
+
+            final boolean published;
+            synchronized (mLock) {
+                published = mGeneration == mUpdateGeneration;
+                if (published) {
+                    mRoots.replaceValues(mAuthority, roots);
+                    mPendingAuthorities.remove(mAuthority, mDone);
+                }
+            }
+            final boolean late;
+            synchronized (this) {
+                mDone.countDown();
+                late = mAbandoned;
+            }
+            if (published && late) {
+                sendRootsChangedBroadcast();
+            }
+        }
+
+        /**
+         * Waits until the roots are loaded, or the authority took too long since it started
+         * loading.
+         */
+        void await() {
+            try {
+                while (true) {
+                    final long startTime = mStartTime;
+                    if (startTime == -1) {
+                        // Still queued behind other authorities.
+                        if (mDone.await(AUTHORITY_TIMEOUT_MS / 10, TimeUnit.MILLISECONDS)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    final long remaining =
+                            startTime + AUTHORITY_TIMEOUT_MS - SystemClock.elapsedRealtime();
+                    if (remaining > 0 && mDone.await(remaining, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                    break;
+                }
+            } catch (InterruptedException e) {
+            }
+
+            synchronized (this) {
+                if (mDone.getCount() == 0) {
+                    return;
+                }
+                mAbandoned = true;
+            }
+            Log.w(TAG, "Timeout loading roots of " + mAuthority + ". Continuing without them.");
+        }
     }
 
     private static class PackageDetails {
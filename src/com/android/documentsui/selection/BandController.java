@@ -46,7 +46,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.function.IntPredicate;
 
@@ -346,10 +345,8 @@ public class BandController extends OnScrollListener {
     }
 
     private void onSelectionChanged(Set<String> updatedSelection) {
-        Map<String, Boolean> delta = mSelection.setProvisionalSelection(updatedSelection);
-        for (Map.Entry<String, Boolean> entry: delta.entrySet()) {
-            mSelectionManager.notifyItemStateChanged(entry.getKey(), entry.getValue());
-        }
+        mSelection.setProvisionalSelection(
+                updatedSelection, mSelectionManager::notifyItemStateChanged);
         mSelectionManager.notifySelectionChanged();
     }
 
@@ -20,12 +20,15 @@ import android.os.Parcelable;
 import android.support.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import javax.annotation.Nullable;
 
@@ -46,8 +49,23 @@ public final class Selection implements Iterable<String>, Parcelable {
     // item A is tapped (and selected), then an in-progress band select covers A then uncovers
     // A, A should still be selected as it has been saved. To ensure this behavior, the saved
     // selection must be tracked separately.
-    final Set<String> mSelection;
-    final Set<String> mProvisionalSelection;
+    //
+    // Once keyed to the Model IDs of a directory, items are tracked by their positions among
+    // the keys, a bit each. Selecting all items stores the saved selection inverted, as the
+    // positions of the items left out. Model IDs are only looked up when the selection is
+    // iterated, e.g. when it's parceled or its documents are clipped. Items that aren't among
+    // the keys, e.g. restored before the directory is loaded, are tracked by their IDs.
+    private final Set<String> mSelection;
+    private final Set<String> mProvisionalSelection;
+
+    private @Nullable SelectionKeys mKeys;
+    // Positions of saved items, or of the items that aren't saved if mInverted.
+    private BitSet mPositions = new BitSet();
+    private boolean mInverted;
+    // Positions of provisionally selected items. Never includes saved items.
+    private BitSet mProvisionalPositions = new BitSet();
+    // Swapped with mProvisionalPositions, so moving the band doesn't allocate.
+    private BitSet mSparePositions = new BitSet();
 
     public Selection() {
         mSelection = new HashSet<>();
@@ -67,7 +85,7 @@ public final class Selection implements Iterable<String>, Parcelable {
      * @return true if the position is currently selected.
      */
     public boolean contains(@Nullable String id) {
-        return mSelection.contains(id) || mProvisionalSelection.contains(id);
+        return id != null && (isSaved(id) || isProvisional(id));
     }
 
     /**
@@ -78,70 +96,183 @@ public final class Selection implements Iterable<String>, Parcelable {
      */
     @Override
     public Iterator<String> iterator() {
-        return mSelection.iterator();
+        return new IdIterator(mPositions, mInverted, mSelection);
     }
 
     /**
      * @return size of the selection including both final and provisional selected items.
      */
     public int size() {
-        return mSelection.size() + mProvisionalSelection.size();
+        return savedCount() + provisionalCount();
     }
 
     /**
      * @return true if the selection is empty.
      */
     public boolean isEmpty() {
-        return mSelection.isEmpty() && mProvisionalSelection.isEmpty();
+        return size() == 0;
+    }
+
+    /**
+     * Keys this selection to the given Model IDs. Selected items are remapped to their
+     * positions among the keys, and dropped if they aren't there. The provisional selection is
+     * abandoned.
+     */
+    void rebind(SelectionKeys keys) {
+        cancelProvisionalSelection();
+
+        if (keys != mKeys) {
+            final BitSet selected = new BitSet(keys.size());
+            if (mKeys != null && mInverted) {
+                for (int pos = 0; pos < keys.size(); pos++) {
+                    final String id = keys.get(pos);
+                    final int previous = id != null ? mKeys.indexOf(id) : -1;
+                    if (previous != -1 && !mPositions.get(previous)) {
+                        selected.set(pos);
+                    }
+                }
+                // Items showing up only now weren't selected, so they stay left out.
+                selected.flip(0, keys.size());
+            } else if (mKeys != null) {
+                for (int previous = mPositions.nextSetBit(0); previous >= 0;
+                        previous = mPositions.nextSetBit(previous + 1)) {
+                    final int pos = keys.indexOf(mKeys.get(previous));
+                    if (pos != -1) {
+                        selected.set(pos);
+                    }
+                }
+            }
+            mKeys = keys;
+            mPositions = selected;
+
+            for (String id : mSelection) {
+                final int pos = keys.indexOf(id);
+                if (pos != -1) {
+                    setSavedAt(pos, true);
+                }
+            }
+        }
+
+        // Anything left wasn't found among the keys.
+        mSelection.clear();
+    }
+
+    boolean isKeyedTo(SelectionKeys keys) {
+        return mKeys == keys;
+    }
+
+    /**
+     * Selects all items among the keys that {@code canSelect} accepts, on top of the items that
+     * are selected already. Stores the saved selection inverted, so nothing is allocated per
+     * selected item.
+     *
+     * @return true if any item got selected.
+     */
+    boolean selectAll(Predicate<String> canSelect) {
+        assert(mKeys != null);
+
+        final int count = mKeys.size();
+        final BitSet excluded = new BitSet(count);
+        boolean changed = false;
+        for (int pos = 0; pos < count; pos++) {
+            if (isSavedAt(pos)) {
+                continue;
+            }
+            final String id = mKeys.get(pos);
+            if (id != null && canSelect.test(id)) {
+                changed = true;
+            } else {
+                excluded.set(pos);
+            }
+        }
+
+        mPositions = excluded;
+        mInverted = true;
+        mProvisionalPositions.and(excluded);
+        return changed;
     }
 
     /**
      * Sets the provisional selection, which is a temporary selection that can be saved,
      * canceled, or adjusted at a later time. When a new provision selection is applied, the old
      * one (if it exists) is abandoned.
-     * @return Map of ids added or removed. Added ids have a value of true, removed are false.
      */
     @VisibleForTesting
-    protected Map<String, Boolean> setProvisionalSelection(Set<String> newSelection) {
-        Map<String, Boolean> delta = new HashMap<>();
-
-        for (String id: mProvisionalSelection) {
-            // Mark each item that used to be in the selection but is unsaved and not in the new
-            // provisional selection.
-            if (!newSelection.contains(id) && !mSelection.contains(id)) {
-                delta.put(id, false);
+    protected void setProvisionalSelection(Set<String> newSelection) {
+        setProvisionalSelection(newSelection, (id, selected) -> {});
+    }
+
+    /**
+     * Same as {@link #setProvisionalSelection(Set)}, and reports every item that got added to
+     * or removed from the provisional selection to {@code onChanged}. Saved items are never
+     * reported, as they stay selected either way.
+     */
+    void setProvisionalSelection(
+            Set<String> newSelection, BiConsumer<String, Boolean> onChanged) {
+        for (Iterator<String> iter = mProvisionalSelection.iterator(); iter.hasNext(); ) {
+            final String id = iter.next();
+            if (!newSelection.contains(id)) {
+                iter.remove();
+                onChanged.accept(id, false);
             }
         }
 
-        for (String id: mSelection) {
-            // Mark each item that used to be in the selection but is unsaved and not in the new
-            // provisional selection.
-            if (!newSelection.contains(id)) {
-                delta.put(id, false);
+        final BitSet previous = mProvisionalPositions;
+        final BitSet next = mSparePositions;
+        next.clear();
+        for (String id : newSelection) {
+            final int pos = positionOf(id);
+            if (pos != -1) {
+                if (!isSavedAt(pos)) {
+                    next.set(pos);
+                }
+            } else if (!mSelection.contains(id) && mProvisionalSelection.add(id)) {
+                onChanged.accept(id, true);
             }
         }
+        mProvisionalPositions = next;
+        mSparePositions = previous;
 
-        for (String id: newSelection) {
-            // Mark each item that was not previously in the selection but is in the new
-            // provisional selection.
-            if (!mSelection.contains(id) && !mProvisionalSelection.contains(id)) {
-                delta.put(id, true);
+        for (int pos = previous.nextSetBit(0); pos >= 0; pos = previous.nextSetBit(pos + 1)) {
+            if (!next.get(pos)) {
+                onChanged.accept(mKeys.get(pos), false);
+            }
+        }
+        for (int pos = next.nextSetBit(0); pos >= 0; pos = next.nextSetBit(pos + 1)) {
+            if (!previous.get(pos)) {
+                onChanged.accept(mKeys.get(pos), true);
             }
         }
+    }
 
-        // Now, iterate through the changes and actually add/remove them to/from the current
-        // selection. This could not be done in the previous loops because changing the size of
-        // the selection mid-iteration changes iteration order erroneously.
-        for (Map.Entry<String, Boolean> entry: delta.entrySet()) {
-            String id = entry.getKey();
-            if (entry.getValue()) {
-                mProvisionalSelection.add(id);
-            } else {
-                mProvisionalSelection.remove(id);
+    /**
+     * Adds the item to the provisional selection, unless it's selected already.
+     *
+     * @return true if the item wasn't selected before.
+     */
+    boolean addProvisionally(String id) {
+        final int pos = positionOf(id);
+        if (pos != -1) {
+            if (isSavedAt(pos) || mProvisionalPositions.get(pos)) {
+                return false;
             }
+            mProvisionalPositions.set(pos);
+            return true;
         }
+        return !mSelection.contains(id) && mProvisionalSelection.add(id);
+    }
 
-        return delta;
+    /**
+     * @return true if the item was in the provisional selection.
+     */
+    boolean removeProvisionally(String id) {
+        final int pos = positionOf(id);
+        if (pos != -1) {
+            final boolean removed = mProvisionalPositions.get(pos);
+            mProvisionalPositions.clear(pos);
+            return removed;
+        }
+        return mProvisionalSelection.remove(id);
     }
 
     /**
@@ -151,6 +282,13 @@ public final class Selection implements Iterable<String>, Parcelable {
      */
     @VisibleForTesting
     protected void applyProvisionalSelection() {
+        if (mInverted) {
+            mPositions.andNot(mProvisionalPositions);
+        } else {
+            mPositions.or(mProvisionalPositions);
+        }
+        mProvisionalPositions.clear();
+
         mSelection.addAll(mProvisionalSelection);
         mProvisionalSelection.clear();
     }
@@ -161,31 +299,54 @@ public final class Selection implements Iterable<String>, Parcelable {
      */
     @VisibleForTesting
     void cancelProvisionalSelection() {
+        mProvisionalPositions.clear();
         mProvisionalSelection.clear();
     }
 
+    /**
+     * Same as {@link #cancelProvisionalSelection()}, and reports every item that got deselected
+     * to {@code onDeselected}.
+     */
+    void cancelProvisionalSelection(Consumer<String> onDeselected) {
+        for (Iterator<String> iter = provisionalIterator(); iter.hasNext(); ) {
+            onDeselected.accept(iter.next());
+        }
+        cancelProvisionalSelection();
+    }
+
     /** @hide */
     @VisibleForTesting
     public boolean add(String id) {
-        if (!mSelection.contains(id)) {
-            mSelection.add(id);
+        final int pos = positionOf(id);
+        if (pos != -1) {
+            if (isSavedAt(pos)) {
+                return false;
+            }
+            setSavedAt(pos, true);
+            mProvisionalPositions.clear(pos);
             return true;
         }
-        return false;
+        return mSelection.add(id);
     }
 
     /** @hide */
     @VisibleForTesting
     boolean remove(String id) {
-        if (mSelection.contains(id)) {
-            mSelection.remove(id);
+        final int pos = positionOf(id);
+        if (pos != -1) {
+            if (!isSavedAt(pos)) {
+                return false;
+            }
+            setSavedAt(pos, false);
             return true;
         }
-        return false;
+        return mSelection.remove(id);
     }
 
     public void clear() {
         mSelection.clear();
+        mPositions.clear();
+        mInverted = false;
     }
 
     /**
@@ -194,6 +355,17 @@ public final class Selection implements Iterable<String>, Parcelable {
     public void intersect(Collection<String> ids) {
         mSelection.retainAll(ids);
         mProvisionalSelection.retainAll(ids);
+
+        if (mKeys == null) {
+            return;
+        }
+        for (int pos = 0; pos < mKeys.size(); pos++) {
+            if ((isSavedAt(pos) || mProvisionalPositions.get(pos))
+                    && !ids.contains(mKeys.get(pos))) {
+                setSavedAt(pos, false);
+                mProvisionalPositions.clear(pos);
+            }
+        }
     }
 
     @VisibleForTesting
@@ -203,6 +375,50 @@ public final class Selection implements Iterable<String>, Parcelable {
 
         mProvisionalSelection.clear();
         mProvisionalSelection.addAll(source.mProvisionalSelection);
+
+        mKeys = source.mKeys;
+        mPositions = (BitSet) source.mPositions.clone();
+        mInverted = source.mInverted;
+        mProvisionalPositions = (BitSet) source.mProvisionalPositions.clone();
+    }
+
+    private int positionOf(String id) {
+        return mKeys != null ? mKeys.indexOf(id) : -1;
+    }
+
+    private boolean isSavedAt(int pos) {
+        return mPositions.get(pos) != mInverted;
+    }
+
+    private void setSavedAt(int pos, boolean saved) {
+        mPositions.set(pos, saved != mInverted);
+    }
+
+    private boolean isSaved(String id) {
+        final int pos = positionOf(id);
+        return pos != -1 ? isSavedAt(pos) : mSelection.contains(id);
+    }
+
+    private boolean isProvisional(String id) {
+        final int pos = positionOf(id);
+        return pos != -1 ? mProvisionalPositions.get(pos) : mProvisionalSelection.contains(id);
+    }
+
+    private int savedCount() {
+        int count = mSelection.size();
+        if (mKeys != null) {
+            final int positions = mPositions.cardinality();
+            count += mInverted ? mKeys.size() - positions : positions;
+        }
+        return count;
+    }
+
+    private int provisionalCount() {
+        return mProvisionalPositions.cardinality() + mProvisionalSelection.size();
+    }
+
+    private Iterator<String> provisionalIterator() {
+        return new IdIterator(mProvisionalPositions, false, mProvisionalSelection);
     }
 
     @Override
@@ -213,17 +429,41 @@ public final class Selection implements Iterable<String>, Parcelable {
 
         StringBuilder buffer = new StringBuilder(size() * 28);
         buffer.append("Selection{")
-            .append("applied{size=" + mSelection.size())
-            .append(", entries=" + mSelection)
-            .append("}, provisional{size=" + mProvisionalSelection.size())
-            .append(", entries=" + mProvisionalSelection)
-            .append("}}");
+            .append("applied{size=" + savedCount())
+            .append(", inverted=" + mInverted)
+            .append(", entries=");
+        appendIds(buffer, iterator());
+        buffer.append("}, provisional{size=" + provisionalCount())
+            .append(", entries=");
+        appendIds(buffer, provisionalIterator());
+        buffer.append("}}");
         return buffer.toString();
     }
 
+    private static void appendIds(StringBuilder buffer, Iterator<String> ids) {
+        buffer.append('[');
+        while (ids.hasNext()) {
+            buffer.append(ids.next());
+            if (ids.hasNext()) {
+                buffer.append(", ");
+            }
+        }
+        buffer.append(']');
+    }
+
     @Override
     public int hashCode() {
-        return mSelection.hashCode() ^ mProvisionalSelection.hashCode();
+        // Same as combining hash codes of the sets of IDs.
+        return hashOf(iterator()) ^ hashOf(provisionalIterator());
+    }
+
+    private static int hashOf(Iterator<String> ids) {
+        int hash = 0;
+        while (ids.hasNext()) {
+            final String id = ids.next();
+            hash += id != null ? id.hashCode() : 0;
+        }
+        return hash;
     }
 
     @Override
@@ -236,8 +476,29 @@ public final class Selection implements Iterable<String>, Parcelable {
           return false;
       }
 
-      return mSelection.equals(((Selection) that).mSelection) &&
-              mProvisionalSelection.equals(((Selection) that).mProvisionalSelection);
+      final Selection other = (Selection) that;
+      if (mKeys == other.mKeys && mInverted == other.mInverted) {
+          return mPositions.equals(other.mPositions)
+                  && mProvisionalPositions.equals(other.mProvisionalPositions)
+                  && mSelection.equals(other.mSelection)
+                  && mProvisionalSelection.equals(other.mProvisionalSelection);
+      }
+
+      if (savedCount() != other.savedCount()
+              || provisionalCount() != other.provisionalCount()) {
+          return false;
+      }
+      for (Iterator<String> iter = iterator(); iter.hasNext(); ) {
+          if (!other.isSaved(iter.next())) {
+              return false;
+          }
+      }
+      for (Iterator<String> iter = provisionalIterator(); iter.hasNext(); ) {
+          if (!other.isProvisional(iter.next())) {
+              return false;
+          }
+      }
+      return true;
     }
 
     @Override
@@ -247,11 +508,59 @@ public final class Selection implements Iterable<String>, Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeStringList(new ArrayList<>(mSelection));
+        final ArrayList<String> ids = new ArrayList<>(savedCount());
+        for (String id : this) {
+            ids.add(id);
+        }
+        dest.writeStringList(ids);
         // We don't include provisional selection since it is
         // typically coupled to some other runtime state (like a band).
     }
 
+    /**
+     * Iterates over Model IDs at the given positions among the keys, then over the given IDs
+     * that aren't keyed.
+     */
+    private final class IdIterator implements Iterator<String> {
+        private final BitSet mBits;
+        private final boolean mClearBits;
+        private final Iterator<String> mUnkeyed;
+        private int mNext;
+
+        private IdIterator(BitSet bits, boolean clearBits, Set<String> unkeyed) {
+            mBits = bits;
+            mClearBits = clearBits;
+            mUnkeyed = unkeyed.iterator();
+            mNext = find(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != -1 || mUnkeyed.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (mNext == -1) {
+                if (!mUnkeyed.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mUnkeyed.next();
+            }
+            final String id = mKeys.get(mNext);
+            mNext = find(mNext + 1);
+            return id;
+        }
+
+        private int find(int from) {
+            if (mKeys == null) {
+                return -1;
+            }
+            final int pos = mClearBits ? mBits.nextClearBit(from) : mBits.nextSetBit(from);
+            return pos >= 0 && pos < mKeys.size() ? pos : -1;
+        }
+    }
+
     public static final ClassLoaderCreator<Selection> CREATOR =
             new ClassLoaderCreator<Selection>() {
         @Override
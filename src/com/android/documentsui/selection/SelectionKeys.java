@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.selection;
+
+import javax.annotation.Nullable;
+
+/**
+ * The ordered Model IDs a {@link Selection} can be keyed to, so it can track selected items by
+ * their positions instead of by their IDs.
+ *
+ * <p>Keys must not change once handed out. A new instance is expected whenever the underlying
+ * items change, so selections can tell when they need to be remapped.
+ */
+public interface SelectionKeys {
+
+    /**
+     * @return number of positions
+     */
+    int size();
+
+    /**
+     * @return the Model ID at the position, or null if there's no valid item there
+     */
+    @Nullable String get(int position);
+
+    /**
+     * @return position of the Model ID, or -1 if it's not among the keys
+     */
+    int indexOf(String modelId);
+}
@@ -29,6 +29,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Predicate;
 
 import javax.annotation.Nullable;
 
@@ -59,6 +60,9 @@ public final class SelectionManager {
 
     static final String TAG = "SelectionManager";
 
+    // Above this, clearing the selection refreshes all items instead of each deselected one.
+    private static final int MAX_ITEM_NOTIFICATIONS = 1000;
+
     private final Selection mSelection = new Selection();
 
     private final List<Callback> mCallbacks = new ArrayList<>(1);
@@ -91,17 +95,18 @@ public final class SelectionManager {
         mAdapter = adapter;
         mCanSetState = canSetState;
 
-        mAdapterObserver = new RecyclerView.AdapterDataObserver() {
+        final @Nullable SelectionKeys keys = mAdapter.getSelectionKeys();
+        if (keys != null) {
+            mSelection.rebind(keys);
+        }
 
-            private List<String> mModelIds;
+        mAdapterObserver = new RecyclerView.AdapterDataObserver() {
 
             @Override
             public void onChanged() {
-                mModelIds = mAdapter.getModelIds();
-
                 // Update the selection to remove any disappeared IDs.
                 mSelection.cancelProvisionalSelection();
-                mSelection.intersect(mModelIds);
+                retainModelIds();
 
                 notifyDataChanged();
             }
@@ -115,6 +120,8 @@ public final class SelectionManager {
             @Override
             public void onItemRangeInserted(int startPosition, int itemCount) {
                 mSelection.cancelProvisionalSelection();
+                // Keeps the selection keyed to all items, including the inserted ones.
+                retainModelIds();
             }
 
             @Override
@@ -124,12 +131,15 @@ public final class SelectionManager {
 
                 mSelection.cancelProvisionalSelection();
                 // Remove any disappeared IDs from the selection.
-                mSelection.intersect(mModelIds);
+                retainModelIds();
             }
 
             @Override
             public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
-                throw new UnsupportedOperationException();
+                // Live refreshes move items that got reordered. The same items are still
+                // there, only their positions changed.
+                mSelection.cancelProvisionalSelection();
+                retainModelIds();
             }
         };
 
@@ -137,6 +147,19 @@ public final class SelectionManager {
         return this;
     }
 
+    /**
+     * Keys the selection to the current items of the adapter, if it's backed by a Model, which
+     * also drops items that disappeared.
+     */
+    private void retainModelIds() {
+        final @Nullable SelectionKeys keys = mAdapter.getSelectionKeys();
+        if (keys != null) {
+            mSelection.rebind(keys);
+        } else {
+            mSelection.intersect(mAdapter.getModelIds());
+        }
+    }
+
     void bindContoller(BandController controller) {
         // Provides BandController with access to private mSelection state.
         controller.bindSelection(mSelection);
@@ -198,7 +221,7 @@ public final class SelectionManager {
      * after rotation etc.
      */
     public void restoreSelection(Selection other) {
-        setItemsSelectedQuietly(other.mSelection, true);
+        setItemsSelectedQuietly(other, true);
         // NOTE: We intentionally don't restore provisional selection. It's provisional.
         notifySelectionRestored();
     }
@@ -217,6 +240,39 @@ public final class SelectionManager {
         return changed;
     }
 
+    /**
+     * Selects all items of the adapter that {@code filter} accepts and that can be selected.
+     * If the adapter is backed by a Model, this marks everything but the items left out as
+     * selected, instead of adding items one by one, and refreshes all items at once.
+     *
+     * @return true if any item got selected.
+     */
+    public boolean selectAll(Predicate<String> filter) {
+        final boolean changed;
+        final @Nullable SelectionKeys keys = mAdapter.getSelectionKeys();
+        if (keys != null) {
+            // Items may have changed without changing positions, which doesn't rekey the
+            // selection, so make sure all current items are covered.
+            if (!mSelection.isKeyedTo(keys)) {
+                mSelection.rebind(keys);
+            }
+            changed = mSelection.selectAll(id -> filter.test(id) && canSetState(id, true));
+            if (changed) {
+                notifySelectionReset();
+            }
+        } else {
+            final List<String> ids = new ArrayList<>();
+            for (String id : mAdapter.getModelIds()) {
+                if (filter.test(id)) {
+                    ids.add(id);
+                }
+            }
+            changed = setItemsSelectedQuietly(ids, true);
+        }
+        notifySelectionChanged();
+        return changed;
+    }
+
     private boolean setItemsSelectedQuietly(Iterable<String> ids, boolean selected) {
         boolean changed = false;
         for (String id: ids) {
@@ -258,12 +314,15 @@ public final class SelectionManager {
         Selection oldSelection = getSelection(new Selection());
         mSelection.clear();
 
-        for (String id: oldSelection.mSelection) {
-            notifyItemStateChanged(id, false);
+        if (oldSelection.size() > MAX_ITEM_NOTIFICATIONS) {
+            // Cheaper than telling about every item, e.g. after selecting all.
+            notifySelectionReset();
+            return;
         }
-        for (String id: oldSelection.mProvisionalSelection) {
+        for (String id: oldSelection) {
             notifyItemStateChanged(id, false);
         }
+        oldSelection.cancelProvisionalSelection(id -> notifyItemStateChanged(id, false));
     }
 
     /**
@@ -337,10 +396,7 @@ public final class SelectionManager {
     }
 
     void cancelProvisionalSelection() {
-        for (String id : mSelection.mProvisionalSelection) {
-            notifyItemStateChanged(id, false);
-        }
-        mSelection.cancelProvisionalSelection();
+        mSelection.cancelProvisionalSelection(id -> notifyItemStateChanged(id, false));
     }
 
     /**
@@ -452,6 +508,27 @@ public final class SelectionManager {
         }
     }
 
+    /**
+     * Notifies item callbacks that the selection was replaced as a whole, followed by the items
+     * that are selected now, and refreshes all items of the adapter.
+     */
+    private void notifySelectionReset() {
+        final int lastListener = mItemCallbacks.size() - 1;
+
+        for (int i = lastListener; i >= 0; i--) {
+            mItemCallbacks.get(i).onSelectionReset();
+        }
+
+        if (lastListener >= 0) {
+            for (String id : mSelection) {
+                for (int i = lastListener; i >= 0; i--) {
+                    mItemCallbacks.get(i).onItemStateChanged(id, true);
+                }
+            }
+        }
+        mAdapter.onSelectionReset();
+    }
+
     /**
      * Notifies registered listeners when the selection status of a single item
      * (identified by {@code position}) changes.
@@ -528,17 +605,9 @@ public final class SelectionManager {
                 continue;
             }
 
-            boolean changedState = false;
-            if (selected) {
-                boolean canSelect = canSetState(id, true);
-                if (canSelect && !mSelection.mSelection.contains(id)) {
-                    mSelection.mProvisionalSelection.add(id);
-                    changedState = true;
-                }
-            } else {
-                mSelection.mProvisionalSelection.remove(id);
-                changedState = true;
-            }
+            final boolean changedState = selected
+                    ? canSetState(id, true) && mSelection.addProvisionally(id)
+                    : mSelection.removeProvisionally(id);
 
             // Only notify item callbacks when something's state is actually changed in provisional
             // selection.
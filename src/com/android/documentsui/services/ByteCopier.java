@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.base.Shared.DEBUG;
+
+import android.support.annotation.VisibleForTesting;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Pumps the bytes of a single file from a source to a destination, picking the cheapest
+ * strategy available:
+ * <ul>
+ *     <li>When both ends are regular files, bytes are moved by the kernel with
+ *     {@link FileChannel#transferTo}, without passing through user space.</li>
+ *     <li>Large files are read on a separate thread, so reading from the source overlaps with
+ *     writing to the destination. The buffer grows while reads keep filling it.</li>
+ *     <li>Everything else is copied through a single buffer.</li>
+ * </ul>
+ *
+ * <p>Instances are single use and not thread safe.
+ */
+final class ByteCopier {
+
+    private static final String TAG = "ByteCopier";
+
+    @VisibleForTesting
+    static final long PIPELINE_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    private static final int MIN_BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final int PIPELINE_DEPTH = 4;
+    private static final long TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+
+    // Reader threads for pipelined copies, at most one per job the service runs at once. Copies
+    // beyond that wait for a reader to free up.
+    private static final ThreadPoolExecutor sReaders = new ThreadPoolExecutor(
+            FileOperationService.POOL_SIZE, FileOperationService.POOL_SIZE,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        sReaders.allowCoreThreadTimeOut(true);
+    }
+
+    private final Listener mListener;
+    private boolean mReading = true;
+
+    // Time spent in reads and writes by the last copy.
+    private long mReadNanos;
+    private long mWriteNanos;
+
+    ByteCopier(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return true if the last failure (if any) happened while reading the source, false if it
+     *         happened while writing to the destination.
+     */
+    boolean isReading() {
+        return mReading;
+    }
+
+    /**
+     * @return time spent reading the source by the last copy. Zero-copy transfers count as
+     *         writing, as reads and writes can't be told apart.
+     */
+    long getReadNanos() {
+        return mReadNanos;
+    }
+
+    /**
+     * @return time spent writing to the destination by the last copy
+     */
+    long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * Copies all bytes from in to out. Neither stream is closed.
+     *
+     * @param srcFd the descriptor backing in, or null if in doesn't map to the whole descriptor
+     * @param dstFd the descriptor backing out
+     * @param srcSize size of the source, or a negative value if unknown
+     * @return false if the copy was canceled before completion
+     */
+    boolean copy(InputStream in, @Nullable FileDescriptor srcFd, OutputStream out,
+            FileDescriptor dstFd, long srcSize) throws IOException {
+        mReadNanos = 0;
+        mWriteNanos = 0;
+        if (mListener.isCanceled()) {
+            return false;
+        }
+
+        if (srcFd != null && in instanceof FileInputStream && out instanceof FileOutputStream
+                && isRegularFile(srcFd) && isRegularFile(dstFd)) {
+            return transfer(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel());
+        }
+
+        if (srcSize >= PIPELINE_THRESHOLD_BYTES) {
+            return pipelinedCopy(in, out);
+        }
+
+        return bufferedCopy(in, out);
+    }
+
+    private boolean transfer(FileChannel src, FileChannel dst) throws IOException {
+        if (DEBUG) Log.d(TAG, "Using zero-copy transfer.");
+        long position = src.position();
+        long transferred;
+        // transferTo() may be served by sendfile(), which reads and writes in one go, so we
+        // can't tell which end failed.
+        mReading = false;
+        long start = System.nanoTime();
+        while ((transferred = src.transferTo(position, TRANSFER_CHUNK_BYTES, dst)) > 0) {
+            final long now = System.nanoTime();
+            mWriteNanos += now - start;
+            start = now;
+            if (mListener.isCanceled()) {
+                return false;
+            }
+            position += transferred;
+            mListener.onBytesCopied(transferred);
+        }
+        return true;
+    }
+
+    private boolean bufferedCopy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[MIN_BUFFER_SIZE];
+        int len;
+        mReading = true;
+        long start = System.nanoTime();
+        while ((len = in.read(buffer)) != -1) {
+            final long read = System.nanoTime();
+            mReadNanos += read - start;
+            if (mListener.isCanceled()) {
+                return false;
+            }
+            mReading = false;
+            out.write(buffer, 0, len);
+            start = System.nanoTime();
+            mWriteNanos += start - read;
+            mListener.onBytesCopied(len);
+            mReading = true;
+        }
+        mReading = false;
+        return true;
+    }
+
+    private boolean pipelinedCopy(InputStream in, OutputStream out) throws IOException {
+        final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(PIPELINE_DEPTH + 1);
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            free.add(new byte[MIN_BUFFER_SIZE]);
+        }
+
+        final Future<?> reader = sReaders.submit(() -> read(in, filled, free));
+        try {
+            while (true) {
+                final Chunk chunk = filled.take();
+                mReadNanos += chunk.readNanos;
+                if (chunk.error != null) {
+                    mReading = true;
+                    if (chunk.error instanceof IOException) {
+                        throw (IOException) chunk.error;
+                    }
+                    if (chunk.error instanceof RuntimeException) {
+                        throw (RuntimeException) chunk.error;
+                    }
+                    throw (Error) chunk.error;
+                }
+                if (chunk.buffer == null) {
+                    mReading = false;
+                    return true;
+                }
+                if (mListener.isCanceled()) {
+                    return false;
+                }
+                mReading = false;
+                final long start = System.nanoTime();
+                out.write(chunk.buffer, 0, chunk.length);
+                mWriteNanos += System.nanoTime() - start;
+                mListener.onBytesCopied(chunk.length);
+                free.put(chunk.buffer);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while copying bytes.");
+        } finally {
+            // Unblocks the reader if we bailed out early. The caller closes the input, which
+            // takes care of a reader blocked on the source.
+            reader.cancel(true);
+        }
+    }
+
+    private static void read(InputStream in, BlockingQueue<Chunk> filled,
+            BlockingQueue<byte[]> free) {
+        int bufferSize = MIN_BUFFER_SIZE;
+        try {
+            while (true) {
+                byte[] buffer = free.take();
+                if (buffer.length < bufferSize) {
+                    buffer = new byte[bufferSize];
+                }
+                final long start = System.nanoTime();
+                final int len = in.read(buffer);
+                final long readNanos = System.nanoTime() - start;
+                if (len == -1) {
+                    filled.put(new Chunk(null, 0, null, readNanos));
+                    return;
+                }
+                // The source keeps up; read bigger chunks to cut down on calls.
+                if (len == buffer.length && bufferSize < MAX_BUFFER_SIZE) {
+                    bufferSize *= 2;
+                }
+                filled.put(new Chunk(buffer, len, null, readNanos));
+            }
+        } catch (InterruptedException e) {
+            // Canceled by the writer.
+        } catch (Throwable t) {
+            // Handed over to the writer, which would otherwise wait for the next chunk forever.
+            // There's always room for it, as there are more slots than buffers.
+            filled.offer(new Chunk(null, 0, t, 0));
+        }
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    interface Listener {
+        void onBytesCopied(long numBytes);
+        boolean isCanceled();
+    }
+
+    private static final class Chunk {
+        private final byte[] buffer;
+        private final int length;
+        private final Throwable error;
+        private final long readNanos;
+
+        private Chunk(byte[] buffer, int length, Throwable error, long readNanos) {
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+            this.readNanos = readNanos;
+        }
+    }
+}
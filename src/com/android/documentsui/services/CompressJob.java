@@ -150,10 +150,10 @@ final class CompressJob extends CopyJob {
      * enough free space if docs are moved from another authority.
      */
     @Override
-    boolean checkSpace() {
+    long getSpaceRequired() {
         // We're unable to say how much space the archive will take, so assume
         // it will fit.
-        return true;
+        return -1;
     }
 
     void processDocument(DocumentInfo src, DocumentInfo dest) throws ResourceException {
@@ -23,8 +23,6 @@ import static android.provider.DocumentsContract.getDocumentId;
 import static android.provider.DocumentsContract.isChildDocument;
 
 import static com.android.documentsui.OperationDialogFragment.DIALOG_TYPE_CONVERTED;
-import static com.android.documentsui.base.DocumentInfo.getCursorLong;
-import static com.android.documentsui.base.DocumentInfo.getCursorString;
 import static com.android.documentsui.base.Shared.DEBUG;
 import static com.android.documentsui.services.FileOperationService.EXTRA_DIALOG_TYPE;
 import static com.android.documentsui.services.FileOperationService.EXTRA_FAILED_DOCS;
@@ -64,6 +62,7 @@ import android.webkit.MimeTypeMap;
 import com.android.documentsui.DocumentsApplication;
 import com.android.documentsui.Metrics;
 import com.android.documentsui.R;
+import com.android.documentsui.archives.ArchivesProvider;
 import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.base.DocumentStack;
 import com.android.documentsui.base.Features;
@@ -81,6 +80,17 @@ import java.io.InputStream;
 import java.io.SyncFailedException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 class CopyJob extends ResolvedResourcesJob {
 
@@ -88,15 +98,50 @@ class CopyJob extends ResolvedResourcesJob {
 
     private static final long LOADING_TIMEOUT = 60000; // 1 min
 
+    private static final String[] CHILDREN_COLUMNS = new String[] {
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_FLAGS
+    };
+
+    // Upper bound of the number of documents listed by the size calculator and not yet reached
+    // by the copy. Past it, the copy queries the children itself.
+    private static final int MAX_PENDING_LISTED_DOCUMENTS = 10000;
+
+    // Number of files copied at the same time between a pair of authorities. Small files are
+    // dominated by per-file latency (creating, opening and syncing documents), so keeping a few
+    // of them in flight makes much better use of the available bandwidth.
+    private static final int MAX_CONCURRENT_FILE_COPIES = 4;
+
+    // Guarded by itself, as it's appended to by copy workers.
     final ArrayList<DocumentInfo> convertedFiles = new ArrayList<>();
     DocumentInfo mDstInfo;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private final Messenger mMessenger;
 
+    // Lanes are keyed by the source and destination authorities. Only accessed on the job thread.
+    private final Map<String, CopyLane> mLanes = new HashMap<>();
+    // Tracks the file copies of the top level document being processed by the job thread.
+    private @Nullable CopyGroup mCopyGroup;
+
+    // Top level documents which were handled before the copy started, and must be skipped.
+    private boolean[] mProcessed;
+
+    // Sizes the source tree while it's being copied.
+    private @Nullable SizeCalculator mSizeCalculator;
+    private @Nullable ExecutorService mSizeExecutor;
+    // Set once the whole tree is sized and the destination turns out to be too small.
+    private volatile boolean mOutOfSpace;
+
     private long mStartTime = -1;
-    private long mBytesRequired;
-    private volatile long mBytesCopied;
+    // Running total of the bytes to copy, or -1 if it couldn't be calculated.
+    private volatile long mBytesRequired;
+    private final AtomicLong mBytesCopied = new AtomicLong();
+    // Part of mBytesCopied that was never written, as the documents were marked processed.
+    private long mBytesSkipped;
 
     // Speed estimation.
     private long mBytesCopiedSample;
@@ -138,8 +183,8 @@ class CopyJob extends ResolvedResourcesJob {
     Notification getProgressNotification(@StringRes int msgId) {
         updateRemainingTimeEstimate();
 
-        if (mBytesRequired >= 0) {
-            double completed = (double) this.mBytesCopied / mBytesRequired;
+        final double completed = getCompletedFraction();
+        if (completed >= 0) {
             mProgressBuilder.setProgress(100, (int) (completed * 100), false);
             mProgressBuilder.setSubText(
                     NumberFormat.getPercentInstance().format(completed));
@@ -167,7 +212,22 @@ class CopyJob extends ResolvedResourcesJob {
     }
 
     void onBytesCopied(long numBytes) {
-        this.mBytesCopied += numBytes;
+        mBytesCopied.addAndGet(numBytes);
+    }
+
+    /**
+     * @return the completed fraction of the copy, or -1 if unknown. While the source tree is
+     *         still being sized, this is relative to the size enumerated so far.
+     */
+    @Override
+    double getCompletedFraction() {
+        final long bytesRequired = mBytesRequired;
+        if (bytesRequired < 0) {
+            return -1;
+        }
+        final long bytesCopied = mBytesCopied.get();
+        final long total = Math.max(bytesRequired, bytesCopied);
+        return total > 0 ? (double) bytesCopied / total : -1;
     }
 
     @Override
@@ -186,9 +246,9 @@ class CopyJob extends ResolvedResourcesJob {
     private void updateRemainingTimeEstimate() {
         long elapsedTime = elapsedRealtime() - mStartTime;
 
-        // mBytesCopied is modified in worker thread, but this method is called in monitor thread,
+        // mBytesCopied is modified in worker threads, but this method is called in monitor thread,
         // so take a snapshot of mBytesCopied to make sure the updated estimate is consistent.
-        final long bytesCopied = mBytesCopied;
+        final long bytesCopied = mBytesCopied.get();
         final long sampleDuration = Math.max(elapsedTime - mSampleTime, 1L); // avoid dividing 0
         final long sampleSpeed = ((bytesCopied - mBytesCopiedSample) * 1000) / sampleDuration;
         if (mSpeed == 0) {
@@ -197,8 +257,9 @@ class CopyJob extends ResolvedResourcesJob {
             mSpeed = ((3 * mSpeed) + sampleSpeed) / 4;
         }
 
-        if (mSampleTime > 0 && mSpeed > 0) {
-            mRemainingTime = ((mBytesRequired - bytesCopied) * 1000) / mSpeed;
+        final long bytesRequired = mBytesRequired;
+        if (mSampleTime > 0 && mSpeed > 0 && bytesRequired > bytesCopied) {
+            mRemainingTime = ((bytesRequired - bytesCopied) * 1000) / mSpeed;
         } else {
             mRemainingTime = 0;
         }
@@ -247,46 +308,87 @@ class CopyJob extends ResolvedResourcesJob {
             return false;
         }
 
-        try {
-            mBytesRequired = calculateBytesRequired();
-        } catch (ResourceException e) {
-            Log.w(TAG, "Failed to calculate total size. Copying without progress.", e);
-            mBytesRequired = -1;
-        }
-
-        // Check if user has canceled this task. We should check it again here as user cancels
-        // tasks in main thread, but this is running in a worker thread. calculateSize() may
-        // take a long time during which user can cancel this task, and we don't want to waste
-        // resources doing useless large chunk of work.
-        if (isCanceled()) {
-            return false;
-        }
-
+        // Directories are sized while they're being copied, so the copy doesn't wait for the
+        // whole tree to be enumerated. Until then only the space for top level files is known,
+        // which gives an early estimate. The space is checked again once sizing completes.
+        mProcessed = new boolean[mResolvedDocs.size()];
+        mSizeCalculator = new SizeCalculator();
         return checkSpace();
     }
 
+    /**
+     * Marks the top level document at the index as done, so the copy skips it. Only to be called
+     * by subclasses before the copy starts.
+     */
+    final void markProcessed(int index) {
+        mProcessed[index] = true;
+        // Directories aren't sized anymore, so only top level files count towards progress.
+        final long size = mSizeCalculator.getSize(index);
+        mBytesSkipped += size;
+        onBytesCopied(size);
+    }
+
     @Override
     void start() {
         mStartTime = elapsedRealtime();
+        mSizeExecutor = Executors.newSingleThreadExecutor();
+        mSizeExecutor.execute(mSizeCalculator);
+
+        final List<CopyGroup> groups = new ArrayList<>();
         DocumentInfo srcInfo;
-        for (int i = 0; i < mResolvedDocs.size() && !isCanceled(); ++i) {
-            srcInfo = mResolvedDocs.get(i);
+        int i = 0;
+        try {
+            for (; i < mResolvedDocs.size() && !isCanceled() && !mOutOfSpace; ++i) {
+                if (mProcessed[i]) {
+                    continue;
+                }
+                srcInfo = mResolvedDocs.get(i);
 
-            if (DEBUG) Log.d(TAG,
-                    "Copying " + srcInfo.displayName + " (" + srcInfo.derivedUri + ")"
-                    + " to " + mDstInfo.displayName + " (" + mDstInfo.derivedUri + ")");
+                if (DEBUG) Log.d(TAG,
+                        "Copying " + srcInfo.displayName + " (" + srcInfo.derivedUri + ")"
+                        + " to " + mDstInfo.displayName + " (" + mDstInfo.derivedUri + ")");
 
-            try {
-                // Copying recursively to itself or one of descendants is not allowed.
-                if (mDstInfo.equals(srcInfo) || isDescendentOf(srcInfo, mDstInfo)) {
-                    Log.e(TAG, "Skipping recursive copy of " + srcInfo.derivedUri);
-                    onFileFailed(srcInfo);
-                } else {
-                    processDocument(srcInfo, null, mDstInfo);
+                // File copies are handed off to lanes, so failures are collected per top level
+                // document and reported once all of its files are done.
+                mCopyGroup = new CopyGroup(srcInfo);
+                groups.add(mCopyGroup);
+                try {
+                    // Copying recursively to itself or one of descendants is not allowed.
+                    if (mDstInfo.equals(srcInfo) || isDescendentOf(srcInfo, mDstInfo)) {
+                        mCopyGroup.fail(new ResourceException(
+                                "Skipping recursive copy of %s.", srcInfo.derivedUri));
+                    } else {
+                        processDocument(srcInfo, null, mDstInfo);
+                    }
+                } catch (ResourceException e) {
+                    mCopyGroup.fail(e);
+                }
+            }
+        } finally {
+            mCopyGroup = null;
+            mSizeExecutor.shutdownNow();
+            for (CopyGroup group : groups) {
+                Exception failure = group.await();
+                if (failure == null && !isCanceled()) {
+                    failure = group.runDeferred();
+                }
+                if (failure != null) {
+                    Log.e(TAG, "Failed to copy " + group.doc.derivedUri, failure);
+                    onFileFailed(group.doc);
+                }
+            }
+            for (CopyLane lane : mLanes.values()) {
+                lane.executor.shutdown();
+            }
+            mLanes.clear();
+        }
+
+        if (mOutOfSpace) {
+            // Documents which haven't been reached fail, as there's no room for them.
+            for (; i < mResolvedDocs.size(); ++i) {
+                if (!mProcessed[i]) {
+                    onFileFailed(mResolvedDocs.get(i));
                 }
-            } catch (ResourceException e) {
-                Log.e(TAG, "Failed to copy " + srcInfo.derivedUri, e);
-                onFileFailed(srcInfo);
             }
         }
 
@@ -297,8 +399,41 @@ class CopyJob extends ResolvedResourcesJob {
      * Checks whether the destination folder has enough space to take all source files.
      * @return true if the root has enough space or doesn't provide free space info; otherwise false
      */
-    boolean checkSpace() {
-        return verifySpaceAvailable(mBytesRequired);
+    final boolean checkSpace() {
+        return verifySpaceAvailable(getSpaceRequired());
+    }
+
+    /**
+     * Returns the space the copy needs at the destination. Called once before the copy starts,
+     * when only the sizes of top level files are known, and again from a background thread once
+     * the whole tree is sized.
+     *
+     * @return the size in bytes, or -1 if unknown
+     */
+    long getSpaceRequired() {
+        return mBytesRequired;
+    }
+
+    /**
+     * Returns the space the copy still needs at the destination, leaving out what's been
+     * written already.
+     *
+     * @return the size in bytes, or -1 if unknown
+     */
+    final long getSpaceRemaining() {
+        final long required = getSpaceRequired();
+        if (required < 0) {
+            return -1;
+        }
+        return Math.max(required - (mBytesCopied.get() - mBytesSkipped), 0);
+    }
+
+    /**
+     * @return the size of the top level document at the index, as known so far, or -1 if sizing
+     *         failed
+     */
+    final long getBytesRequired(int index) {
+        return mBytesRequired >= 0 ? mSizeCalculator.getSize(index) : -1;
     }
 
     /**
@@ -307,6 +442,16 @@ class CopyJob extends ResolvedResourcesJob {
      * @return true if the root has enough space or doesn't provide free space info; otherwise false
      */
     final boolean verifySpaceAvailable(long batchSize) {
+        final boolean available = isSpaceAvailable(batchSize);
+        if (!available) {
+            failureCount = mResolvedDocs.size();
+            failedDocs.addAll(mResolvedDocs);
+        }
+
+        return available;
+    }
+
+    private boolean isSpaceAvailable(long batchSize) {
         // Default to be true because if batchSize or available space is invalid, we still let the
         // copy start anyway.
         boolean available = true;
@@ -323,12 +468,6 @@ class CopyJob extends ResolvedResourcesJob {
                 Log.w(TAG, root.toString() + " doesn't provide available bytes.");
             }
         }
-
-        if (!available) {
-            failureCount = mResolvedDocs.size();
-            failedDocs.addAll(mResolvedDocs);
-        }
-
         return available;
     }
 
@@ -343,8 +482,8 @@ class CopyJob extends ResolvedResourcesJob {
      * @param bytesCopied
      */
     private void makeCopyProgress(long bytesCopied) {
-        final int completed =
-            mBytesRequired >= 0 ? (int) (100.0 * this.mBytesCopied / mBytesRequired) : -1;
+        final double fraction = getCompletedFraction();
+        final int completed = fraction >= 0 ? (int) (100.0 * fraction) : -1;
         try {
             mMessenger.send(Message.obtain(mHandler, MESSAGE_PROGRESS,
                     completed, (int) mRemainingTime));
@@ -352,6 +491,7 @@ class CopyJob extends ResolvedResourcesJob {
             // Ignore. The frontend may be gone.
         }
         onBytesCopied(bytesCopied);
+        metrics.onBytesCopied(bytesCopied);
     }
 
     /**
@@ -375,6 +515,7 @@ class CopyJob extends ResolvedResourcesJob {
         if (src.authority.equals(dstDirInfo.authority)) {
             if ((src.flags & Document.FLAG_SUPPORTS_COPY) != 0) {
                 try {
+                    metrics.onProviderCall();
                     if (DocumentsContract.copyDocument(getClient(src), src.derivedUri,
                             dstDirInfo.derivedUri) != null) {
                         Metrics.logFileOperated(
@@ -390,6 +531,7 @@ class CopyJob extends ResolvedResourcesJob {
 
                 // If optimized copy fails, then fallback to byte-by-byte copy.
                 if (DEBUG) Log.d(TAG, "Fallback to byte-by-byte copy for: " + src.derivedUri);
+                metrics.onRetry();
             }
         }
 
@@ -398,15 +540,37 @@ class CopyJob extends ResolvedResourcesJob {
     }
 
     void byteCopyDocument(DocumentInfo src, DocumentInfo dest) throws ResourceException {
+        byteCopyDocument(src, dest, null);
+    }
+
+    /**
+     * Copies the document by bytes. Directories are traversed on the calling thread, while the
+     * bytes of files are copied on a lane shared by the source and destination authorities, so
+     * this may return before the copy is done. Use {@link #afterFileCopies} to act once they're
+     * done.
+     *
+     * @param onCopied Run on the copying thread once the file was successfully copied. Not
+     *            called for directories.
+     */
+    void byteCopyDocument(DocumentInfo src, DocumentInfo dest, @Nullable CopyCompletion onCopied)
+            throws ResourceException {
         final String dstMimeType;
         final String dstDisplayName;
 
+        // Stop early if another file of the same document already failed, like a synchronous
+        // copy would.
+        if (mCopyGroup != null) {
+            mCopyGroup.checkFailure(src);
+        }
+        checkOutOfSpace(src);
+
         if (DEBUG) Log.d(TAG, "Doing byte copy of document: " + src);
         // If the file is virtual, but can be converted to another format, then try to copy it
         // as such format. Also, append an extension for the target mime type (if known).
         if (src.isVirtual()) {
             String[] streamTypes = null;
             try {
+                metrics.onProviderCall();
                 streamTypes = getContentResolver().getStreamTypes(src.derivedUri, "*/*");
             } catch (RuntimeException e) {
                 Metrics.logFileOperationFailure(
@@ -436,6 +600,7 @@ class CopyJob extends ResolvedResourcesJob {
         // contents (bytes or children).
         Uri dstUri = null;
         try {
+            metrics.onProviderCall();
             dstUri = DocumentsContract.createDocument(
                     getClient(dest), dest.derivedUri, dstMimeType, dstDisplayName);
         } catch (RemoteException | RuntimeException e) {
@@ -456,6 +621,7 @@ class CopyJob extends ResolvedResourcesJob {
 
         DocumentInfo dstInfo = null;
         try {
+            metrics.onProviderCall();
             dstInfo = DocumentInfo.fromUri(getContentResolver(), dstUri);
         } catch (FileNotFoundException | RuntimeException e) {
             Metrics.logFileOperationFailure(
@@ -466,9 +632,61 @@ class CopyJob extends ResolvedResourcesJob {
 
         if (Document.MIME_TYPE_DIR.equals(src.mimeType)) {
             copyDirectoryHelper(src, dstInfo);
-        } else {
+        } else if (mCopyGroup == null) {
             copyFileHelper(src, dstInfo, dest, dstMimeType);
+            if (onCopied != null) {
+                onCopied.onCopied();
+            }
+        } else {
+            copyFileAsync(mCopyGroup, src, dstInfo, dest, dstMimeType, onCopied);
+        }
+    }
+
+    /**
+     * Runs the action on this thread once all the file copies of the top level document being
+     * processed are done, unless any of them failed or the job got canceled. Copies are waited
+     * for just once, at the end of the job, so they keep flowing in the meantime.
+     */
+    void afterFileCopies(CopyCompletion action) throws ResourceException {
+        if (mCopyGroup != null) {
+            mCopyGroup.defer(action);
+        } else if (!isCanceled()) {
+            action.onCopied();
+        }
+    }
+
+    private void copyFileAsync(CopyGroup group, DocumentInfo src, DocumentInfo dest,
+            DocumentInfo destParent, String mimeType, @Nullable CopyCompletion onCopied) {
+        final CopyLane lane = getLane(src, destParent);
+        // Bounds the number of destination documents created ahead of their copies.
+        lane.permits.acquireUninterruptibly();
+        group.begin();
+        lane.executor.execute(() -> {
+            Exception failure = null;
+            try {
+                copyFileHelper(src, dest, destParent, mimeType);
+                if (onCopied != null && !isCanceled()) {
+                    onCopied.onCopied();
+                }
+            } catch (ResourceException | RuntimeException e) {
+                failure = e;
+            } finally {
+                group.end(failure);
+                lane.permits.release();
+            }
+        });
+    }
+
+    private CopyLane getLane(DocumentInfo src, DocumentInfo destParent) {
+        final String key = src.authority + "|" + destParent.authority;
+        CopyLane lane = mLanes.get(key);
+        if (lane == null) {
+            // Archives compress entries concurrently, and write them out in the order they were
+            // opened, so they take concurrent copies too.
+            lane = new CopyLane(MAX_CONCURRENT_FILE_COPIES);
+            mLanes.put(key, lane);
         }
+        return lane;
     }
 
     /**
@@ -482,46 +700,27 @@ class CopyJob extends ResolvedResourcesJob {
      */
     private void copyDirectoryHelper(DocumentInfo srcDir, DocumentInfo destDir)
             throws ResourceException {
-        // Recurse into directories. Copy children into the new subdirectory.
-        final String queryColumns[] = new String[] {
-                Document.COLUMN_DISPLAY_NAME,
-                Document.COLUMN_DOCUMENT_ID,
-                Document.COLUMN_MIME_TYPE,
-                Document.COLUMN_SIZE,
-                Document.COLUMN_FLAGS
-        };
-        Cursor cursor = null;
+        // The size calculator usually lists the directory first, so reuse its listing.
+        List<DocumentInfo> children = mSizeCalculator != null
+                ? mSizeCalculator.takeListing(srcDir) : null;
+        if (children == null) {
+            children = listChildren(srcDir);
+        }
+
         boolean success = true;
         // Iterate over srcs in the directory; copy to the destination directory.
-        try {
-            try {
-                cursor = queryChildren(srcDir, queryColumns);
-            } catch (RemoteException | RuntimeException e) {
-                Metrics.logFileOperationFailure(
-                        appContext, Metrics.SUBFILEOP_QUERY_CHILDREN, srcDir.derivedUri);
-                throw new ResourceException("Failed to query children of %s due to an exception.",
-                        srcDir.derivedUri, e);
+        for (DocumentInfo src : children) {
+            if (isCanceled()) {
+                break;
             }
-
-            DocumentInfo src;
-            while (cursor.moveToNext() && !isCanceled()) {
-                try {
-                    src = DocumentInfo.fromCursor(cursor, srcDir.authority);
-                    processDocument(src, srcDir, destDir);
-                } catch (RuntimeException e) {
-                    Log.e(TAG, String.format(
-                            "Failed to recursively process a file %s due to an exception.",
-                            srcDir.derivedUri.toString()), e);
-                    success = false;
-                }
+            try {
+                processDocument(src, srcDir, destDir);
+            } catch (RuntimeException e) {
+                Log.e(TAG, String.format(
+                        "Failed to recursively process a file %s due to an exception.",
+                        srcDir.derivedUri.toString()), e);
+                success = false;
             }
-        } catch (RuntimeException e) {
-            Log.e(TAG, String.format(
-                    "Failed to copy a file %s to %s. ",
-                    srcDir.derivedUri.toString(), destDir.derivedUri.toString()), e);
-            success = false;
-        } finally {
-            IoUtils.closeQuietly(cursor);
         }
 
         if (!success) {
@@ -530,6 +729,25 @@ class CopyJob extends ResolvedResourcesJob {
         }
     }
 
+    private List<DocumentInfo> listChildren(DocumentInfo srcDir) throws ResourceException {
+        final List<DocumentInfo> children = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = queryChildren(srcDir, CHILDREN_COLUMNS);
+            while (cursor.moveToNext() && !isCanceled()) {
+                children.add(DocumentInfo.fromCursor(cursor, srcDir.authority));
+            }
+        } catch (RemoteException | RuntimeException e) {
+            Metrics.logFileOperationFailure(
+                    appContext, Metrics.SUBFILEOP_QUERY_CHILDREN, srcDir.derivedUri);
+            throw new ResourceException("Failed to query children of %s due to an exception.",
+                    srcDir.derivedUri, e);
+        } finally {
+            IoUtils.closeQuietly(cursor);
+        }
+        return children;
+    }
+
     /**
      * Handles copying a single file.
      *
@@ -549,11 +767,13 @@ class CopyJob extends ResolvedResourcesJob {
         ParcelFileDescriptor.AutoCloseOutputStream out = null;
         boolean success = false;
 
+        final long openStart = System.nanoTime();
         try {
             // If the file is virtual, but can be converted to another format, then try to copy it
             // as such format.
             if (src.isVirtual()) {
                 try {
+                    metrics.onProviderCall();
                     srcFileAsAsset = getClient(src).openTypedAssetFileDescriptor(
                                 src.derivedUri, mimeType, null, canceller);
                 } catch (FileNotFoundException | RemoteException | RuntimeException e) {
@@ -576,20 +796,29 @@ class CopyJob extends ResolvedResourcesJob {
                         appContext, operationType, Metrics.OPMODE_CONVERTED);
             } else {
                 try {
-                    srcFile = getClient(src).openFile(src.derivedUri, "r", canceller);
+                    // Files within archives are inflated right here when possible, rather than
+                    // read through a proxy file descriptor. The lane runs several at a time.
+                    metrics.onProviderCall();
+                    if (ArchivesProvider.AUTHORITY.equals(src.authority)) {
+                        in = ArchivesProvider.openEntryStream(getClient(src), src.derivedUri);
+                    }
+                    if (in == null) {
+                        srcFile = getClient(src).openFile(src.derivedUri, "r", canceller);
+                        in = new ParcelFileDescriptor.AutoCloseInputStream(srcFile);
+                    }
                 } catch (FileNotFoundException | RemoteException | RuntimeException e) {
                     Metrics.logFileOperationFailure(
                             appContext, Metrics.SUBFILEOP_OPEN_FILE, src.derivedUri);
                     throw new ResourceException(
                             "Failed to open a file for %s due to an exception.", src.derivedUri, e);
                 }
-                in = new ParcelFileDescriptor.AutoCloseInputStream(srcFile);
 
                 Metrics.logFileOperated(
                         appContext, operationType, Metrics.OPMODE_CONVENTIONAL);
             }
 
             try {
+                metrics.onProviderCall();
                 dstFile = getClient(dest).openFile(dest.derivedUri, "w", canceller);
             } catch (FileNotFoundException | RemoteException | RuntimeException e) {
                 Metrics.logFileOperationFailure(
@@ -598,35 +827,45 @@ class CopyJob extends ResolvedResourcesJob {
                         + "due to an exception.", dest.derivedUri, e);
             }
             out = new ParcelFileDescriptor.AutoCloseOutputStream(dstFile);
+            metrics.recordLatency(JobMetrics.LATENCY_OPEN, System.nanoTime() - openStart);
+
+            final ByteCopier copier = new ByteCopier(new ByteCopier.Listener() {
+                @Override
+                public void onBytesCopied(long numBytes) {
+                    makeCopyProgress(numBytes);
+                }
 
-            byte[] buffer = new byte[32 * 1024];
-            int len;
-            boolean reading = true;
+                @Override
+                public boolean isCanceled() {
+                    return CopyJob.this.isCanceled() || mOutOfSpace;
+                }
+            });
             try {
                 // If we know the source size, and the destination supports disk
                 // space allocation, then allocate the space we'll need. This
                 // uses fallocate() under the hood to optimize on-disk layout
                 // and prevent us from running out of space during large copies.
                 final StorageManager sm = service.getSystemService(StorageManager.class);
-                final long srcSize = srcFile.getStatSize();
+                final long srcSize = srcFile != null ? srcFile.getStatSize() : src.size;
                 final FileDescriptor dstFd = dstFile.getFileDescriptor();
                 if (srcSize > 0 && sm.isAllocationSupported(dstFd)) {
                     sm.allocateBytes(dstFd, srcSize);
                 }
 
-                while ((len = in.read(buffer)) != -1) {
-                    if (isCanceled()) {
-                        if (DEBUG) Log.d(TAG, "Canceled copy mid-copy of: " + src.derivedUri);
-                        return;
-                    }
-                    reading = false;
-                    out.write(buffer, 0, len);
-                    makeCopyProgress(len);
-                    reading = true;
+                // Asset descriptors may cover only a part of the file, so they can't be
+                // transferred by descriptor.
+                final FileDescriptor srcFd = srcFile == null || srcFileAsAsset != null
+                        ? null : srcFile.getFileDescriptor();
+                if (!copier.copy(in, srcFd, out, dstFd, srcSize)) {
+                    checkOutOfSpace(src);
+                    if (DEBUG) Log.d(TAG, "Canceled copy mid-copy of: " + src.derivedUri);
+                    return;
                 }
+                metrics.recordLatency(JobMetrics.LATENCY_READ, copier.getReadNanos());
+                metrics.recordLatency(JobMetrics.LATENCY_WRITE, copier.getWriteNanos());
 
-                reading = false;
                 // Need to invoke Os#fsync to ensure the file is written to the storage device.
+                final long syncStart = System.nanoTime();
                 try {
                     Os.fsync(dstFile.getFileDescriptor());
                 } catch (ErrnoException error) {
@@ -636,24 +875,31 @@ class CopyJob extends ResolvedResourcesJob {
                                 "Failed to sync bytes after copying a file.");
                     }
                 }
+                metrics.recordLatency(JobMetrics.LATENCY_FSYNC, System.nanoTime() - syncStart);
 
                 // Need to invoke IoUtils.close explicitly to avoid from ignoring errors at flush.
                 IoUtils.close(dstFile.getFileDescriptor());
-                srcFile.checkError();
+                if (srcFile != null) {
+                    srcFile.checkError();
+                }
             } catch (IOException e) {
                 Metrics.logFileOperationFailure(
                         appContext,
-                        reading ? Metrics.SUBFILEOP_READ_FILE : Metrics.SUBFILEOP_WRITE_FILE,
-                        reading ? src.derivedUri: dest.derivedUri);
+                        copier.isReading()
+                                ? Metrics.SUBFILEOP_READ_FILE : Metrics.SUBFILEOP_WRITE_FILE,
+                        copier.isReading() ? src.derivedUri : dest.derivedUri);
                 throw new ResourceException(
                         "Failed to copy bytes from %s to %s due to an IO exception.",
                         src.derivedUri, dest.derivedUri, e);
             }
 
             if (src.isVirtual()) {
-               convertedFiles.add(src);
+                synchronized (convertedFiles) {
+                    convertedFiles.add(src);
+                }
             }
 
+            metrics.onFileCopied();
             success = true;
         } finally {
             if (!success) {
@@ -680,75 +926,11 @@ class CopyJob extends ResolvedResourcesJob {
         }
     }
 
-    /**
-     * Calculates the cumulative size of all the documents in the list. Directories are recursed
-     * into and totaled up.
-     *
-     * @return Size in bytes.
-     * @throws ResourceException
-     */
-    private long calculateBytesRequired() throws ResourceException {
-        long result = 0;
-
-        for (DocumentInfo src : mResolvedDocs) {
-            if (src.isDirectory()) {
-                // Directories need to be recursed into.
-                try {
-                    result += calculateFileSizesRecursively(getClient(src), src.derivedUri);
-                } catch (RemoteException e) {
-                    throw new ResourceException("Failed to obtain the client for %s.",
-                            src.derivedUri, e);
-                }
-            } else {
-                result += src.size;
-            }
-
-            if (isCanceled()) {
-                return result;
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Calculates (recursively) the cumulative size of all the files under the given directory.
-     *
-     * @throws ResourceException
-     */
-    long calculateFileSizesRecursively(
-            ContentProviderClient client, Uri uri) throws ResourceException {
-        final String authority = uri.getAuthority();
-        final String queryColumns[] = new String[] {
-                Document.COLUMN_DOCUMENT_ID,
-                Document.COLUMN_MIME_TYPE,
-                Document.COLUMN_SIZE
-        };
-
-        long result = 0;
-        Cursor cursor = null;
-        try {
-            cursor = queryChildren(client, uri, queryColumns);
-            while (cursor.moveToNext() && !isCanceled()) {
-                if (Document.MIME_TYPE_DIR.equals(
-                        getCursorString(cursor, Document.COLUMN_MIME_TYPE))) {
-                    // Recurse into directories.
-                    final Uri dirUri = buildDocumentUri(authority,
-                            getCursorString(cursor, Document.COLUMN_DOCUMENT_ID));
-                    result += calculateFileSizesRecursively(client, dirUri);
-                } else {
-                    // This may return -1 if the size isn't defined. Ignore those cases.
-                    long size = getCursorLong(cursor, Document.COLUMN_SIZE);
-                    result += size > 0 ? size : 0;
-                }
-            }
-        } catch (RemoteException | RuntimeException e) {
+    private void checkOutOfSpace(DocumentInfo src) throws ResourceException {
+        if (mOutOfSpace) {
             throw new ResourceException(
-                    "Failed to calculate size for %s due to an exception.", uri, e);
-        } finally {
-            IoUtils.closeQuietly(cursor);
+                    "Not enough space left at the destination to copy %s.", src.derivedUri);
         }
-
-        return result;
     }
 
     /**
@@ -788,6 +970,7 @@ class CopyJob extends ResolvedResourcesJob {
         // TODO (b/34459983): Optimize this performance by processing partial result first while provider is loading
         // more data. Note we need to skip size calculation to achieve it.
         final Uri queryUri = buildChildDocumentsUri(dirDocUri.getAuthority(), getDocumentId(dirDocUri));
+        metrics.onProviderCall();
         Cursor cursor = client.query(
                 queryUri, queryColumns, (String) null, null, null);
         while (cursor.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING)) {
@@ -807,6 +990,8 @@ class CopyJob extends ResolvedResourcesJob {
             }
 
             // Make another query
+            metrics.onProviderCall();
+            metrics.onRetry();
             cursor = client.query(
                     queryUri, queryColumns, (String) null, null, null);
         }
@@ -822,6 +1007,7 @@ class CopyJob extends ResolvedResourcesJob {
             throws ResourceException {
         if (parent.isDirectory() && doc.authority.equals(parent.authority)) {
             try {
+                metrics.onProviderCall();
                 return isChildDocument(getClient(doc), doc.derivedUri, parent.derivedUri);
             } catch (RemoteException | RuntimeException e) {
                 throw new ResourceException(
@@ -845,6 +1031,239 @@ class CopyJob extends ResolvedResourcesJob {
                 .toString();
     }
 
+    /**
+     * Walks the source tree on a background thread, refining {@link #mBytesRequired} as sizes of
+     * files are discovered. Listings of directories are handed over to the copy when it reaches
+     * them, so each directory is queried only once. Once the whole tree is sized, the space at
+     * the destination is checked again.
+     */
+    private final class SizeCalculator implements Runnable {
+        // Sizes of the top level documents. Written by the calculator thread only.
+        private final long[] mSizes;
+
+        // Listings keyed by authority and document id, guarded by itself.
+        private final Map<String, List<DocumentInfo>> mListings = new HashMap<>();
+        // Directories the copy reached before they were listed. Guarded by mListings.
+        private final Set<String> mClaimed = new HashSet<>();
+        private int mPendingDocuments;
+
+        private SizeCalculator() {
+            mSizes = new long[mResolvedDocs.size()];
+            long total = 0;
+            for (int i = 0; i < mSizes.length; i++) {
+                final DocumentInfo doc = mResolvedDocs.get(i);
+                // This may be -1 if the size isn't defined. Ignore those cases.
+                mSizes[i] = doc.isDirectory() ? 0 : Math.max(doc.size, 0);
+                total += mSizes[i];
+            }
+            mBytesRequired = total;
+        }
+
+        private long getSize(int index) {
+            return mSizes[index];
+        }
+
+        @Override
+        public void run() {
+            boolean sizedDirectories = false;
+            for (int i = 0; i < mSizes.length && !isStopped(); ++i) {
+                final DocumentInfo src = mResolvedDocs.get(i);
+                if (!src.isDirectory() || mProcessed[i]) {
+                    continue;
+                }
+                sizedDirectories = true;
+                try {
+                    calculateSizesRecursively(getClient(src), src.authority, src.documentId, i);
+                } catch (RemoteException | ResourceException e) {
+                    if (!isStopped()) {
+                        Log.w(TAG, "Failed to calculate total size. Copying without progress.",
+                                e);
+                        mBytesRequired = -1;
+                    }
+                    return;
+                }
+            }
+
+            // Without directories the early check was already final.
+            if (!sizedDirectories || isStopped()) {
+                return;
+            }
+            if (DEBUG) Log.d(TAG, "Sized the source tree: " + mBytesRequired + " bytes.");
+            // The copy has been running meanwhile, so only what's left needs to fit.
+            if (!isSpaceAvailable(getSpaceRemaining())) {
+                Log.w(TAG, "Not enough space at the destination. Aborting the copy.");
+                mOutOfSpace = true;
+            }
+        }
+
+        private void calculateSizesRecursively(ContentProviderClient client, String authority,
+                String documentId, int index) throws ResourceException {
+            final Uri uri = buildDocumentUri(authority, documentId);
+            final List<DocumentInfo> children = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = queryChildren(client, uri, CHILDREN_COLUMNS);
+                while (cursor.moveToNext() && !isStopped()) {
+                    final DocumentInfo child = DocumentInfo.fromCursor(cursor, authority);
+                    if (!child.isDirectory()) {
+                        // This may return -1 if the size isn't defined. Ignore those cases.
+                        final long size = Math.max(child.size, 0);
+                        mSizes[index] += size;
+                        mBytesRequired += size;
+                    }
+                    children.add(child);
+                }
+            } catch (RemoteException | RuntimeException e) {
+                throw new ResourceException(
+                        "Failed to calculate size for %s due to an exception.", uri, e);
+            } finally {
+                IoUtils.closeQuietly(cursor);
+            }
+
+            offerListing(authority, documentId, children);
+
+            // Recurse into directories once the cursor is closed, so only one is open at a time.
+            for (DocumentInfo child : children) {
+                if (isStopped()) {
+                    return;
+                }
+                if (child.isDirectory()) {
+                    calculateSizesRecursively(client, authority, child.documentId, index);
+                }
+            }
+        }
+
+        private void offerListing(String authority, String documentId, List<DocumentInfo> list) {
+            final String key = authority + "|" + documentId;
+            synchronized (mListings) {
+                if (mClaimed.remove(key)
+                        || mPendingDocuments + list.size() > MAX_PENDING_LISTED_DOCUMENTS) {
+                    return;
+                }
+                mListings.put(key, list);
+                mPendingDocuments += list.size();
+            }
+        }
+
+        /**
+         * @return the children of the directory if already listed, or null if the caller has to
+         *         query them
+         */
+        private @Nullable List<DocumentInfo> takeListing(DocumentInfo dir) {
+            final String key = dir.authority + "|" + dir.documentId;
+            synchronized (mListings) {
+                final List<DocumentInfo> list = mListings.remove(key);
+                if (list == null) {
+                    mClaimed.add(key);
+                } else {
+                    mPendingDocuments -= list.size();
+                }
+                return list;
+            }
+        }
+
+        private boolean isStopped() {
+            return isCanceled() || Thread.currentThread().isInterrupted();
+        }
+    }
+
+    /**
+     * Continuation of a file copy, run on the copying thread, or of the copies of a top level
+     * document, see {@link #afterFileCopies}.
+     */
+    interface CopyCompletion {
+        void onCopied() throws ResourceException;
+    }
+
+    /**
+     * Bounded set of threads copying files between a pair of authorities.
+     */
+    private static final class CopyLane {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        private CopyLane(int threads) {
+            executor = Executors.newFixedThreadPool(threads);
+            permits = new Semaphore(threads * 2);
+        }
+    }
+
+    /**
+     * Tracks the pending file copies of a single top level document, and the first failure.
+     */
+    private static final class CopyGroup {
+        private final DocumentInfo doc;
+        private int mPending;
+        private @Nullable Exception mFailure;
+        // Run in order once all copies are done. Only touched by the job thread.
+        private final List<CopyCompletion> mDeferred = new ArrayList<>();
+
+        private CopyGroup(DocumentInfo doc) {
+            this.doc = doc;
+        }
+
+        private synchronized void begin() {
+            mPending++;
+        }
+
+        private synchronized void end(@Nullable Exception failure) {
+            if (failure != null) {
+                fail(failure);
+            }
+            mPending--;
+            notifyAll();
+        }
+
+        private synchronized void fail(Exception failure) {
+            if (mFailure == null) {
+                mFailure = failure;
+            }
+        }
+
+        private synchronized void checkFailure(DocumentInfo src) throws ResourceException {
+            if (mFailure != null) {
+                throw new ResourceException(
+                        "Aborting copy of %s, as another file failed to copy.", src.derivedUri, mFailure);
+            }
+        }
+
+        private void defer(CopyCompletion action) {
+            mDeferred.add(action);
+        }
+
+        /**
+         * @return the failure which stopped the deferred actions, if any
+         */
+        private @Nullable Exception runDeferred() {
+            for (CopyCompletion action : mDeferred) {
+                try {
+                    action.onCopied();
+                } catch (ResourceException | RuntimeException e) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the first failure, if any
+         */
+        private synchronized @Nullable Exception await() {
+            boolean interrupted = false;
+            while (mPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mFailure;
+        }
+    }
+
     private static class DirectoryChildrenObserver extends ContentObserver {
 
         private final Object mNotifier;
@@ -24,6 +24,7 @@ import android.app.Notification.Builder;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.android.documentsui.Metrics;
@@ -34,6 +35,17 @@ import com.android.documentsui.base.Features;
 import com.android.documentsui.clipping.UrisSupplier;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -41,6 +53,24 @@ final class DeleteJob extends ResolvedResourcesJob {
 
     private static final String TAG = "DeleteJob";
 
+    // Documents of the same authority deleted before checking for cancellation, updating
+    // progress and reporting failures.
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 64;
+
+    // Providers serve calls on a pool of binder threads, so a few deletions in flight hide most
+    // of the round-trip latency without flooding the provider.
+    private static final int MAX_CONCURRENT_DELETES = 4;
+
+    // Threads issuing deletions, shared by all delete jobs so the cap holds no matter how many
+    // of them run at once.
+    private static final ThreadPoolExecutor sDeleters = new ThreadPoolExecutor(
+            MAX_CONCURRENT_DELETES, MAX_CONCURRENT_DELETES,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        sDeleters.allowCoreThreadTimeOut(true);
+    }
+
     private final Uri mParentUri;
 
     private volatile int mDocsProcessed = 0;
@@ -57,6 +87,11 @@ final class DeleteJob extends ResolvedResourcesJob {
         mParentUri = srcParent;
     }
 
+    @Override
+    @Nullable Uri getSrcParentUri() {
+        return mParentUri;
+    }
+
     @Override
     Builder createProgressBuilder() {
         return super.createProgressBuilder(
@@ -83,6 +118,12 @@ final class DeleteJob extends ResolvedResourcesJob {
         return mProgressBuilder.build();
     }
 
+    @Override
+    double getCompletedFraction() {
+        final int count = mResourceUris.getItemCount();
+        return count > 0 ? (double) mDocsProcessed / count : -1;
+    }
+
     @Override
     Notification getFailureNotification() {
         return getFailureNotification(
@@ -109,26 +150,86 @@ final class DeleteJob extends ResolvedResourcesJob {
           return;
         }
 
+        // Documents of the same authority are deleted together, so they share a client.
+        final Map<String, List<DocumentInfo>> docsByAuthority = new LinkedHashMap<>();
         for (DocumentInfo doc : mResolvedDocs) {
-            if (DEBUG) Log.d(TAG, "Deleting document @ " + doc.derivedUri);
-            try {
-                deleteDocument(doc, parentDoc);
-            } catch (ResourceException e) {
-                Metrics.logFileOperationFailure(
-                        appContext, Metrics.SUBFILEOP_DELETE_DOCUMENT, doc.derivedUri);
-                Log.e(TAG, "Failed to delete document @ " + doc.derivedUri, e);
-                onFileFailed(doc);
+            List<DocumentInfo> docs = docsByAuthority.get(doc.authority);
+            if (docs == null) {
+                docs = new ArrayList<>();
+                docsByAuthority.put(doc.authority, docs);
             }
+            docs.add(doc);
+        }
+
+        for (List<DocumentInfo> docs : docsByAuthority.values()) {
+            for (int i = 0; i < docs.size(); i += MAX_BATCH_SIZE) {
+                deleteBatch(docs.subList(i, Math.min(i + MAX_BATCH_SIZE, docs.size())), parentDoc);
 
-            mDocsProcessed++;
-            if (isCanceled()) {
-                return;
+                if (isCanceled()) {
+                    return;
+                }
             }
         }
 
         Metrics.logFileOperation(service, operationType, mResolvedDocs, null);
     }
 
+    /**
+     * Deletes a batch of documents concurrently, and reports the documents which failed to be
+     * deleted once the whole batch is done.
+     */
+    private void deleteBatch(List<DocumentInfo> batch, @Nullable DocumentInfo parentDoc) {
+        if (DEBUG) Log.d(TAG, "Deleting " + batch.size() + " documents.");
+
+        final List<Future<?>> deletions = new ArrayList<>(batch.size());
+        final List<DocumentInfo> failed = Collections.synchronizedList(new ArrayList<>());
+        // Documents skipped once the job got canceled don't count as processed.
+        final AtomicInteger attempted = new AtomicInteger();
+        for (DocumentInfo doc : batch) {
+            deletions.add(sDeleters.submit(() -> {
+                if (isCanceled()) {
+                    return;
+                }
+                attempted.incrementAndGet();
+                try {
+                    deleteDocument(doc, parentDoc);
+                } catch (ResourceException e) {
+                    if (DEBUG) Log.d(TAG, "Failed to delete document @ " + doc.derivedUri, e);
+                    failed.add(doc);
+                }
+            }));
+        }
+
+        for (Future<?> deletion : deletions) {
+            try {
+                deletion.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Unexpected failure while deleting documents.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // Drops the deletions which didn't start yet, as the threads are shared.
+                for (Future<?> pending : deletions) {
+                    pending.cancel(false);
+                }
+                break;
+            }
+        }
+
+        synchronized (failed) {
+            if (!failed.isEmpty()) {
+                Metrics.logFileOperationFailure(
+                        appContext, Metrics.SUBFILEOP_DELETE_DOCUMENT, failed.get(0).derivedUri);
+                Log.e(TAG, "Failed to delete " + failed.size() + " of " + batch.size()
+                        + " documents, first @ " + failed.get(0).derivedUri);
+                for (DocumentInfo doc : failed) {
+                    onFileFailed(doc);
+                }
+            }
+        }
+
+        mDocsProcessed += attempted.get();
+    }
+
     @Override
     public String toString() {
         return new StringBuilder()
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.documentsui.DocumentsApplication;
+import com.android.documentsui.base.DocumentInfo;
+
+import libcore.io.IoUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * Resolves uris of documents into {@link DocumentInfo}s, in order.
+ *
+ * <p>Uris are read in chunks. Documents of the parent, if known, are taken from a listing of
+ * the parent rather than queried one by one, if the chunk needs a good part of its children.
+ * Other documents are queried a few at a time. Results are passed on as soon as their chunk is
+ * resolved, so the caller doesn't wait for a whole jumbo clip to be read before the first
+ * document is resolved.
+ */
+final class DocumentResolver {
+    private static final String TAG = "DocumentResolver";
+
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 256;
+
+    // Listing the parent pays off only if it spares at least this many queries.
+    @VisibleForTesting
+    static final int MIN_LISTED_DOCUMENTS = 16;
+
+    // Nor is it worth walking a listing if less than one in this many children is needed, e.g.
+    // to delete a few documents of a huge directory.
+    @VisibleForTesting
+    static final int MAX_CHILDREN_PER_LISTED_DOCUMENT = 8;
+
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+
+    interface Callback {
+        void onResolved(DocumentInfo doc);
+
+        void onFailed(Uri uri, Throwable error);
+
+        boolean isCanceled();
+    }
+
+    private final ContentResolver mResolver;
+    private final @Nullable Uri mParentUri;
+
+    // Number of children of the parent, or -1 until it's listed.
+    private int mChildCount = -1;
+    private boolean mListingFailed;
+    private int mListingCount;
+
+    /**
+     * @param parentUri the parent of most of the documents, or null if not known
+     */
+    DocumentResolver(ContentResolver resolver, @Nullable Uri parentUri) {
+        mResolver = resolver;
+        mParentUri = parentUri;
+    }
+
+    /**
+     * Resolves the uris, and passes each document or failure to the callback in order.
+     */
+    void resolve(Iterable<Uri> uris, Callback callback) {
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_QUERIES);
+        try {
+            final List<Uri> chunk = new ArrayList<>(CHUNK_SIZE);
+            for (Uri uri : uris) {
+                chunk.add(uri);
+                if (chunk.size() == CHUNK_SIZE) {
+                    if (!resolveChunk(executor, chunk, callback)) {
+                        return;
+                    }
+                    chunk.clear();
+                }
+            }
+            resolveChunk(executor, chunk, callback);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return false if resolving got canceled
+     */
+    private boolean resolveChunk(ExecutorService executor, List<Uri> chunk, Callback callback) {
+        final @Nullable Map<String, DocumentInfo> listing = listParentIfWorthIt(chunk);
+
+        // Entries of documents taken from the listing are null.
+        final List<Future<DocumentInfo>> queries = new ArrayList<>(chunk.size());
+        final DocumentInfo[] docs = new DocumentInfo[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+            final Uri uri = chunk.get(i);
+            docs[i] = listing != null ? listing.get(getListedId(uri)) : null;
+            queries.add(docs[i] != null
+                    ? null : executor.submit(() -> DocumentInfo.fromUri(mResolver, uri)));
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            if (callback.isCanceled()) {
+                return false;
+            }
+
+            if (docs[i] != null) {
+                callback.onResolved(docs[i]);
+                continue;
+            }
+            try {
+                callback.onResolved(queries.get(i).get());
+            } catch (ExecutionException e) {
+                callback.onFailed(chunk.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onFailed(chunk.get(i), e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of times the parent was listed so far
+     */
+    @VisibleForTesting
+    int getListingCount() {
+        return mListingCount;
+    }
+
+    /**
+     * Lists the parent if it spares enough queries for the chunk.
+     *
+     * @return documents of the chunk found in the listing, by document id, or null if the
+     *     parent wasn't listed
+     */
+    private @Nullable Map<String, DocumentInfo> listParentIfWorthIt(List<Uri> chunk) {
+        if (mParentUri == null || mListingFailed) {
+            return null;
+        }
+
+        final Set<String> needed = new HashSet<>();
+        for (Uri uri : chunk) {
+            final String documentId = getListedId(uri);
+            if (documentId != null) {
+                needed.add(documentId);
+            }
+        }
+        if (needed.size() < MIN_LISTED_DOCUMENTS || !isWorthListing(needed.size())) {
+            return null;
+        }
+
+        final String authority = mParentUri.getAuthority();
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUri(
+                authority, DocumentsContract.getDocumentId(mParentUri));
+        ContentProviderClient client = null;
+        Cursor cursor = null;
+        try {
+            client = DocumentsApplication.acquireUnstableProviderOrThrow(mResolver, authority);
+            cursor = client.query(childrenUri, null, null, null, null);
+            mListingCount++;
+            mChildCount = cursor.getCount();
+            if (!isWorthListing(needed.size())) {
+                return null;
+            }
+
+            // Only documents of the chunk are kept, so the listing is dropped with the chunk.
+            final int idColumn = cursor.getColumnIndexOrThrow(Document.COLUMN_DOCUMENT_ID);
+            final Map<String, DocumentInfo> listing = new HashMap<>(needed.size());
+            while (cursor.moveToNext()) {
+                final String documentId = cursor.getString(idColumn);
+                if (needed.contains(documentId)) {
+                    listing.put(documentId, DocumentInfo.fromCursor(cursor, authority));
+                }
+            }
+            return listing;
+        } catch (RemoteException | RuntimeException e) {
+            Log.w(TAG, "Failed to list " + mParentUri + ". Querying documents one by one.", e);
+            mListingFailed = true;
+            return null;
+        } finally {
+            IoUtils.closeQuietly(cursor);
+            ContentProviderClient.releaseQuietly(client);
+        }
+    }
+
+    private boolean isWorthListing(int neededCount) {
+        return mChildCount < 0 || (long) neededCount * MAX_CHILDREN_PER_LISTED_DOCUMENT
+                >= mChildCount;
+    }
+
+    /**
+     * @return document id of the uri if it may be in the parent's listing, otherwise null
+     */
+    private @Nullable String getListedId(Uri uri) {
+        if (!mParentUri.getAuthority().equals(uri.getAuthority())) {
+            return null;
+        }
+        try {
+            return DocumentsContract.getDocumentId(uri);
+        } catch (IllegalArgumentException e) {
+            // Not a document uri. Querying it reports the failure.
+            return null;
+        }
+    }
+}
@@ -29,20 +29,25 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.UserManager;
 import android.support.annotation.VisibleForTesting;
+import android.util.JsonWriter;
 import android.util.Log;
 
 import com.android.documentsui.R;
 import com.android.documentsui.base.Features;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -97,7 +102,15 @@ public class FileOperationService extends Service implements Job.Listener {
 
     static final String NOTIFICATION_CHANNEL_ID = "channel_id";
 
-    private static final int POOL_SIZE = 2;  // "pool size", not *max* "pool size".
+    static final int POOL_SIZE = 3;  // "pool size", not *max* "pool size".
+    private static final int DELETION_POOL_SIZE = 3;
+
+    // Number of jobs working on the same root which run at the same time while jobs on other
+    // roots wait. Idle threads beyond it are lent to busy roots, see LaneScheduler.
+    private static final int LANE_SIZE = 1;
+
+    // Number of finished jobs whose metrics are kept for dumpsys.
+    private static final int MAX_FINISHED_METRICS = 10;
 
     private static final int NOTIFICATION_ID_PROGRESS = 0;
     private static final int NOTIFICATION_ID_FAILURE = 1;
@@ -111,9 +124,14 @@ public class FileOperationService extends Service implements Job.Listener {
     // Use a separate thread pool to prioritize deletions.
     @VisibleForTesting ExecutorService deletionExecutor;
 
+    private LaneScheduler mScheduler;
+    private LaneScheduler mDeletionScheduler;
+
     // Use a handler to schedule monitor tasks.
     @VisibleForTesting Handler handler;
 
+    private ProgressPublisher mProgressPublisher;
+
     // Use a foreground manager to change foreground state of this service.
     @VisibleForTesting ForegroundManager foregroundManager;
 
@@ -126,6 +144,9 @@ public class FileOperationService extends Service implements Job.Listener {
     @GuardedBy("mJobs")
     private final Map<String, JobRecord> mJobs = new HashMap<>();
 
+    @GuardedBy("mJobs")
+    private final ArrayDeque<JobMetrics> mFinishedMetrics = new ArrayDeque<>();
+
     // The job whose notification is used to keep the service in foreground mode.
     private final AtomicReference<Job> mForegroundJob = new AtomicReference<>();
 
@@ -142,9 +163,15 @@ public class FileOperationService extends Service implements Job.Listener {
         }
 
         if (deletionExecutor == null) {
-            deletionExecutor = Executors.newCachedThreadPool();
+            deletionExecutor = Executors.newFixedThreadPool(DELETION_POOL_SIZE);
         }
 
+        mScheduler = new LaneScheduler(
+                executor, POOL_SIZE, LANE_SIZE, this::postQueuedNotificationsUpdate);
+        mDeletionScheduler = new LaneScheduler(
+                deletionExecutor, DELETION_POOL_SIZE, LANE_SIZE,
+                this::postQueuedNotificationsUpdate);
+
         if (handler == null) {
             // Monitor tasks are small enough to schedule them on main thread.
             handler = new Handler();
@@ -158,6 +185,9 @@ public class FileOperationService extends Service implements Job.Listener {
             notificationManager = getSystemService(NotificationManager.class);
         }
 
+        mProgressPublisher =
+                new ProgressPublisher(notificationManager, handler, NOTIFICATION_ID_PROGRESS);
+
         features = new Features.RuntimeFeatures(getResources(), UserManager.get(this));
         setUpNotificationChannel();
 
@@ -179,8 +209,8 @@ public class FileOperationService extends Service implements Job.Listener {
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "Shutting down executor.");
 
-        List<Runnable> unfinishedCopies = executor.shutdownNow();
-        List<Runnable> unfinishedDeletions = deletionExecutor.shutdownNow();
+        List<Runnable> unfinishedCopies = mScheduler.shutdownNow();
+        List<Runnable> unfinishedDeletions = mDeletionScheduler.shutdownNow();
         List<Runnable> unfinished =
                 new ArrayList<>(unfinishedCopies.size() + unfinishedDeletions.size());
         unfinished.addAll(unfinishedCopies);
@@ -191,6 +221,8 @@ public class FileOperationService extends Service implements Job.Listener {
 
         executor = null;
         deletionExecutor = null;
+        mScheduler = null;
+        mDeletionScheduler = null;
         handler = null;
 
         if (DEBUG) Log.d(TAG, "Destroyed.");
@@ -239,8 +271,12 @@ public class FileOperationService extends Service implements Job.Listener {
 
             assert (job != null);
             if (DEBUG) Log.d(TAG, "Scheduling job " + job.id + ".");
-            Future<?> future = getExecutorService(operation.getOpType()).submit(job);
-            mJobs.put(jobId, new JobRecord(job, future));
+            mJobs.put(jobId, new JobRecord(job));
+            LaneScheduler scheduler = getScheduler(operation.getOpType());
+            scheduler.schedule(job);
+            if (scheduler.hasQueuedJobs()) {
+                handler.post(this::updateQueuedNotifications);
+            }
 
             // Acquire wake lock to keep CPU running until we finish all jobs. Acquire wake lock
             // after we create a job and put it in mJobs to avoid potential leaking of wake lock
@@ -270,6 +306,11 @@ public class FileOperationService extends Service implements Job.Listener {
             JobRecord record = mJobs.get(jobId);
             if (record != null) {
                 record.job.cancel();
+                // A job still waiting in its lane would never run, so it's finished right away.
+                // Otherwise it finishes once it notices the cancellation.
+                if (getScheduler(record.job.operationType).cancel(jobId)) {
+                    record.job.finishUnstarted();
+                }
             }
         }
 
@@ -278,24 +319,55 @@ public class FileOperationService extends Service implements Job.Listener {
         // Try to cancel it even if we don't have a job id...in case there is some sad
         // orphan notification.
         notificationManager.cancel(jobId, NOTIFICATION_ID_PROGRESS);
-
-        // TODO: Guarantee the job is being finalized
     }
 
-    private ExecutorService getExecutorService(@OpType int operationType) {
+    private LaneScheduler getScheduler(@OpType int operationType) {
         switch (operationType) {
             case OPERATION_COPY:
             case OPERATION_COMPRESS:
             case OPERATION_EXTRACT:
             case OPERATION_MOVE:
-                return executor;
+                return mScheduler;
             case OPERATION_DELETE:
-                return deletionExecutor;
+                return mDeletionScheduler;
             default:
                 throw new UnsupportedOperationException();
         }
     }
 
+    // Called on worker threads as queued jobs move up.
+    private void postQueuedNotificationsUpdate() {
+        final Handler handler = this.handler;
+        if (handler != null) {
+            handler.post(this::updateQueuedNotifications);
+        }
+    }
+
+    /**
+     * Shows how many jobs each queued job waits for. Runs on the same thread as monitors, which
+     * take over the notification once a job starts.
+     */
+    private void updateQueuedNotifications() {
+        synchronized (mJobs) {
+            if (mScheduler == null) {
+                return;
+            }
+
+            for (JobRecord record : mJobs.values()) {
+                Job job = record.job;
+                if (job.getState() != Job.STATE_CREATED) {
+                    continue;
+                }
+
+                int waitCount = getScheduler(job.operationType).getWaitCount(job);
+                if (waitCount >= 0) {
+                    notificationManager.notify(
+                            job.id, NOTIFICATION_ID_PROGRESS, job.getQueuedNotification(waitCount));
+                }
+            }
+        }
+    }
+
     @GuardedBy("mJobs")
     private void deleteJob(Job job) {
         if (DEBUG) Log.d(TAG, "deleteJob: " + job.id);
@@ -310,6 +382,11 @@ public class FileOperationService extends Service implements Job.Listener {
         assert(record != null);
         record.job.cleanup();
 
+        if (mFinishedMetrics.size() == MAX_FINISHED_METRICS) {
+            mFinishedMetrics.removeFirst();
+        }
+        mFinishedMetrics.addLast(job.metrics);
+
         // Delay the shutdown until we've cleaned up all notifications. shutdown() is now posted in
         // onFinished(Job job) to main thread.
     }
@@ -353,9 +430,7 @@ public class FileOperationService extends Service implements Job.Listener {
         notificationManager.notify(
                 job.id, NOTIFICATION_ID_PROGRESS, notification);
 
-        // Set up related monitor
-        JobMonitor monitor = new JobMonitor(job, notificationManager, handler);
-        monitor.start();
+        mProgressPublisher.add(job);
     }
 
     @Override
@@ -401,9 +476,20 @@ public class FileOperationService extends Service implements Job.Listener {
             } else {
                 if (DEBUG) Log.d(TAG, "Switch foreground job to " + candidate.id);
 
-                Notification notification = (candidate.getState() == Job.STATE_STARTED)
-                        ? candidate.getSetupNotification()
-                        : candidate.getProgressNotification();
+                Notification notification;
+                switch (candidate.getState()) {
+                    case Job.STATE_CREATED:
+                        int waitCount =
+                                getScheduler(candidate.operationType).getWaitCount(candidate);
+                        notification = candidate.getQueuedNotification(Math.max(waitCount, 0));
+                        break;
+                    case Job.STATE_STARTED:
+                        notification = candidate.getSetupNotification();
+                        break;
+                    default:
+                        notification = candidate.getProgressNotification();
+                        break;
+                }
                 foregroundManager.startForeground(NOTIFICATION_ID_PROGRESS, notification);
                 notificationManager.notify(candidate.id, NOTIFICATION_ID_PROGRESS,
                         notification);
@@ -437,53 +523,63 @@ public class FileOperationService extends Service implements Job.Listener {
 
     private static final class JobRecord {
         private final Job job;
-        private final Future<?> future;
 
-        public JobRecord(Job job, Future<?> future) {
+        public JobRecord(Job job) {
             this.job = job;
-            this.future = future;
         }
     }
 
     /**
-     * A class used to periodically polls state of a job.
-     *
-     * <p>It's possible that jobs hang because underlying document providers stop responding. We
-     * still need to update notifications if jobs hang, so instead of jobs pushing their states,
-     * we poll states of jobs.
+     * Dumps metrics of running and recently finished jobs. Pass --json to get them in a format
+     * suitable for offline analysis.
      */
-    private static final class JobMonitor implements Runnable {
-        private static final long PROGRESS_INTERVAL_MILLIS = 500L;
-
-        private final Job mJob;
-        private final NotificationManager mNotificationManager;
-        private final Handler mHandler;
-
-        private JobMonitor(Job job, NotificationManager notificationManager, Handler handler) {
-            mJob = job;
-            mNotificationManager = notificationManager;
-            mHandler = handler;
-        }
-
-        private void start() {
-            mHandler.post(this);
-        }
-
-        @Override
-        public void run() {
-            if (mJob.isFinished()) {
-                // Finish notification is already shown. Progress notification is removed.
-                // Just finish itself.
-                return;
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final List<JobMetrics> running = new ArrayList<>();
+        final List<JobMetrics> finished;
+        synchronized (mJobs) {
+            for (JobRecord record : mJobs.values()) {
+                running.add(record.job.metrics);
             }
+            finished = new ArrayList<>(mFinishedMetrics);
+        }
 
-            // Only job in set up state has progress bar
-            if (mJob.getState() == Job.STATE_SET_UP) {
-                mNotificationManager.notify(
-                        mJob.id, NOTIFICATION_ID_PROGRESS, mJob.getProgressNotification());
+        if (args != null && Arrays.asList(args).contains("--json")) {
+            try {
+                final JsonWriter writer = new JsonWriter(pw);
+                writer.setIndent("  ");
+                writer.beginObject();
+                writer.name("running").beginArray();
+                for (JobMetrics metrics : running) {
+                    metrics.dumpJson(writer);
+                }
+                writer.endArray();
+                writer.name("finished").beginArray();
+                for (JobMetrics metrics : finished) {
+                    metrics.dumpJson(writer);
+                }
+                writer.endArray();
+                writer.endObject();
+                writer.flush();
+                pw.println();
+            } catch (IOException e) {
+                pw.println("Failed to dump metrics: " + e);
             }
+            return;
+        }
 
-            mHandler.postDelayed(this, PROGRESS_INTERVAL_MILLIS);
+        pw.println("Running jobs: " + running.size());
+        for (JobMetrics metrics : running) {
+            metrics.dump(pw, "  ");
+        }
+        pw.println("Recently finished jobs: " + finished.size());
+        for (JobMetrics metrics : finished) {
+            metrics.dump(pw, "  ");
+        }
+        final ProgressPublisher publisher = mProgressPublisher;
+        if (publisher != null) {
+            pw.println("Progress notifications: published=" + publisher.getPublishedCount()
+                    + " suppressed=" + publisher.getSuppressedCount());
         }
     }
 
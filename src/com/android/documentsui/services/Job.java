@@ -47,6 +47,7 @@ import com.android.documentsui.R;
 import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.base.DocumentStack;
 import com.android.documentsui.base.Features;
+import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.base.Shared;
 import com.android.documentsui.clipping.UrisSupplier;
 import com.android.documentsui.files.FilesActivity;
@@ -101,6 +102,8 @@ abstract public class Job implements Runnable {
 
     final Notification.Builder mProgressBuilder;
 
+    final JobMetrics metrics;
+
     private final Map<String, ContentProviderClient> mClients = new HashMap<>();
     private final Features mFeatures;
 
@@ -133,6 +136,7 @@ abstract public class Job implements Runnable {
 
         mFeatures = features;
 
+        metrics = new JobMetrics(id, opType);
         mProgressBuilder = createProgressBuilder();
     }
 
@@ -140,10 +144,12 @@ abstract public class Job implements Runnable {
     public final void run() {
         if (isCanceled()) {
             // Canceled before running
+            finishUnstarted();
             return;
         }
 
         mState = STATE_STARTED;
+        metrics.onStarted();
         listener.onStart(this);
 
         try {
@@ -160,6 +166,8 @@ abstract public class Job implements Runnable {
         } finally {
             mState = (mState == STATE_STARTED || mState == STATE_SET_UP) ? STATE_COMPLETED : mState;
             finish();
+            metrics.onFinished(isCanceled() ? "canceled"
+                    : hasFailures() ? "completed with failures" : "completed");
             listener.onFinished(this);
 
             // NOTE: If this details is a JumboClipDetails, and it's still referred in primary clip
@@ -168,6 +176,16 @@ abstract public class Job implements Runnable {
         }
     }
 
+    /**
+     * Finishes a job which was canceled before it started, e.g. while it was queued.
+     */
+    final void finishUnstarted() {
+        assert(isCanceled());
+        metrics.onFinished("canceled");
+        listener.onFinished(this);
+        mResourceUris.dispose();
+    }
+
     boolean setUp() {
         return true;
     }
@@ -182,11 +200,20 @@ abstract public class Job implements Runnable {
 
     abstract Notification getWarningNotification();
 
+    /**
+     * @return the completed fraction of the job, or -1 if unknown. Used to skip rebuilding the
+     *         progress notification while the progress doesn't move.
+     */
+    double getCompletedFraction() {
+        return -1;
+    }
+
     Uri getDataUriForIntent(String tag) {
         return Uri.parse(String.format("data,%s-%s", tag, id));
     }
 
-    ContentProviderClient getClient(Uri uri) throws RemoteException {
+    // Synchronized, as copy jobs obtain clients from several worker threads.
+    synchronized ContentProviderClient getClient(Uri uri) throws RemoteException {
         ContentProviderClient client = mClients.get(uri.getAuthority());
         if (client == null) {
             // Acquire content providers.
@@ -205,7 +232,7 @@ abstract public class Job implements Runnable {
         return getClient(doc.derivedUri);
     }
 
-    final void cleanup() {
+    final synchronized void cleanup() {
         for (ContentProviderClient client : mClients.values()) {
             ContentProviderClient.releaseQuietly(client);
         }
@@ -253,6 +280,7 @@ abstract public class Job implements Runnable {
     final void deleteDocument(DocumentInfo doc, @Nullable DocumentInfo parent)
             throws ResourceException {
         try {
+            metrics.onProviderCall();
             if (parent != null && doc.isRemoveSupported()) {
                 DocumentsContract.removeDocument(getClient(doc), doc.derivedUri, parent.derivedUri);
             } else if (doc.isDeleteSupported()) {
@@ -267,9 +295,43 @@ abstract public class Job implements Runnable {
         }
     }
 
+    /**
+     * Returns the key of the lane this job is scheduled in by {@link LaneScheduler}. Jobs working
+     * on the same root share a lane, as they most likely compete for the same device.
+     */
+    String getLane() {
+        final RootInfo root = stack.getRoot();
+        if (root != null) {
+            return root.authority + ":" + root.rootId;
+        }
+        return stack.isEmpty() ? "" : stack.peek().authority;
+    }
+
+    /**
+     * Returns the user visible name of the lane this job is scheduled in, if known.
+     */
+    @Nullable String getLaneTitle() {
+        final RootInfo root = stack.getRoot();
+        return root != null ? root.title : null;
+    }
+
     Notification getSetupNotification(String content) {
         mProgressBuilder.setProgress(0, 0, true)
-                .setContentText(content);
+                .setContentText(content)
+                .setSubText(getLaneTitle());
+        return mProgressBuilder.build();
+    }
+
+    /**
+     * Returns the notification shown while this job waits for other jobs in its lane.
+     *
+     * @param waitCount number of jobs this job is waiting for
+     */
+    Notification getQueuedNotification(int waitCount) {
+        mProgressBuilder.setProgress(0, 0, true)
+                .setContentText(service.getResources().getQuantityString(
+                        R.plurals.notification_queued, waitCount, waitCount))
+                .setSubText(getLaneTitle());
         return mProgressBuilder.build();
     }
 
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.services.FileOperationService.OPERATION_COMPRESS;
+import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
+import static com.android.documentsui.services.FileOperationService.OPERATION_DELETE;
+import static com.android.documentsui.services.FileOperationService.OPERATION_EXTRACT;
+import static com.android.documentsui.services.FileOperationService.OPERATION_MOVE;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.JsonWriter;
+
+import com.android.documentsui.services.FileOperationService.OpType;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Records where a job spends its time: throughput over time, per file latencies of opening,
+ * reading, writing and syncing, provider calls, resolution time and retries.
+ *
+ * <p>Updated from worker threads without locking, except for the rare throughput sample. Dumped
+ * by {@link FileOperationService#dump}, as text or as JSON for offline analysis.
+ */
+final class JobMetrics {
+
+    static final int LATENCY_OPEN = 0;
+    static final int LATENCY_READ = 1;
+    static final int LATENCY_WRITE = 2;
+    static final int LATENCY_FSYNC = 3;
+    private static final String[] LATENCY_NAMES = { "open", "read", "write", "fsync" };
+
+    private static final int MAX_SAMPLES = 64;
+    private static final long MIN_SAMPLE_INTERVAL_MILLIS = 1000L;
+
+    private final String mJobId;
+    private final @OpType int mOpType;
+
+    private final Histogram[] mLatencies = new Histogram[LATENCY_NAMES.length];
+    private final AtomicLong mBytesCopied = new AtomicLong();
+    private final AtomicInteger mFilesCopied = new AtomicInteger();
+    private final AtomicInteger mProviderCalls = new AtomicInteger();
+    private final AtomicInteger mRetries = new AtomicInteger();
+
+    private volatile long mStartTime = -1;
+    private volatile long mFinishTime = -1;
+    private volatile long mResolveMillis = -1;
+    private volatile String mResult = "pending";
+
+    // Total bytes copied by the sample times. When full, every other sample is dropped and the
+    // interval doubles, so the whole job is covered at a decreasing resolution.
+    @GuardedBy("this")
+    private final long[] mSampleTimes = new long[MAX_SAMPLES];
+    @GuardedBy("this")
+    private final long[] mSampleBytes = new long[MAX_SAMPLES];
+    @GuardedBy("this")
+    private int mSampleCount;
+    @GuardedBy("this")
+    private long mSampleInterval = MIN_SAMPLE_INTERVAL_MILLIS;
+    private volatile long mNextSampleTime = Long.MAX_VALUE;
+
+    JobMetrics(String jobId, @OpType int opType) {
+        mJobId = jobId;
+        mOpType = opType;
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new Histogram();
+        }
+    }
+
+    void onStarted() {
+        mStartTime = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            takeSampleLocked(mStartTime);
+        }
+    }
+
+    void onFinished(String result) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            takeSampleLocked(now);
+        }
+        mResult = result;
+        mFinishTime = now;
+    }
+
+    void onResolved(long millis) {
+        mResolveMillis = millis;
+    }
+
+    void onBytesCopied(long numBytes) {
+        mBytesCopied.addAndGet(numBytes);
+
+        final long now = SystemClock.elapsedRealtime();
+        if (now >= mNextSampleTime) {
+            synchronized (this) {
+                if (now >= mNextSampleTime) {
+                    takeSampleLocked(now);
+                }
+            }
+        }
+    }
+
+    void onFileCopied() {
+        mFilesCopied.incrementAndGet();
+    }
+
+    void onProviderCall() {
+        mProviderCalls.incrementAndGet();
+    }
+
+    void onRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    /**
+     * @param type one of {@link #LATENCY_OPEN}, {@link #LATENCY_READ}, {@link #LATENCY_WRITE} and
+     *     {@link #LATENCY_FSYNC}
+     */
+    void recordLatency(int type, long nanos) {
+        mLatencies[type].record(nanos);
+    }
+
+    long getBytesCopied() {
+        return mBytesCopied.get();
+    }
+
+    int getProviderCalls() {
+        return mProviderCalls.get();
+    }
+
+    int getRetries() {
+        return mRetries.get();
+    }
+
+    long getLatencyCount(int type) {
+        return mLatencies[type].mCount.get();
+    }
+
+    @GuardedBy("this")
+    private void takeSampleLocked(long now) {
+        if (mSampleCount == MAX_SAMPLES) {
+            // Keep the first sample, so the series still starts when the job did.
+            int kept = 1;
+            for (int i = 2; i < mSampleCount; i += 2) {
+                mSampleTimes[kept] = mSampleTimes[i];
+                mSampleBytes[kept] = mSampleBytes[i];
+                kept++;
+            }
+            mSampleCount = kept;
+            mSampleInterval *= 2;
+        }
+        mSampleTimes[mSampleCount] = now;
+        mSampleBytes[mSampleCount] = mBytesCopied.get();
+        mSampleCount++;
+        mNextSampleTime = now + mSampleInterval;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final long start = mStartTime;
+        final long end = mFinishTime >= 0 ? mFinishTime : SystemClock.elapsedRealtime();
+        final long elapsed = start >= 0 ? end - start : 0;
+        final long bytes = mBytesCopied.get();
+
+        pw.print(prefix); pw.print("Job "); pw.print(mJobId);
+        pw.print(" ("); pw.print(opTypeToString(mOpType)); pw.print(", "); pw.print(mResult);
+        pw.println("):");
+        prefix += "  ";
+        pw.print(prefix); pw.print("elapsed="); pw.print(elapsed); pw.print("ms");
+        pw.print(" resolve="); pw.print(mResolveMillis); pw.print("ms");
+        pw.print(" files="); pw.print(mFilesCopied.get());
+        pw.print(" bytes="); pw.print(bytes);
+        pw.print(" avg="); pw.print(elapsed > 0 ? bytes * 1000 / elapsed : 0); pw.println("B/s");
+        pw.print(prefix); pw.print("providerCalls="); pw.print(mProviderCalls.get());
+        pw.print(" retries="); pw.println(mRetries.get());
+
+        pw.print(prefix); pw.print("throughput (s: B/s):");
+        synchronized (this) {
+            for (int i = 1; i < mSampleCount; i++) {
+                final long duration = mSampleTimes[i] - mSampleTimes[i - 1];
+                pw.print(' ');
+                pw.print((mSampleTimes[i] - mSampleTimes[0]) / 1000);
+                pw.print(':');
+                pw.print(duration > 0
+                        ? (mSampleBytes[i] - mSampleBytes[i - 1]) * 1000 / duration : 0);
+            }
+        }
+        pw.println();
+
+        for (int i = 0; i < mLatencies.length; i++) {
+            pw.print(prefix); pw.print(LATENCY_NAMES[i]); pw.print(' ');
+            mLatencies[i].dump(pw);
+        }
+    }
+
+    void dumpJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(mJobId);
+        writer.name("operation").value(opTypeToString(mOpType));
+        writer.name("result").value(mResult);
+        writer.name("startTime").value(mStartTime);
+        writer.name("finishTime").value(mFinishTime);
+        writer.name("resolveMillis").value(mResolveMillis);
+        writer.name("files").value(mFilesCopied.get());
+        writer.name("bytes").value(mBytesCopied.get());
+        writer.name("providerCalls").value(mProviderCalls.get());
+        writer.name("retries").value(mRetries.get());
+
+        writer.name("samples").beginArray();
+        synchronized (this) {
+            for (int i = 0; i < mSampleCount; i++) {
+                writer.beginArray().value(mSampleTimes[i]).value(mSampleBytes[i]).endArray();
+            }
+        }
+        writer.endArray();
+
+        writer.name("latencies").beginObject();
+        for (int i = 0; i < mLatencies.length; i++) {
+            writer.name(LATENCY_NAMES[i]);
+            mLatencies[i].dumpJson(writer);
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private static String opTypeToString(@OpType int opType) {
+        switch (opType) {
+            case OPERATION_COPY:
+                return "copy";
+            case OPERATION_COMPRESS:
+                return "compress";
+            case OPERATION_EXTRACT:
+                return "extract";
+            case OPERATION_MOVE:
+                return "move";
+            case OPERATION_DELETE:
+                return "delete";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * A lock free histogram of latencies, in buckets of powers of two microseconds.
+     */
+    @VisibleForTesting
+    static final class Histogram {
+        private static final int BUCKETS = 28;  // The last one holds everything from ~67s up.
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+
+        void record(long nanos) {
+            mBuckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+        }
+
+        /**
+         * Returns the bucket of a latency. Bucket i holds latencies below 2^i us.
+         */
+        @VisibleForTesting
+        static int bucketOf(long micros) {
+            return Math.min(64 - Long.numberOfLeadingZeros(Math.max(micros, 0)), BUCKETS - 1);
+        }
+
+        private void dump(PrintWriter pw) {
+            final long count = mCount.get();
+            pw.print("count="); pw.print(count);
+            pw.print(" avg=");
+            pw.print(count > 0 ? TimeUnit.NANOSECONDS.toMicros(mTotalNanos.get() / count) : 0);
+            pw.print("us");
+            for (int i = 0; i < BUCKETS; i++) {
+                final long n = mBuckets.get(i);
+                if (n > 0) {
+                    pw.print(" <"); pw.print(1L << i); pw.print("us:"); pw.print(n);
+                }
+            }
+            pw.println();
+        }
+
+        private void dumpJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("count").value(mCount.get());
+            writer.name("totalNanos").value(mTotalNanos.get());
+            writer.name("bucketsLog2Micros").beginArray();
+            for (int i = 0; i < BUCKETS; i++) {
+                writer.value(mBuckets.get(i));
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.base.Shared.DEBUG;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Runs jobs on an executor, grouped in lanes by the storage they work on (see
+ * {@link Job#getLane()}), so a few long jobs on a slow device don't hold up jobs on other
+ * devices.
+ *
+ * <p>At most {@code slots} jobs run at the same time. Lanes with queued jobs take turns, and
+ * each runs at most {@code laneSlots} jobs at the same time. Idle slots are lent to the oldest
+ * queued job of a lane at its limit, but {@code laneSlots} slots are kept free, so a job on
+ * another root can still start right away.
+ */
+final class LaneScheduler {
+    private static final String TAG = "LaneScheduler";
+
+    private final ExecutorService mExecutor;
+    private final int mSlots;
+    private final int mLaneSlots;
+    private final @Nullable Runnable mQueueListener;
+
+    @GuardedBy("mLanes")
+    private final Map<String, Lane> mLanes = new HashMap<>();
+
+    @GuardedBy("mLanes")
+    private int mRunning;
+
+    @GuardedBy("mLanes")
+    private long mNextSequence;
+
+    @GuardedBy("mLanes")
+    private long mTurn;
+
+    /**
+     * @param queueListener called on a worker thread whenever queued jobs move up in the queue
+     */
+    LaneScheduler(ExecutorService executor, int slots, int laneSlots,
+            @Nullable Runnable queueListener) {
+        assert(slots > 0 && laneSlots > 0);
+        mExecutor = executor;
+        mSlots = slots;
+        mLaneSlots = laneSlots;
+        mQueueListener = queueListener;
+    }
+
+    void schedule(Job job) {
+        synchronized (mLanes) {
+            Lane lane = mLanes.get(job.getLane());
+            if (lane == null) {
+                lane = new Lane(job.getLane());
+                mLanes.put(lane.key, lane);
+            }
+            lane.queue.add(new Entry(job, mNextSequence++));
+            dispatchLocked();
+        }
+    }
+
+    /**
+     * Drops the job from its lane if it's still queued. A dropped job is never run, so it's up
+     * to the caller to finish it.
+     *
+     * @return false if there's no such queued job, e.g. because it's already running
+     */
+    boolean cancel(String jobId) {
+        final boolean queued;
+        synchronized (mLanes) {
+            Lane found = null;
+            for (Lane lane : mLanes.values()) {
+                if (lane.queue.removeIf(entry -> entry.job.id.equals(jobId))) {
+                    found = lane;
+                    break;
+                }
+            }
+            if (found == null) {
+                return false;
+            }
+            if (found.running == 0 && found.queue.isEmpty()) {
+                mLanes.remove(found.key);
+            }
+            queued = hasQueuedJobsLocked();
+        }
+
+        // Jobs queued behind it moved up.
+        if (queued && mQueueListener != null) {
+            mQueueListener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of jobs the given job is waiting for, or -1 if it isn't queued.
+     */
+    int getWaitCount(Job job) {
+        synchronized (mLanes) {
+            final Lane lane = mLanes.get(job.getLane());
+            if (lane == null) {
+                return -1;
+            }
+
+            int ahead = lane.running;
+            for (Entry entry : lane.queue) {
+                if (entry.job == job) {
+                    return ahead;
+                }
+                ahead++;
+            }
+            return -1;
+        }
+    }
+
+    boolean hasQueuedJobs() {
+        synchronized (mLanes) {
+            return hasQueuedJobsLocked();
+        }
+    }
+
+    /**
+     * Drops all queued jobs and shuts down the executor.
+     *
+     * @return jobs which never started, and tasks the executor didn't run
+     */
+    List<Runnable> shutdownNow() {
+        final List<Runnable> unfinished = new ArrayList<>();
+        synchronized (mLanes) {
+            for (Lane lane : mLanes.values()) {
+                for (Entry entry : lane.queue) {
+                    unfinished.add(entry.job);
+                }
+            }
+            mLanes.clear();
+        }
+        unfinished.addAll(mExecutor.shutdownNow());
+        return unfinished;
+    }
+
+    private void onJobFinished(Lane lane) {
+        final boolean queued;
+        synchronized (mLanes) {
+            mRunning--;
+            lane.running--;
+            if (lane.running == 0 && lane.queue.isEmpty() && mLanes.get(lane.key) == lane) {
+                mLanes.remove(lane.key);
+            }
+            queued = dispatchLocked();
+        }
+
+        if (queued && mQueueListener != null) {
+            mQueueListener.run();
+        }
+    }
+
+    /**
+     * Starts queued jobs while there are free slots.
+     *
+     * @return whether jobs are still queued
+     */
+    @GuardedBy("mLanes")
+    private boolean dispatchLocked() {
+        while (mRunning < mSlots) {
+            // The lane which got a slot the longest ago takes its turn.
+            Lane next = null;
+            Lane oldest = null;
+            for (Lane lane : mLanes.values()) {
+                if (lane.queue.isEmpty()) {
+                    continue;
+                }
+                if (lane.running < mLaneSlots) {
+                    if (next == null || lane.turn < next.turn
+                            || (lane.turn == next.turn && lane.isOlderThan(next))) {
+                        next = lane;
+                    }
+                } else if (oldest == null || lane.isOlderThan(oldest)) {
+                    oldest = lane;
+                }
+            }
+
+            if (next == null) {
+                if (oldest == null) {
+                    return false;
+                }
+                if (mRunning + mLaneSlots >= mSlots) {
+                    return true;
+                }
+                // Every lane with queued jobs is at its limit. Steal an idle slot for the job
+                // that waited the longest.
+                if (DEBUG) Log.d(TAG, "Lending a slot to lane " + oldest.key + ".");
+                next = oldest;
+            }
+
+            next.turn = mTurn++;
+            final Job job = next.queue.poll().job;
+            final Lane lane = next;
+            mRunning++;
+            lane.running++;
+            if (DEBUG) Log.d(TAG, "Starting job " + job.id + " in lane " + lane.key + ".");
+            mExecutor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    onJobFinished(lane);
+                }
+            });
+        }
+
+        return hasQueuedJobsLocked();
+    }
+
+    @GuardedBy("mLanes")
+    private boolean hasQueuedJobsLocked() {
+        for (Lane lane : mLanes.values()) {
+            if (!lane.queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Lane {
+        private final String key;
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private int running;
+        // When the lane last got a slot, or -1 if never.
+        private long turn = -1;
+
+        private Lane(String key) {
+            this.key = key;
+        }
+
+        private boolean isOlderThan(Lane other) {
+            return queue.peek().sequence < other.queue.peek().sequence;
+        }
+    }
+
+    private static final class Entry {
+        private final Job job;
+        private final long sequence;
+
+        private Entry(Job job, long sequence) {
+            this.job = job;
+            this.sequence = sequence;
+        }
+    }
+}
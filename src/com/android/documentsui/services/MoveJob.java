@@ -38,6 +38,14 @@ import com.android.documentsui.base.Features;
 import com.android.documentsui.clipping.UrisSupplier;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -46,11 +54,19 @@ final class MoveJob extends CopyJob {
 
     private static final String TAG = "MoveJob";
 
+    // Number of provider side moves in flight at the same time. They're mostly renames, so the
+    // binder round-trip dominates.
+    private static final int MAX_CONCURRENT_MOVES = 4;
+
     private final @Nullable Uri mSrcParentUri;
 
     // mSrcParent may be populated during setup.
     private @Nullable DocumentInfo mSrcParent;
 
+    // Source authorities and destination roots between which provider side moves are not
+    // supported. Guarded by itself, as it's shared by copy workers.
+    private final Set<String> mMovesUnsupported = new HashSet<>();
+
     /**
      * Moves files to a destination identified by {@code destination}.
      * Performs most work by delegating to CopyJob, then deleting
@@ -64,6 +80,11 @@ final class MoveJob extends CopyJob {
         mSrcParentUri = srcParent;
     }
 
+    @Override
+    @Nullable Uri getSrcParentUri() {
+        return mSrcParentUri;
+    }
+
     @Override
     Builder createProgressBuilder() {
         return super.createProgressBuilder(
@@ -114,55 +135,165 @@ final class MoveJob extends CopyJob {
      * enough free space if docs are moved from another authority.
      */
     @Override
-    boolean checkSpace() {
+    long getSpaceRequired() {
         long size = 0;
-        for (DocumentInfo src : mResolvedDocs) {
+        for (int i = 0; i < mResolvedDocs.size(); ++i) {
+            final DocumentInfo src = mResolvedDocs.get(i);
             if (!src.authority.equals(stack.getRoot().authority)) {
-                if (src.isDirectory()) {
-                    try {
-                        size += calculateFileSizesRecursively(getClient(src), src.derivedUri);
-                    } catch (RemoteException|ResourceException e) {
-                        Log.w(TAG, "Failed to obtain client for %s" + src.derivedUri + ".", e);
-
-                        // Failed to calculate size, but move may still succeed.
-                        return true;
-                    }
-                } else {
-                    size += src.size;
+                final long docSize = getBytesRequired(i);
+                if (docSize < 0) {
+                    // Failed to calculate size, but move may still succeed.
+                    return -1;
                 }
+                size += docSize;
             }
         }
+        return size;
+    }
 
-        return verifySpaceAvailable(size);
+    @Override
+    void start() {
+        moveTopLevelDocuments();
+        super.start();
     }
 
-    void processDocument(DocumentInfo src, DocumentInfo srcParent, DocumentInfo dest)
-            throws ResourceException {
+    /**
+     * Moves the top level documents which their provider can move on its own, before the byte
+     * copy starts. They all share the source parent, so the first move probes whether the
+     * provider supports moving to the destination. If it doesn't, none of the other documents is
+     * tried and they're all byte copied. Otherwise the rest are moved concurrently, and only
+     * the documents which failed to move are byte copied.
+     */
+    private void moveTopLevelDocuments() {
+        if (mSrcParent == null) {
+            return;
+        }
 
-        // TODO: When optimized move kicks in, we're not making any progress updates. FIX IT!
+        final List<Integer> movable = new ArrayList<>();
+        for (int i = 0; i < mResolvedDocs.size(); ++i) {
+            final DocumentInfo src = mResolvedDocs.get(i);
+            if (canMoveInProvider(src, mDstInfo) && !isRecursiveMove(src)) {
+                movable.add(i);
+            }
+        }
+        if (movable.isEmpty() || isCanceled()) {
+            return;
+        }
 
-        // When moving within the same provider, try to use optimized moving.
-        // If not supported, then fallback to byte-by-byte copy/move.
-        if (src.authority.equals(dest.authority) && (srcParent != null || mSrcParent != null)) {
-            if ((src.flags & Document.FLAG_SUPPORTS_MOVE) != 0) {
+        if (DEBUG) Log.d(TAG, "Moving " + movable.size() + " documents within their provider.");
+        final int probe = movable.remove(0);
+        final DocumentInfo probeDoc = mResolvedDocs.get(probe);
+        if (moveInProvider(probeDoc, mSrcParent, mDstInfo)) {
+            markProcessed(probe);
+        }
+
+        // Failures specific to the probed document don't stop the others from being tried.
+        if (movable.isEmpty() || !canMoveInProvider(probeDoc, mDstInfo)) {
+            return;
+        }
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_MOVES, movable.size()));
+        try {
+            final List<Future<Boolean>> moves = new ArrayList<>(movable.size());
+            for (int index : movable) {
+                final DocumentInfo src = mResolvedDocs.get(index);
+                moves.add(executor.submit(() -> !isCanceled()
+                        && moveInProvider(src, mSrcParent, mDstInfo)));
+            }
+
+            for (int i = 0; i < moves.size(); ++i) {
                 try {
-                    if (DocumentsContract.moveDocument(getClient(src), src.derivedUri,
-                            srcParent != null ? srcParent.derivedUri : mSrcParent.derivedUri,
-                            dest.derivedUri) != null) {
-                        Metrics.logFileOperated(
-                                appContext, operationType, Metrics.OPMODE_PROVIDER);
-                        return;
+                    if (moves.get(i).get()) {
+                        markProcessed(movable.get(i));
                     }
-                } catch (RemoteException | RuntimeException e) {
-                    Metrics.logFileOperationFailure(
-                            appContext, Metrics.SUBFILEOP_QUICK_MOVE, src.derivedUri);
-                    Log.e(TAG, "Provider side move failed for: " + src.derivedUri
-                            + " due to an exception: ", e);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Unexpected failure while moving documents.", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether the document is a directory which would be moved into itself. Recursive
+     * moves are left for the copy to skip and report.
+     */
+    private boolean isRecursiveMove(DocumentInfo src) {
+        if (!src.isDirectory()) {
+            return false;
+        }
+        try {
+            return mDstInfo.equals(src) || isDescendentOf(src, mDstInfo);
+        } catch (ResourceException e) {
+            return true;
+        }
+    }
+
+    private boolean canMoveInProvider(DocumentInfo src, DocumentInfo dest) {
+        if (!src.authority.equals(dest.authority)
+                || (src.flags & Document.FLAG_SUPPORTS_MOVE) == 0) {
+            return false;
+        }
+        synchronized (mMovesUnsupported) {
+            return !mMovesUnsupported.contains(getMoveSupportKey(src));
+        }
+    }
+
+    /**
+     * Asks the provider to move the document. If the provider doesn't support moves, no other
+     * document between the same authority and root is moved by the provider anymore. Other
+     * failures are likely specific to the document, so they leave the next ones to be tried.
+     *
+     * @return whether the document was moved
+     */
+    private boolean moveInProvider(DocumentInfo src, DocumentInfo srcParent, DocumentInfo dest) {
+        boolean moved = false;
+        try {
+            metrics.onProviderCall();
+            moved = DocumentsContract.moveDocument(getClient(src), src.derivedUri,
+                    srcParent.derivedUri, dest.derivedUri) != null;
+        } catch (RemoteException | RuntimeException e) {
+            Metrics.logFileOperationFailure(
+                    appContext, Metrics.SUBFILEOP_QUICK_MOVE, src.derivedUri);
+            Log.e(TAG, "Provider side move failed for: " + src.derivedUri
+                    + " due to an exception: ", e);
+            if (e instanceof UnsupportedOperationException) {
+                synchronized (mMovesUnsupported) {
+                    mMovesUnsupported.add(getMoveSupportKey(src));
                 }
-                // If optimized move fails, then fallback to byte-by-byte copy.
-                if (DEBUG) Log.d(TAG, "Fallback to byte-by-byte move for: " + src.derivedUri);
             }
         }
+        if (!moved) {
+            // The document is going to be copied by bytes instead.
+            metrics.onRetry();
+        }
+
+        if (moved) {
+            Metrics.logFileOperated(appContext, operationType, Metrics.OPMODE_PROVIDER);
+        } else if (DEBUG) {
+            // If optimized move fails, then fallback to byte-by-byte copy.
+            Log.d(TAG, "Fallback to byte-by-byte move for: " + src.derivedUri);
+        }
+        return moved;
+    }
+
+    private String getMoveSupportKey(DocumentInfo src) {
+        return src.authority + "|" + stack.getRoot().rootId;
+    }
+
+    void processDocument(DocumentInfo src, DocumentInfo srcParent, DocumentInfo dest)
+            throws ResourceException {
+
+        // When moving within the same provider, try to use optimized moving.
+        // If not supported, then fallback to byte-by-byte copy/move. Top level documents were
+        // already tried in moveTopLevelDocuments().
+        if (srcParent != null && canMoveInProvider(src, dest)
+                && moveInProvider(src, srcParent, dest)) {
+            return;
+        }
 
         // Moving virtual files by bytes is not supported. This is because, it would involve
         // conversion, and the source file should not be deleted in such case (as it's a different
@@ -173,11 +304,15 @@ final class MoveJob extends CopyJob {
         }
 
         // If we couldn't do an optimized copy...we fall back to vanilla byte copy.
-        byteCopyDocument(src, dest);
+        if (src.isDirectory()) {
+            byteCopyDocument(src, dest);
 
-        // Remove the source document.
-        if(!isCanceled()) {
-            deleteDocument(src, srcParent);
+            // Children are copied asynchronously, so the source directory is removed once they're
+            // all done. Nested directories are done first, so they're removed before their parents.
+            afterFileCopies(() -> deleteDocument(src, srcParent));
+        } else {
+            // Remove the source document once its bytes made it to the destination.
+            byteCopyDocument(src, dest, () -> deleteDocument(src, srcParent));
         }
     }
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.base.Shared.DEBUG;
+
+import android.app.NotificationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Periodically polls progress of running jobs, and updates their progress notifications.
+ *
+ * <p>It's possible that jobs hang because underlying document providers stop responding. We
+ * still need to update notifications if jobs hang, so instead of jobs pushing their states,
+ * we poll states of jobs.
+ *
+ * <p>All jobs are polled on a single tick. A notification is rebuilt only if the shown progress
+ * moved, or if it hasn't been updated for a while, e.g. to refresh the remaining time of a
+ * stalled copy. Slow jobs are checked less often, depending on how long their progress took to
+ * move recently. Everything runs on the thread of the handler.
+ */
+final class ProgressPublisher implements Runnable {
+    private static final String TAG = "ProgressPublisher";
+
+    @VisibleForTesting
+    static final long TICK_MILLIS = 500L;
+
+    // A notification is updated at least this often, even if the shown progress didn't move.
+    @VisibleForTesting
+    static final long MAX_SILENCE_MILLIS = 5000L;
+
+    // Progress moves when it crosses a percent, as that's what the progress bar can show.
+    private static final int PROGRESS_STEPS = 100;
+
+    private final NotificationManager mNotificationManager;
+    private final Handler mHandler;
+    private final int mNotificationId;
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    private boolean mScheduled;
+
+    private int mPublishedCount;
+    private int mSuppressedCount;
+
+    ProgressPublisher(NotificationManager notificationManager, Handler handler,
+            int notificationId) {
+        mNotificationManager = notificationManager;
+        mHandler = handler;
+        mNotificationId = notificationId;
+    }
+
+    /**
+     * Starts publishing progress of the job until it's finished. Can be called on any thread.
+     */
+    void add(Job job) {
+        mHandler.post(() -> {
+            final Entry entry = new Entry(job);
+            mEntries.add(entry);
+            update(entry, SystemClock.uptimeMillis());
+
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(this, TICK_MILLIS);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        final long now = SystemClock.uptimeMillis();
+        for (Iterator<Entry> iter = mEntries.iterator(); iter.hasNext(); ) {
+            final Entry entry = iter.next();
+            if (entry.job.isFinished()) {
+                // Finish notification is already shown. Progress notification is removed.
+                iter.remove();
+                continue;
+            }
+            update(entry, now);
+        }
+
+        if (mEntries.isEmpty()) {
+            if (DEBUG) Log.d(TAG, "Idle. Published " + mPublishedCount + " updates, suppressed "
+                    + mSuppressedCount + ".");
+            mScheduled = false;
+            return;
+        }
+        mHandler.postDelayed(this, TICK_MILLIS);
+    }
+
+    /**
+     * @return number of progress notifications posted so far
+     */
+    int getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * @return number of times a progress notification was due, but skipped as the progress
+     *         didn't move or the job is slow
+     */
+    int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    private void update(Entry entry, long now) {
+        final Job job = entry.job;
+        // Only job in set up state has progress bar
+        if (job.getState() != Job.STATE_SET_UP) {
+            return;
+        }
+
+        if (entry.ticksToSkip > 0) {
+            --entry.ticksToSkip;
+            ++mSuppressedCount;
+            return;
+        }
+
+        final double fraction = job.getCompletedFraction();
+        final boolean published = entry.lastPublishTime >= 0;
+        final boolean moved = fraction < 0 || entry.lastFraction < 0
+                || toStep(fraction) != toStep(entry.lastFraction);
+        if (published && !moved && now - entry.lastPublishTime < MAX_SILENCE_MILLIS) {
+            ++mSuppressedCount;
+            return;
+        }
+
+        mNotificationManager.notify(job.id, mNotificationId, job.getProgressNotification());
+        ++mPublishedCount;
+
+        // Don't check again before the progress is likely to have moved by a step.
+        if (published && fraction > entry.lastFraction && entry.lastFraction >= 0) {
+            final double steps = (fraction - entry.lastFraction) * PROGRESS_STEPS;
+            final long interval = (long) ((now - entry.lastPublishTime) / steps);
+            entry.ticksToSkip = (int) (Math.min(interval, MAX_SILENCE_MILLIS) / TICK_MILLIS) - 1;
+        }
+        entry.lastPublishTime = now;
+        entry.lastFraction = fraction;
+    }
+
+    private static int toStep(double fraction) {
+        return (int) (fraction * PROGRESS_STEPS);
+    }
+
+    private static final class Entry {
+        private final Job job;
+        private double lastFraction = -1;
+        private long lastPublishTime = -1;
+        private int ticksToSkip;
+
+        private Entry(Job job) {
+            this.job = job;
+        }
+    }
+}
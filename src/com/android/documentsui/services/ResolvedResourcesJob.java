@@ -16,10 +16,10 @@
 
 package com.android.documentsui.services;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.documentsui.archives.ArchivesProvider;
@@ -30,11 +30,12 @@ import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.clipping.UrisSupplier;
 import com.android.documentsui.services.FileOperationService.OpType;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Abstract job that resolves all resource URIs into mResolvedDocs. This provides
  * uniform error handling and reporting on resource resolution failures, as well
@@ -80,7 +81,9 @@ public abstract class ResolvedResourcesJob extends Job {
             return false;
         }
 
+        final long resolveStart = SystemClock.elapsedRealtime();
         int docsResolved = buildDocumentList();
+        metrics.onResolved(SystemClock.elapsedRealtime() - resolveStart);
         if (!isCanceled() && docsResolved < mResourceUris.getItemCount()) {
             if (docsResolved == 0) {
                 Log.e(TAG, "Failed to load any documents. Aborting.");
@@ -113,11 +116,17 @@ public abstract class ResolvedResourcesJob extends Job {
         return true;
     }
 
+    /**
+     * Returns the parent of the resources, if known, so they can be resolved from its listing.
+     */
+    @Nullable Uri getSrcParentUri() {
+        return null;
+    }
+
     /**
      * @return number of docs successfully loaded.
      */
     protected int buildDocumentList() {
-        final ContentResolver resolver = appContext.getContentResolver();
         Iterable<Uri> uris;
         try {
             uris = mResourceUris.getUris(appContext);
@@ -127,31 +136,33 @@ public abstract class ResolvedResourcesJob extends Job {
             return 0;
         }
 
-        int docsLoaded = 0;
-        for (Uri uri : uris) {
+        final int[] docsLoaded = { 0 };
+        final DocumentResolver resolver =
+                new DocumentResolver(appContext.getContentResolver(), getSrcParentUri());
+        resolver.resolve(uris, new DocumentResolver.Callback() {
+            @Override
+            public void onResolved(DocumentInfo doc) {
+                if (isEligibleDoc(doc, stack.getRoot())) {
+                    mResolvedDocs.add(doc);
+                } else {
+                    onFileFailed(doc);
+                }
+                docsLoaded[0]++;
+            }
 
-            DocumentInfo doc;
-            try {
-                doc = DocumentInfo.fromUri(resolver, uri);
-            } catch (FileNotFoundException e) {
+            @Override
+            public void onFailed(Uri uri, Throwable error) {
                 Log.e(TAG, "Failed to resolve content from Uri: " + uri
-                        + ". Skipping to next resource.", e);
+                        + ". Skipping to next resource.", error);
                 onResolveFailed(uri);
-                continue;
-            }
-
-            if (isEligibleDoc(doc, stack.getRoot())) {
-                mResolvedDocs.add(doc);
-            } else {
-                onFileFailed(doc);
             }
-            docsLoaded++;
 
-            if (isCanceled()) {
-                break;
+            @Override
+            public boolean isCanceled() {
+                return ResolvedResourcesJob.this.isCanceled();
             }
-        }
+        });
 
-        return docsLoaded;
+        return docsLoaded[0];
     }
 }
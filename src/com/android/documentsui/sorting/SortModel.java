@@ -234,6 +234,42 @@ public class SortModel implements Parcelable {
         }
     }
 
+    /**
+     * Sorts a cursor previously returned by {@link #sortCursor} again by the current sort
+     * dimension, without reading it again.
+     *
+     * @return the re-sorted cursor, or null if the cursor can't be re-sorted
+     */
+    public @Nullable SortingCursorWrapper resortCursor(Cursor cursor) {
+        if (mSortedDimension == null || !(cursor instanceof SortingCursorWrapper)) {
+            return null;
+        }
+        return ((SortingCursorWrapper) cursor).resort(mSortedDimension);
+    }
+
+    /**
+     * Creates an empty cursor, that cursors can be merged into in the order of the current sort
+     * dimension. See {@link SortedMergeCursor}.
+     */
+    public SortedMergeCursor createMergeCursor(Lookup<String, String> fileTypesMap, int limit) {
+        return new SortedMergeCursor(
+                getSortedDimensionId(), getCurrentSortDirection(), fileTypesMap, limit);
+    }
+
+    /**
+     * @return the rows of the cursor merged in the order of the current sort dimension
+     */
+    public SortedMergeCursor sortMergeCursor(SortedMergeCursor cursor) {
+        return cursor.sortBy(getSortedDimensionId(), getCurrentSortDirection());
+    }
+
+    /**
+     * @return whether the cursor is merged in the order of the current sort dimension
+     */
+    public boolean isMergedInOrder(SortedMergeCursor cursor) {
+        return cursor.isSortedBy(getSortedDimensionId(), getCurrentSortDirection());
+    }
+
     public void addQuerySortArgs(Bundle queryArgs) {
         // should only be called when R.bool.feature_content_paging is true
 
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+
+import com.android.documentsui.base.Lookup;
+import com.android.documentsui.sorting.SortModel.SortDimensionId;
+import com.android.documentsui.sorting.SortingCursorWrapper.SortKeys;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Cursor presenting the leading rows of several cursors, merged in the order of a sort
+ * dimension. Each cursor is sorted on its own, which is cheap when the provider already sorted
+ * it, and then merged with a heap, so only the rows within the limit are ever visited.
+ *
+ * <p>Cursors can be merged in incrementally with {@link #merge(List)}, which doesn't sort the
+ * rows merged so far again. Sort keys are read once per cursor, so neither merging in more rows
+ * nor merging them again with {@link #sortBy} traverses the cursors merged so far. Merged cursors aren't closed together with this cursor, as they're
+ * shared with the cursors merged from it. Their owner must close them once none of the merge
+ * cursors is used anymore.
+ */
+public class SortedMergeCursor extends AbstractCursor {
+    private static final String[] NO_COLUMNS = new String[0];
+
+    private final @SortDimensionId int mDimensionId;
+    private final @SortDimension.SortDirection int mDirection;
+    private final Lookup<String, String> mFileTypeLookup;
+    private final int mLimit;
+
+    private final Cursor[] mCursors;
+    private final SortKeys[] mKeys;
+
+    // Index of the cursor and position within it, for each row.
+    private final int[] mCursorIndexes;
+    private final int[] mPositions;
+
+    private Cursor mCursor;
+
+    /**
+     * Creates an empty cursor.
+     *
+     * @param limit maximum number of rows, or 0 for no limit
+     */
+    public SortedMergeCursor(@SortDimensionId int dimensionId,
+            @SortDimension.SortDirection int direction, Lookup<String, String> fileTypeLookup,
+            int limit) {
+        this(dimensionId, direction, fileTypeLookup, limit, new Cursor[0], new SortKeys[0],
+                new int[0], new int[0]);
+    }
+
+    private SortedMergeCursor(@SortDimensionId int dimensionId,
+            @SortDimension.SortDirection int direction, Lookup<String, String> fileTypeLookup,
+            int limit, Cursor[] cursors, SortKeys[] keys, int[] cursorIndexes, int[] positions) {
+        mDimensionId = dimensionId;
+        mDirection = direction;
+        mFileTypeLookup = fileTypeLookup;
+        mLimit = limit;
+        mCursors = cursors;
+        mKeys = keys;
+        mCursorIndexes = cursorIndexes;
+        mPositions = positions;
+    }
+
+    public boolean isSortedBy(
+            @SortDimensionId int dimensionId, @SortDimension.SortDirection int direction) {
+        return mDimensionId == dimensionId && mDirection == direction;
+    }
+
+    /**
+     * Returns a cursor with the rows of this one and of the passed cursors. This cursor remains
+     * usable.
+     */
+    public SortedMergeCursor merge(List<Cursor> cursors) {
+        return merge(cursors, null);
+    }
+
+    /**
+     * Returns a cursor with the rows merged so far, in the order of another dimension. This
+     * cursor remains usable.
+     */
+    public SortedMergeCursor sortBy(
+            @SortDimensionId int dimensionId, @SortDimension.SortDirection int direction) {
+        return new SortedMergeCursor(dimensionId, direction, mFileTypeLookup, mLimit)
+                .merge(Arrays.asList(mCursors), mKeys);
+    }
+
+    /**
+     * @param cursorKeys keys of the passed cursors, or null to read them from the cursors
+     */
+    private SortedMergeCursor merge(List<Cursor> cursors, @Nullable SortKeys[] cursorKeys) {
+        final int cursorCount = mCursors.length + cursors.size();
+        final Cursor[] allCursors = Arrays.copyOf(mCursors, cursorCount);
+        final SortKeys[] allKeys = Arrays.copyOf(mKeys, cursorCount);
+
+        final boolean sortable = mDirection != SortDimension.SORT_DIRECTION_NONE
+                && SortKeys.isSortable(mDimensionId);
+        if (sortable) {
+            for (SortKeys keys : mKeys) {
+                // Keys were prepared on the thread that merged them in, maybe not this one.
+                keys.prepare(mDimensionId, mDirection);
+            }
+        }
+
+        // Rows merged so far form the first run, followed by a run for each new cursor.
+        final Run[] runs = new Run[cursors.size() + 1];
+        runs[0] = new Run(0, mCursorIndexes, -1, mPositions);
+        int total = mPositions.length;
+        for (int i = 0; i < cursors.size(); i++) {
+            final int index = mCursors.length + i;
+            final SortKeys keys = cursorKeys != null
+                    ? cursorKeys[i]
+                    : new SortKeys(cursors.get(i), mFileTypeLookup);
+            allCursors[index] = cursors.get(i);
+            allKeys[index] = keys;
+
+            final int[] positions = sortable
+                    ? keys.sort(mDimensionId, mDirection)
+                    : IntStream.range(0, keys.getCount()).toArray();
+            runs[i + 1] = new Run(i + 1, null, index, positions);
+            total += positions.length;
+        }
+
+        final int count = mLimit > 0 ? Math.min(mLimit, total) : total;
+        final int[] cursorIndexes = new int[count];
+        final int[] positions = new int[count];
+
+        // Ties go to the earlier run, so the rows keep their order if the dimension is unknown.
+        final PriorityQueue<Run> heap = new PriorityQueue<>(runs.length, (a, b) -> {
+            final int compare = sortable
+                    ? allKeys[a.cursorIndex()].compare(a.position(), allKeys[b.cursorIndex()],
+                            b.position(), mDimensionId, mDirection)
+                    : 0;
+            return compare != 0 ? compare : Integer.compare(a.index, b.index);
+        });
+        for (Run run : runs) {
+            if (run.hasNext()) {
+                heap.add(run);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final Run run = heap.poll();
+            cursorIndexes[i] = run.cursorIndex();
+            positions[i] = run.position();
+            run.next++;
+            if (run.hasNext()) {
+                heap.add(run);
+            }
+        }
+
+        return new SortedMergeCursor(mDimensionId, mDirection, mFileTypeLookup, mLimit,
+                allCursors, allKeys, cursorIndexes, positions);
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCursor = mCursors[mCursorIndexes[newPosition]];
+        return mCursor.moveToPosition(mPositions[newPosition]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mCursors.length > 0 ? mCursors[0].getColumnNames() : NO_COLUMNS;
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    /**
+     * Sorted sequence of rows taking part in a merge.
+     */
+    private static final class Run {
+        final int index;
+        // Index of the cursor of each row, or null if all rows come from the same cursor.
+        final int[] cursorIndexes;
+        final int cursorIndex;
+        final int[] positions;
+        int next;
+
+        Run(int index, int[] cursorIndexes, int cursorIndex, int[] positions) {
+            this.index = index;
+            this.cursorIndexes = cursorIndexes;
+            this.cursorIndex = cursorIndex;
+            this.positions = positions;
+        }
+
+        boolean hasNext() {
+            return next < positions.length;
+        }
+
+        int cursorIndex() {
+            return cursorIndexes != null ? cursorIndexes[next] : cursorIndex;
+        }
+
+        int position() {
+            return positions[next];
+        }
+    }
+}
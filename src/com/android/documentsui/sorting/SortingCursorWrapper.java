@@ -23,88 +23,81 @@ import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.provider.DocumentsContract.Document;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import com.android.documentsui.base.Lookup;
-import com.android.documentsui.base.Shared;
 import com.android.documentsui.sorting.SortModel.SortDimensionId;
 
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 /**
  * Cursor wrapper that presents a sorted view of the underlying cursor. Handles
  * common {@link Document} sorting modes, such as ordering directories first.
+ *
+ * <p>Sort keys of all dimensions are read from the underlying cursor once, so the cursor can be
+ * sorted again by another dimension with {@link #resort(SortDimension)} without walking it.
  */
-class SortingCursorWrapper extends AbstractCursor {
+public class SortingCursorWrapper extends AbstractCursor {
     private final Cursor mCursor;
+    private final SortKeys mKeys;
 
     private final int[] mPosition;
 
+    // False once ownership of the underlying cursor was passed on to a re-sorted wrapper.
+    private boolean mOwnsCursor = true;
+
     public SortingCursorWrapper(
             Cursor cursor, SortDimension dimension, Lookup<String, String> fileTypeLookup) {
-        mCursor = cursor;
-
-        final int count = cursor.getCount();
-        mPosition = new int[count];
-        boolean[] isDirs = new boolean[count];
-        String[] stringValues = null;
-        long[] longValues = null;
-        String[] ids = new String[count];
-
-        final @SortDimensionId int id = dimension.getId();
-        switch (id) {
-            case SortModel.SORT_DIMENSION_ID_TITLE:
-            case SortModel.SORT_DIMENSION_ID_FILE_TYPE:
-                stringValues = new String[count];
-                break;
-            case SortModel.SORT_DIMENSION_ID_DATE:
-            case SortModel.SORT_DIMENSION_ID_SIZE:
-                longValues = new long[count];
-                break;
-        }
-
-        cursor.moveToPosition(-1);
-        for (int i = 0; i < count; i++) {
-            cursor.moveToNext();
-            mPosition[i] = i;
+        this(cursor, new SortKeys(cursor, fileTypeLookup), dimension);
+    }
 
-            final String mimeType = getCursorString(mCursor, Document.COLUMN_MIME_TYPE);
-            isDirs[i] = Document.MIME_TYPE_DIR.equals(mimeType);
-            ids[i] = getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
+    private SortingCursorWrapper(Cursor cursor, SortKeys keys, SortDimension dimension) {
+        mCursor = cursor;
+        mKeys = keys;
+        mPosition = keys.sort(dimension);
+    }
 
-            switch(id) {
-                case SortModel.SORT_DIMENSION_ID_TITLE:
-                    final String displayName = getCursorString(
-                            mCursor, Document.COLUMN_DISPLAY_NAME);
-                    stringValues[i] = displayName;
-                    break;
-                case SortModel.SORT_DIMENSION_ID_FILE_TYPE:
-                    stringValues[i] = fileTypeLookup.lookup(mimeType);
-                    break;
-                case SortModel.SORT_DIMENSION_ID_DATE:
-                    longValues[i] = getLastModified(mCursor);
-                    break;
-                case SortModel.SORT_DIMENSION_ID_SIZE:
-                    longValues[i] = getCursorLong(mCursor, Document.COLUMN_SIZE);
-                    break;
-            }
+    /**
+     * Returns a wrapper over the same cursor, sorted by the passed dimension. Ownership of the
+     * underlying cursor is passed on to the returned wrapper, so closing this one doesn't close
+     * it. This wrapper remains usable until the returned one is closed.
+     */
+    public SortingCursorWrapper resort(SortDimension dimension) {
+        final SortingCursorWrapper sorted = new SortingCursorWrapper(mCursor, mKeys, dimension);
+        sorted.mOwnsCursor = mOwnsCursor;
+        mOwnsCursor = false;
+        return sorted;
+    }
 
+    /**
+     * Maps positions of this wrapper to positions of the same rows in another wrapper over the
+     * same cursor.
+     *
+     * @return the position in the other wrapper, for each position in this one
+     */
+    public int[] mapPositionsTo(SortingCursorWrapper other) {
+        assert(other.mCursor == mCursor);
+        final int[] otherPositions = new int[mPosition.length];
+        for (int i = 0; i < other.mPosition.length; i++) {
+            otherPositions[other.mPosition[i]] = i;
         }
-
-        switch (id) {
-            case SortModel.SORT_DIMENSION_ID_TITLE:
-            case SortModel.SORT_DIMENSION_ID_FILE_TYPE:
-                binarySort(stringValues, isDirs, mPosition, ids, dimension.getSortDirection());
-                break;
-            case SortModel.SORT_DIMENSION_ID_DATE:
-            case SortModel.SORT_DIMENSION_ID_SIZE:
-                binarySort(longValues, isDirs, mPosition, ids, dimension.getSortDirection());
-                break;
+        final int[] map = new int[mPosition.length];
+        for (int i = 0; i < mPosition.length; i++) {
+            map[i] = otherPositions[mPosition[i]];
         }
-
+        return map;
     }
 
     @Override
     public void close() {
         super.close();
-        mCursor.close();
+        if (mOwnsCursor) {
+            mCursor.close();
+        }
     }
 
     @Override
@@ -178,171 +171,167 @@ class SortingCursorWrapper extends AbstractCursor {
     }
 
     /**
-     * Borrowed from TimSort.binarySort(), but modified to sort two column
-     * dataset.
+     * Columnar cache of sort keys of a cursor. Collation keys are computed the first time a
+     * string dimension is sorted by, as they are the most expensive to compute.
      */
-    private static void binarySort(
-            String[] sortKey,
-            boolean[] isDirs,
-            int[] positions,
-            String[] ids,
-            @SortDimension.SortDirection int direction) {
-        final int count = positions.length;
-        for (int start = 1; start < count; start++) {
-            final int pivotPosition = positions[start];
-            final String pivotValue = sortKey[start];
-            final boolean pivotIsDir = isDirs[start];
-            final String pivotId = ids[start];
-
-            int left = 0;
-            int right = start;
-
-            while (left < right) {
-                int mid = (left + right) >>> 1;
-
-                // Directories always go in front.
-                int compare = 0;
-                final boolean rhsIsDir = isDirs[mid];
-                if (pivotIsDir && !rhsIsDir) {
-                    compare = -1;
-                } else if (!pivotIsDir && rhsIsDir) {
-                    compare = 1;
-                } else {
-                    final String lhs = pivotValue;
-                    final String rhs = sortKey[mid];
-                    switch (direction) {
-                        case SortDimension.SORT_DIRECTION_ASCENDING:
-                            compare = Shared.compareToIgnoreCaseNullable(lhs, rhs);
-                            break;
-                        case SortDimension.SORT_DIRECTION_DESCENDING:
-                            compare = -Shared.compareToIgnoreCaseNullable(lhs, rhs);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unknown sorting direction: " + direction);
-                    }
-                }
+    static final class SortKeys {
+        private final int mCount;
+        private final boolean[] mIsDirs;
+        private final String[] mIds;
+        private final String[] mNames;
+        private final String[] mMimeTypes;
+        private final long[] mLastModified;
+        private final long[] mSizes;
+        private final Lookup<String, String> mFileTypeLookup;
+
+        // Null for empty strings, which go first. Written in prepare().
+        private @Nullable CollationKey[] mNameKeys;
+        private @Nullable CollationKey[] mFileTypeKeys;
+
+        SortKeys(Cursor cursor, Lookup<String, String> fileTypeLookup) {
+            mCount = cursor.getCount();
+            mIsDirs = new boolean[mCount];
+            mIds = new String[mCount];
+            mNames = new String[mCount];
+            mMimeTypes = new String[mCount];
+            mLastModified = new long[mCount];
+            mSizes = new long[mCount];
+            mFileTypeLookup = fileTypeLookup;
+
+            cursor.moveToPosition(-1);
+            for (int i = 0; i < mCount; i++) {
+                cursor.moveToNext();
+                mMimeTypes[i] = getCursorString(cursor, Document.COLUMN_MIME_TYPE);
+                mIsDirs[i] = Document.MIME_TYPE_DIR.equals(mMimeTypes[i]);
+                mIds[i] = getCursorString(cursor, Document.COLUMN_DOCUMENT_ID);
+                mNames[i] = getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
+                mLastModified[i] = getLastModified(cursor);
+                mSizes[i] = getCursorLong(cursor, Document.COLUMN_SIZE);
+            }
+        }
 
-                // Use document ID as a tie breaker to achieve stable sort result.
-                if (compare == 0) {
-                    compare = pivotId.compareTo(ids[mid]);
-                }
+        int getCount() {
+            return mCount;
+        }
 
-                if (compare < 0) {
-                    right = mid;
-                } else {
-                    left = mid + 1;
-                }
+        /**
+         * @return positions in the cursor, in the order of the dimension
+         */
+        int[] sort(SortDimension dimension) {
+            return sort(dimension.getId(), dimension.getSortDirection());
+        }
+
+        int[] sort(@SortDimensionId int id, @SortDimension.SortDirection int direction) {
+            if (!prepare(id, direction)) {
+                // Not sorted by anything we know. Keep the order of the cursor.
+                return IntStream.range(0, mCount).toArray();
             }
 
-            int n = start - left;
-            switch (n) {
-                case 2:
-                    positions[left + 2] = positions[left + 1];
-                    sortKey[left + 2] = sortKey[left + 1];
-                    isDirs[left + 2] = isDirs[left + 1];
-                case 1:
-                    positions[left + 1] = positions[left];
-                    sortKey[left + 1] = sortKey[left];
-                    isDirs[left + 1] = isDirs[left];
-                    break;
-                default:
-                    System.arraycopy(positions, left, positions, left + 1, n);
-                    System.arraycopy(sortKey, left, sortKey, left + 1, n);
-                    System.arraycopy(isDirs, left, isDirs, left + 1, n);
+            final Integer[] order = new Integer[mCount];
+            for (int i = 0; i < mCount; i++) {
+                order[i] = i;
             }
+            Arrays.parallelSort(order, (a, b) -> compare(a, this, b, id, direction));
 
-            positions[left] = pivotPosition;
-            sortKey[left] = pivotValue;
-            isDirs[left] = pivotIsDir;
+            final int[] positions = new int[mCount];
+            for (int i = 0; i < mCount; i++) {
+                positions[i] = order[i];
+            }
+            return positions;
         }
-    }
 
-    /**
-     * Borrowed from TimSort.binarySort(), but modified to sort two column
-     * dataset.
-     */
-    private static void binarySort(
-            long[] sortKey,
-            boolean[] isDirs,
-            int[] positions,
-            String[] ids,
-            @SortDimension.SortDirection int direction) {
-        final int count = positions.length;
-        for (int start = 1; start < count; start++) {
-            final int pivotPosition = positions[start];
-            final long pivotValue = sortKey[start];
-            final boolean pivotIsDir = isDirs[start];
-            final String pivotId = ids[start];
-
-            int left = 0;
-            int right = start;
-
-            while (left < right) {
-                int mid = ((left + right) >>> 1);
-
-                // Directories always go in front.
-                int compare = 0;
-                final boolean rhsIsDir = isDirs[mid];
-                if (pivotIsDir && !rhsIsDir) {
-                    compare = -1;
-                } else if (!pivotIsDir && rhsIsDir) {
-                    compare = 1;
-                } else {
-                    final long lhs = pivotValue;
-                    final long rhs = sortKey[mid];
-                    switch (direction) {
-                        case SortDimension.SORT_DIRECTION_ASCENDING:
-                            compare = Long.compare(lhs, rhs);
-                            break;
-                        case SortDimension.SORT_DIRECTION_DESCENDING:
-                            compare = -Long.compare(lhs, rhs);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unknown sorting direction: " + direction);
-                    }
-                }
+        static boolean isSortable(@SortDimensionId int id) {
+            return id == SortModel.SORT_DIMENSION_ID_TITLE
+                    || id == SortModel.SORT_DIMENSION_ID_FILE_TYPE
+                    || id == SortModel.SORT_DIMENSION_ID_DATE
+                    || id == SortModel.SORT_DIMENSION_ID_SIZE;
+        }
 
-                // If numerical comparison yields a tie, use document ID as a tie breaker.  This
-                // will yield stable results even if incoming items are continually shuffling and
-                // have identical numerical sort keys.  One common example of this scenario is seen
-                // when sorting a set of active downloads by mod time.
-                if (compare == 0) {
-                    compare = pivotId.compareTo(ids[mid]);
-                }
+        /**
+         * Computes the keys needed to compare by the dimension. Must be called by each thread
+         * comparing keys, before {@link #compare}.
+         *
+         * @return false if the dimension isn't one that can be sorted by
+         */
+        synchronized boolean prepare(
+                @SortDimensionId int id, @SortDimension.SortDirection int direction) {
+            if (!isSortable(id)) {
+                return false;
+            }
+            if (direction != SortDimension.SORT_DIRECTION_ASCENDING
+                    && direction != SortDimension.SORT_DIRECTION_DESCENDING) {
+                throw new IllegalArgumentException("Unknown sorting direction: " + direction);
+            }
 
-                if (compare < 0) {
-                    right = mid;
-                } else {
-                    left = mid + 1;
+            if (id == SortModel.SORT_DIMENSION_ID_TITLE && mNameKeys == null) {
+                mNameKeys = createCollationKeys(mNames);
+            } else if (id == SortModel.SORT_DIMENSION_ID_FILE_TYPE && mFileTypeKeys == null) {
+                final String[] fileTypes = new String[mCount];
+                for (int i = 0; i < mCount; i++) {
+                    fileTypes[i] = mFileTypeLookup.lookup(mMimeTypes[i]);
                 }
+                mFileTypeKeys = createCollationKeys(fileTypes);
             }
+            return true;
+        }
+
+        /**
+         * Compares a row of these keys with a row of other keys, which may belong to another
+         * cursor. Both must be prepared for the dimension.
+         */
+        int compare(int a, SortKeys other, int b, @SortDimensionId int id,
+                @SortDimension.SortDirection int direction) {
+            // Directories always go in front. Ties are broken by document ID, so the order is
+            // stable even if incoming items keep shuffling with identical keys, e.g. active
+            // downloads sorted by modification time.
+            if (mIsDirs[a] != other.mIsDirs[b]) {
+                return mIsDirs[a] ? -1 : 1;
+            }
+            final int compare = direction == SortDimension.SORT_DIRECTION_ASCENDING
+                    ? compareKeys(a, other, b, id)
+                    : other.compareKeys(b, this, a, id);
+            return compare != 0 ? compare : mIds[a].compareTo(other.mIds[b]);
+        }
 
-            int n = start - left;
-            switch (n) {
-                case 2:
-                    positions[left + 2] = positions[left + 1];
-                    sortKey[left + 2] = sortKey[left + 1];
-                    isDirs[left + 2] = isDirs[left + 1];
-                    ids[left + 2] = ids[left + 1];
-                case 1:
-                    positions[left + 1] = positions[left];
-                    sortKey[left + 1] = sortKey[left];
-                    isDirs[left + 1] = isDirs[left];
-                    ids[left + 1] = ids[left];
-                    break;
+        private int compareKeys(int a, SortKeys other, int b, @SortDimensionId int id) {
+            switch (id) {
+                case SortModel.SORT_DIMENSION_ID_TITLE:
+                    return compare(mNameKeys[a], other.mNameKeys[b]);
+                case SortModel.SORT_DIMENSION_ID_FILE_TYPE:
+                    return compare(mFileTypeKeys[a], other.mFileTypeKeys[b]);
+                case SortModel.SORT_DIMENSION_ID_DATE:
+                    return Long.compare(mLastModified[a], other.mLastModified[b]);
+                case SortModel.SORT_DIMENSION_ID_SIZE:
+                    return Long.compare(mSizes[a], other.mSizes[b]);
                 default:
-                    System.arraycopy(positions, left, positions, left + 1, n);
-                    System.arraycopy(sortKey, left, sortKey, left + 1, n);
-                    System.arraycopy(isDirs, left, isDirs, left + 1, n);
-                    System.arraycopy(ids, left, ids, left + 1, n);
+                    return 0;
+            }
+        }
+
+        private static int compare(@Nullable CollationKey lhs, @Nullable CollationKey rhs) {
+            if (lhs == null || rhs == null) {
+                return lhs == rhs ? 0 : (lhs == null ? -1 : 1);
             }
+            return lhs.compareTo(rhs);
+        }
 
-            positions[left] = pivotPosition;
-            sortKey[left] = pivotValue;
-            isDirs[left] = pivotIsDir;
-            ids[left] = pivotId;
+        /**
+         * Computes collation keys, matching {@code Shared.compareToIgnoreCaseNullable()}.
+         * Collators aren't thread safe, so each thread computing keys uses its own.
+         */
+        private static CollationKey[] createCollationKeys(String[] values) {
+            final CollationKey[] keys = new CollationKey[values.length];
+            final ThreadLocal<Collator> collators = ThreadLocal.withInitial(() -> {
+                final Collator collator = Collator.getInstance();
+                collator.setStrength(Collator.SECONDARY);
+                return collator;
+            });
+            IntStream.range(0, values.length).parallel().forEach(i -> {
+                if (!TextUtils.isEmpty(values[i])) {
+                    keys[i] = collators.get().getCollationKey(values[i]);
+                }
+            });
+            return keys;
         }
     }
 }
@@ -28,21 +28,48 @@ import java.io.FileNotFoundException;
  */
 public class PagingProvider extends TestRootProvider {
 
+    public static final String AUTHORITY = "com.android.documentsui.pagingprovider";
+
+    /**
+     * Pass test result size to inform the provider of the result size. Defaults to 100.
+     */
+    public static final String TEST_RECORDSET_COUNT = "test-recordset-size";
     /**
-     * Pass test result size to inform the provider of the result size. Defaults to 1k.
+     * Pass true to report sorting by name as honored. Documents are named in order anyway.
      */
-    private static final String TEST_RECORDSET_COUNT = "test-recordset-size";
-    private static final int DEFAULT_RECORDSET_COUNT = 100;
+    public static final String TEST_HONOR_SORT = "test-honor-sort";
+    /**
+     * Call with {@link #TEST_RECORDSET_COUNT} and {@link #TEST_HONOR_SORT} in the extras to
+     * change them for queries which don't pass them.
+     */
+    public static final String METHOD_CONFIGURE = "configure";
+
+    public static final int DEFAULT_RECORDSET_COUNT = 100;
     private static final int UNDETERMINED_RECORDSET_COUNT = -1;
 
-    private static final String ROOT_ID = "paging-root";
-    private static final String ROOT_DOC_ID = "root0";
+    public static final String ROOT_ID = "paging-root";
+    public static final String ROOT_DOC_ID = "root0";
     private static final int ROOT_FLAGS = Root.FLAG_SUPPORTS_SEARCH | Root.FLAG_SUPPORTS_IS_CHILD;
 
+    private volatile int mRecordsetCount = DEFAULT_RECORDSET_COUNT;
+    private volatile boolean mHonorSort;
+
     public PagingProvider() {
         super("Paging Root", ROOT_ID, ROOT_FLAGS, ROOT_DOC_ID);
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        Bundle result = super.call(method, arg, extras);
+        if (result != null || !METHOD_CONFIGURE.equals(method)) {
+            return result;
+        }
+
+        mRecordsetCount = extras.getInt(TEST_RECORDSET_COUNT, DEFAULT_RECORDSET_COUNT);
+        mHonorSort = extras.getBoolean(TEST_HONOR_SORT);
+        return null;
+    }
+
     @Override
     public Cursor queryDocument(String documentId, String[] projection)
             throws FileNotFoundException {
@@ -70,7 +97,8 @@ public class PagingProvider extends TestRootProvider {
 
         int offset = queryArgs.getInt(ContentResolver.QUERY_ARG_OFFSET, 0);
         int limit = queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT, Integer.MIN_VALUE);
-        int recordsetSize = queryArgs.getInt(TEST_RECORDSET_COUNT, DEFAULT_RECORDSET_COUNT);
+        int recordsetSize = queryArgs.getInt(TEST_RECORDSET_COUNT, mRecordsetCount);
+        boolean honorSort = queryArgs.getBoolean(TEST_HONOR_SORT, mHonorSort);
 
         // Can be -1 (magic unknown), or 0 or more, but not less than -1.
         assert(recordsetSize > -2);
@@ -92,6 +120,13 @@ public class PagingProvider extends TestRootProvider {
             addFile(c, String.format("%05d", offset + i));
         }
         extras.putInt(ContentResolver.EXTRA_TOTAL_COUNT, recordsetSize);
+        extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS, honorSort
+                ? new String[] {
+                        ContentResolver.QUERY_ARG_OFFSET,
+                        ContentResolver.QUERY_ARG_LIMIT,
+                        ContentResolver.QUERY_ARG_SORT_COLUMNS }
+                : new String[] {
+                        ContentResolver.QUERY_ARG_OFFSET, ContentResolver.QUERY_ARG_LIMIT });
         return c;
     }
 }
@@ -20,11 +20,14 @@ import android.view.ViewGroup;
 
 import com.android.documentsui.base.EventListener;
 import com.android.documentsui.Model.Update;
+import com.android.documentsui.selection.SelectionKeys;
 import com.android.documentsui.testing.TestEventListener;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A skeletal {@link DocumentsAdapter} test double.
  */
@@ -32,6 +35,7 @@ public class TestDocumentsAdapter extends DocumentsAdapter {
 
     List<String> mModelIds = new ArrayList<>();
     final TestEventListener<Update> mModelListener = new TestEventListener<>();
+    private @Nullable SelectionKeys mSelectionKeys;
 
     public TestDocumentsAdapter(List<String> modelIds) {
         mModelIds = modelIds;
@@ -47,6 +51,18 @@ public class TestDocumentsAdapter extends DocumentsAdapter {
         return mModelIds;
     }
 
+    @Override
+    public @Nullable SelectionKeys getSelectionKeys() {
+        return mSelectionKeys;
+    }
+
+    /**
+     * Makes the adapter provide selection keys, like one backed by a Model does.
+     */
+    public void enableSelectionKeys() {
+        mSelectionKeys = createKeys(mModelIds);
+    }
+
     @Override
     public void onItemSelectionChanged(String id) {
     }
@@ -78,7 +94,40 @@ public class TestDocumentsAdapter extends DocumentsAdapter {
 
     public void updateTestModelIds(List<String> modelIds) {
         mModelIds = modelIds;
+        if (mSelectionKeys != null) {
+            mSelectionKeys = createKeys(modelIds);
+        }
 
         notifyDataSetChanged();
     }
+
+    public void insertTestModelIds(int position, List<String> modelIds) {
+        mModelIds = new ArrayList<>(mModelIds);
+        mModelIds.addAll(position, modelIds);
+        if (mSelectionKeys != null) {
+            mSelectionKeys = createKeys(mModelIds);
+        }
+
+        notifyItemRangeInserted(position, modelIds.size());
+    }
+
+    private static SelectionKeys createKeys(List<String> modelIds) {
+        final List<String> ids = new ArrayList<>(modelIds);
+        return new SelectionKeys() {
+            @Override
+            public int size() {
+                return ids.size();
+            }
+
+            @Override
+            public String get(int position) {
+                return ids.get(position);
+            }
+
+            @Override
+            public int indexOf(String modelId) {
+                return ids.indexOf(modelId);
+            }
+        };
+    }
 }
@@ -16,21 +16,28 @@
 
 package com.android.documentsui.services;
 
+import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
+
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import android.app.Notification;
 import android.app.Notification.Builder;
 import android.content.Context;
+import android.support.test.InstrumentationRegistry;
 
 import com.android.documentsui.base.Features;
 import com.android.documentsui.clipping.UrisSupplier;
 import com.android.documentsui.R;
 import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.base.DocumentStack;
+import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.services.FileOperationService.OpType;
+import com.android.documentsui.testing.DocsProviders;
+import com.android.documentsui.testing.TestFeatures;
 
 import java.text.NumberFormat;
+import java.util.Collections;
 
 public class TestJob extends Job {
 
@@ -38,6 +45,7 @@ public class TestJob extends Job {
     private Runnable mStartRunnable;
 
     private int mNumOfNotifications = 0;
+    private double mCompletedFraction = -1;
 
     TestJob(Context service, Listener listener, String id, @OpType int opType, DocumentStack stack,
             UrisSupplier srcs, Runnable startRunnable, Features features) {
@@ -46,6 +54,22 @@ public class TestJob extends Job {
         mStartRunnable = startRunnable;
     }
 
+    /**
+     * Creates a copy job of no documents to a root of the test authority.
+     *
+     * @param startRunnable run when the job starts
+     */
+    static TestJob create(String id, String rootId, Runnable startRunnable) {
+        final RootInfo root = new RootInfo();
+        root.authority = "com.android.documentsui.testing";
+        root.rootId = rootId;
+
+        return new TestJob(InstrumentationRegistry.getTargetContext(), new TestJobListener(), id,
+                OPERATION_COPY, new DocumentStack(root),
+                DocsProviders.createDocsProvider(Collections.emptyList()), startRunnable,
+                new TestFeatures());
+    }
+
     @Override
     void start() {
         mStarted = true;
@@ -69,6 +93,15 @@ public class TestJob extends Job {
         return mNumOfNotifications;
     }
 
+    void setCompletedFraction(double completedFraction) {
+        mCompletedFraction = completedFraction;
+    }
+
+    @Override
+    double getCompletedFraction() {
+        return mCompletedFraction;
+    }
+
     @Override
     Notification getSetupNotification() {
         ++mNumOfNotifications;
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.DocumentInfo;
+import com.android.documentsui.base.RootInfo;
+import com.android.documentsui.sorting.SortDimension;
+import com.android.documentsui.sorting.SortModel;
+import com.android.documentsui.testing.TestFeatures;
+import com.android.documentsui.testing.TestFileTypeLookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class DirectoryLoaderTest {
+
+    private static final int RECORDSET_COUNT = DirectoryLoader.PAGE_SIZE * 2 + 1;
+
+    private Context mContext;
+    private DirectoryResult mResult;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    @After
+    public void tearDown() {
+        if (mResult != null) {
+            mResult.close();
+        }
+        configure(PagingProvider.DEFAULT_RECORDSET_COUNT, false);
+    }
+
+    @Test
+    public void testLoadsFirstWindow_ProviderHonorsSort() throws Exception {
+        configure(RECORDSET_COUNT, true);
+
+        mResult = load();
+
+        assertEquals(DirectoryLoader.PAGE_SIZE, mResult.cursor.getCount());
+        assertNotNull(mResult.loadMore);
+    }
+
+    @Test
+    public void testLoadsWholeDirectory_ProviderIgnoresSort() throws Exception {
+        configure(RECORDSET_COUNT, false);
+
+        mResult = load();
+
+        assertEquals(RECORDSET_COUNT, mResult.cursor.getCount());
+        assertNull(mResult.loadMore);
+    }
+
+    private void configure(int recordsetCount, boolean honorSort) {
+        final Bundle extras = new Bundle();
+        extras.putInt(PagingProvider.TEST_RECORDSET_COUNT, recordsetCount);
+        extras.putBoolean(PagingProvider.TEST_HONOR_SORT, honorSort);
+        mContext.getContentResolver().call(
+                DocumentsContract.buildRootsUri(PagingProvider.AUTHORITY),
+                PagingProvider.METHOD_CONFIGURE, null, extras);
+    }
+
+    private DirectoryResult load() throws Exception {
+        final RootInfo root = new RootInfo();
+        root.authority = PagingProvider.AUTHORITY;
+        root.rootId = PagingProvider.ROOT_ID;
+        final DocumentInfo doc = DocumentInfo.fromUri(mContext.getContentResolver(),
+                DocumentsContract.buildDocumentUri(
+                        PagingProvider.AUTHORITY, PagingProvider.ROOT_DOC_ID));
+
+        final SortModel model = SortModel.createModel();
+        model.sortByUser(
+                SortModel.SORT_DIMENSION_ID_TITLE, SortDimension.SORT_DIRECTION_ASCENDING);
+
+        final DirectoryLoader loader = new DirectoryLoader(
+                new TestFeatures(),
+                mContext,
+                root,
+                doc,
+                DocumentsContract.buildChildDocumentsUri(
+                        PagingProvider.AUTHORITY, PagingProvider.ROOT_DOC_ID),
+                model,
+                new TestFileTypeLookup(),
+                new DirectoryReloadLock(),
+                false,
+                null);
+        return loader.loadInBackground();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.DocumentInfo.getCursorInt;
+import static com.android.documentsui.base.DocumentInfo.getCursorLong;
+import static com.android.documentsui.base.DocumentInfo.getCursorString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.roots.RootCursorWrapper;
+import com.android.documentsui.sorting.SortDimension;
+import com.android.documentsui.sorting.SortModel;
+import com.android.documentsui.testing.SortModels;
+import com.android.documentsui.testing.TestScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ListingSnapshotsTest {
+
+    private static final String ROOT = "content://authority/root/0";
+    private static final String LISTING = "content://authority/document/0/children";
+
+    private static final String[] COLUMNS = new String[] {
+            RootCursorWrapper.COLUMN_AUTHORITY,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_FLAGS
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestScheduledExecutorService mExecutor;
+    private ListingSnapshots mSnapshots;
+    private SortModel mSortModel;
+
+    @Before
+    public void setUp() {
+        mExecutor = new TestScheduledExecutorService();
+        mSnapshots = new ListingSnapshots(folder.getRoot(), mExecutor);
+        mSortModel = SortModels.createTestSortModel();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] { "authority", "0", "ä.txt", "text/plain", 12, 100, 3 });
+        cursor.addRow(new Object[] { "authority", "1", "dir", Document.MIME_TYPE_DIR, null, 200,
+                0 });
+        mSnapshots.write(ROOT, LISTING, mSortModel, cursor);
+        mExecutor.runAll();
+
+        final Cursor snapshot = mSnapshots.read(ROOT, LISTING, mSortModel);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING));
+        assertEquals(2, snapshot.getCount());
+
+        snapshot.moveToFirst();
+        assertEquals("authority",
+                getCursorString(snapshot, RootCursorWrapper.COLUMN_AUTHORITY));
+        assertEquals("0", getCursorString(snapshot, Document.COLUMN_DOCUMENT_ID));
+        assertEquals("ä.txt", getCursorString(snapshot, Document.COLUMN_DISPLAY_NAME));
+        assertEquals("text/plain", getCursorString(snapshot, Document.COLUMN_MIME_TYPE));
+        assertEquals(12, getCursorLong(snapshot, Document.COLUMN_SIZE));
+        assertEquals(100, getCursorLong(snapshot, Document.COLUMN_LAST_MODIFIED));
+        assertEquals(3, getCursorInt(snapshot, Document.COLUMN_FLAGS));
+        assertNull(getCursorString(snapshot, RootCursorWrapper.COLUMN_ROOT_ID));
+
+        snapshot.moveToNext();
+        assertEquals("1", getCursorString(snapshot, Document.COLUMN_DOCUMENT_ID));
+        assertEquals(Document.MIME_TYPE_DIR,
+                getCursorString(snapshot, Document.COLUMN_MIME_TYPE));
+        assertTrue(snapshot.isNull(snapshot.getColumnIndex(Document.COLUMN_SIZE)));
+        assertEquals(200, getCursorLong(snapshot, Document.COLUMN_LAST_MODIFIED));
+    }
+
+    @Test
+    public void testWrite_MaxRows() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < ListingSnapshots.MAX_ROWS + 10; i++) {
+            cursor.addRow(new Object[] { "authority", Integer.toString(i), "name", "text/plain",
+                    0, 0, 0 });
+        }
+        mSnapshots.write(ROOT, LISTING, mSortModel, cursor);
+        mExecutor.runAll();
+
+        assertEquals(ListingSnapshots.MAX_ROWS,
+                mSnapshots.read(ROOT, LISTING, mSortModel).getCount());
+    }
+
+    @Test
+    public void testRead_OtherListing() {
+        mSnapshots.write(ROOT, LISTING, mSortModel, new MatrixCursor(COLUMNS));
+        mExecutor.runAll();
+
+        assertNotNull(mSnapshots.read(ROOT, LISTING, mSortModel));
+        assertNull(mSnapshots.read(ROOT, LISTING + "/1", mSortModel));
+        assertNull(mSnapshots.read("content://authority/root/1", LISTING, mSortModel));
+    }
+
+    @Test
+    public void testRead_OtherSortOrder() {
+        mSnapshots.write(ROOT, LISTING, mSortModel, new MatrixCursor(COLUMNS));
+        mExecutor.runAll();
+
+        mSortModel.sortByUser(
+                SortModel.SORT_DIMENSION_ID_SIZE, SortDimension.SORT_DIRECTION_ASCENDING);
+        assertNull(mSnapshots.read(ROOT, LISTING, mSortModel));
+    }
+
+    @Test
+    public void testRead_NotWrittenYet() {
+        mSnapshots.write(ROOT, LISTING, mSortModel, new MatrixCursor(COLUMNS));
+
+        assertNull(mSnapshots.read(ROOT, LISTING, mSortModel));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.util.ListUpdateCallback;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ModelDiffTest {
+
+    private static final String[] COLUMNS = new String[]{
+        Document.COLUMN_DOCUMENT_ID,
+        Document.COLUMN_DISPLAY_NAME,
+        Document.COLUMN_SIZE,
+        Document.COLUMN_LAST_MODIFIED,
+        Document.COLUMN_MIME_TYPE,
+        Document.COLUMN_FLAGS
+    };
+
+    @Test
+    public void testIdenticalListings_NoOps() {
+        ModelDiff.Snapshot before = snapshot(0, 1, 2, 3);
+        ModelDiff diff = ModelDiff.compute(before, snapshot(0, 1, 2, 3));
+
+        assertNotNull(diff);
+        assertSame(before, diff.getBase());
+        assertTrue(dispatch(diff).isEmpty());
+    }
+
+    @Test
+    public void testInsert() {
+        ModelDiff diff = ModelDiff.compute(snapshot(0, 1, 2, 3), snapshot(0, 1, 9, 2, 3));
+
+        assertEquals(ops("insert 2 1"), dispatch(diff));
+    }
+
+    @Test
+    public void testRemove() {
+        ModelDiff diff = ModelDiff.compute(snapshot(0, 1, 2, 3, 4), snapshot(0, 1, 3, 4));
+
+        assertEquals(ops("remove 2 1"), dispatch(diff));
+    }
+
+    @Test
+    public void testContentChange() {
+        MatrixCursor cursor = cursor(0, 1, 2);
+        MatrixCursor modified = new MatrixCursor(COLUMNS);
+        addRow(modified, 0, 100);
+        addRow(modified, 1, 200);  // size changed
+        addRow(modified, 2, 100);
+
+        ModelDiff diff = ModelDiff.compute(
+                ModelDiff.Snapshot.create(cursor), ModelDiff.Snapshot.create(modified));
+
+        assertEquals(ops("change 1 1"), dispatch(diff));
+    }
+
+    @Test
+    public void testLargeChange_FallsBackToFullRefresh() {
+        int count = ModelDiff.MAX_DIFF_WINDOW + 1;
+        int[] before = new int[count];
+        int[] after = new int[count];
+        for (int i = 0; i < count; i++) {
+            before[i] = i;
+            after[i] = count + i;
+        }
+
+        assertNull(ModelDiff.compute(snapshot(before), snapshot(after)));
+    }
+
+    private static ModelDiff.Snapshot snapshot(int... ids) {
+        return ModelDiff.Snapshot.create(cursor(ids));
+    }
+
+    private static MatrixCursor cursor(int... ids) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int id : ids) {
+            addRow(cursor, id, 100);
+        }
+        return cursor;
+    }
+
+    private static void addRow(MatrixCursor cursor, int id, long size) {
+        MatrixCursor.RowBuilder row = cursor.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, Integer.toString(id));
+        row.add(Document.COLUMN_DISPLAY_NAME, "doc" + id);
+        row.add(Document.COLUMN_SIZE, size);
+        row.add(Document.COLUMN_LAST_MODIFIED, 1000L);
+        row.add(Document.COLUMN_MIME_TYPE, "text/plain");
+        row.add(Document.COLUMN_FLAGS, 0);
+    }
+
+    private static List<String> ops(String... ops) {
+        List<String> list = new ArrayList<>();
+        for (String op : ops) {
+            list.add(op);
+        }
+        return list;
+    }
+
+    private static List<String> dispatch(ModelDiff diff) {
+        final List<String> ops = new ArrayList<>();
+        diff.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                ops.add("insert " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                ops.add("remove " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                ops.add("move " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                ops.add("change " + position + " " + count);
+            }
+        });
+        return ops;
+    }
+}
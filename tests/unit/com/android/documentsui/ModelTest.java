@@ -17,6 +17,8 @@
 package com.android.documentsui;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 import android.database.Cursor;
@@ -107,6 +109,23 @@ public class ModelTest {
         assertEquals(ITEM_COUNT, model.getItemCount());
     }
 
+    @Test
+    public void testLoadMore() {
+        assertFalse(model.isPartiallyLoaded());
+        // No-op for fully loaded directories.
+        model.loadMore();
+
+        final boolean[] requested = new boolean[1];
+        DirectoryResult r = new DirectoryResult();
+        r.cursor = cursor;
+        r.loadMore = () -> requested[0] = true;
+        model.update(r);
+
+        assertTrue(model.isPartiallyLoaded());
+        model.loadMore();
+        assertTrue(requested[0]);
+    }
+
     // Tests multiple authorities with clashing document IDs.
     @Test
     public void testModelIdIsUnique() {
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PositionIndexTest {
+
+    @Test
+    public void testIndexOf() {
+        final String[] keys = new String[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "id" + i;
+        }
+        final PositionIndex index = new PositionIndex(keys, keys.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, index.indexOf("id" + i));
+        }
+        assertEquals(-1, index.indexOf("id1000"));
+    }
+
+    @Test
+    public void testIndexOf_Duplicates() {
+        final PositionIndex index = new PositionIndex(new String[] { "a", null, "b", "a" }, 4);
+
+        assertEquals(0, index.indexOf("a"));
+        assertEquals(2, index.indexOf("b"));
+    }
+
+    @Test
+    public void testIndexOf_Count() {
+        final PositionIndex index = new PositionIndex(new String[] { "a", "b", "c" }, 2);
+
+        assertEquals(1, index.indexOf("b"));
+        assertEquals(-1, index.indexOf("c"));
+    }
+
+    @Test
+    public void testIndexOf_Concatenated() {
+        final PositionIndex index = new PositionIndex(
+                new String[] { "com.example|1", "com.example|12", "com.other|1" }, 3);
+
+        assertEquals(0, index.indexOf("com.example", '|', "1"));
+        assertEquals(1, index.indexOf("com.example", '|', "12"));
+        assertEquals(2, index.indexOf("com.other", '|', "1"));
+        assertEquals(-1, index.indexOf("com.example", '|', "2"));
+        assertEquals(-1, index.indexOf("com.example", '/', "1"));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(-1, PositionIndex.EMPTY.indexOf("a"));
+        assertEquals(-1, PositionIndex.EMPTY.indexOf("a", '|', "b"));
+    }
+}
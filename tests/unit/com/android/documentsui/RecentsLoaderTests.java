@@ -55,7 +55,7 @@ public class RecentsLoaderTests {
         mEnv.state.acceptMimes = new String[] { "*/*" };
 
         mLoader = new RecentsLoader(mActivity, mEnv.providers, mEnv.state, mEnv.features,
-                TestImmediateExecutor.createLookup(), new TestFileTypeLookup());
+                TestImmediateExecutor.createLookup(), new TestFileTypeLookup(), null);
     }
 
     @Test
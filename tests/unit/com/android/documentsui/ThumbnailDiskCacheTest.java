@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.testing.Bitmaps;
+import com.android.documentsui.testing.TestScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ThumbnailDiskCacheTest {
+
+    private static final Uri URI_0 = Uri.parse("content://authority/document/0");
+    private static final Uri URI_1 = Uri.parse("content://authority/document/1");
+
+    private static final Point SIZE = new Point(4, 4);
+    private static final Bitmap BITMAP = Bitmaps.createTestBitmap(4, 4);
+
+    private static final long LAST_MODIFIED = 100;
+    private static final long MAX_SIZE_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestScheduledExecutorService mExecutor;
+    private ThumbnailDiskCache mCache;
+
+    @Before
+    public void setUp() {
+        mExecutor = new TestScheduledExecutorService();
+        mCache = new ThumbnailDiskCache(folder.getRoot(), MAX_SIZE_BYTES, mExecutor);
+        mExecutor.runAll();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        assertTrue(mCache.contains(URI_0, SIZE, LAST_MODIFIED));
+        Bitmap bitmap = mCache.get(URI_0, SIZE, LAST_MODIFIED);
+        assertNotNull(bitmap);
+        assertEquals(BITMAP.getWidth(), bitmap.getWidth());
+    }
+
+    @Test
+    public void testMiss() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        assertFalse(mCache.contains(URI_1, SIZE, LAST_MODIFIED));
+        assertFalse(mCache.contains(URI_0, new Point(8, 8), LAST_MODIFIED));
+        assertNull(mCache.get(URI_1, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testMiss_Stale() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        assertFalse(mCache.contains(URI_0, SIZE, LAST_MODIFIED + 1));
+        assertNull(mCache.get(URI_0, SIZE, LAST_MODIFIED + 1));
+    }
+
+    @Test
+    public void testRemoveUri() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        mCache.remove(URI_0);
+        mExecutor.runAll();
+
+        assertFalse(mCache.contains(URI_0, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testRemoveUri_AllSizes() {
+        final Point largeSize = new Point(8, 8);
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mCache.put(URI_0, largeSize, BITMAP, LAST_MODIFIED);
+        mCache.put(URI_1, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        mCache.remove(URI_0);
+        mExecutor.runAll();
+
+        assertFalse(mCache.contains(URI_0, SIZE, LAST_MODIFIED));
+        assertFalse(mCache.contains(URI_0, largeSize, LAST_MODIFIED));
+        assertTrue(mCache.contains(URI_1, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testRemoveUri_AfterRestart() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+        mCache.writeIndex();
+
+        ThumbnailDiskCache reopened =
+                new ThumbnailDiskCache(folder.getRoot(), MAX_SIZE_BYTES, mExecutor);
+        mExecutor.runAll();
+        reopened.remove(URI_0);
+        mExecutor.runAll();
+
+        assertFalse(reopened.contains(URI_0, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        mCache = new ThumbnailDiskCache(folder.getRoot(), 1, mExecutor);
+        mExecutor.runAll();
+
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+
+        assertFalse(mCache.contains(URI_0, SIZE, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() {
+        mCache.put(URI_0, SIZE, BITMAP, LAST_MODIFIED);
+        mExecutor.runAll();
+        mCache.writeIndex();
+
+        ThumbnailDiskCache reopened =
+                new ThumbnailDiskCache(folder.getRoot(), MAX_SIZE_BYTES, mExecutor);
+        mExecutor.runAll();
+
+        assertTrue(reopened.contains(URI_0, SIZE, LAST_MODIFIED));
+        assertNotNull(reopened.get(URI_0, SIZE, LAST_MODIFIED));
+    }
+}
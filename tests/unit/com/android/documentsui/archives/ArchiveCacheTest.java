@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.testing.TestScheduledExecutorService;
+import com.android.documentsui.tests.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class ArchiveCacheTest {
+    private static final ArchivesProvider.Key KEY = new ArchivesProvider.Key(
+            Uri.parse("content://i/love/strawberries"), ParcelFileDescriptor.MODE_READ_ONLY);
+    private static final ArchivesProvider.Key OTHER_KEY = new ArchivesProvider.Key(
+            Uri.parse("content://i/love/cherries"), ParcelFileDescriptor.MODE_READ_ONLY);
+
+    private ExecutorService mExecutor;
+    private TestScheduledExecutorService mScheduler;
+    private TestUtils mTestUtils;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mScheduler = new TestScheduledExecutorService();
+        mTestUtils = new TestUtils(InstrumentationRegistry.getTargetContext(),
+                InstrumentationRegistry.getContext(), mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(3 /* timeout */, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOfferAndTake() throws IOException {
+        final ArchiveCache cache = new ArchiveCache(mScheduler, Long.MAX_VALUE, 1000);
+        final Archive archive = openArchive();
+
+        assertTrue(cache.offer(KEY, archive));
+        assertNull(cache.take(OTHER_KEY));
+        assertSame(archive, cache.take(KEY));
+        assertNull(cache.take(KEY));
+
+        // The expiry of an archive taken out doesn't close it.
+        mScheduler.runAll();
+        archive.close();
+    }
+
+    @Test
+    public void testOffer_ClosesAfterTimeout() throws IOException {
+        final ArchiveCache cache = new ArchiveCache(mScheduler, Long.MAX_VALUE, 1000);
+        assertTrue(cache.offer(KEY, openArchive()));
+
+        mScheduler.runAll();
+        assertNull(cache.take(KEY));
+    }
+
+    @Test
+    public void testOffer_EvictsOverBudget() throws IOException {
+        final Archive archive = openArchive();
+        final ArchiveCache cache = new ArchiveCache(
+                mScheduler, archive.estimateMemoryUsage(), 1000);
+
+        assertTrue(cache.offer(KEY, archive));
+        final Archive other = openArchive();
+        assertTrue(cache.offer(OTHER_KEY, other));
+
+        assertNull(cache.take(KEY));
+        assertSame(other, cache.take(OTHER_KEY));
+        other.close();
+    }
+
+    @Test
+    public void testOffer_OnlyReadableArchives() throws IOException {
+        final ArchiveCache cache = new ArchiveCache(mScheduler, Long.MAX_VALUE, 1000);
+        final Archive archive = WriteableArchive.createForParcelFileDescriptor(
+                InstrumentationRegistry.getTargetContext(),
+                ParcelFileDescriptor.open(mTestUtils.createTemporaryFile(),
+                        ParcelFileDescriptor.MODE_WRITE_ONLY),
+                KEY.archiveUri, ParcelFileDescriptor.MODE_WRITE_ONLY, null);
+
+        assertFalse(cache.offer(KEY, archive));
+        archive.close();
+    }
+
+    private Archive openArchive() throws IOException {
+        return ReadableArchive.createForParcelFileDescriptor(
+                InstrumentationRegistry.getTargetContext(),
+                mTestUtils.getSeekableDescriptor(R.raw.archive),
+                KEY.archiveUri, ParcelFileDescriptor.MODE_READ_ONLY, null);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.support.test.InstrumentationRegistry;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+@MediumTest
+public class ArchiveIndexTest extends AndroidTestCase {
+    private static final String KEY = "content://i/love/strawberries|1234|5678";
+
+    private File mDir = null;
+    private final Map<String, ZipEntry> mEntries = new HashMap<>();
+    private final Map<String, List<ZipEntry>> mTree = new HashMap<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "archive-index-test");
+
+        addEntry("/", null, 0);
+        addEntry("dir1/", "/", 0);
+        addEntry("dir1/cherries.txt", "/dir1/", 17);
+        addEntry("dir1/äpfel.txt", "/dir1/", 5);
+        addEntry("/absolute.txt", "/", 42);
+        addEntry("b.txt", "/", 3);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testReadWrite() throws Exception {
+        ArchiveIndex.write(mDir, KEY, mEntries, mTree);
+        final ArchiveIndex index = ArchiveIndex.open(mDir, KEY);
+        assertNotNull(index);
+        assertEquals(mEntries.size(), index.getCount());
+
+        final List<ZipEntry> rootChildren = index.getChildren("/");
+        assertEquals(3, rootChildren.size());
+        assertEquals("dir1/", rootChildren.get(0).getName());
+        assertTrue(rootChildren.get(0).isDirectory());
+        assertEquals("/absolute.txt", rootChildren.get(1).getName());
+        assertEquals("b.txt", rootChildren.get(2).getName());
+
+        // Archive order is preserved, rather than the order of the index.
+        final List<ZipEntry> children = index.getChildren("/dir1/");
+        assertEquals(2, children.size());
+        assertEquals("dir1/cherries.txt", children.get(0).getName());
+        assertEquals(17, children.get(0).getSize());
+        assertEquals("dir1/äpfel.txt", children.get(1).getName());
+
+        final ZipEntry entry = index.getEntry("/absolute.txt");
+        assertEquals(42, entry.getSize());
+        assertEquals(1000000000000L, entry.getTime());
+
+        assertNull(index.getEntry("/missing.txt"));
+        assertNull(index.getChildren("/b.txt"));
+        assertEquals(0, index.getChildren("/").get(0).getSize());
+    }
+
+    public void testOpen_Stale() throws Exception {
+        ArchiveIndex.write(mDir, KEY, mEntries, mTree);
+        assertNull(ArchiveIndex.open(mDir, KEY + "0"));
+        assertNull(ArchiveIndex.open(mDir, "content://other"));
+    }
+
+    private void addEntry(String name, String parentPath, long size) {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setSize(size);
+        entry.setTime(1000000000000L);
+        final String path = Archive.getEntryPath(entry);
+        mEntries.put(path, entry);
+        if (entry.isDirectory()) {
+            mTree.put(path, new ArrayList<>());
+        }
+        if (parentPath != null) {
+            mTree.get(parentPath).add(entry);
+        }
+    }
+}
@@ -60,6 +60,8 @@ public class ArchivesProviderTest {
     public void setUp() throws Exception {
         mContext = InstrumentationRegistry.getContext();
         mExecutor = Executors.newSingleThreadExecutor();
+        // Otherwise archives released by previous tests would be reused, rather than loaded.
+        closeIdleArchives();
     }
 
     @After
@@ -228,6 +230,48 @@ public class ArchivesProviderTest {
         client.release();
     }
 
+    @Test
+    public void testAcquire_ReusesIdleArchive() throws InterruptedException {
+        final Uri sourceUri = DocumentsContract.buildDocumentUri(
+                ResourcesProvider.AUTHORITY, "archive.zip");
+        final Uri archiveUri = ArchivesProvider.buildUriForArchive(sourceUri,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUri(
+                ArchivesProvider.AUTHORITY, DocumentsContract.getDocumentId(archiveUri));
+
+        final ContentResolver resolver = mContext.getContentResolver();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
+                archiveUri);
+        ArchivesProvider.acquireArchive(client, archiveUri);
+
+        try (final Cursor cursor = resolver.query(childrenUri, null, null, null, null, null)) {
+            assertTrue(cursor.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING, false));
+            resolver.registerContentObserver(cursor.getNotificationUri(), false,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange, Uri uri) {
+                            latch.countDown();
+                        }
+                    });
+        }
+
+        assertTrue(latch.await(3, TimeUnit.SECONDS));
+        ArchivesProvider.releaseArchive(client, archiveUri);
+
+        // Acquiring again right away reuses the opened archive.
+        ArchivesProvider.acquireArchive(client, archiveUri);
+        try (final Cursor cursor = resolver.query(childrenUri, null, null, null, null, null)) {
+            assertEquals(3, cursor.getCount());
+            assertFalse(cursor.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING, false));
+        }
+
+        ArchivesProvider.releaseArchive(client, archiveUri);
+        client.release();
+    }
+
     @Test
     public void testNoNotificationAfterAllReleased() throws InterruptedException, RemoteException {
         final Uri sourceUri = DocumentsContract.buildDocumentUri(
@@ -264,4 +308,12 @@ public class ArchivesProviderTest {
 
         client.release();
     }
+
+    private void closeIdleArchives() {
+        try (final ContentProviderClient client =
+                mContext.getContentResolver().acquireContentProviderClient(
+                        ArchivesProvider.AUTHORITY)) {
+            ((ArchivesProvider) client.getLocalContentProvider()).closeIdleArchives();
+        }
+    }
 }
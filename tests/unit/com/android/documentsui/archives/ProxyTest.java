@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import android.support.test.InstrumentationRegistry;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.jar.StrictJarFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@MediumTest
+public class ProxyTest extends AndroidTestCase {
+    private static final String ENTRY_NAME = "data.bin";
+
+    // Spans a few ring buffers, so seeks back past it are exercised.
+    private static final int DATA_SIZE = 3 * Proxy.RING_BUFFER_SIZE + 1234;
+
+    private File mFile = null;
+    private File mSpillDir = null;
+    private StrictJarFile mZipFile = null;
+    private byte[] mData = null;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final File cacheDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mFile = File.createTempFile("test", ".zip", cacheDir);
+        mSpillDir = new File(cacheDir, "proxy-test");
+        mSpillDir.mkdirs();
+
+        mData = new byte[DATA_SIZE];
+        new Random(DATA_SIZE).nextBytes(mData);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mFile))) {
+            out.putNextEntry(new ZipEntry(ENTRY_NAME));
+            out.write(mData);
+            out.closeEntry();
+        }
+
+        mZipFile = new StrictJarFile(mFile.getPath(), false /* verify */,
+                false /* signatures */);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mZipFile.close();
+        mFile.delete();
+        for (File file : mSpillDir.listFiles()) {
+            file.delete();
+        }
+        mSpillDir.delete();
+        super.tearDown();
+    }
+
+    public void testSequentialRead() throws Exception {
+        final Proxy proxy = createProxy();
+        assertEquals(DATA_SIZE, proxy.onGetSize());
+
+        final int chunk = 4096;
+        for (int offset = 0; offset < DATA_SIZE; offset += chunk) {
+            assertRead(proxy, offset, Math.min(chunk, DATA_SIZE - offset));
+        }
+        proxy.onRelease();
+    }
+
+    public void testRandomRead() throws Exception {
+        final Proxy proxy = createProxy();
+
+        // Forward, then back within the ring buffer, then back past it.
+        assertRead(proxy, DATA_SIZE - 1000, 1000);
+        assertRead(proxy, DATA_SIZE - 5000, 3000);
+        assertRead(proxy, 10, 100);
+        assertRead(proxy, 2 * Proxy.RING_BUFFER_SIZE, 100000);
+        assertRead(proxy, 0, 100);
+
+        proxy.onRelease();
+        assertEquals(0, mSpillDir.listFiles().length);
+    }
+
+    public void testReadPastEnd() throws Exception {
+        final Proxy proxy = createProxy();
+
+        final byte[] buffer = new byte[100];
+        assertEquals(50, proxy.onRead(DATA_SIZE - 50, 100, buffer));
+        assertEquals(0, proxy.onRead(DATA_SIZE + Proxy.RING_BUFFER_SIZE * 2, 100, buffer));
+        proxy.onRelease();
+    }
+
+    private Proxy createProxy() throws Exception {
+        return new Proxy(mZipFile, mZipFile.findEntry(ENTRY_NAME), mSpillDir);
+    }
+
+    private void assertRead(Proxy proxy, int offset, int size) throws Exception {
+        final byte[] buffer = new byte[size];
+        assertEquals(size, proxy.onRead(offset, size, buffer));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mData, offset, offset + size), buffer));
+    }
+}
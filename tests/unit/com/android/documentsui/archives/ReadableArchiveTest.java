@@ -32,6 +32,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -310,6 +311,31 @@ public class ReadableArchiveTest extends AndroidTestCase {
         }
     }
 
+    public void testOpenEntryStream() throws IOException {
+        loadArchive(mTestUtils.getSeekableDescriptor(R.raw.archive));
+        try (final InputStream strawberries = mArchive.openEntryStream(
+                createArchiveId("/dir2/strawberries.txt").toDocumentId());
+             final InputStream cherries = mArchive.openEntryStream(
+                createArchiveId("/dir1/cherries.txt").toDocumentId())) {
+            // Both streams can be read at the same time.
+            final Scanner strawberriesScanner = new Scanner(strawberries);
+            final Scanner cherriesScanner = new Scanner(cherries);
+            assertEquals("I love", strawberriesScanner.next() + " " + strawberriesScanner.next());
+            assertEquals("I love cherries!", cherriesScanner.nextLine());
+            assertEquals(" strawberries!", strawberriesScanner.nextLine());
+        }
+    }
+
+    public void testOpenEntryStream_Directory() throws IOException {
+        loadArchive(mTestUtils.getSeekableDescriptor(R.raw.archive));
+        try {
+            mArchive.openEntryStream(createArchiveId("/dir1/").toDocumentId());
+            fail("Directories can't be opened.");
+        } catch (FileNotFoundException e) {
+            // Expected.
+        }
+    }
+
     public void testCanSeek() throws IOException {
         assertTrue(Archive.canSeek(mTestUtils.getSeekableDescriptor(R.raw.archive)));
         assertFalse(Archive.canSeek(mTestUtils.getNonSeekableDescriptor(R.raw.archive)));
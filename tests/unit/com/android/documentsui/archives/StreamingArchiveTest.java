@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.archives;
+
+import com.android.documentsui.tests.R;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.support.test.InstrumentationRegistry;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@MediumTest
+public class StreamingArchiveTest extends AndroidTestCase {
+    private static final Uri ARCHIVE_URI = Uri.parse("content://i/love/strawberries");
+    private static final long LOADING_TIMEOUT_MS = 3000;
+
+    private ExecutorService mExecutor = null;
+    private StreamingArchive mArchive = null;
+    private TestUtils mTestUtils = null;
+    private int mOpenCount = 0;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newCachedThreadPool();
+        mTestUtils = new TestUtils(InstrumentationRegistry.getTargetContext(),
+                InstrumentationRegistry.getContext(), mExecutor);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mArchive != null) {
+            mArchive.close();
+        }
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(3 /* timeout */, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    private static ArchiveId createArchiveId(String path) {
+        return new ArchiveId(ARCHIVE_URI, ParcelFileDescriptor.MODE_READ_ONLY, path);
+    }
+
+    private void loadArchive(int resource) {
+        mArchive = new StreamingArchive(
+                InstrumentationRegistry.getTargetContext(),
+                new ParcelFileDescriptor.AutoCloseInputStream(
+                        mTestUtils.getNonSeekableDescriptor(resource)),
+                () -> {
+                    mOpenCount++;
+                    return new ParcelFileDescriptor.AutoCloseInputStream(
+                            mTestUtils.getNonSeekableDescriptor(resource));
+                },
+                ARCHIVE_URI,
+                ParcelFileDescriptor.MODE_READ_ONLY,
+                null /* notificationUri */);
+    }
+
+    private void waitForLoaded() {
+        final long deadline = SystemClock.elapsedRealtime() + LOADING_TIMEOUT_MS;
+        while (mArchive.isLoading()) {
+            assertTrue("Timed out loading the archive.",
+                    SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    public void testQueryChildDocument() throws IOException {
+        loadArchive(R.raw.archive);
+        waitForLoaded();
+
+        final Cursor cursor = mArchive.queryChildDocuments(
+                createArchiveId("/").toDocumentId(), null, null);
+        assertFalse(cursor.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING));
+        assertEquals(3, cursor.getCount());
+
+        final Cursor childCursor = mArchive.queryChildDocuments(
+                createArchiveId("/dir1/").toDocumentId(), null, null);
+        assertTrue(childCursor.moveToFirst());
+        assertEquals(
+                createArchiveId("/dir1/cherries.txt").toDocumentId(),
+                childCursor.getString(childCursor.getColumnIndexOrThrow(
+                        Document.COLUMN_DOCUMENT_ID)));
+        assertEquals(17,
+                childCursor.getInt(childCursor.getColumnIndexOrThrow(Document.COLUMN_SIZE)));
+    }
+
+    public void testQueryChildDocument_Unknown() throws IOException {
+        loadArchive(R.raw.archive);
+        waitForLoaded();
+
+        try {
+            mArchive.queryChildDocuments(createArchiveId("/dir3/").toDocumentId(), null, null);
+            fail("Unknown directories should not be listed once loaded.");
+        } catch (FileNotFoundException expected) {}
+    }
+
+    public void testOpenDocument() throws IOException {
+        loadArchive(R.raw.archive);
+        waitForLoaded();
+
+        assertEquals("I love strawberries!", readLine("/dir2/strawberries.txt"));
+        assertEquals(1, mOpenCount);
+
+        // Extracted entries are reused.
+        assertEquals("I love strawberries!", readLine("/dir2/strawberries.txt"));
+        assertEquals(1, mOpenCount);
+    }
+
+    private String readLine(String path) throws IOException {
+        final ParcelFileDescriptor descriptor = mArchive.openDocument(
+                createArchiveId(path).toDocumentId(), "r", null /* signal */);
+        try (final ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+            return new Scanner(inputStream).nextLine();
+        }
+    }
+}
@@ -273,6 +273,54 @@ public class WriteableArchiveTest extends AndroidTestCase {
         }
     }
 
+    public void testAddFiles_Concurrently() throws IOException, Exception {
+        final String textId = mArchive.createDocument(createArchiveId("/").toDocumentId(),
+                "text/plain", "hoge.txt");
+        final String imageId = mArchive.createDocument(createArchiveId("/").toDocumentId(),
+                "image/jpeg", "fuga.jpeg");
+
+        // Both files are open at the same time, and the second one finishes first.
+        final ParcelFileDescriptor textFd = mArchive.openDocument(textId, "w", null);
+        final ParcelFileDescriptor imageFd = mArchive.openDocument(imageId, "w", null);
+        try (final ParcelFileDescriptor.AutoCloseOutputStream outputStream =
+                new ParcelFileDescriptor.AutoCloseOutputStream(imageFd)) {
+            outputStream.write("Not really a JPEG".getBytes());
+        }
+        try (final ParcelFileDescriptor.AutoCloseOutputStream outputStream =
+                new ParcelFileDescriptor.AutoCloseOutputStream(textFd)) {
+            for (int i = 0; i < 1000; i++) {
+                outputStream.write("Hello world!\n".getBytes());
+            }
+        }
+
+        mArchive.close();
+
+        // Verify archive. Entries are in the order they were opened.
+        try (final ZipFile zip = new ZipFile(mFile)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            final ZipEntry textEntry = entries.nextElement();
+            assertEquals("hoge.txt", textEntry.getName());
+            assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            assertEquals(13000, textEntry.getSize());
+            assertTrue(textEntry.getCompressedSize() < textEntry.getSize());
+
+            final ZipEntry imageEntry = entries.nextElement();
+            assertEquals("fuga.jpeg", imageEntry.getName());
+            // Images are compressed already, so they're stored as is.
+            assertEquals(ZipEntry.STORED, imageEntry.getMethod());
+            assertFalse(entries.hasMoreElements());
+
+            final Scanner textScanner = new Scanner(zip.getInputStream(textEntry));
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("Hello world!", textScanner.nextLine());
+            }
+            assertFalse(textScanner.hasNext());
+
+            final Scanner imageScanner = new Scanner(zip.getInputStream(imageEntry));
+            assertEquals("Not really a JPEG", imageScanner.nextLine());
+        }
+    }
+
     public void testAddFile_empty() throws IOException, Exception {
         final String documentId = mArchive.createDocument(createArchiveId("/").toDocumentId(),
                 "text/plain", "hoge.txt");
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.provider.DocumentsContract;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -95,6 +96,29 @@ public class ClipStorageTest {
         assertEquals(TEST_URIS, uris);
     }
 
+    @Test
+    public void testRead_SharedPrefixes() throws Exception {
+        List<Uri> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            expected.add(DocumentsContract.buildDocumentUri(
+                    "com.example.documents", "primary:DCIM/photo" + i + ".jpg"));
+            expected.add(DocumentsContract.buildDocumentUriUsingTree(
+                    DocumentsContract.buildTreeDocumentUri("com.example.documents", "primary:"),
+                    "primary:Music/" + i));
+        }
+        expected.addAll(TEST_URIS);
+        writeAll(mSlot, expected);
+        List<Uri> uris = new ArrayList<>();
+
+        File copy = mStorage.getFile(mSlot);
+        try(ClipStorageReader reader = mStorage.createReader(copy)) {
+            for (Uri uri : reader) {
+                uris.add(uri);
+            }
+        }
+        assertEquals(expected, uris);
+    }
+
     @Test
     public void testClaimStorageSlot_NoAvailableSlot() throws Exception {
         int firstSlot = mStorage.claimStorageSlot();
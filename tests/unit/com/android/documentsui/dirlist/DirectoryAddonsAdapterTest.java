@@ -29,6 +29,7 @@ import com.android.documentsui.ActionHandler;
 import com.android.documentsui.Model;
 import com.android.documentsui.base.Features;
 import com.android.documentsui.base.State;
+import com.android.documentsui.selection.SelectionManager;
 import com.android.documentsui.testing.TestActionHandler;
 import com.android.documentsui.testing.TestEnv;
 import com.android.documentsui.testing.TestFileTypeLookup;
@@ -39,6 +40,7 @@ public class DirectoryAddonsAdapterTest extends AndroidTestCase {
     private static final String AUTHORITY = "test_authority";
 
     private TestEnv mEnv;
+    private ModelBackedDocumentsAdapter mDelegate;
     private DirectoryAddonsAdapter mAdapter;
     private ActionHandler mActionHandler;
 
@@ -51,10 +53,9 @@ public class DirectoryAddonsAdapterTest extends AndroidTestCase {
         final Context testContext = TestContext.createStorageTestContext(getContext(), AUTHORITY);
         DocumentsAdapter.Environment env = new TestEnvironment(testContext);
 
-        mAdapter = new DirectoryAddonsAdapter(
-            env,
-            new ModelBackedDocumentsAdapter(
-                    env, new IconHelper(testContext, State.MODE_GRID), new TestFileTypeLookup()));
+        mDelegate = new ModelBackedDocumentsAdapter(
+                env, new IconHelper(testContext, State.MODE_GRID), new TestFileTypeLookup());
+        mAdapter = new DirectoryAddonsAdapter(env, mDelegate);
 
         mEnv.model.addUpdateListener(mAdapter.getModelUpdateListener());
     }
@@ -125,6 +126,21 @@ public class DirectoryAddonsAdapterTest extends AndroidTestCase {
         assertHolderType(0, DocumentsAdapter.ITEM_TYPE_HEADER_MESSAGE);
     }
 
+    public void testItemMoved_KeepsSelection() {
+        mEnv.reset();
+        SelectionManager selectionMgr = new SelectionManager(SelectionManager.MODE_MULTIPLE);
+        selectionMgr.reset(mAdapter, (String id, boolean nextState) -> true);
+
+        String id = mDelegate.getModelId(0);
+        selectionMgr.toggleSelection(id);
+
+        // Such as a live refresh reordering a modified file.
+        mDelegate.notifyItemMoved(0, mDelegate.getItemCount() - 1);
+
+        assertTrue(selectionMgr.getSelection().contains(id));
+        assertEquals(1, selectionMgr.getSelection().size());
+    }
+
     private void assertHolderType(int index, int type) {
         assertTrue(mAdapter.getItemViewType(index) == type);
     }
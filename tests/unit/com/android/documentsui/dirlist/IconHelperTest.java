@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.dirlist;
+
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.android.documentsui.ProviderExecutor;
+import com.android.documentsui.base.DocumentInfo;
+import com.android.documentsui.base.State;
+
+import java.util.concurrent.CountDownLatch;
+
+@MediumTest
+public class IconHelperTest extends AndroidTestCase {
+
+    private static final String AUTHORITY = "com.android.documentsui.testing.icons";
+
+    // Holds up the provider executor, so prefetches stay in flight until the test is done.
+    private final CountDownLatch mPrefetchesReleased = new CountDownLatch(1);
+
+    private IconHelper mIconHelper;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mIconHelper = new IconHelper(
+                TestContext.createStorageTestContext(getContext(), AUTHORITY), State.MODE_GRID);
+        holdProviderExecutor(AUTHORITY, mPrefetchesReleased);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mIconHelper.cancelPrefetches();
+        mPrefetchesReleased.countDown();
+        super.tearDown();
+    }
+
+    public void testPrefetch() {
+        assertTrue(mIconHelper.prefetch(createImage(AUTHORITY, 0)));
+    }
+
+    public void testPrefetch_SkipsDocumentsWithoutThumbnails() {
+        final DocumentInfo doc = createImage(AUTHORITY, 0);
+        doc.flags = 0;
+
+        assertFalse(mIconHelper.prefetch(doc));
+    }
+
+    public void testPrefetch_SkipsDocumentsInFlight() {
+        mIconHelper.prefetch(createImage(AUTHORITY, 0));
+
+        assertFalse(mIconHelper.prefetch(createImage(AUTHORITY, 0)));
+    }
+
+    public void testPrefetch_StopsAtMaxPrefetches() {
+        for (int i = 0; i < IconHelper.MAX_PREFETCHES; i++) {
+            assertTrue(mIconHelper.prefetch(createImage(AUTHORITY, i)));
+        }
+
+        assertFalse(mIconHelper.canPrefetch());
+        assertFalse(mIconHelper.prefetch(createImage(AUTHORITY, IconHelper.MAX_PREFETCHES)));
+    }
+
+    public void testPrefetch_AfterCancelingPrefetches() {
+        for (int i = 0; i < IconHelper.MAX_PREFETCHES; i++) {
+            mIconHelper.prefetch(createImage(AUTHORITY, i));
+        }
+        mIconHelper.cancelPrefetches();
+
+        assertTrue(mIconHelper.canPrefetch());
+        assertTrue(mIconHelper.prefetch(createImage(AUTHORITY, IconHelper.MAX_PREFETCHES)));
+    }
+
+    static DocumentInfo createImage(String authority, int index) {
+        final DocumentInfo doc = new DocumentInfo();
+        doc.authority = authority;
+        doc.documentId = "image" + index;
+        doc.mimeType = "image/png";
+        doc.flags = Document.FLAG_SUPPORTS_THUMBNAIL;
+        doc.derivedUri = DocumentsContract.buildDocumentUri(authority, doc.documentId);
+        return doc;
+    }
+
+    /**
+     * Blocks the provider executor of the authority until the latch is released.
+     */
+    static void holdProviderExecutor(String authority, CountDownLatch released) {
+        ProviderExecutor.forAuthority(authority).execute(() -> {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.dirlist;
+
+import static com.android.documentsui.dirlist.IconHelperTest.createImage;
+import static com.android.documentsui.dirlist.IconHelperTest.holdProviderExecutor;
+
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.android.documentsui.base.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@MediumTest
+public class ThumbnailPrefetcherTest extends AndroidTestCase {
+
+    private static final String AUTHORITY = "com.android.documentsui.testing.prefetches";
+    private static final int ITEM_COUNT = 1000;
+
+    private final CountDownLatch mPrefetchesReleased = new CountDownLatch(1);
+    private final List<Integer> mPrefetched = new ArrayList<>();
+
+    private IconHelper mIconHelper;
+    private ThumbnailPrefetcher mPrefetcher;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mIconHelper = new IconHelper(
+                TestContext.createStorageTestContext(getContext(), AUTHORITY), State.MODE_GRID);
+        holdProviderExecutor(AUTHORITY, mPrefetchesReleased);
+        mPrefetcher = new ThumbnailPrefetcher(mIconHelper, position -> {
+            mPrefetched.add(position);
+            return createImage(AUTHORITY, position);
+        });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mIconHelper.cancelPrefetches();
+        mPrefetchesReleased.countDown();
+        super.tearDown();
+    }
+
+    public void testPrefetchAhead_Down() {
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+
+        assertPrefetched(10, 29);
+    }
+
+    public void testPrefetchAhead_Up() {
+        mPrefetcher.prefetchAhead(-1, 100, 109, 1, ITEM_COUNT);
+
+        assertPrefetched(99, 90);
+    }
+
+    public void testPrefetchAhead_ContinuesWhereItLeftOff() {
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+        mPrefetched.clear();
+
+        mPrefetcher.prefetchAhead(1, 5, 14, 2, ITEM_COUNT);
+
+        assertPrefetched(30, 34);
+    }
+
+    public void testPrefetchAhead_StartsOverWhenCanceled() {
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+        mPrefetcher.cancel();
+        mPrefetched.clear();
+
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+
+        assertPrefetched(10, 29);
+    }
+
+    public void testPrefetchAhead_StopsAtLastItem() {
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, 15);
+
+        assertPrefetched(10, 14);
+    }
+
+    public void testPrefetchAhead_RetriesItemsRefusedWhenFull() {
+        // Settles the scroll direction first, as changing it cancels all prefetches. Then
+        // leaves room for just a few prefetches.
+        mPrefetcher.prefetchAhead(1, 0, 9, 0, ITEM_COUNT);
+        for (int i = 0; i < IconHelper.MAX_PREFETCHES - 5; i++) {
+            mIconHelper.prefetch(createImage(AUTHORITY, ITEM_COUNT + i));
+        }
+
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+        assertPrefetched(10, 14);
+
+        mIconHelper.cancelPrefetches();
+        mPrefetched.clear();
+        mPrefetcher.prefetchAhead(1, 0, 9, 2, ITEM_COUNT);
+        assertPrefetched(15, 29);
+    }
+
+    private void assertPrefetched(int from, int to) {
+        final List<Integer> expected = new ArrayList<>();
+        final int step = from <= to ? 1 : -1;
+        for (int position = from; position != to + step; position += step) {
+            expected.add(position);
+        }
+        assertEquals(expected, mPrefetched);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.roots;
+
+import static com.android.documentsui.StubProvider.ROOT_0_ID;
+import static com.android.documentsui.StubProvider.ROOT_1_ID;
+
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.android.documentsui.InspectorProvider;
+import com.android.documentsui.StubProvider;
+import com.android.documentsui.base.RootInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Loads roots of the providers declared by the test package.
+ */
+@MediumTest
+public class ProvidersCacheUpdateTest extends AndroidTestCase {
+
+    private static final String PAGING_AUTHORITY = "com.android.documentsui.pagingprovider";
+    private static final String DEMO_AUTHORITY = "com.android.documentsui.demoprovider";
+
+    private ProvidersCache mProviders;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviders = new ProvidersCache(getContext());
+        mProviders.updateAsync(true);
+    }
+
+    public void testUpdate_LoadsAllAuthorities() {
+        // There are more test providers than authorities loaded at once.
+        assertNotNull(mProviders.getRootBlocking(StubProvider.DEFAULT_AUTHORITY, ROOT_0_ID));
+        assertNotNull(mProviders.getRootBlocking(StubProvider.DEFAULT_AUTHORITY, ROOT_1_ID));
+        assertNotNull(mProviders.getRootBlocking(
+                InspectorProvider.AUTHORITY, InspectorProvider.ROOT_ID));
+        assertEquals(1, mProviders.getRootsForAuthorityBlocking(PAGING_AUTHORITY).size());
+        assertEquals(1, mProviders.getRootsForAuthorityBlocking(DEMO_AUTHORITY).size());
+    }
+
+    public void testGetRootsForAuthority_WaitsForAuthority() {
+        // Test providers aren't system providers, so the first load doesn't wait for them.
+        final Collection<RootInfo> roots =
+                mProviders.getRootsForAuthorityBlocking(StubProvider.DEFAULT_AUTHORITY);
+
+        final List<String> rootIds = new ArrayList<>();
+        for (RootInfo root : roots) {
+            rootIds.add(root.rootId);
+        }
+        assertEquals(2, rootIds.size());
+        assertTrue(rootIds.contains(ROOT_0_ID));
+        assertTrue(rootIds.contains(ROOT_1_ID));
+    }
+}
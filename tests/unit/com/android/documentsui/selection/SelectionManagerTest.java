@@ -16,6 +16,8 @@
 
 package com.android.documentsui.selection;
 
+import static org.junit.Assert.assertTrue;
+
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.SparseBooleanArray;
@@ -341,6 +343,48 @@ public class SelectionManagerTest {
         mSelection.assertSelection(1, 2, 3);
     }
 
+    @Test
+    public void testSelectAll_IncludesInsertedItems() {
+        mAdapter.enableSelectionKeys();
+        mAdapter.updateTestModelIds(ITEMS);
+        mManager.toggleSelection(ITEMS.get(7));
+
+        List<String> inserted = new ArrayList<>();
+        inserted.add("inserted0");
+        inserted.add("inserted1");
+        mAdapter.insertTestModelIds(3, inserted);
+        mIgnored.add(ITEMS.get(10));
+
+        assertTrue(mManager.selectAll((String id) -> true));
+
+        mSelection.assertSelectionSize(ITEMS.size() + 1);
+        mSelection.assertSelected(7);
+        mSelection.assertNotSelected(10);
+        assertTrue(mManager.getSelection().contains("inserted0"));
+        assertTrue(mManager.getSelection().contains("inserted1"));
+        mCallback.assertSelectionChanged();
+    }
+
+    @Test
+    public void testClearSelection_AfterSelectingManyItems() {
+        TestDocumentsAdapter adapter = new TestDocumentsAdapter(TestData.create(1500));
+        adapter.enableSelectionKeys();
+        SelectionManager manager = SelectionManagers.createTestInstance(
+                adapter,
+                SelectionManager.MODE_MULTIPLE,
+                (String id, boolean nextState) -> true);
+        TestItemSelectionListener itemCallback = new TestItemSelectionListener();
+        manager.addItemCallback(itemCallback);
+        SelectionProbe selection = new SelectionProbe(manager, itemCallback);
+
+        manager.selectAll((String id) -> true);
+        selection.assertSelectionSize(1500);
+
+        // Resets item callbacks at once, rather than telling about each item.
+        manager.clearSelection();
+        selection.assertNoSelection();
+    }
+
     private static Set<String> getItemIds(SparseBooleanArray selection) {
         Set<String> ids = new HashSet<>();
 
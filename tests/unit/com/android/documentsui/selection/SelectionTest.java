@@ -31,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -195,6 +196,88 @@ public class SelectionTest {
         assertTrue(testSelection.equals(control));
     }
 
+    @Test
+    public void testRebind_KeepsSelectedItems() {
+        selection.rebind(keysOf("43", "bar", "foo"));
+
+        assertEquals(2, selection.size());
+        assertContains(ids[0]);
+        assertContains(ids[1]);
+        assertFalse(selection.contains(ids[2]));
+
+        Selection control = new Selection();
+        control.add(ids[0]);
+        control.add(ids[1]);
+        assertTrue(selection.equals(control));
+        assertEquals(control.hashCode(), selection.hashCode());
+    }
+
+    @Test
+    public void testSelectAll() {
+        Selection testSelection = new Selection();
+        testSelection.rebind(keysOf("a", "b", "c", "d"));
+
+        assertTrue(testSelection.selectAll(id -> !id.equals("c")));
+        testSelection.remove("a");
+
+        assertEquals(2, testSelection.size());
+        assertTrue(testSelection.contains("b"));
+        assertFalse(testSelection.contains("c"));
+        assertTrue(testSelection.contains("d"));
+        assertEquals(Sets.newHashSet("b", "d"), Sets.newHashSet(testSelection));
+    }
+
+    @Test
+    public void testSelectAll_Rebind() {
+        Selection testSelection = new Selection();
+        testSelection.rebind(keysOf("a", "b", "c"));
+        testSelection.selectAll(id -> true);
+        testSelection.remove("b");
+
+        // Items that weren't there when everything was selected aren't selected.
+        testSelection.rebind(keysOf("new", "c", "b"));
+
+        assertEquals(1, testSelection.size());
+        assertTrue(testSelection.contains("c"));
+        assertFalse(testSelection.contains("new"));
+        assertFalse(testSelection.contains("b"));
+    }
+
+    @Test
+    public void testProvisionalSelection_Keyed() {
+        Selection testSelection = new Selection();
+        testSelection.rebind(keysOf("a", "b", "c"));
+        testSelection.add("a");
+
+        Set<String> added = new HashSet<>();
+        testSelection.setProvisionalSelection(
+                Sets.newHashSet("a", "b"), (id, selected) -> added.add(id));
+        assertEquals(Sets.newHashSet("b"), added);
+        assertEquals(2, testSelection.size());
+
+        testSelection.applyProvisionalSelection();
+        assertEquals(Sets.newHashSet("a", "b"), Sets.newHashSet(testSelection));
+    }
+
+    private static SelectionKeys keysOf(String... ids) {
+        return new SelectionKeys() {
+            @Override
+            public int size() {
+                return ids.length;
+            }
+
+            @Override
+            public String get(int position) {
+                return ids[position];
+            }
+
+            @Override
+            public int indexOf(String modelId) {
+                return Arrays.asList(ids).indexOf(modelId);
+            }
+        };
+    }
+
     private void assertContains(String id) {
         String err = String.format("Selection %s does not contain %s", selection, id);
         assertTrue(err, selection.contains(id));
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ByteCopierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestListener mListener = new TestListener();
+    private final ByteCopier mCopier = new ByteCopier(mListener);
+
+    @Test
+    public void testBufferedCopy() throws Exception {
+        byte[] data = createData(100 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(mCopier.copy(
+                new ByteArrayInputStream(data), null, out, new FileDescriptor(), data.length));
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(data.length, mListener.bytesCopied);
+    }
+
+    @Test
+    public void testPipelinedCopy() throws Exception {
+        byte[] data = createData((int) ByteCopier.PIPELINE_THRESHOLD_BYTES + 12345);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(mCopier.copy(
+                new ByteArrayInputStream(data), null, out, new FileDescriptor(), data.length));
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(data.length, mListener.bytesCopied);
+    }
+
+    @Test
+    public void testPipelinedCopy_ReadFailure() throws Exception {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken source.");
+            }
+        };
+
+        try {
+            mCopier.copy(in, null, new ByteArrayOutputStream(), new FileDescriptor(),
+                    ByteCopier.PIPELINE_THRESHOLD_BYTES);
+            fail("Read failure should have been rethrown.");
+        } catch (IOException expected) {}
+
+        assertTrue(mCopier.isReading());
+    }
+
+    @Test
+    public void testPipelinedCopy_ReaderCrash() throws Exception {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("Crashed source.");
+            }
+        };
+
+        try {
+            mCopier.copy(in, null, new ByteArrayOutputStream(), new FileDescriptor(),
+                    ByteCopier.PIPELINE_THRESHOLD_BYTES);
+            fail("Reader crash should have been rethrown.");
+        } catch (IllegalStateException expected) {}
+
+        assertTrue(mCopier.isReading());
+    }
+
+    @Test
+    public void testFileCopy() throws Exception {
+        byte[] data = createData(300 * 1024);
+        File src = folder.newFile();
+        File dst = folder.newFile();
+        Files.write(src.toPath(), data);
+
+        try (FileInputStream in = new FileInputStream(src);
+                FileOutputStream out = new FileOutputStream(dst)) {
+            assertTrue(mCopier.copy(in, in.getFD(), out, out.getFD(), data.length));
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(dst.toPath()));
+        assertEquals(data.length, mListener.bytesCopied);
+    }
+
+    @Test
+    public void testCanceled() throws Exception {
+        byte[] data = createData(100 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mListener.canceled = true;
+
+        assertFalse(mCopier.copy(
+                new ByteArrayInputStream(data), null, out, new FileDescriptor(), data.length));
+        assertEquals(0, mListener.bytesCopied);
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static final class TestListener implements ByteCopier.Listener {
+        private long bytesCopied;
+        private boolean canceled;
+
+        @Override
+        public void onBytesCopied(long numBytes) {
+            bytesCopied += numBytes;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+    }
+}
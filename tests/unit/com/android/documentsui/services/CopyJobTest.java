@@ -82,4 +82,20 @@ public class CopyJobTest extends AbstractCopyJobTest<CopyJob> {
     public void testCopyFileWithReadErrors() throws Exception {
         runCopyFileWithReadErrorsTest();
     }
+
+    public void testSpaceRemaining_ExcludesBytesWritten() throws Exception {
+        Uri testFile1 = mDocs.createDocument(mSrcRoot, "text/plain", "test1.txt");
+        mDocs.writeDocument(testFile1, HAM_BYTES);
+        Uri testFile2 = mDocs.createDocument(mSrcRoot, "text/plain", "test2.txt");
+        mDocs.writeDocument(testFile2, FRUITY_BYTES);
+
+        CopyJob job = createJob(newArrayList(testFile1, testFile2));
+        assertTrue(job.setUp());
+        assertEquals(HAM_BYTES.length + FRUITY_BYTES.length, job.getSpaceRequired());
+
+        // Once the first file is written, a destination with room for only the second one
+        // still fits the copy.
+        job.onBytesCopied(HAM_BYTES.length);
+        assertEquals(FRUITY_BYTES.length, job.getSpaceRemaining());
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.StubProvider.ROOT_0_ID;
+
+import android.content.ContentProviderClient;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.android.documentsui.DocumentsProviderHelper;
+import com.android.documentsui.StubProvider;
+import com.android.documentsui.base.DocumentInfo;
+import com.android.documentsui.base.RootInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@MediumTest
+public class DocumentResolverTest extends AndroidTestCase {
+
+    private static final String AUTHORITY = StubProvider.DEFAULT_AUTHORITY;
+
+    private ContentProviderClient mClient;
+    private DocumentsProviderHelper mDocs;
+    private RootInfo mRoot;
+    private Uri mRootUri;
+
+    private final List<Uri> mResolved = new ArrayList<>();
+    private final List<Uri> mFailed = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClient = getContext().getContentResolver().acquireContentProviderClient(AUTHORITY);
+        mDocs = new DocumentsProviderHelper(AUTHORITY, mClient);
+        mRoot = mDocs.getRoot(ROOT_0_ID);
+        mRootUri = DocumentsContract.buildDocumentUri(AUTHORITY, mRoot.documentId);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.call("clear", null, null);
+        mClient.release();
+        super.tearDown();
+    }
+
+    public void testResolve_FromParentListing() throws Exception {
+        final List<Uri> uris = createDocuments(DocumentResolver.MIN_LISTED_DOCUMENTS);
+        final Uri missing = DocumentsContract.buildDocumentUri(AUTHORITY, "missing");
+        uris.add(3, missing);
+
+        final DocumentResolver resolver = resolve(uris, mRootUri);
+
+        uris.remove(missing);
+        assertEquals(uris, mResolved);
+        assertEquals(1, mFailed.size());
+        assertEquals(missing, mFailed.get(0));
+        assertEquals(1, resolver.getListingCount());
+    }
+
+    public void testResolve_FewDocumentsOfLargeParent() throws Exception {
+        final List<Uri> uris = createDocuments(DocumentResolver.MIN_LISTED_DOCUMENTS
+                * DocumentResolver.MAX_CHILDREN_PER_LISTED_DOCUMENT + 1);
+        final List<Uri> requested = uris.subList(0, DocumentResolver.MIN_LISTED_DOCUMENTS);
+
+        resolve(requested, mRootUri);
+
+        assertEquals(requested, mResolved);
+        assertTrue(mFailed.isEmpty());
+    }
+
+    public void testResolve_WithoutParent() throws Exception {
+        final List<Uri> uris = createDocuments(3);
+
+        resolve(uris, null);
+
+        assertEquals(uris, mResolved);
+        assertTrue(mFailed.isEmpty());
+    }
+
+    public void testResolve_SeveralChunks() throws Exception {
+        final List<Uri> uris = createDocuments(DocumentResolver.CHUNK_SIZE + 5);
+
+        resolve(uris, mRootUri);
+
+        assertEquals(uris, mResolved);
+        assertTrue(mFailed.isEmpty());
+    }
+
+    private List<Uri> createDocuments(int count) {
+        final List<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            uris.add(mDocs.createDocument(mRoot, "text/plain", "test" + i + ".txt"));
+        }
+        return uris;
+    }
+
+    private DocumentResolver resolve(List<Uri> uris, Uri parentUri) {
+        final DocumentResolver resolver =
+                new DocumentResolver(getContext().getContentResolver(), parentUri);
+        resolver.resolve(uris, new DocumentResolver.Callback() {
+            @Override
+            public void onResolved(DocumentInfo doc) {
+                mResolved.add(doc.derivedUri);
+            }
+
+            @Override
+            public void onFailed(Uri uri, Throwable error) {
+                mFailed.add(uri);
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return false;
+            }
+        });
+        return resolver;
+    }
+}
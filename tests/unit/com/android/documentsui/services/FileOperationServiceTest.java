@@ -257,6 +257,22 @@ public class FileOperationServiceTest extends ServiceTestCase<FileOperationServi
         assertExecutorsShutdown();
     }
 
+    public void testFinishesCanceledQueuedJob() throws Exception {
+        startService(createCopyIntent(newArrayList(ALPHA_DOC), BETA_DOC));
+        startService(createCopyIntent(newArrayList(GAMMA_DOC), DELTA_DOC));
+        // Jobs to the same destination share a lane, so the last one waits for a free slot.
+        startService(createCopyIntent(newArrayList(ALPHA_DOC), BETA_DOC));
+
+        startService(createCancelIntent(mCopyJobs.get(2)));
+        mExecutor.runAll();
+        mHandler.dispatchAllMessages();
+
+        mCopyJobs.get(2).assertNotStarted();
+        assertFalse(mService.holdsWakeLock());
+        mForegroundManager.assertInBackground();
+        mTestNotificationManager.assertNumberOfNotifications(0);
+    }
+
     public void testRunsInForeground_MultipleJobs() throws Exception {
         startService(createCopyIntent(newArrayList(ALPHA_DOC), BETA_DOC));
         startService(createCopyIntent(newArrayList(GAMMA_DOC), DELTA_DOC));
@@ -309,6 +325,13 @@ public class FileOperationServiceTest extends ServiceTestCase<FileOperationServi
         return createBaseIntent(getContext(), createJobId(), operation);
     }
 
+    private Intent createCancelIntent(Job job) {
+        Intent intent = new Intent(getContext(), FileOperationService.class);
+        intent.putExtra(FileOperationService.EXTRA_CANCEL, true);
+        intent.putExtra(FileOperationService.EXTRA_JOB_ID, job.id);
+        return intent;
+    }
+
     private Intent createDeleteIntent(ArrayList<DocumentInfo> files) {
         DocumentStack stack = new DocumentStack();
 
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonWriter;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class JobMetricsTest {
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, JobMetrics.Histogram.bucketOf(0));
+        assertEquals(1, JobMetrics.Histogram.bucketOf(1));
+        assertEquals(2, JobMetrics.Histogram.bucketOf(3));
+        assertEquals(11, JobMetrics.Histogram.bucketOf(1024));
+        assertEquals(27, JobMetrics.Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testCounts() {
+        final JobMetrics metrics = new JobMetrics("1", OPERATION_COPY);
+        metrics.onStarted();
+        metrics.onBytesCopied(100);
+        metrics.onBytesCopied(23);
+        metrics.onProviderCall();
+        metrics.onRetry();
+        metrics.recordLatency(JobMetrics.LATENCY_OPEN, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.onFinished("completed");
+
+        assertEquals(123, metrics.getBytesCopied());
+        assertEquals(1, metrics.getProviderCalls());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(1, metrics.getLatencyCount(JobMetrics.LATENCY_OPEN));
+        assertEquals(0, metrics.getLatencyCount(JobMetrics.LATENCY_FSYNC));
+    }
+
+    @Test
+    public void testDump() {
+        final JobMetrics metrics = new JobMetrics("1", OPERATION_COPY);
+        metrics.onStarted();
+        metrics.onBytesCopied(100);
+        metrics.onFinished("completed");
+
+        final StringWriter out = new StringWriter();
+        metrics.dump(new PrintWriter(out), "");
+        assertTrue(out.toString(), out.toString().contains("Job 1 (copy, completed)"));
+        assertTrue(out.toString(), out.toString().contains("bytes=100"));
+    }
+
+    @Test
+    public void testDumpJson() throws Exception {
+        final JobMetrics metrics = new JobMetrics("1", OPERATION_COPY);
+        metrics.onStarted();
+        metrics.onBytesCopied(100);
+        metrics.recordLatency(JobMetrics.LATENCY_WRITE, 1000);
+        metrics.onFinished("completed");
+
+        final StringWriter out = new StringWriter();
+        final JsonWriter writer = new JsonWriter(out);
+        metrics.dumpJson(writer);
+        writer.flush();
+
+        final JSONObject json = new JSONObject(out.toString());
+        assertEquals("copy", json.getString("operation"));
+        assertEquals(100, json.getLong("bytes"));
+        assertEquals(2, json.getJSONArray("samples").length());
+        assertEquals(1, json.getJSONObject("latencies").getJSONObject("write").getLong("count"));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.testing.TestScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LaneSchedulerTest {
+
+    private TestScheduledExecutorService mExecutor;
+    private int mQueueUpdates;
+    private int mJobCount;
+
+    @Before
+    public void setUp() {
+        mExecutor = new TestScheduledExecutorService();
+        mQueueUpdates = 0;
+        mJobCount = 0;
+    }
+
+    @Test
+    public void testQueuesJobsOfSameLane() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        final TestJob first = createJob("sdcard");
+        final TestJob second = createJob("sdcard");
+
+        scheduler.schedule(first);
+        scheduler.schedule(second);
+        assertEquals(-1, scheduler.getWaitCount(first));
+        assertEquals(1, scheduler.getWaitCount(second));
+        assertTrue(scheduler.hasQueuedJobs());
+
+        mExecutor.run(0);
+        first.assertStarted();
+        second.assertNotStarted();
+        assertEquals(-1, scheduler.getWaitCount(second));
+        assertFalse(scheduler.hasQueuedJobs());
+
+        mExecutor.run(0);
+        second.assertStarted();
+    }
+
+    @Test
+    public void testKeepsSlotForOtherLanes() {
+        final LaneScheduler scheduler = createScheduler(3, 1);
+        final TestJob sdcard1 = createJob("sdcard");
+        final TestJob sdcard2 = createJob("sdcard");
+        final TestJob sdcard3 = createJob("sdcard");
+        final TestJob primary = createJob("primary");
+
+        scheduler.schedule(sdcard1);
+        scheduler.schedule(sdcard2);
+        scheduler.schedule(sdcard3);
+        scheduler.schedule(primary);
+
+        // The second job borrows an idle slot, the last one is kept for other lanes.
+        assertEquals(-1, scheduler.getWaitCount(sdcard2));
+        assertEquals(2, scheduler.getWaitCount(sdcard3));
+        assertEquals(-1, scheduler.getWaitCount(primary));
+
+        mExecutor.runAll();
+        sdcard3.assertStarted();
+        primary.assertStarted();
+    }
+
+    @Test
+    public void testLanesTakeTurns() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        final TestJob running = createJob("sdcard");
+        final TestJob sdcard = createJob("sdcard");
+        final TestJob primary = createJob("primary");
+
+        scheduler.schedule(running);
+        scheduler.schedule(sdcard);
+        scheduler.schedule(primary);
+
+        mExecutor.run(0);
+        assertEquals(-1, scheduler.getWaitCount(primary));
+        assertEquals(1, scheduler.getWaitCount(sdcard));
+    }
+
+    @Test
+    public void testNotifiesQueueListener() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        scheduler.schedule(createJob("sdcard"));
+        scheduler.schedule(createJob("sdcard"));
+        scheduler.schedule(createJob("sdcard"));
+
+        mExecutor.run(0);
+        assertEquals(1, mQueueUpdates);
+
+        // Nothing is queued anymore.
+        mExecutor.run(0);
+        assertEquals(1, mQueueUpdates);
+    }
+
+    @Test
+    public void testCancel_DropsQueuedJob() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        final TestJob running = createJob("sdcard");
+        final TestJob canceled = createJob("sdcard");
+        final TestJob next = createJob("sdcard");
+        scheduler.schedule(running);
+        scheduler.schedule(canceled);
+        scheduler.schedule(next);
+
+        assertTrue(scheduler.cancel(canceled.id));
+        assertEquals(-1, scheduler.getWaitCount(canceled));
+        assertEquals(1, scheduler.getWaitCount(next));
+
+        mExecutor.runAll();
+        canceled.assertNotStarted();
+        next.assertStarted();
+    }
+
+    @Test
+    public void testCancel_IgnoresRunningJob() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        final TestJob running = createJob("sdcard");
+        scheduler.schedule(running);
+
+        assertFalse(scheduler.cancel(running.id));
+    }
+
+    @Test
+    public void testShutdownNow_ReturnsQueuedJobs() {
+        final LaneScheduler scheduler = createScheduler(1, 1);
+        final TestJob queued = createJob("sdcard");
+        scheduler.schedule(createJob("sdcard"));
+        scheduler.schedule(queued);
+
+        final List<Runnable> unfinished = scheduler.shutdownNow();
+        assertEquals(Collections.singletonList(queued), unfinished);
+        assertFalse(scheduler.hasQueuedJobs());
+        mExecutor.assertShutdown();
+    }
+
+    private LaneScheduler createScheduler(int slots, int laneSlots) {
+        return new LaneScheduler(mExecutor, slots, laneSlots, () -> mQueueUpdates++);
+    }
+
+    private TestJob createJob(String rootId) {
+        return TestJob.create(Integer.toString(mJobCount++), rootId, () -> {});
+    }
+}
@@ -90,6 +90,24 @@ public class MoveJobTest extends AbstractCopyJobTest<MoveJob> {
         mDocs.assertChildCount(mSrcRoot, 1);
     }
 
+    public void testMoveFiles_ProviderMoveUnsupported_Fallback() throws Exception {
+        // The stub provider claims to support moves, but fails to move documents. The first
+        // failure makes the job byte copy the rest.
+        int flags = Document.FLAG_SUPPORTS_MOVE | Document.FLAG_SUPPORTS_DELETE;
+        Uri testFile1 = mDocs.createDocumentWithFlags(
+                mSrcRoot.documentId, "text/plain", "test1.txt", flags);
+        Uri testFile2 = mDocs.createDocumentWithFlags(
+                mSrcRoot.documentId, "text/plain", "test2.txt", flags);
+
+        createJob(newArrayList(testFile1, testFile2)).run();
+        waitForJobFinished();
+
+        mDocs.assertChildCount(mDestRoot, 2);
+        mDocs.assertHasFile(mDestRoot, "test1.txt");
+        mDocs.assertHasFile(mDestRoot, "test2.txt");
+        mDocs.assertChildCount(mSrcRoot, 0);
+    }
+
     public void testMoveEmptyDir() throws Exception {
         runCopyEmptyDirTest();
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.testing.TestHandler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProgressPublisherTest {
+
+    private static final int NOTIFICATION_ID = 0;
+
+    private TestHandler mHandler;
+    private ProgressPublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mHandler = new TestHandler();
+        mPublisher = new ProgressPublisher(
+                new TestNotificationManager(new TestForegroundManager())
+                        .createNotificationManager(),
+                mHandler, NOTIFICATION_ID);
+    }
+
+    @Test
+    public void testPublishesOnceAdded() {
+        runJob(job -> {
+            job.setCompletedFraction(0.1);
+            mPublisher.add(job);
+            mHandler.dispatchNextMessage();
+
+            assertEquals(1, mPublisher.getPublishedCount());
+            assertTrue(mHandler.hasScheduledMessage());
+        });
+    }
+
+    @Test
+    public void testSuppressesUnchangedProgress() {
+        runJob(job -> {
+            job.setCompletedFraction(0.1);
+            mPublisher.add(job);
+            mHandler.dispatchNextMessage();
+
+            job.setCompletedFraction(0.101);
+            mHandler.dispatchNextMessage();
+            assertEquals(1, mPublisher.getPublishedCount());
+            assertEquals(1, mPublisher.getSuppressedCount());
+
+            job.setCompletedFraction(0.2);
+            mHandler.dispatchNextMessage();
+            assertEquals(2, mPublisher.getPublishedCount());
+        });
+    }
+
+    @Test
+    public void testPublishesUnknownProgress() {
+        runJob(job -> {
+            mPublisher.add(job);
+            mHandler.dispatchNextMessage();
+            mHandler.dispatchNextMessage();
+
+            assertEquals(2, mPublisher.getPublishedCount());
+            assertEquals(0, mPublisher.getSuppressedCount());
+        });
+    }
+
+    @Test
+    public void testStopsAfterJobsFinished() {
+        runJob(job -> {
+            mPublisher.add(job);
+            mHandler.dispatchNextMessage();
+        });
+
+        mHandler.dispatchNextMessage();
+        assertFalse(mHandler.hasScheduledMessage());
+        assertEquals(1, mPublisher.getPublishedCount());
+    }
+
+    /**
+     * Runs the job, and calls back while the job is set up, which is when it has progress.
+     */
+    private void runJob(JobCallback callback) {
+        final TestJob[] job = new TestJob[1];
+        job[0] = TestJob.create("0", "sdcard", () -> callback.onSetUp(job[0]));
+        job[0].run();
+    }
+
+    private interface JobCallback {
+        void onSetUp(TestJob job);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import static com.android.documentsui.base.DocumentInfo.getCursorString;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.testing.SortModels;
+import com.android.documentsui.testing.TestFileTypeLookup;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SortedMergeCursorTest {
+    private static final String[] COLUMNS = new String[]{
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_MIME_TYPE
+    };
+
+    private SortModel mSortModel;
+    private TestFileTypeLookup mFileTypeLookup;
+
+    @Before
+    public void setUp() {
+        mSortModel = SortModels.createTestSortModel();
+        mFileTypeLookup = new TestFileTypeLookup();
+        mSortModel.sortByUser(
+                SortModel.SORT_DIMENSION_ID_DATE, SortDimension.SORT_DIRECTION_DESCENDING);
+    }
+
+    @Test
+    public void testMerge() {
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 0)
+                .merge(Arrays.asList(createCursor("a", 9, 5, 1), createCursor("b", 8, 7, 2)));
+
+        assertEquals(6, merged.getCount());
+        assertIds(merged, "a0", "b0", "b1", "a1", "b2", "a2");
+    }
+
+    @Test
+    public void testMerge_Unsorted() {
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 0)
+                .merge(Arrays.asList(createCursor("a", 1, 9), createCursor("b", 5)));
+
+        assertIds(merged, "a1", "b0", "a0");
+    }
+
+    @Test
+    public void testMerge_Limit() {
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 3)
+                .merge(Arrays.asList(createCursor("a", 9, 5, 1), createCursor("b", 8, 7, 2)));
+
+        assertEquals(3, merged.getCount());
+        assertIds(merged, "a0", "b0", "b1");
+    }
+
+    @Test
+    public void testMerge_Incremental() {
+        final SortedMergeCursor first = mSortModel.createMergeCursor(mFileTypeLookup, 4)
+                .merge(Arrays.asList(createCursor("a", 9, 5, 1)));
+        final SortedMergeCursor second = first.merge(Arrays.asList(createCursor("b", 8, 7, 2)));
+
+        // The previous cursor remains usable.
+        assertIds(first, "a0", "a1", "a2");
+        assertIds(second, "a0", "b0", "b1", "a1");
+    }
+
+    @Test
+    public void testSortBy() {
+        final Cursor a = createCursor("a", 9, 5, 1);
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 0)
+                .merge(Arrays.asList(a, createCursor("b", 8, 7, 2)));
+        a.moveToPosition(1);
+
+        mSortModel.sortByUser(
+                SortModel.SORT_DIMENSION_ID_DATE, SortDimension.SORT_DIRECTION_ASCENDING);
+        final SortedMergeCursor sorted = mSortModel.sortMergeCursor(merged);
+
+        // Merged cursors aren't traversed again, as they're shared with the previous cursor.
+        assertEquals(1, a.getPosition());
+        assertTrue(mSortModel.isMergedInOrder(sorted));
+        assertIds(sorted, "a2", "b2", "a1", "b1", "b0", "a0");
+    }
+
+    @Test
+    public void testMerge_Unknown() {
+        mSortModel = SortModels.createTestSortModel();
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 0)
+                .merge(Arrays.asList(createCursor("a", 1, 9), createCursor("b", 5)));
+
+        assertIds(merged, "a0", "a1", "b0");
+    }
+
+    @Test
+    public void testIsMergedInOrder() {
+        final SortedMergeCursor merged = mSortModel.createMergeCursor(mFileTypeLookup, 0);
+        assertTrue(mSortModel.isMergedInOrder(merged));
+
+        mSortModel.sortByUser(
+                SortModel.SORT_DIMENSION_ID_DATE, SortDimension.SORT_DIRECTION_ASCENDING);
+        assertFalse(mSortModel.isMergedInOrder(merged));
+    }
+
+    private static Cursor createCursor(String prefix, long... lastModified) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < lastModified.length; i++) {
+            final MatrixCursor.RowBuilder row = cursor.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, prefix + i);
+            row.add(Document.COLUMN_DISPLAY_NAME, prefix + i);
+            row.add(Document.COLUMN_SIZE, 0);
+            row.add(Document.COLUMN_LAST_MODIFIED, lastModified[i]);
+            row.add(Document.COLUMN_MIME_TYPE, "text/plain");
+        }
+        return cursor;
+    }
+
+    private static void assertIds(Cursor cursor, String... ids) {
+        assertEquals(ids.length, cursor.getCount());
+        for (int i = 0; i < ids.length; i++) {
+            cursor.moveToPosition(i);
+            assertEquals(ids[i], getCursorString(cursor, Document.COLUMN_DOCUMENT_ID));
+        }
+    }
+}
@@ -490,6 +490,36 @@ public class SortingCursorWrapperTest {
         assertEquals("flop", actual.getString(DocumentsContract.EXTRA_ERROR));
     }
 
+    @Test
+    public void testResort() {
+        sortModel.sortByUser(SortModel.SORT_DIMENSION_ID_TITLE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+        final SortingCursorWrapper byName = (SortingCursorWrapper) createSortingCursorWrapper();
+
+        sortModel.sortByUser(SortModel.SORT_DIMENSION_ID_SIZE,
+                SortDimension.SORT_DIRECTION_DESCENDING);
+        final SortingCursorWrapper resorted = sortModel.resortCursor(byName);
+        final Cursor expected = createSortingCursorWrapper(cursor);
+
+        assertEquals(expected.getCount(), resorted.getCount());
+        final int[] map = resorted.mapPositionsTo(byName);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            expected.moveToPosition(i);
+            resorted.moveToPosition(i);
+            final String id = getCursorString(expected, Document.COLUMN_DOCUMENT_ID);
+            assertEquals(id, getCursorString(resorted, Document.COLUMN_DOCUMENT_ID));
+
+            byName.moveToPosition(map[i]);
+            assertEquals(id, getCursorString(byName, Document.COLUMN_DOCUMENT_ID));
+        }
+
+        // The re-sorted cursor owns the underlying one now.
+        byName.close();
+        assertFalse(cursor.isClosed());
+        resorted.close();
+        assertTrue(cursor.isClosed());
+    }
+
     private Cursor createSortingCursorWrapper() {
         return createSortingCursorWrapper(cursor);
     }